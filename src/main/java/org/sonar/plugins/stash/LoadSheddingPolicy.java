@@ -0,0 +1,90 @@
+package org.sonar.plugins.stash;
+
+import java.text.MessageFormat;
+
+/**
+ * Stop creating line comments while Stash is overloaded: the overview is posted instead, with the number of deferred comments.
+ *
+ * Comment creations are watched on the last {@link #WINDOW} comments: when their average latency (retries included)
+ * or their failure rate exceeds the configured threshold, the posting is degraded for the rest of the run.
+ * The reason of the degradation is kept to be reported.
+ */
+public class LoadSheddingPolicy {
+
+  static final int WINDOW = 20;
+
+  private static final String LATENCY_REASON = "average comment creation time of {0} ms over the last {1} comments exceeds {2} ms";
+  private static final String ERROR_RATE_REASON = "{0}% of the last {1} comment creations failed (threshold: {2}%)";
+
+  private final long maxLatencyMillis;
+  private final double maxErrorPercent;
+
+  private final long[] latencies = new long[WINDOW];
+  private final boolean[] failures = new boolean[WINDOW];
+  private int samples;
+  private int next;
+  private String reason;
+
+  /**
+   * @param maxLatencyMillis average latency from which posting is degraded, never on latency if 0
+   * @param maxErrorPercent failure rate (in percent) from which posting is degraded, never on failures if 0
+   */
+  public LoadSheddingPolicy(long maxLatencyMillis, double maxErrorPercent) {
+    this.maxLatencyMillis = maxLatencyMillis;
+    this.maxErrorPercent = maxErrorPercent;
+  }
+
+  public static LoadSheddingPolicy disabled() {
+    return new LoadSheddingPolicy(0, 0);
+  }
+
+  /**
+   * Record a comment creation, retries included. May be called by several posting threads.
+   */
+  public synchronized void record(long latencyMillis, boolean failed) {
+    latencies[next] = latencyMillis;
+    failures[next] = failed;
+    next = (next + 1) % WINDOW;
+    samples = Math.min(samples + 1, WINDOW);
+
+    if (reason == null && samples == WINDOW) {
+      reason = evaluate();
+    }
+  }
+
+  private String evaluate() {
+    long totalLatency = 0;
+    int failed = 0;
+    for (int i = 0; i < WINDOW; i++) {
+      totalLatency += latencies[i];
+      if (failures[i]) {
+        failed++;
+      }
+    }
+
+    long averageLatency = totalLatency / WINDOW;
+    if (maxLatencyMillis > 0 && averageLatency > maxLatencyMillis) {
+      return MessageFormat.format(LATENCY_REASON, String.valueOf(averageLatency), WINDOW, String.valueOf(maxLatencyMillis));
+    }
+    double errorPercent = 100.0 * failed / WINDOW;
+    if (maxErrorPercent > 0 && errorPercent > maxErrorPercent) {
+      return MessageFormat.format(ERROR_RATE_REASON, Math.round(errorPercent), WINDOW, String.valueOf(maxErrorPercent));
+    }
+    return null;
+  }
+
+  /**
+   * @return true once the posting has been degraded: it is not restored during the run
+   */
+  public synchronized boolean isShedding() {
+    return reason != null;
+  }
+
+  /**
+   * @return why the posting has been degraded, null if it has not
+   */
+  public synchronized String getReason() {
+    return reason;
+  }
+
+}
@@ -0,0 +1,273 @@
+package org.sonar.plugins.stash;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.sonar.plugins.stash.issue.PlannedComment;
+import org.sonar.plugins.stash.issue.PostingPlan;
+
+/**
+ * Write-ahead journal of the Stash comments posted on a pull-request, kept in the working directory.
+ *
+ * The posting plan is journaled before any comment is posted, then each posted comment is appended with its id.
+ * A run interrupted half-way (e.g. on Stash timeout) is resumed by the next run on the same pull-request commit,
+ * provided it plans the same candidate comments with the same settings (see {@link #getPlanKey(List, Object...)}):
+ * the remaining comments are posted without fetching again all the pull-request comments.
+ *
+ * Records are written unbuffered, one line each, and synced to disk by batches of {@link #SYNC_BATCH} comments.
+ * An I/O failure disables the journal: comments are still posted, but the run cannot be resumed.
+ */
+public class PostingJournal implements Closeable {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(PostingJournal.class);
+
+  static final int SYNC_BATCH = 16;
+
+  private static final String FILE_PREFIX = "stash-posting-journal-";
+  private static final String FILE_SUFFIX = ".log";
+  private static final String SEPARATOR = "\t";
+
+  private static final String PLANNED = "P";
+  private static final String CUT = "X";
+  private static final String PLAN_COMPLETE = "B";
+  private static final String POSTED = "C";
+
+  private final File file;
+  private final String commit;
+
+  private final Set<String> planned = new HashSet<>();
+  private final Set<String> cut = new HashSet<>();
+  private final Set<String> posted = new HashSet<>();
+  private String planKey;
+
+  private FileOutputStream output;
+  private int unsyncedRecords;
+
+  private PostingJournal(File file, String commit) {
+    this.file = file;
+    this.commit = commit;
+  }
+
+  /**
+   * Journal file of a pull-request: one per pull-request, so that several pull-requests can share a working directory.
+   */
+  public static File getFile(File workingDir, String project, String repository, String pullRequestId) {
+    String name = (project + "-" + repository + "-" + pullRequestId).replaceAll("[^A-Za-z0-9._-]", "_");
+    return new File(workingDir, FILE_PREFIX + name + FILE_SUFFIX);
+  }
+
+  /**
+   * Key of a posting plan: digest of its candidate comments and of the settings the plan depends on.
+   * @param candidates candidate comments, before the existing comments and the issue threshold are taken into account
+   */
+  public static String getPlanKey(List<PlannedComment> candidates, Object... settings) {
+    List<String> fingerprints = new ArrayList<>();
+    for (PlannedComment comment : candidates) {
+      fingerprints.add(comment.getFingerprint());
+    }
+    Collections.sort(fingerprints);
+
+    try {
+      MessageDigest digest = MessageDigest.getInstance("SHA-1");
+      for (String fingerprint : fingerprints) {
+        digest.update((fingerprint + '\n').getBytes(StandardCharsets.UTF_8));
+      }
+      for (Object setting : settings) {
+        digest.update((String.valueOf(setting) + '\n').getBytes(StandardCharsets.UTF_8));
+      }
+      StringBuilder sb = new StringBuilder();
+      for (byte b : digest.digest()) {
+        sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+      }
+      return sb.toString();
+    } catch (NoSuchAlgorithmException e) {
+      // SHA-1 is provided by every Java platform
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * Read the journal of a previous run on the same commit, if any. The journal of another commit is ignored,
+   * and overwritten by the next plan.
+   * @param commit head commit of the pull-request
+   */
+  public static PostingJournal open(File file, String commit) throws IOException {
+    PostingJournal journal = new PostingJournal(file, commit);
+    if (file.exists()) {
+      journal.read();
+    }
+
+    File parent = file.getParentFile();
+    if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+      throw new IOException("Unable to create directory " + parent);
+    }
+    return journal;
+  }
+
+  private void read() throws IOException {
+    try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        String[] record = line.split(SEPARATOR);
+        if (record.length < 2 || !commit.equals(record[0])) {
+          continue;
+        }
+        if (record.length >= 3 && PLAN_COMPLETE.equals(record[1])) {
+          planKey = record[2];
+        } else if (record.length >= 3 && PLANNED.equals(record[1])) {
+          planned.add(record[2]);
+        } else if (record.length >= 3 && CUT.equals(record[1])) {
+          cut.add(record[2]);
+        } else if (record.length >= 4 && POSTED.equals(record[1])) {
+          // the comment id is kept for diagnosis only
+          posted.add(record[2]);
+        }
+        // a truncated last record (interrupted write) is ignored
+      }
+    }
+  }
+
+  /**
+   * True if a previous run on the same commit has journaled its whole plan, with the same key.
+   */
+  public boolean isResumable(String planKey) {
+    return this.planKey != null && this.planKey.equals(planKey);
+  }
+
+  /**
+   * Sort out the candidates of the plan according to the journaled plan, see {@link PostingPlan#applyPreviousPlan(Set, Set, Set)}.
+   * Comments posted from now on are appended to the journal.
+   * @return false, with the plan untouched, if a journaled comment left to post or cut by the issue threshold is not a candidate
+   *   (e.g. a group of issues partially present on the pull-request): the plan has then to be computed again
+   */
+  public boolean resume(PostingPlan plan) {
+    Set<String> fingerprints = new HashSet<>();
+    for (PlannedComment comment : plan.getCandidates()) {
+      fingerprints.add(comment.getFingerprint());
+    }
+    Set<String> expected = new HashSet<>(planned);
+    expected.removeAll(posted);
+    expected.addAll(cut);
+    if (!fingerprints.containsAll(expected)) {
+      return false;
+    }
+
+    plan.applyPreviousPlan(planned, cut, posted);
+    try {
+      output = new FileOutputStream(file, true);
+    } catch (IOException e) {
+      disable(e);
+    }
+    return true;
+  }
+
+  /**
+   * Journal the comments to post, and synchronize it before any comment is posted. The journal of a previous run is overwritten.
+   * @param planKey see {@link #getPlanKey(List, Object...)}
+   */
+  public void writePlan(String planKey, PostingPlan plan) {
+    closeQuietly();
+    try {
+      output = new FileOutputStream(file, false);
+    } catch (IOException e) {
+      disable(e);
+      return;
+    }
+
+    StringBuilder sb = new StringBuilder();
+    for (PlannedComment comment : plan.getComments()) {
+      appendRecord(sb, PLANNED, comment.getFingerprint());
+    }
+    for (PlannedComment comment : plan.getNotDisplayedComments()) {
+      appendRecord(sb, CUT, comment.getFingerprint());
+    }
+    appendRecord(sb, PLAN_COMPLETE, planKey);
+    if (write(sb.toString())) {
+      sync();
+    }
+  }
+
+  /**
+   * May be called by several posting threads.
+   */
+  public synchronized void commentPosted(PlannedComment comment, Long commentId) {
+    StringBuilder sb = new StringBuilder();
+    appendRecord(sb, POSTED, comment.getFingerprint() + SEPARATOR + commentId);
+    if (write(sb.toString()) && ++unsyncedRecords >= SYNC_BATCH) {
+      sync();
+    }
+  }
+
+  private void appendRecord(StringBuilder sb, String type, String value) {
+    sb.append(commit).append(SEPARATOR).append(type);
+    if (value != null) {
+      sb.append(SEPARATOR).append(value);
+    }
+    sb.append('\n');
+  }
+
+  private boolean write(String records) {
+    if (output == null) {
+      return false;
+    }
+    try {
+      output.write(records.getBytes(StandardCharsets.UTF_8));
+      return true;
+    } catch (IOException e) {
+      disable(e);
+      return false;
+    }
+  }
+
+  private void sync() {
+    if (output == null) {
+      return;
+    }
+    try {
+      output.getFD().sync();
+      unsyncedRecords = 0;
+    } catch (IOException e) {
+      disable(e);
+    }
+  }
+
+  private void disable(IOException e) {
+    LOGGER.warn("Unable to write Stash posting journal {}: {}", file, e.getMessage());
+    LOGGER.debug("Exception stack trace", e);
+    closeQuietly();
+  }
+
+  private void closeQuietly() {
+    try {
+      if (output != null) {
+        output.close();
+      }
+    } catch (IOException e) {
+      LOGGER.debug("Unable to close Stash posting journal", e);
+    } finally {
+      output = null;
+    }
+  }
+
+  @Override
+  public synchronized void close() {
+    sync();
+    closeQuietly();
+  }
+
+}
@@ -0,0 +1,15 @@
+package org.sonar.plugins.stash;
+
+import org.sonar.plugins.stash.issue.PostingPlan;
+
+/**
+ * Notified once the posting plan is computed, before any comment is posted.
+ */
+public interface PostingPlanListener {
+
+  /**
+   * Called from the posting thread: the plan must only be read, its comments are being posted.
+   */
+  void planned(PostingPlan plan);
+
+}
@@ -1,15 +1,33 @@
 package org.sonar.plugins.stash;
 
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.sonar.api.batch.PostJob;
 import org.sonar.api.batch.SensorContext;
 import org.sonar.api.issue.ProjectIssues;
 import org.sonar.api.resources.Project;
+import org.sonar.plugins.stash.client.CircuitBreaker;
+import org.sonar.plugins.stash.client.ConcurrencyLimiter;
+import org.sonar.plugins.stash.client.Deadline;
+import org.sonar.plugins.stash.client.HedgingPolicy;
+import org.sonar.plugins.stash.client.RateLimiter;
+import org.sonar.plugins.stash.client.RequestTimeouts;
+import org.sonar.plugins.stash.client.RetryPolicy;
 import org.sonar.plugins.stash.client.StashClient;
 import org.sonar.plugins.stash.client.StashCredentials;
 import org.sonar.plugins.stash.exceptions.StashConfigurationException;
+import org.sonar.plugins.stash.issue.PostingPlan;
 import org.sonar.plugins.stash.issue.SonarQubeIssuesReport;
+import org.sonar.plugins.stash.lease.Lease;
 
 public class StashIssueReportingPostJob implements PostJob {
 
@@ -36,39 +54,278 @@ public class StashIssueReportingPostJob implements PostJob {
 
         SonarQubeIssuesReport issueReport = stashRequestFacade.extractIssueReport(projectIssues, inputFileCache);
 
-        int issueThreshold = stashRequestFacade.getIssueThreshold();
-        String sonarQubeURL = config.getSonarQubeURL();
+        if (!project.isRoot()) {
+          // modules are analyzed before their parent: the issues of all modules are posted once, with the root project
+          LOGGER.debug("Issues of module {} will be reported to Stash with the root project", project.getKey());
+          return;
+        }
+
+        if (config.getExportFile() != null) {
+          // Stash is left out of the analysis: the exported report is posted later on by StashReportReplay
+          stashRequestFacade.exportIssueReport(issueReport);
+          return;
+        }
+
+        postIssueReport(issueReport);
+      }
+    } catch (StashConfigurationException e) {
+      LOGGER.error("Unable to push SonarQube report to Stash: {}", e.getMessage());
+      LOGGER.debug("Exception stack trace", e);
+    }
+  }
+
+  /**
+   * Post the issue report to the pull-request according to the plugin configuration.
+   */
+  public void postIssueReport(SonarQubeIssuesReport issueReport) throws StashConfigurationException {
+    // the time budget covers everything sent to Stash from now on: diff, comments, overview and summary
+    Deadline deadline = new Deadline(config.getTotalTimeBudget());
+    int issueThreshold = stashRequestFacade.getIssueThreshold();
+    String sonarQubeURL = config.getSonarQubeURL();
 
-        // Stash MANDATORY options
-        String stashURL = stashRequestFacade.getStashURL();
-        String stashProject = stashRequestFacade.getStashProject();
-        String repository = stashRequestFacade.getStashRepository();
-        String stashPullRequestId = stashRequestFacade.getStashPullRequestId();
+    // Stash MANDATORY options
+    String stashURL = stashRequestFacade.getStashURL();
+    String stashProject = stashRequestFacade.getStashProject();
+    String repository = stashRequestFacade.getStashRepository();
+    List<String> stashPullRequestIds = stashRequestFacade.getStashPullRequestIds();
 
-        int stashTimeout = config.getStashTimeout();
+    RequestTimeouts timeouts = new RequestTimeouts(config.getStashConnectTimeout(), config.getStashTimeoutMin(), config.getStashTimeout());
 
-        StashCredentials stashCredentials = stashRequestFacade.getCredentials();
-        StashClient stashClient = new StashClient(stashURL, stashCredentials, stashTimeout);
+    StashCredentials stashCredentials = stashRequestFacade.getCredentials();
+    // one rate limit for all the requests of the analysis, whatever the pull-request
+    RateLimiter rateLimiter = new RateLimiter(config.getRateLimit(), config.getRateBurst());
+    RetryPolicy retryPolicy = new RetryPolicy(config.getRetryMax(), config.getRetryBackoff());
+    CircuitBreaker circuitBreaker = new CircuitBreaker(config.getCircuitFailures(), config.getCircuitSlowCall(), config.getCircuitOpenDuration());
+    HedgingPolicy hedgingPolicy = new HedgingPolicy(config.getHedgePercentile(), config.getHedgeBudget());
+    // one posting concurrency for all the pull-requests: they are posted to the same Stash
+    ConcurrencyLimiter postingLimiter = new ConcurrencyLimiter(config.getPostingConcurrencyMin(), config.getPostingConcurrencyMax());
+    try (StashClient stashClient = new StashClient(stashURL, stashCredentials, timeouts, rateLimiter, retryPolicy, circuitBreaker, deadline, hedgingPolicy,
+      postingLimiter, config.hasToReuseSession())) {
+      if (stashPullRequestIds.size() == 1) {
+        postToPullRequest(stashProject, repository, stashPullRequestIds.get(0), sonarQubeURL, issueThreshold, issueReport, stashClient);
+      } else {
+        postToPullRequests(stashProject, repository, stashPullRequestIds, sonarQubeURL, issueThreshold, issueReport, stashClient);
+      }
+    }
 
-        // if threshold exceeded, do not push issue list to Stash
-        if (issueReport.countIssues() >= issueThreshold) {
-          LOGGER.warn("Too many issues detected ({}/{}): Issues cannot be displayed in Diff view", issueReport.countIssues(), issueThreshold);
-        } else {
-          stashRequestFacade.postCommentPerIssue(stashProject, repository, stashPullRequestId, sonarQubeURL, issueReport, stashClient);
+    if (retryPolicy.countRetries() > 0) {
+      LOGGER.info("{} Stash requests have been retried", retryPolicy.countRetries());
+    }
+    if (hedgingPolicy.countHedges() > 0) {
+      LOGGER.info("{} slow Stash requests have been hedged", hedgingPolicy.countHedges());
+    }
+    if (postingLimiter.getMaxConcurrency() > postingLimiter.getMinConcurrency()) {
+      LOGGER.info("Stash posting concurrency settled at {} (between {} and {})", postingLimiter.getLimit(), postingLimiter.getMinConcurrency(),
+        postingLimiter.getMaxConcurrency());
+    }
+    if (circuitBreaker.countRejected() > 0) {
+      LOGGER.warn("{} Stash requests have not been sent because Stash looked unhealthy", circuitBreaker.countRejected());
+    }
+  }
+
+  private void postToPullRequests(final String stashProject, final String repository, List<String> stashPullRequestIds, final String sonarQubeURL,
+    final int issueThreshold, final SonarQubeIssuesReport issueReport, final StashClient stashClient) {
+    // Pull-requests of a same source commit share the issue report and the client: each one is reported concurrently
+    ExecutorService pullRequestExecutor = Executors.newFixedThreadPool(stashPullRequestIds.size());
+    Map<String, Future<?>> pendingPullRequests = new LinkedHashMap<>();
+    for (final String stashPullRequestId : stashPullRequestIds) {
+      pendingPullRequests.put(stashPullRequestId, pullRequestExecutor.submit(new Runnable() {
+        @Override
+        public void run() {
+          postToPullRequest(stashProject, repository, stashPullRequestId, sonarQubeURL, issueThreshold, issueReport, stashClient);
         }
+      }));
+    }
 
-        if (config.hasToDisplayAnalysisOverview()) {
-          stashRequestFacade.postAnalysisOverview(stashProject, repository, stashPullRequestId, sonarQubeURL, issueThreshold, issueReport, stashClient);
+    try {
+      for (Map.Entry<String, Future<?>> pendingPullRequest : pendingPullRequests.entrySet()) {
+        try {
+          pendingPullRequest.getValue().get();
+        } catch (ExecutionException e) {
+          LOGGER.error("Unable to push SonarQube report to Stash pull-request {}: {}", pendingPullRequest.getKey(), e.getCause().getMessage());
+          LOGGER.debug("Exception stack trace", e.getCause());
         }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } finally {
+      pullRequestExecutor.shutdown();
+    }
+  }
+
+  private void postToPullRequest(String stashProject, String repository, String stashPullRequestId, String sonarQubeURL, int issueThreshold,
+    SonarQubeIssuesReport issueReport, StashClient stashClient) {
+    if (config.isDryRun()) {
+      // nothing is posted to Stash: the plan is only written to the working directory
+      stashRequestFacade.dryRunCommentPerIssue(stashProject, repository, stashPullRequestId, sonarQubeURL, issueThreshold, issueReport, stashClient);
+      return;
+    }
 
-        if (config.hasToDisplayAnalysisSummary()) {
-          stashRequestFacade.postAnalysisSummary(stashProject, repository, stashPullRequestId, issueThreshold, issueReport, stashClient);
+    try (Lease lease = stashRequestFacade.acquirePostingLease(stashProject, repository, stashPullRequestId)) {
+      if (lease == null) {
+        // another build of the same pull-request is posting: posting again would duplicate its comments
+        LOGGER.warn("Pull-request {} is being reported by another build: SonarQube issues are not posted to Stash", stashPullRequestId);
+        return;
+      }
+
+      // Overview and summary only need the issue report and the posting plan: post them while the comments are posted
+      ReportPosting reportPosting = new ReportPosting(stashProject, repository, stashPullRequestId, sonarQubeURL, issueThreshold, issueReport, stashClient);
+      try {
+        if (StashPlugin.REPORTING_BACKEND_INSIGHTS.equals(config.getReportingBackend())) {
+          // Code Insights annotations are posted by batches: no need to limit the number of issues
+          reportPosting.planned(null);
+          stashRequestFacade.postInsightsReport(stashProject, repository, stashPullRequestId, sonarQubeURL, issueReport, stashClient);
+        } else {
+          if (stashClient.getDeadline().isBounded()) {
+            // the time left may not be enough for everything: the overview is reported before the pull-request is read
+            reportPosting.postOverviewFirst();
+          }
+          // if threshold exceeded, only the most severe issues are pushed to Stash
+          PostingPlan postingPlan = stashRequestFacade.postCommentPerIssue(stashProject, repository, stashPullRequestId, sonarQubeURL, issueThreshold, issueReport,
+            stashClient, reportPosting);
+          // no-op if the reports have been started once the plan was computed
+          reportPosting.planned(postingPlan);
+          if (postingPlan != null && postingPlan.getDegradationReason() != null) {
+            reportPosting.degraded(postingPlan);
+          }
         }
+      } finally {
+        reportPosting.await();
+      }
+    }
+  }
+
+  /**
+   * Overview and summary posting, run in background from the moment the posting plan is known.
+   */
+  private class ReportPosting implements PostingPlanListener {
+
+    private final String project;
+    private final String repository;
+    private final String pullRequestId;
+    private final String sonarQubeURL;
+    private final int issueThreshold;
+    private final SonarQubeIssuesReport issueReport;
+    private final StashClient stashClient;
 
+    private final List<Future<?>> pendingReports = new ArrayList<>();
+    private ExecutorService reportExecutor;
+    private Future<?> firstOverview;
+    private boolean planned;
+
+    ReportPosting(String project, String repository, String pullRequestId, String sonarQubeURL, int issueThreshold, SonarQubeIssuesReport issueReport,
+      StashClient stashClient) {
+      this.project = project;
+      this.repository = repository;
+      this.pullRequestId = pullRequestId;
+      this.sonarQubeURL = sonarQubeURL;
+      this.issueThreshold = issueThreshold;
+      this.issueReport = issueReport;
+      this.stashClient = stashClient;
+    }
+
+    /**
+     * Start posting the overview before the posting plan is known: it is posted again once the plan is known, only if the plan changes it.
+     */
+    public synchronized void postOverviewFirst() {
+      if (reportExecutor != null || !config.hasToDisplayAnalysisOverview()) {
+        return;
       }
-    } catch (StashConfigurationException e) {
-      LOGGER.error("Unable to push SonarQube report to Stash: {}", e.getMessage());
-      LOGGER.debug("Exception stack trace", e);
+      reportExecutor = Executors.newFixedThreadPool(2);
+      firstOverview = reportExecutor.submit(new Runnable() {
+        @Override
+        public void run() {
+          stashRequestFacade.postAnalysisOverview(project, repository, pullRequestId, sonarQubeURL, issueThreshold, issueReport, null, stashClient);
+        }
+      });
+      pendingReports.add(firstOverview);
+    }
+
+    /**
+     * Start posting the reports. Only the first call is taken into account.
+     */
+    @Override
+    public synchronized void planned(PostingPlan currentPlan) {
+      if (planned) {
+        return;
+      }
+      planned = true;
+      // the plan keeps being updated by the posting thread while the reports are posted: they are given a copy
+      final PostingPlan postingPlan = (currentPlan == null) ? null : currentPlan.snapshot();
+      if (reportExecutor == null) {
+        reportExecutor = Executors.newFixedThreadPool(2);
+      }
+
+      // without plan, the overview does not report the issues left out by the threshold
+      boolean overviewChanged = firstOverview == null || (postingPlan != null && postingPlan.countNotDisplayed() > 0);
+      final boolean postOverview = config.hasToDisplayAnalysisOverview() && overviewChanged;
+      if (postOverview) {
+        pendingReports.add(reportExecutor.submit(new Runnable() {
+          @Override
+          public void run() {
+            // the first overview has to be posted before it is updated, not next to it
+            awaitFirstOverview();
+            if (config.hasToDisplayAnalysisSummary()) {
+              // both reports are looked up in a single pass over the pull-request activities
+              stashRequestFacade.postAnalysisOverviewAndSummary(project, repository, pullRequestId, sonarQubeURL, issueThreshold, issueReport, postingPlan,
+                stashClient);
+            } else {
+              stashRequestFacade.postAnalysisOverview(project, repository, pullRequestId, sonarQubeURL, issueThreshold, issueReport, postingPlan, stashClient);
+            }
+          }
+        }));
+      }
+
+      if (config.hasToDisplayAnalysisSummary() && !postOverview) {
+        pendingReports.add(reportExecutor.submit(new Runnable() {
+          @Override
+          public void run() {
+            stashRequestFacade.postAnalysisSummary(project, repository, pullRequestId, issueThreshold, issueReport, postingPlan, stashClient);
+          }
+        }));
+      }
+    }
+
+    /**
+     * Line comments have been deferred because Stash is overloaded: the overview is updated to tell how many.
+     */
+    public synchronized void degraded(PostingPlan postingPlan) {
+      await();
+      if (config.hasToDisplayAnalysisOverview()) {
+        stashRequestFacade.postAnalysisOverview(project, repository, pullRequestId, sonarQubeURL, issueThreshold, issueReport, postingPlan, stashClient);
+      }
+    }
+
+    private void awaitFirstOverview() {
+      if (firstOverview == null) {
+        return;
+      }
+      try {
+        firstOverview.get();
+      } catch (ExecutionException e) {
+        // reported by await()
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+
+    public synchronized void await() {
+      if (reportExecutor == null) {
+        return;
+      }
+      for (Future<?> report : pendingReports) {
+        try {
+          report.get();
+        } catch (ExecutionException e) {
+          LOGGER.error("Unable to push SonarQube report to Stash: {}", e.getCause().getMessage());
+          LOGGER.debug("Exception stack trace", e.getCause());
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          break;
+        }
+      }
+      pendingReports.clear();
+      reportExecutor.shutdown();
     }
   }
 
@@ -16,7 +16,8 @@ import java.util.List;
     global = false),
   @Property(key = StashPlugin.STASH_PROJECT, name = "Stash Project", description = "Stash project of current pull-request", global = false),
   @Property(key = StashPlugin.STASH_REPOSITORY, name = "Stash Repository", description = "Stash project of current pull-request", global = false),
-  @Property(key = StashPlugin.STASH_PULL_REQUEST_ID, name = "Stash Pull-request Id", description = "Stash pull-request Id", global = false)})
+  @Property(key = StashPlugin.STASH_PULL_REQUEST_ID, name = "Stash Pull-request Id", description = "Stash pull-request Id, or comma-separated list of Ids of pull-requests sharing the analyzed commit",
+    global = false)})
 public class StashPlugin extends SonarPlugin {
 
   private static final String DEFAULT_STASH_TIMEOUT_VALUE = "10000";
@@ -25,6 +26,29 @@ public class StashPlugin extends SonarPlugin {
   private static final String DEFAULT_TASKS_SEVERITY_THRESHOLD = Severity.INFO;
   private static final boolean DEFAULT_STASH_DISPLAY_ANALYSIS_OVERVIEW = true;
   private static final boolean DEFAULT_STASH_DISPLAY_ANALYSIS_SUMMARY = false;
+  private static final String DEFAULT_STASH_COMMENT_AGGREGATION = StashPlugin.COMMENT_AGGREGATION_ISSUE;
+  private static final String DEFAULT_STASH_REPORTING_BACKEND = StashPlugin.REPORTING_BACKEND_COMMENTS;
+  private static final boolean DEFAULT_STASH_DRY_RUN = false;
+  private static final boolean DEFAULT_STASH_POSTING_JOURNAL = false;
+  private static final String DEFAULT_STASH_LEASE_TIMEOUT = "60000";
+  private static final String DEFAULT_STASH_ERROR_BUDGET = "10";
+  private static final String DEFAULT_STASH_RATE_LIMIT = "0";
+  private static final String DEFAULT_STASH_RATE_BURST = "10";
+  private static final String DEFAULT_STASH_RETRY_MAX = "3";
+  private static final String DEFAULT_STASH_RETRY_BACKOFF = "500";
+  private static final String DEFAULT_STASH_CIRCUIT_FAILURES = "5";
+  private static final String DEFAULT_STASH_CIRCUIT_SLOW_CALL = "0";
+  private static final String DEFAULT_STASH_CIRCUIT_OPEN_DURATION = "30000";
+  private static final String DEFAULT_STASH_TOTAL_TIME_BUDGET = "0";
+  private static final String DEFAULT_STASH_HEDGE_PERCENTILE = "0";
+  private static final String DEFAULT_STASH_HEDGE_BUDGET = "10";
+  private static final String DEFAULT_STASH_TIMEOUT_MIN = "0";
+  private static final String DEFAULT_STASH_CONNECT_TIMEOUT = "2000";
+  private static final String DEFAULT_STASH_POSTING_CONCURRENCY_MIN = "1";
+  private static final String DEFAULT_STASH_POSTING_CONCURRENCY_MAX = "1";
+  private static final String DEFAULT_STASH_SHEDDING_LATENCY = "0";
+  private static final String DEFAULT_STASH_SHEDDING_ERROR_RATE = "0";
+  private static final boolean DEFAULT_STASH_REUSE_SESSION = false;
 
   private static final String CONFIG_PAGE_SUB_CATEGORY_STASH = "Stash";
 
@@ -32,6 +56,16 @@ public class StashPlugin extends SonarPlugin {
   public static final String REMOVED_ISSUE_TYPE = "REMOVED";
   public static final String ADDED_ISSUE_TYPE = "ADDED";
 
+  public static final String COMMENT_AGGREGATION_ISSUE = "issue";
+  public static final String COMMENT_AGGREGATION_HUNK = "hunk";
+  public static final String COMMENT_AGGREGATION_FILE = "file";
+
+  public static final String REPORTING_BACKEND_COMMENTS = "comments";
+  public static final String REPORTING_BACKEND_INSIGHTS = "insights";
+  public static final String INSIGHTS_REPORT_KEY = "org.sonar.plugins.stash";
+
+  public static final String DRY_RUN_PLAN_FILE = "stash-dry-run-plan.json";
+
   public static final String STASH_NOTIFICATION = "sonar.stash.notification";
   public static final String STASH_PROJECT = "sonar.stash.project";
   public static final String STASH_REPOSITORY = "sonar.stash.repository";
@@ -39,12 +73,39 @@ public class StashPlugin extends SonarPlugin {
   public static final String STASH_URL = "sonar.stash.url";
   public static final String STASH_LOGIN = "sonar.stash.login";
   public static final String STASH_PASSWORD = "sonar.stash.password";
+  public static final String STASH_TOKEN = "sonar.stash.token";
+  public static final String STASH_REUSE_SESSION = "sonar.stash.auth.session";
   public static final String STASH_ISSUE_THRESHOLD = "sonar.stash.issue.threshold";
   public static final String STASH_TIMEOUT = "sonar.stash.timeout";
   public static final String STASH_DISPLAY_ANALYSIS_OVERVIEW = "sonar.stash.analysis.overview.display";
   public static final String STASH_DISPLAY_ANALYSIS_SUMMARY = "sonar.stash.analysis.summary.display";
   public static final String STASH_COMMENT_SEVERITY_THRESHOLD = "sonar.stash.comment.issue.severity.threshold";
   public static final String STASH_TASK_SEVERITY_THRESHOLD = "sonar.stash.task.issue.severity.threshold";
+  public static final String STASH_COMMENT_AGGREGATION = "sonar.stash.comment.aggregation";
+  public static final String STASH_REPORTING_BACKEND = "sonar.stash.reporting.backend";
+  public static final String STASH_DRY_RUN = "sonar.stash.dryRun";
+  public static final String STASH_DRY_RUN_DIFF_FILE = "sonar.stash.dryRun.diffFile";
+  public static final String STASH_POSTING_JOURNAL = "sonar.stash.journal";
+  public static final String STASH_LEASE_DIRECTORY = "sonar.stash.lease.directory";
+  public static final String STASH_LEASE_TIMEOUT = "sonar.stash.lease.timeout";
+  public static final String STASH_ERROR_BUDGET = "sonar.stash.error.budget";
+  public static final String STASH_EXPORT_FILE = "sonar.stash.export.file";
+  public static final String STASH_RATE_LIMIT = "sonar.stash.rate.limit";
+  public static final String STASH_RATE_BURST = "sonar.stash.rate.burst";
+  public static final String STASH_RETRY_MAX = "sonar.stash.retry.max";
+  public static final String STASH_RETRY_BACKOFF = "sonar.stash.retry.backoff";
+  public static final String STASH_CIRCUIT_FAILURES = "sonar.stash.circuit.failures";
+  public static final String STASH_CIRCUIT_SLOW_CALL = "sonar.stash.circuit.slowCall";
+  public static final String STASH_CIRCUIT_OPEN_DURATION = "sonar.stash.circuit.openDuration";
+  public static final String STASH_TOTAL_TIME_BUDGET = "sonar.stash.totalTimeBudget";
+  public static final String STASH_HEDGE_PERCENTILE = "sonar.stash.hedge.percentile";
+  public static final String STASH_HEDGE_BUDGET = "sonar.stash.hedge.budget";
+  public static final String STASH_TIMEOUT_MIN = "sonar.stash.timeout.min";
+  public static final String STASH_CONNECT_TIMEOUT = "sonar.stash.timeout.connect";
+  public static final String STASH_POSTING_CONCURRENCY_MIN = "sonar.stash.posting.concurrency.min";
+  public static final String STASH_POSTING_CONCURRENCY_MAX = "sonar.stash.posting.concurrency.max";
+  public static final String STASH_SHEDDING_LATENCY = "sonar.stash.shedding.latency";
+  public static final String STASH_SHEDDING_ERROR_RATE = "sonar.stash.shedding.errorRate";
   public static final String SONARQUBE_URL = "sonar.host.url";
 
   @Override
@@ -80,7 +141,7 @@ public class StashPlugin extends SonarPlugin {
         .build(),
       PropertyDefinition.builder(STASH_ISSUE_THRESHOLD)
         .name("Stash Issues Threshold")
-        .description("Maximum number of issues to display on pull request")
+        .description("Maximum number of issues to display on pull request: when reached, only the most severe issues are displayed")
         .subCategory(CONFIG_PAGE_SUB_CATEGORY_STASH)
         .onQualifiers(Qualifiers.PROJECT)
         .defaultValue(DEFAULT_STASH_THRESHOLD_VALUE)
@@ -123,7 +184,251 @@ public class StashPlugin extends SonarPlugin {
 		.defaultValue(DEFAULT_TASKS_SEVERITY_THRESHOLD)
 		.options(Severity.ALL)
 		.index(7)
-		.build());
+		.build(),
+      PropertyDefinition.builder(STASH_COMMENT_AGGREGATION)
+        .name("Comments aggregation")
+        .description("Post one comment per issue, or one comment listing all the issues of a diff hunk or of a file.")
+        .type(PropertyType.SINGLE_SELECT_LIST)
+        .subCategory(CONFIG_PAGE_SUB_CATEGORY_STASH)
+        .onQualifiers(Qualifiers.PROJECT)
+        .defaultValue(DEFAULT_STASH_COMMENT_AGGREGATION)
+        .options(COMMENT_AGGREGATION_ISSUE, COMMENT_AGGREGATION_HUNK, COMMENT_AGGREGATION_FILE)
+        .index(8)
+        .build(),
+      PropertyDefinition.builder(STASH_REPORTING_BACKEND)
+        .name("Reporting backend")
+        .description("Report issues as pull-request comments, or as Code Insights annotations (Bitbucket Server 5.15+) posted by batches.")
+        .type(PropertyType.SINGLE_SELECT_LIST)
+        .subCategory(CONFIG_PAGE_SUB_CATEGORY_STASH)
+        .onQualifiers(Qualifiers.PROJECT)
+        .defaultValue(DEFAULT_STASH_REPORTING_BACKEND)
+        .options(REPORTING_BACKEND_COMMENTS, REPORTING_BACKEND_INSIGHTS)
+        .index(9)
+        .build(),
+      PropertyDefinition.builder(STASH_DRY_RUN)
+        .name("Dry run")
+        .description("Set to true to compute the comments to post without posting anything to Stash: the plan is written to " + DRY_RUN_PLAN_FILE
+          + " in the working directory.")
+        .type(PropertyType.BOOLEAN)
+        .subCategory(CONFIG_PAGE_SUB_CATEGORY_STASH)
+        .onQualifiers(Qualifiers.PROJECT)
+        .defaultValue(Boolean.toString(DEFAULT_STASH_DRY_RUN))
+        .index(10)
+        .build(),
+      PropertyDefinition.builder(STASH_DRY_RUN_DIFF_FILE)
+        .name("Dry run diff file")
+        .description("Pull-request diff (JSON of the Stash diff REST API) used by dry runs instead of fetching it from Stash.")
+        .subCategory(CONFIG_PAGE_SUB_CATEGORY_STASH)
+        .onQualifiers(Qualifiers.PROJECT)
+        .index(11)
+        .build(),
+      PropertyDefinition.builder(STASH_POSTING_JOURNAL)
+        .name("Posting journal")
+        .description("Journal the comments posted to Stash in the working directory, so that an interrupted run can be resumed on the same commit, with the same issues and settings.")
+        .type(PropertyType.BOOLEAN)
+        .subCategory(CONFIG_PAGE_SUB_CATEGORY_STASH)
+        .onQualifiers(Qualifiers.PROJECT)
+        .defaultValue(Boolean.toString(DEFAULT_STASH_POSTING_JOURNAL))
+        .index(12)
+        .build(),
+      PropertyDefinition.builder(STASH_LEASE_DIRECTORY)
+        .name("Lease directory")
+        .description("Directory shared by the build agents, where a lock is taken per pull-request while posting: "
+          + "concurrent builds of the same pull-request do not post twice. No lock is taken if empty.")
+        .subCategory(CONFIG_PAGE_SUB_CATEGORY_STASH)
+        .onQualifiers(Qualifiers.PROJECT)
+        .index(13)
+        .build(),
+      PropertyDefinition.builder(STASH_LEASE_TIMEOUT)
+        .name("Lease timeout")
+        .description("Time to wait for another build to release the pull-request lock (in ms). When elapsed, nothing is posted to Stash.")
+        .type(PropertyType.INTEGER)
+        .subCategory(CONFIG_PAGE_SUB_CATEGORY_STASH)
+        .onQualifiers(Qualifiers.PROJECT)
+        .defaultValue(DEFAULT_STASH_LEASE_TIMEOUT)
+        .index(14)
+        .build(),
+      PropertyDefinition.builder(STASH_ERROR_BUDGET)
+        .name("Error budget")
+        .description("Number of failed comment creations tolerated: failed comments are retried at the end, "
+          + "and the remaining comments are abandoned once the budget is exhausted.")
+        .type(PropertyType.INTEGER)
+        .subCategory(CONFIG_PAGE_SUB_CATEGORY_STASH)
+        .onQualifiers(Qualifiers.PROJECT)
+        .defaultValue(DEFAULT_STASH_ERROR_BUDGET)
+        .index(15)
+        .build(),
+      PropertyDefinition.builder(STASH_EXPORT_FILE)
+        .name("Export file")
+        .description("Write the issue report to this file (relative to the project base directory) instead of posting it to Stash. "
+          + "The report is posted later by the StashReportReplay main class of the plugin jar.")
+        .subCategory(CONFIG_PAGE_SUB_CATEGORY_STASH)
+        .onQualifiers(Qualifiers.PROJECT)
+        .index(16)
+        .build(),
+      PropertyDefinition.builder(STASH_RATE_LIMIT)
+        .name("Rate limit")
+        .description("Maximum number of requests sent to Stash per second, no limit if 0. "
+          + "Whatever the limit, requests are paused when Stash answers 429 Too Many Requests.")
+        .type(PropertyType.FLOAT)
+        .subCategory(CONFIG_PAGE_SUB_CATEGORY_STASH)
+        .onQualifiers(Qualifiers.PROJECT)
+        .defaultValue(DEFAULT_STASH_RATE_LIMIT)
+        .index(17)
+        .build(),
+      PropertyDefinition.builder(STASH_RATE_BURST)
+        .name("Rate burst")
+        .description("Number of requests which may be sent at once to Stash when the rate limit is not reached.")
+        .type(PropertyType.INTEGER)
+        .subCategory(CONFIG_PAGE_SUB_CATEGORY_STASH)
+        .onQualifiers(Qualifiers.PROJECT)
+        .defaultValue(DEFAULT_STASH_RATE_BURST)
+        .index(18)
+        .build(),
+      PropertyDefinition.builder(STASH_RETRY_MAX)
+        .name("Retries")
+        .description("Number of retries of a Stash request failed on timeout, connection error or server error (5xx). "
+          + "A failed comment creation is only retried if the comment is not found on the pull-request.")
+        .type(PropertyType.INTEGER)
+        .subCategory(CONFIG_PAGE_SUB_CATEGORY_STASH)
+        .onQualifiers(Qualifiers.PROJECT)
+        .defaultValue(DEFAULT_STASH_RETRY_MAX)
+        .index(19)
+        .build(),
+      PropertyDefinition.builder(STASH_RETRY_BACKOFF)
+        .name("Retry backoff")
+        .description("Maximum delay before the first retry (in ms), doubled on each retry. The actual delay is random.")
+        .type(PropertyType.INTEGER)
+        .subCategory(CONFIG_PAGE_SUB_CATEGORY_STASH)
+        .onQualifiers(Qualifiers.PROJECT)
+        .defaultValue(DEFAULT_STASH_RETRY_BACKOFF)
+        .index(20)
+        .build(),
+      PropertyDefinition.builder(STASH_CIRCUIT_FAILURES)
+        .name("Circuit breaker failures")
+        .description("Number of consecutive Stash requests failed (timeout, connection error, server error) or slow after which Stash is considered unhealthy: "
+          + "the next requests fail right away instead of waiting for the timeout. Never if 0.")
+        .type(PropertyType.INTEGER)
+        .subCategory(CONFIG_PAGE_SUB_CATEGORY_STASH)
+        .onQualifiers(Qualifiers.PROJECT)
+        .defaultValue(DEFAULT_STASH_CIRCUIT_FAILURES)
+        .index(21)
+        .build(),
+      PropertyDefinition.builder(STASH_CIRCUIT_SLOW_CALL)
+        .name("Circuit breaker slow request")
+        .description("Duration (in ms) from which a successful Stash request counts as a failure for the circuit breaker. Only failed requests count if 0.")
+        .type(PropertyType.INTEGER)
+        .subCategory(CONFIG_PAGE_SUB_CATEGORY_STASH)
+        .onQualifiers(Qualifiers.PROJECT)
+        .defaultValue(DEFAULT_STASH_CIRCUIT_SLOW_CALL)
+        .index(22)
+        .build(),
+      PropertyDefinition.builder(STASH_CIRCUIT_OPEN_DURATION)
+        .name("Circuit breaker open duration")
+        .description("Time (in ms) during which requests fail right away once Stash is considered unhealthy. A single request is then sent to check whether Stash has recovered.")
+        .type(PropertyType.INTEGER)
+        .subCategory(CONFIG_PAGE_SUB_CATEGORY_STASH)
+        .onQualifiers(Qualifiers.PROJECT)
+        .defaultValue(DEFAULT_STASH_CIRCUIT_OPEN_DURATION)
+        .index(23)
+        .build(),
+      PropertyDefinition.builder(STASH_TOTAL_TIME_BUDGET)
+        .name("Total time budget")
+        .description("Maximum time spent by the analysis on Stash requests (in ms), no limit if 0. The timeout of each request is shortened to the remaining time, "
+          + "the most severe issues are posted first, and the remaining comments are abandoned once the budget is exhausted.")
+        .type(PropertyType.INTEGER)
+        .subCategory(CONFIG_PAGE_SUB_CATEGORY_STASH)
+        .onQualifiers(Qualifiers.PROJECT)
+        .defaultValue(DEFAULT_STASH_TOTAL_TIME_BUDGET)
+        .index(24)
+        .build(),
+      PropertyDefinition.builder(STASH_HEDGE_PERCENTILE)
+        .name("Hedged requests percentile")
+        .description("When a GET request to Stash is slower than this percentile of the previous ones (e.g. 95), an identical request is sent "
+          + "and the first response is used. No request is hedged if 0.")
+        .type(PropertyType.FLOAT)
+        .subCategory(CONFIG_PAGE_SUB_CATEGORY_STASH)
+        .onQualifiers(Qualifiers.PROJECT)
+        .defaultValue(DEFAULT_STASH_HEDGE_PERCENTILE)
+        .index(25)
+        .build(),
+      PropertyDefinition.builder(STASH_HEDGE_BUDGET)
+        .name("Hedged requests budget")
+        .description("Maximum number of hedged requests, in percent of the GET requests sent to Stash.")
+        .type(PropertyType.FLOAT)
+        .subCategory(CONFIG_PAGE_SUB_CATEGORY_STASH)
+        .onQualifiers(Qualifiers.PROJECT)
+        .defaultValue(DEFAULT_STASH_HEDGE_BUDGET)
+        .index(26)
+        .build(),
+      PropertyDefinition.builder(STASH_TIMEOUT_MIN)
+        .name("Stash minimum timeout")
+        .description("When set, the timeout of each kind of request (diff, comment pages, comment, task) is learnt from the latencies observed by the analysis, "
+          + "between this minimum and the Stash Issue Timeout (in ms). The Stash Issue Timeout is used for every request if 0.")
+        .type(PropertyType.INTEGER)
+        .subCategory(CONFIG_PAGE_SUB_CATEGORY_STASH)
+        .onQualifiers(Qualifiers.PROJECT)
+        .defaultValue(DEFAULT_STASH_TIMEOUT_MIN)
+        .index(27)
+        .build(),
+      PropertyDefinition.builder(STASH_CONNECT_TIMEOUT)
+        .name("Stash connection timeout")
+        .description("Time to establish a connection to Stash (in ms), whatever the time then needed to receive the response.")
+        .type(PropertyType.INTEGER)
+        .subCategory(CONFIG_PAGE_SUB_CATEGORY_STASH)
+        .onQualifiers(Qualifiers.PROJECT)
+        .defaultValue(DEFAULT_STASH_CONNECT_TIMEOUT)
+        .index(28)
+        .build(),
+      PropertyDefinition.builder(STASH_POSTING_CONCURRENCY_MIN)
+        .name("Minimum posting concurrency")
+        .description("Number of comments and tasks created at the same time when the run starts, and when Stash is throttling or failing.")
+        .type(PropertyType.INTEGER)
+        .subCategory(CONFIG_PAGE_SUB_CATEGORY_STASH)
+        .onQualifiers(Qualifiers.PROJECT)
+        .defaultValue(DEFAULT_STASH_POSTING_CONCURRENCY_MIN)
+        .index(29)
+        .build(),
+      PropertyDefinition.builder(STASH_POSTING_CONCURRENCY_MAX)
+        .name("Maximum posting concurrency")
+        .description("Maximum number of comments and tasks created at the same time. Above the minimum, the concurrency grows while Stash latency is stable, "
+          + "and is halved on throttling (429), server errors (5xx), timeouts or latency spikes. Comments are created one by one if 1.")
+        .type(PropertyType.INTEGER)
+        .subCategory(CONFIG_PAGE_SUB_CATEGORY_STASH)
+        .onQualifiers(Qualifiers.PROJECT)
+        .defaultValue(DEFAULT_STASH_POSTING_CONCURRENCY_MAX)
+        .index(30)
+        .build(),
+      PropertyDefinition.builder(STASH_SHEDDING_LATENCY)
+        .name("Overload latency")
+        .description("Average time (in ms) to create a comment, retries included, over the last 20 comments from which Stash is considered overloaded: "
+          + "remaining line comments are deferred to the next analysis and only the overview is updated. Never if 0.")
+        .type(PropertyType.INTEGER)
+        .subCategory(CONFIG_PAGE_SUB_CATEGORY_STASH)
+        .onQualifiers(Qualifiers.PROJECT)
+        .defaultValue(DEFAULT_STASH_SHEDDING_LATENCY)
+        .index(31)
+        .build(),
+      PropertyDefinition.builder(STASH_SHEDDING_ERROR_RATE)
+        .name("Overload error rate")
+        .description("Percentage of failed comment creations over the last 20 comments from which Stash is considered overloaded: "
+          + "remaining line comments are deferred to the next analysis and only the overview is updated. Never if 0.")
+        .type(PropertyType.FLOAT)
+        .subCategory(CONFIG_PAGE_SUB_CATEGORY_STASH)
+        .onQualifiers(Qualifiers.PROJECT)
+        .defaultValue(DEFAULT_STASH_SHEDDING_ERROR_RATE)
+        .index(32)
+        .build(),
+      PropertyDefinition.builder(STASH_REUSE_SESSION)
+        .name("Reuse Stash session")
+        .description("Set to true to authenticate with the session cookie set by Stash on the first response instead of sending the login and password "
+          + "with every request, which costs Stash a user directory lookup (e.g. an LDAP bind) each time. Not used with a personal access token (sonar.stash.token).")
+        .type(PropertyType.BOOLEAN)
+        .subCategory(CONFIG_PAGE_SUB_CATEGORY_STASH)
+        .onQualifiers(Qualifiers.PROJECT)
+        .defaultValue(Boolean.toString(DEFAULT_STASH_REUSE_SESSION))
+        .index(33)
+        .build());
   }
 
 }
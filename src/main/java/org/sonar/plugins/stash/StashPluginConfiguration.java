@@ -1,5 +1,8 @@
 package org.sonar.plugins.stash;
 
+import java.util.Map;
+import java.util.TreeMap;
+
 import org.sonar.api.BatchComponent;
 import org.sonar.api.batch.InstantiationStrategy;
 import org.sonar.api.config.Settings;
@@ -41,6 +44,14 @@ public class StashPluginConfiguration implements BatchComponent {
     return settings.getString(StashPlugin.STASH_PASSWORD);
   }
 
+  public String getStashToken() {
+    return settings.getString(StashPlugin.STASH_TOKEN);
+  }
+
+  public boolean hasToReuseSession() {
+    return settings.getBoolean(StashPlugin.STASH_REUSE_SESSION);
+  }
+
   public String getSonarQubeURL() {
     return settings.getString(StashPlugin.SONARQUBE_URL);
   }
@@ -53,6 +64,17 @@ public class StashPluginConfiguration implements BatchComponent {
     return settings.getInt(StashPlugin.STASH_TIMEOUT);
   }
 
+  /**
+   * Lower bound of the adaptive timeouts (in ms), timeouts are not adaptive if 0.
+   */
+  public int getStashTimeoutMin() {
+    return settings.getInt(StashPlugin.STASH_TIMEOUT_MIN);
+  }
+
+  public int getStashConnectTimeout() {
+    return settings.getInt(StashPlugin.STASH_CONNECT_TIMEOUT);
+  }
+
   public boolean hasToDisplayAnalysisOverview() {
     return settings.getBoolean(StashPlugin.STASH_DISPLAY_ANALYSIS_OVERVIEW);
   }
@@ -69,4 +91,126 @@ public class StashPluginConfiguration implements BatchComponent {
     return settings.getString(StashPlugin.STASH_TASK_SEVERITY_THRESHOLD);
   }
 
+  public String getCommentAggregation() {
+    return settings.getString(StashPlugin.STASH_COMMENT_AGGREGATION);
+  }
+
+  public String getReportingBackend() {
+    return settings.getString(StashPlugin.STASH_REPORTING_BACKEND);
+  }
+
+  public boolean isDryRun() {
+    return settings.getBoolean(StashPlugin.STASH_DRY_RUN);
+  }
+
+  public String getDryRunDiffFile() {
+    return settings.getString(StashPlugin.STASH_DRY_RUN_DIFF_FILE);
+  }
+
+  public boolean hasToUsePostingJournal() {
+    return settings.getBoolean(StashPlugin.STASH_POSTING_JOURNAL);
+  }
+
+  public String getLeaseDirectory() {
+    return settings.getString(StashPlugin.STASH_LEASE_DIRECTORY);
+  }
+
+  public long getLeaseTimeout() {
+    return settings.getLong(StashPlugin.STASH_LEASE_TIMEOUT);
+  }
+
+  public int getErrorBudget() {
+    return settings.getInt(StashPlugin.STASH_ERROR_BUDGET);
+  }
+
+  /**
+   * Requests per second, no limit if 0.
+   */
+  public double getRateLimit() {
+    Double result = settings.getDouble(StashPlugin.STASH_RATE_LIMIT);
+    return (result == null) ? 0 : result;
+  }
+
+  public int getRateBurst() {
+    return settings.getInt(StashPlugin.STASH_RATE_BURST);
+  }
+
+  public int getRetryMax() {
+    return settings.getInt(StashPlugin.STASH_RETRY_MAX);
+  }
+
+  public long getRetryBackoff() {
+    return settings.getLong(StashPlugin.STASH_RETRY_BACKOFF);
+  }
+
+  public int getCircuitFailures() {
+    return settings.getInt(StashPlugin.STASH_CIRCUIT_FAILURES);
+  }
+
+  public long getCircuitSlowCall() {
+    return settings.getLong(StashPlugin.STASH_CIRCUIT_SLOW_CALL);
+  }
+
+  public long getCircuitOpenDuration() {
+    return settings.getLong(StashPlugin.STASH_CIRCUIT_OPEN_DURATION);
+  }
+
+  /**
+   * Time budget of all the Stash requests (in ms), no limit if 0.
+   */
+  public long getTotalTimeBudget() {
+    return settings.getLong(StashPlugin.STASH_TOTAL_TIME_BUDGET);
+  }
+
+  /**
+   * Latency percentile after which GET requests are hedged, no hedging if 0.
+   */
+  public double getHedgePercentile() {
+    Double result = settings.getDouble(StashPlugin.STASH_HEDGE_PERCENTILE);
+    return (result == null) ? 0 : result;
+  }
+
+  public double getHedgeBudget() {
+    Double result = settings.getDouble(StashPlugin.STASH_HEDGE_BUDGET);
+    return (result == null) ? 0 : result;
+  }
+
+  public int getPostingConcurrencyMin() {
+    return settings.getInt(StashPlugin.STASH_POSTING_CONCURRENCY_MIN);
+  }
+
+  public int getPostingConcurrencyMax() {
+    return settings.getInt(StashPlugin.STASH_POSTING_CONCURRENCY_MAX);
+  }
+
+  public long getSheddingLatency() {
+    return settings.getLong(StashPlugin.STASH_SHEDDING_LATENCY);
+  }
+
+  public double getSheddingErrorRate() {
+    Double result = settings.getDouble(StashPlugin.STASH_SHEDDING_ERROR_RATE);
+    return (result == null) ? 0 : result;
+  }
+
+  public String getExportFile() {
+    return settings.getString(StashPlugin.STASH_EXPORT_FILE);
+  }
+
+  /**
+   * Plugin properties needed to post an exported report later: the Stash password, the token and the export file itself are left out.
+   */
+  public Map<String, String> getExportableProperties() {
+    Map<String, String> result = new TreeMap<>();
+    for (String key : settings.getKeysStartingWith("sonar.stash.")) {
+      if (!StashPlugin.STASH_PASSWORD.equals(key) && !StashPlugin.STASH_TOKEN.equals(key) && !StashPlugin.STASH_EXPORT_FILE.equals(key)) {
+        result.put(key, settings.getString(key));
+      }
+    }
+    String sonarQubeURL = settings.getString(StashPlugin.SONARQUBE_URL);
+    if (sonarQubeURL != null) {
+      result.put(StashPlugin.SONARQUBE_URL, sonarQubeURL);
+    }
+    return result;
+  }
+
 }
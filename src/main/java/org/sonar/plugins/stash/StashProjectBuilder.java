@@ -1,8 +1,7 @@
 package org.sonar.plugins.stash;
 
-import java.io.File;
-
 import org.sonar.api.batch.bootstrap.ProjectBuilder;
+import org.sonar.api.batch.bootstrap.ProjectDefinition;
 
 public class StashProjectBuilder extends ProjectBuilder {
 
@@ -14,8 +13,8 @@ public class StashProjectBuilder extends ProjectBuilder {
 
   @Override
   public void build(Context context) {
-    File projectBaseDir = context.projectReactor().getRoot().getBaseDir();
-    stashRequestFacade.initialize(projectBaseDir);
+    ProjectDefinition root = context.projectReactor().getRoot();
+    stashRequestFacade.initialize(root.getBaseDir(), root.getWorkDir());
   }
 
 }
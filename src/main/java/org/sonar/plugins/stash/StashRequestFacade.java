@@ -1,76 +1,208 @@
 package org.sonar.plugins.stash;
 
+import org.apache.commons.lang3.StringUtils;
+import org.json.simple.JSONArray;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.sonar.api.BatchComponent;
 import org.sonar.api.batch.InstantiationStrategy;
 import org.sonar.api.issue.ProjectIssues;
 import org.sonar.api.rule.Severity;
+import org.sonar.plugins.stash.client.Deadline;
+import org.sonar.plugins.stash.client.RetryPolicy;
 import org.sonar.plugins.stash.client.StashClient;
 import org.sonar.plugins.stash.client.StashCredentials;
 import org.sonar.plugins.stash.exceptions.StashClientException;
 import org.sonar.plugins.stash.exceptions.StashConfigurationException;
+import org.sonar.plugins.stash.exceptions.StashException;
+import org.sonar.plugins.stash.exceptions.StashReportExtractionException;
+import org.sonar.plugins.stash.export.IssueReportFile;
+import org.sonar.plugins.stash.issue.CodeInsightsPrinter;
 import org.sonar.plugins.stash.issue.MarkdownPrinter;
+import org.sonar.plugins.stash.issue.PlannedComment;
+import org.sonar.plugins.stash.issue.PostingPlan;
+import org.sonar.plugins.stash.issue.PostingPlanPrinter;
 import org.sonar.plugins.stash.issue.SonarQubeIssue;
 import org.sonar.plugins.stash.issue.SonarQubeIssuesReport;
+import org.sonar.plugins.stash.issue.StashComment;
 import org.sonar.plugins.stash.issue.StashCommentReport;
 import org.sonar.plugins.stash.issue.StashDiffReport;
 import org.sonar.plugins.stash.issue.collector.SonarQubeCollector;
+import org.sonar.plugins.stash.issue.collector.StashCollector;
+import org.sonar.plugins.stash.lease.FileLockLeaseBackend;
+import org.sonar.plugins.stash.lease.Lease;
+import org.sonar.plugins.stash.lease.LeaseBackend;
 
 import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.HttpURLConnection;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 @InstantiationStrategy(InstantiationStrategy.PER_BATCH)
 public class StashRequestFacade implements BatchComponent {
 
   private static final Logger LOGGER = LoggerFactory.getLogger(StashRequestFacade.class);
 
+  private static final Comparator<SonarQubeIssue> ISSUE_LINE_ORDER = new Comparator<SonarQubeIssue>() {
+    @Override
+    public int compare(SonarQubeIssue issue1, SonarQubeIssue issue2) {
+      return Long.compare(issue1.getLine(), issue2.getLine());
+    }
+  };
+
+  // Planning phases, as reported by dry runs
+  static final String PHASE_DIFF = "diff";
+  static final String PHASE_COMMENTS = "comments";
+  static final String PHASE_MATCHING = "matching";
+
   private StashPluginConfiguration config;
   private File projectBaseDir;
+  private File workingDir;
+
+  // Issues of the modules analyzed so far in the batch
+  private final SonarQubeIssuesReport batchIssueReport = new SonarQubeIssuesReport();
+  private final Set<String> batchIssueKeys = new HashSet<>();
 
   public StashRequestFacade(StashPluginConfiguration stashPluginConfiguration) {
     this.config = stashPluginConfiguration;
   }
 
-  public void initialize(File projectBaseDir) {
+  public void initialize(File projectBaseDir, File workingDir) {
     this.projectBaseDir = projectBaseDir;
+    this.workingDir = workingDir;
   }
 
+  /**
+   * Add the new issues of the analyzed module to the issue report of the batch:
+   * the report of a multi-module build is posted once, with all the issues of its modules.
+   * @return the issues of the modules analyzed so far
+   */
   public SonarQubeIssuesReport extractIssueReport(ProjectIssues projectIssues, InputFileCache inputFileCache) {
-    return SonarQubeCollector.extractIssueReport(projectIssues, inputFileCache, projectBaseDir);
+    SonarQubeCollector.extractIssueReport(projectIssues, inputFileCache, projectBaseDir, batchIssueReport, batchIssueKeys);
+    return batchIssueReport;
+  }
+
+  /**
+   * Lease on the pull-request for the whole posting phase, so that concurrent builds of the same pull-request do not post twice.
+   * A lease backend failure does not prevent posting.
+   * @return the lease to release once posted, null if another build still holds it after {@link StashPlugin#STASH_LEASE_TIMEOUT}
+   */
+  public Lease acquirePostingLease(String project, String repository, String pullRequestId) {
+    LeaseBackend backend = getLeaseBackend();
+    if (backend == null) {
+      return Lease.NONE;
+    }
+    try {
+      return backend.acquire(project + "-" + repository + "-" + pullRequestId, config.getLeaseTimeout());
+    } catch (IOException e) {
+      LOGGER.warn("Unable to acquire posting lease, SonarQube issues are posted without lease: {}", e.getMessage());
+      LOGGER.debug("Exception stack trace", e);
+      return Lease.NONE;
+    }
+  }
+
+  /**
+   * @return null if no lease is configured
+   */
+  LeaseBackend getLeaseBackend() {
+    String directory = config.getLeaseDirectory();
+    return (directory == null) ? null : new FileLockLeaseBackend(new File(directory));
   }
 
   /**
-   * Post SQ analysis overview on Stash
+   * Post SQ analysis overview and summary on Stash, or update those of the previous analysis.
+   * The comments of the previous analysis are looked up together, in a single pass over the pull-request activities.
+   */
+  public void postAnalysisOverviewAndSummary(String project, String repository, String pullRequestId, String sonarQubeURL, int issueThreshold,
+    SonarQubeIssuesReport issueReport, PostingPlan postingPlan, StashClient stashClient) {
+    Map<String, StashComment> previousComments = findGeneralComments(project, repository, pullRequestId, stashClient,
+      MarkdownPrinter.OVERVIEW_MARKER, MarkdownPrinter.SUMMARY_MARKER);
+    postAnalysisOverview(project, repository, pullRequestId, sonarQubeURL, issueThreshold, issueReport, postingPlan, stashClient, previousComments);
+    postAnalysisSummary(project, repository, pullRequestId, issueThreshold, issueReport, postingPlan, stashClient, previousComments);
+  }
+
+  /**
+   * @return null if the comments cannot be looked up: each report looks its comment up again
+   */
+  private static Map<String, StashComment> findGeneralComments(String project, String repository, String pullRequestId, StashClient stashClient,
+    String... markers) {
+    try {
+      return stashClient.findGeneralCommentsOnPullRequest(project, repository, pullRequestId, Arrays.asList(markers));
+    } catch (StashClientException e) {
+      LOGGER.debug("Unable to look up the SonarQube reports on Stash: {}", e.getMessage());
+      return null;
+    }
+  }
+
+  /**
+   * Post SQ analysis overview on Stash, or update the overview of the previous analysis.
    */
   public void postAnalysisOverview(String project, String repository, String pullRequestId, String sonarQubeURL, int issueThreshold, SonarQubeIssuesReport issueReport,
-    StashClient stashClient) {
+    PostingPlan postingPlan, StashClient stashClient) {
+    postAnalysisOverview(project, repository, pullRequestId, sonarQubeURL, issueThreshold, issueReport, postingPlan, stashClient, null);
+  }
+
+  private static void postAnalysisOverview(String project, String repository, String pullRequestId, String sonarQubeURL, int issueThreshold,
+    SonarQubeIssuesReport issueReport, PostingPlan postingPlan, StashClient stashClient, Map<String, StashComment> previousComments) {
     try {
-      stashClient.postCommentOnPullRequest(
+      boolean posted = postOrUpdateGeneralComment(
         project,
         repository,
         pullRequestId,
-        MarkdownPrinter.printOverviewReportMarkdown(issueReport, sonarQubeURL, issueThreshold)
+        MarkdownPrinter.OVERVIEW_MARKER,
+        MarkdownPrinter.printOverviewReportMarkdown(issueReport, postingPlan, sonarQubeURL, issueThreshold),
+        stashClient,
+        previousComments
         );
-      LOGGER.info("SonarQube analysis overview has been reported to Stash.");
+      LOGGER.info(posted ? "SonarQube analysis overview has been reported to Stash." : "SonarQube analysis overview is already up-to-date on Stash.");
     } catch (StashClientException e) {
       LOGGER.error("Unable to push SonarQube analysis overview to Stash: {}", e.getMessage());
       LOGGER.debug("Exception stack trace", e);
     }
   }
 
-  public void postAnalysisSummary(String project, String repository, String pullRequestId, int issueThreshold, SonarQubeIssuesReport issueReport, StashClient stashClient) {
+  public void postAnalysisSummary(String project, String repository, String pullRequestId, int issueThreshold, SonarQubeIssuesReport issueReport, PostingPlan postingPlan,
+    StashClient stashClient) {
+    postAnalysisSummary(project, repository, pullRequestId, issueThreshold, issueReport, postingPlan, stashClient, null);
+  }
+
+  private static void postAnalysisSummary(String project, String repository, String pullRequestId, int issueThreshold, SonarQubeIssuesReport issueReport,
+    PostingPlan postingPlan, StashClient stashClient, Map<String, StashComment> previousComments) {
     try {
-      stashClient.postCommentOnPullRequest(
+      boolean posted = postOrUpdateGeneralComment(
         project,
         repository,
         pullRequestId,
-        MarkdownPrinter.printSummaryReportMarkdown(issueReport, issueThreshold)
+        MarkdownPrinter.SUMMARY_MARKER,
+        MarkdownPrinter.printSummaryReportMarkdown(issueReport, postingPlan, issueThreshold),
+        stashClient,
+        previousComments
         );
-      LOGGER.info("SonarQube analysis summary has been reported to Stash.");
+      LOGGER.info(posted ? "SonarQube analysis summary has been reported to Stash." : "SonarQube analysis summary is already up-to-date on Stash.");
     } catch (StashClientException e) {
       LOGGER.error("Unable to push SonarQube summary report to Stash: {}", e.getMessage());
       LOGGER.debug("Exception stack trace", e);
@@ -78,69 +210,725 @@ public class StashRequestFacade implements BatchComponent {
   }
 
   /**
-   * Create Stash comments for SonarQube issues.
+   * Edit in place the general comment posted by a previous analysis with the same marker, instead of adding a new comment on each analysis.
+   * @param previousComments general comments already looked up by marker, used by the first attempt; null to look the comment up
+   * @return false if the comment is already up-to-date: nothing has been sent
    */
-  public void postCommentPerIssue(String project, String repository, String pullRequestId, String sonarQubeURL, SonarQubeIssuesReport issuesReport, StashClient stashClient) {
-    try {
-      StashDiffReport diffReport = stashClient.getPullRequestDiffs(project, repository, pullRequestId);
-      Map<String, StashCommentReport> commentsBySonarQubeFilePath = getStashCommentsBySonarQubeFilePath(project, repository, pullRequestId, issuesReport, stashClient, diffReport);
-      String issueSonarQubeFilePath;
-      String issueStashFilePath;
+  private static boolean postOrUpdateGeneralComment(String project, String repository, String pullRequestId, String marker, String markdown, StashClient stashClient,
+    Map<String, StashComment> previousComments) throws StashClientException {
+    String text = MarkdownPrinter.printMarkedMarkdown(markdown, marker);
+    RetryPolicy retryPolicy = stashClient.getRetryPolicy();
+    Map<String, StashComment> lookedUp = previousComments;
+    boolean conflicted = false;
 
-      List<String> commentSeverities = getPossibleSeverities(config.getCommentIssueSeverityThreshold());
-      List<String> taskSeverities = getPossibleSeverities(config.getTaskIssueSeverityThreshold());
-      for (SonarQubeIssue issue : issuesReport.getIssues()) {
-        if(!commentSeverities.contains(issue.getSeverity())){
+    for (int retried = 0;;) {
+      try {
+        // once an attempt has failed, it may have been processed anyway: the comment is looked up again rather than posted twice
+        StashComment previous = (lookedUp != null)
+          ? lookedUp.get(marker)
+          : stashClient.findGeneralCommentOnPullRequest(project, repository, pullRequestId, marker);
+        lookedUp = null;
+        if (previous == null) {
+          stashClient.postCommentOnPullRequest(project, repository, pullRequestId, text);
+          return true;
+        }
+        if (StringUtils.equals(normalizeLineEndings(previous.getMessage()), normalizeLineEndings(text))) {
+          return retried > 0 || conflicted;
+        }
+        stashClient.updateCommentOnPullRequest(project, repository, pullRequestId, previous.getId(), previous.getVersion(), text);
+        return true;
+
+      } catch (StashClientException e) {
+        if (e.getStatusCode() == HttpURLConnection.HTTP_CONFLICT && !conflicted) {
+          // the comment has been modified since it was looked up, maybe by this very update if its response was lost:
+          // it is looked up again, and updated with its current version only if its text still differs
+          conflicted = true;
+          LOGGER.debug("Stash comment modified since it was looked up: {}", e.getMessage());
           continue;
         }
-        issueSonarQubeFilePath = issue.getPath();
-        issueStashFilePath = diffReport.getPath(issue.getPath());
+        if (!e.isRetryable() || !retryPolicy.canRetry(retried)) {
+          throw e;
+        }
+        LOGGER.debug("Unable to post Stash comment: {}. Retry #{}", e.getMessage(), retried + 1);
+        backoff(stashClient, retried);
+        retried++;
+      }
+    }
+  }
+
+  /**
+   * Wait before a retry, at most until the deadline of the client.
+   * @throws StashClientException if the time budget is exhausted: the request must not be sent again
+   */
+  private static void backoff(StashClient stashClient, int retried) throws StashClientException {
+    Deadline deadline = stashClient.getDeadline();
+    try {
+      if (!stashClient.getRetryPolicy().backoff(retried, deadline)) {
+        throw new StashClientException("Stash time budget of " + deadline.getBudgetMillis() + " ms exhausted: the request is not retried.");
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new StashClientException(e);
+    }
+  }
+
+  private static String normalizeLineEndings(String text) {
+    return (text == null) ? null : StringUtils.trim(text.replace("\r\n", "\n"));
+  }
+
+  /**
+   * Create Stash comments for SonarQube issues, the most severe first, within the issue threshold.
+   * @return the posting plan which has been applied, null if it could not be computed
+   */
+  public PostingPlan postCommentPerIssue(String project, String repository, String pullRequestId, String sonarQubeURL, int issueThreshold, SonarQubeIssuesReport issuesReport,
+    StashClient stashClient) {
+    return postCommentPerIssue(project, repository, pullRequestId, sonarQubeURL, issueThreshold, issuesReport, stashClient, null);
+  }
+
+  /**
+   * @param listener notified as soon as the plan is computed, so that reports depending on it can be posted while comments are posted; may be null
+   */
+  public PostingPlan postCommentPerIssue(String project, String repository, String pullRequestId, String sonarQubeURL, int issueThreshold, SonarQubeIssuesReport issuesReport,
+    StashClient stashClient, PostingPlanListener listener) {
+    PostingPlan plan = null;
+
+    // Comments are posted by as many threads as the posting concurrency allows, and tasks depend on the id of their comment only:
+    // create them in background while the next comments are posted.
+    int maxConcurrency = stashClient.getPostingLimiter().getMaxConcurrency();
+    ExecutorService postingExecutor = Executors.newFixedThreadPool(maxConcurrency);
+    ExecutorService taskExecutor = Executors.newFixedThreadPool(maxConcurrency);
+    List<Future<Void>> pendingTasks = Collections.synchronizedList(new ArrayList<Future<Void>>());
+    PostingJournal journal = null;
+    try {
+      journal = openJournal(project, repository, pullRequestId, stashClient);
+      plan = planCommentPerIssue(project, repository, pullRequestId, sonarQubeURL, issueThreshold, issuesReport, journal, stashClient);
+      if (plan.countNotDisplayed() > 0) {
+        LOGGER.warn("Too many issues detected ({}/{}): {} issues cannot be displayed in Diff view", plan.getComments().size() + plan.countAlreadyPresent() + plan.countNotDisplayed(),
+          issueThreshold, plan.countNotDisplayed());
+      }
+      if (listener != null) {
+        listener.planned(plan);
+      }
+      Deadline deadline = stashClient.getDeadline();
+      if (deadline.isBounded()) {
+        plan.prioritizeBySeverity();
+      }
+
+      LoadSheddingPolicy loadShedding = new LoadSheddingPolicy(config.getSheddingLatency(), config.getSheddingErrorRate());
+      CommentPosting posting = new CommentPosting(project, repository, pullRequestId, journal, taskExecutor, pendingTasks, stashClient, loadShedding);
+      int errorBudget = config.getErrorBudget();
+      int errors = 0;
+      List<PlannedComment> failedComments = new ArrayList<>();
+      // results are handled in posting order, at most maxConcurrency comments behind: the error budget is checked before each comment
+      Deque<PendingComment> pendingComments = new ArrayDeque<>();
+      for (PlannedComment comment : plan.getComments()) {
+        while (pendingComments.size() >= maxConcurrency) {
+          errors += pendingComments.removeFirst().complete(plan, failedComments);
+        }
+        if (errors > errorBudget || deadline.isExpired()) {
+          plan.markAbandoned(comment);
+        } else if (loadShedding.isShedding()) {
+          plan.markDeferred(comment);
+        } else {
+          pendingComments.addLast(new PendingComment(comment, postingExecutor.submit(posting.postLater(comment))));
+        }
+      }
+      while (!pendingComments.isEmpty()) {
+        errors += pendingComments.removeFirst().complete(plan, failedComments);
+      }
+      if (loadShedding.isShedding()) {
+        plan.setDegradationReason(loadShedding.getReason());
+        LOGGER.warn("Stash is overloaded ({}): line comments are not posted anymore, {} comments have been deferred", loadShedding.getReason(),
+          plan.getDeferredComments().size());
+      }
+
+      // Failures of a single comment are usually transient: retry them once, in one batch, at the end
+      for (PlannedComment comment : failedComments) {
+        if (errors <= errorBudget && !loadShedding.isShedding() && posting.post(comment)) {
+          plan.markPosted(comment);
+        } else {
+          errors++;
+          plan.markFailed(comment);
+          LOGGER.warn("Stash comment for SonarQube issue \"{}\" has not been created on file \"{}\" at line {}", comment.getAnchor().getRule(), comment.getPath(),
+            comment.getLine());
+        }
+      }
+      if (errors > errorBudget) {
+        LOGGER.error("Too many errors while creating Stash comments (error budget: {}): {} comments have been abandoned", errorBudget, plan.getAbandonedComments().size());
+      } else if (!plan.getAbandonedComments().isEmpty()) {
+        LOGGER.error("Stash time budget of {} ms exhausted: {} comments have been abandoned", deadline.getBudgetMillis(), plan.getAbandonedComments().size());
+      }
+
+      LOGGER.info("Stash comments for SonarQube issues: {} created, {} already present, {} not displayed, {} failed, {} abandoned, {} deferred.",
+        plan.getPostedComments().size(), plan.countAlreadyPresent(), plan.getNotDisplayedComments().size(), plan.getFailedComments().size(),
+        plan.getAbandonedComments().size(), plan.getDeferredComments().size());
+
+    } catch (StashClientException e) {
+      LOGGER.error("Unable to link SonarQube issues to Stash: {}", e.getMessage());
+      LOGGER.debug("Exception stack trace", e);
+    } finally {
+      postingExecutor.shutdown();
+      // comments still being posted may submit their task and journal their record: they must be done before both
+      awaitPosting(postingExecutor, stashClient.getDeadline());
+      waitForTasks(pendingTasks);
+      taskExecutor.shutdown();
+      if (journal != null) {
+        journal.close();
+      }
+    }
+    return plan;
+  }
+
+  /**
+   * Open the posting journal of the pull-request head commit.
+   * @return null if the journal is disabled or cannot be opened: comments are then posted without journal
+   */
+  private PostingJournal openJournal(String project, String repository, String pullRequestId, StashClient stashClient) {
+    if (!config.hasToUsePostingJournal() || workingDir == null) {
+      return null;
+    }
+    try {
+      // Cheap consistency check: the journal of a previous run is only trusted on the same head commit
+      String commit = stashClient.getPullRequestLatestCommit(project, repository, pullRequestId);
+      if (commit == null) {
+        return null;
+      }
+      return PostingJournal.open(PostingJournal.getFile(workingDir, project, repository, pullRequestId), commit);
+    } catch (StashClientException | IOException e) {
+      LOGGER.warn("Unable to open Stash posting journal, comments are posted without journal: {}", e.getMessage());
+      LOGGER.debug("Exception stack trace", e);
+      return null;
+    }
+  }
+
+  /**
+   * Compute the Stash comments to create for SonarQube issues, without posting anything.
+   * Only GET requests are sent to Stash: pull-request diff and existing comments.
+   */
+  public PostingPlan planCommentPerIssue(String project, String repository, String pullRequestId, String sonarQubeURL, int issueThreshold, SonarQubeIssuesReport issuesReport,
+    StashClient stashClient) throws StashClientException {
+    return planCommentPerIssue(project, repository, pullRequestId, sonarQubeURL, issueThreshold, issuesReport, null, stashClient);
+  }
+
+  /**
+   * @param journal posting journal: the journal of an interrupted run with the same plan key replaces the fetch of the existing comments,
+   *   otherwise the new plan is journaled. May be null.
+   */
+  private PostingPlan planCommentPerIssue(String project, String repository, String pullRequestId, String sonarQubeURL, int issueThreshold,
+    SonarQubeIssuesReport issuesReport, PostingJournal journal, StashClient stashClient) throws StashClientException {
+    long start = System.currentTimeMillis();
+    StashDiffReport diffReport = stashClient.getPullRequestDiffs(project, repository, pullRequestId);
+    long diffDuration = System.currentTimeMillis() - start;
+
+    String planKey = null;
+    if (journal != null) {
+      start = System.currentTimeMillis();
+      PostingPlan plan = newPostingPlan(diffDuration);
+      addCandidates(plan, sonarQubeURL, stashClient.getPullRequestDiffURL(project, repository, pullRequestId), issuesReport, diffReport,
+        Collections.<String, StashCommentReport>emptyMap());
+      planKey = PostingJournal.getPlanKey(plan.getCandidates(), issueThreshold, config.getTaskIssueSeverityThreshold());
+      if (journal.isResumable(planKey) && journal.resume(plan)) {
+        LOGGER.info("Resuming Stash comments posting of a previous run on the same commit.");
+        skipUnconfirmedComments(plan, project, repository, pullRequestId, journal, stashClient);
+        plan.recordPhase(PHASE_MATCHING, System.currentTimeMillis() - start);
+        return plan;
+      }
+    }
+
+    PostingPlan plan = newPostingPlan(diffDuration);
+    fillPostingPlan(plan, project, repository, pullRequestId, sonarQubeURL, issueThreshold, issuesReport, diffReport, stashClient);
+    if (journal != null) {
+      journal.writePlan(planKey, plan);
+    }
+    return plan;
+  }
+
+  private static PostingPlan newPostingPlan(long diffDuration) {
+    PostingPlan plan = new PostingPlan();
+    plan.addGetRequests(1);
+    plan.recordPhase(PHASE_DIFF, diffDuration);
+    return plan;
+  }
+
+  /**
+   * The comments planned by the interrupted run, but not journaled as posted, may have been created anyway (e.g. request in flight):
+   * they are looked up in the existing comments of their file before being posted again.
+   */
+  private static void skipUnconfirmedComments(PostingPlan plan, String project, String repository, String pullRequestId, PostingJournal journal,
+    StashClient stashClient) throws StashClientException {
+    Map<String, StashCommentReport> commentsByStashFilePath = new HashMap<>();
+    for (PlannedComment comment : new ArrayList<>(plan.getComments())) {
+      StashCommentReport comments = commentsByStashFilePath.get(comment.getPath());
+      if (comments == null) {
+        comments = stashClient.getPullRequestComments(project, repository, pullRequestId, comment.getPath());
+        commentsByStashFilePath.put(comment.getPath(), comments);
+      }
+      StashComment existing = comments.find(comment.getMessage(), comment.getPath(), comment.getLine());
+      if (existing != null) {
+        LOGGER.debug("Stash comment \"{}\" has been created by the interrupted run on file \"{}\" at line {}.", comment.getAnchor().getRule(), comment.getPath(),
+          comment.getLine());
+        plan.skipAlreadyPresent(comment);
+        journal.commentPosted(comment, existing.getId());
+      }
+    }
+    plan.addGetRequests(commentsByStashFilePath.size());
+  }
+
+  /**
+   * Dry run: compute the Stash comments to create for SonarQube issues and write the resulting plan as JSON in the working directory.
+   * Nothing is posted to Stash. The pull-request diff is read from {@link StashPlugin#STASH_DRY_RUN_DIFF_FILE} when set.
+   * @return the plan file, null if the plan could not be computed or written
+   */
+  public File dryRunCommentPerIssue(String project, String repository, String pullRequestId, String sonarQubeURL, int issueThreshold, SonarQubeIssuesReport issuesReport,
+    StashClient stashClient) {
+    try {
+      PostingPlan plan = new PostingPlan();
+
+      long start = System.currentTimeMillis();
+      StashDiffReport diffReport;
+      String diffFile = config.getDryRunDiffFile();
+      if (diffFile == null) {
+        diffReport = stashClient.getPullRequestDiffs(project, repository, pullRequestId);
+        plan.addGetRequests(1);
+      } else {
+        diffReport = readDiffFile(diffFile);
+      }
+      plan.recordPhase(PHASE_DIFF, System.currentTimeMillis() - start);
+
+      fillPostingPlan(plan, project, repository, pullRequestId, sonarQubeURL, issueThreshold, issuesReport, diffReport, stashClient);
+
+      int reportRequests = (config.hasToDisplayAnalysisOverview() ? 1 : 0) + (config.hasToDisplayAnalysisSummary() ? 1 : 0);
+      File planFile = new File(workingDir, StashPlugin.DRY_RUN_PLAN_FILE);
+      if (StringUtils.contains(config.getPullRequestId(), ',')) {
+        // several pull-requests are reported: one plan each
+        planFile = new File(workingDir, StringUtils.removeEnd(StashPlugin.DRY_RUN_PLAN_FILE, ".json") + "-" + pullRequestId + ".json");
+      }
+      try (Writer writer = new OutputStreamWriter(new FileOutputStream(planFile), StandardCharsets.UTF_8)) {
+        PostingPlanPrinter.printPlanJson(plan, issueThreshold, reportRequests).writeJSONString(writer);
+      }
+
+      LOGGER.info("Dry run: {} Stash comments would be created ({} GET and {} POST requests). Plan written to {}", plan.getComments().size(), plan.countGetRequests(),
+        PostingPlanPrinter.countPostRequests(plan, reportRequests), planFile.getAbsolutePath());
+      return planFile;
+
+    } catch (StashException | IOException e) {
+      LOGGER.error("Unable to plan SonarQube issues for Stash: {}", e.getMessage());
+      LOGGER.debug("Exception stack trace", e);
+      return null;
+    }
+  }
+
+  /**
+   * Write the issue report and the plugin properties to the export file, to post them later with StashReportReplay.
+   * @return the written file, null on failure
+   */
+  public File exportIssueReport(SonarQubeIssuesReport issuesReport) throws StashConfigurationException {
+    // fail now rather than on replay
+    getStashURL();
+    getStashProject();
+    getStashRepository();
+    getStashPullRequestId();
+
+    File file = resolveFile(config.getExportFile());
+    try {
+      new IssueReportFile(config.getExportableProperties(), issuesReport).write(file);
+      LOGGER.info("SonarQube issue report ({} issues) exported to {}", issuesReport.countIssues(), file.getAbsolutePath());
+      return file;
+    } catch (IOException e) {
+      LOGGER.error("Unable to export SonarQube issue report: {}", e.getMessage());
+      LOGGER.debug("Exception stack trace", e);
+      return null;
+    }
+  }
 
-        StashCommentReport comments = commentsBySonarQubeFilePath.get(issueSonarQubeFilePath);
+  private StashDiffReport readDiffFile(String diffFile) throws IOException, StashReportExtractionException {
+    File file = resolveFile(diffFile);
+    return StashCollector.extractDiffs(new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8));
+  }
+
+  /**
+   * Relative paths are resolved against the project base directory.
+   */
+  private File resolveFile(String path) {
+    File file = new File(path);
+    if (!file.isAbsolute() && projectBaseDir != null) {
+      file = new File(projectBaseDir, path);
+    }
+    return file;
+  }
+
+  private void fillPostingPlan(PostingPlan plan, String project, String repository, String pullRequestId, String sonarQubeURL, int issueThreshold,
+    SonarQubeIssuesReport issuesReport, StashDiffReport diffReport, StashClient stashClient) throws StashClientException {
+    long start = System.currentTimeMillis();
+    Map<String, StashCommentReport> commentsBySonarQubeFilePath = getStashCommentsBySonarQubeFilePath(project, repository, pullRequestId, issuesReport, stashClient, diffReport);
+    plan.addGetRequests(commentsBySonarQubeFilePath.size());
+    plan.recordPhase(PHASE_COMMENTS, System.currentTimeMillis() - start);
+
+    start = System.currentTimeMillis();
+    addCandidates(plan, sonarQubeURL, stashClient.getPullRequestDiffURL(project, repository, pullRequestId), issuesReport, diffReport, commentsBySonarQubeFilePath);
+    plan.applyThreshold(issueThreshold);
+    plan.recordPhase(PHASE_MATCHING, System.currentTimeMillis() - start);
+  }
 
-        // If the Stash comment (SonarQube issue) is already present in the pull request (from previous analysis), do not create again this
-        // Stash comment.
-        if (comments != null
-          && comments.contains(MarkdownPrinter.printIssueMarkdown(issue, sonarQubeURL), issueStashFilePath, issue.getLine())) {
+  /**
+   * Add a candidate comment to the plan for each SonarQube issue, or group of issues, which is not yet commented on the pull-request.
+   */
+  private void addCandidates(PostingPlan plan, String sonarQubeURL, String diffURL, SonarQubeIssuesReport issuesReport, StashDiffReport diffReport,
+    Map<String, StashCommentReport> commentsBySonarQubeFilePath) {
+    String issueSonarQubeFilePath;
+    String issueStashFilePath;
+
+    int commentSeverities = getSeverityMask(config.getCommentIssueSeverityThreshold());
+    int taskSeverities = getSeverityMask(config.getTaskIssueSeverityThreshold());
+
+    String aggregation = config.getCommentAggregation();
+    if (StashPlugin.COMMENT_AGGREGATION_FILE.equals(aggregation) || StashPlugin.COMMENT_AGGREGATION_HUNK.equals(aggregation)) {
+      addGroupCandidates(plan, sonarQubeURL, diffURL, issuesReport, diffReport, commentsBySonarQubeFilePath, commentSeverities, taskSeverities, aggregation);
+      return;
+    }
+
+    for (SonarQubeIssue issue : issuesReport.getIssues()) {
+      if (!issue.hasSeverityIn(commentSeverities)) {
+        plan.skipBelowSeverityThreshold(issue);
+        continue;
+      }
+      issueSonarQubeFilePath = issue.getPath();
+      issueStashFilePath = diffReport.getPath(issue.getPath());
+
+      StashCommentReport comments = commentsBySonarQubeFilePath.get(issueSonarQubeFilePath);
+      String message = MarkdownPrinter.printIssueMarkdown(issue, sonarQubeURL);
+
+      // If the Stash comment (SonarQube issue) is already present in the pull request (from previous analysis), do not create again this
+      // Stash comment.
+      if (comments != null && comments.contains(message, issueStashFilePath, issue.getLine())) {
+        LOGGER.debug("Stash comment for SonarQube issue \"{}\" is already present on file \"{}\" at line {}.", issue.getRule(), issueStashFilePath, issue.getLine());
+        plan.skipAlreadyPresent(Collections.singletonList(issue));
+        continue;
+      }
+
+      // If the SonarQube issue does not belong to the Stash diff view, do not create a Stash comment for this issue.
+      String type = diffReport.getType(issueStashFilePath, issue.getLine());
+      if (type == null) {
+        LOGGER.debug("Stash comment for SonarQube issue \"{}\" cannot be created because the issue does not belong to diff view \"{}\", line {})", issue.getRule(),
+          issueSonarQubeFilePath, issue.getLine());
+        plan.skipOutOfDiff(issue);
+        continue;
+      }
+
+      String taskMessage = issue.hasSeverityIn(taskSeverities) ? issue.getMessage() : null;
+      plan.addCandidate(new PlannedComment(message, issueStashFilePath, diffReport.getLine(issueStashFilePath, issue.getLine()), type, taskMessage,
+        Collections.singletonList(issue)));
+    }
+  }
+
+  /**
+   * Add a candidate comment for each group of issues (see comment aggregation option).
+   * An issue is already present if a previous comment on the file lists its marker, whatever the other issues of that comment:
+   * only the issues which are not yet listed are posted in a new group comment. Identical issues of a file share their marker:
+   * each listed marker matches a single issue.
+   * @param diffURL link to the diff view of the pull-request, null for no link
+   */
+  private static void addGroupCandidates(PostingPlan plan, String sonarQubeURL, String diffURL, SonarQubeIssuesReport issuesReport, StashDiffReport diffReport,
+    Map<String, StashCommentReport> commentsBySonarQubeFilePath, int commentSeverities, int taskSeverities, String aggregation) {
+    // markers already matched with an issue, by file
+    Map<String, Integer> matchedMarkers = new HashMap<>();
+    for (List<SonarQubeIssue> group : groupIssues(issuesReport, diffReport, commentSeverities, aggregation, plan).values()) {
+      String issueStashFilePath = diffReport.getPath(group.get(0).getPath());
+      StashCommentReport comments = commentsBySonarQubeFilePath.get(group.get(0).getPath());
+
+      List<SonarQubeIssue> issues = new ArrayList<>();
+      for (SonarQubeIssue issue : group) {
+        String marker = MarkdownPrinter.printIssueMarker(issue);
+        String matchKey = issueStashFilePath + "\n" + marker;
+        Integer matched = matchedMarkers.get(matchKey);
+        int alreadyMatched = (matched == null) ? 0 : matched;
+        if (comments != null && comments.countLines(marker, issueStashFilePath) > alreadyMatched) {
+          matchedMarkers.put(matchKey, alreadyMatched + 1);
           LOGGER.debug("Stash comment for SonarQube issue \"{}\" is already present on file \"{}\" at line {}.", issue.getRule(), issueStashFilePath, issue.getLine());
-          continue;
+          plan.skipAlreadyPresent(Collections.singletonList(issue));
+        } else {
+          issues.add(issue);
+        }
+      }
+      if (issues.isEmpty()) {
+        continue;
+      }
+
+      List<SonarQubeIssue> taskIssues = new ArrayList<>();
+      for (SonarQubeIssue issue : issues) {
+        if (issue.hasSeverityIn(taskSeverities)) {
+          taskIssues.add(issue);
         }
+      }
+      String taskMessage = null;
+      if (!taskIssues.isEmpty()) {
+        taskMessage = (taskIssues.size() == 1) ? taskIssues.get(0).getMessage() : ("Fix " + taskIssues.size() + " SonarQube issues");
+      }
+
+      SonarQubeIssue anchor = issues.get(0);
+      String fileURL = (diffURL == null) ? null : (diffURL + "#" + issueStashFilePath);
+      plan.addCandidate(new PlannedComment(MarkdownPrinter.printIssueGroupMarkdown(issues, sonarQubeURL, fileURL), issueStashFilePath,
+        diffReport.getLine(issueStashFilePath, anchor.getLine()), diffReport.getType(issueStashFilePath, anchor.getLine()), taskMessage, issues));
+    }
+  }
+
+  /**
+   * Publish SonarQube issues as a Stash Code Insights report on the latest commit of the pull-request.
+   * Issues are sent as annotations, by batches: the number of requests does not grow with each issue.
+   */
+  public void postInsightsReport(String project, String repository, String pullRequestId, String sonarQubeURL, SonarQubeIssuesReport issuesReport, StashClient stashClient) {
+    try {
+      String commit = stashClient.getPullRequestLatestCommit(project, repository, pullRequestId);
+      StashDiffReport diffReport = stashClient.getPullRequestDiffs(project, repository, pullRequestId);
 
-        // If the SonarQube issue does not belong to the Stash diff view, do not create a Stash comment for this issue.
-        if (diffReport.getType(issueStashFilePath, issue.getLine()) == null) {
-          LOGGER.debug("Stash comment for SonarQube issue \"{}\" cannot be created because the issue does not belong to diff view \"{}\", line {})", issue.getRule(),
-            issueSonarQubeFilePath, issue.getLine());
+      // Replacing the report removes the annotations of the previous analysis
+      stashClient.putInsightsReport(project, repository, commit, StashPlugin.INSIGHTS_REPORT_KEY, CodeInsightsPrinter.printReportJson(issuesReport, sonarQubeURL));
+
+      int commentSeverities = getSeverityMask(config.getCommentIssueSeverityThreshold());
+      int annotationCount = 0;
+      int requestCount = 0;
+      JSONArray annotations = new JSONArray();
+      for (SonarQubeIssue issue : issuesReport.getIssues()) {
+        if (!issue.hasSeverityIn(commentSeverities)) {
+          continue;
+        }
+        String issueStashFilePath = diffReport.getPath(issue.getPath());
+        if (issueStashFilePath == null) {
+          LOGGER.debug("Stash annotation for SonarQube issue \"{}\" cannot be created because file \"{}\" does not belong to diff view", issue.getRule(), issue.getPath());
           continue;
         }
 
-        // Create the Stash comments for the SonarQube issues.
-        Long commentId = stashClient.postCommentLineOnPullRequest(
-          project,
-          repository,
-          pullRequestId,
-          MarkdownPrinter.printIssueMarkdown(issue, sonarQubeURL),
-          issueStashFilePath,
-          diffReport.getLine(issueStashFilePath, issue.getLine()),
-          diffReport.getType(issueStashFilePath, issue.getLine())
-          );
-        LOGGER.debug("Stash comment \"{}\" has been created ({}) on file \"{}\" at line {} with id {}", issue.getRule(), diffReport.getType(issueStashFilePath, issue.getLine()),
-          issueStashFilePath, diffReport.getLine(issueStashFilePath, issue.getLine()), commentId);
-
-        if(taskSeverities.contains(issue.getSeverity())){
-          stashClient.postTaskOnComment(issue.getMessage(), commentId);
+        annotations.add(CodeInsightsPrinter.printAnnotationJson(issue, issueStashFilePath, sonarQubeURL));
+        annotationCount++;
+        if (annotations.size() == StashClient.INSIGHTS_MAX_ANNOTATIONS_PER_REQUEST) {
+          stashClient.postInsightsAnnotations(project, repository, commit, StashPlugin.INSIGHTS_REPORT_KEY, annotations);
+          requestCount++;
+          annotations = new JSONArray();
         }
       }
+      if (!annotations.isEmpty()) {
+        stashClient.postInsightsAnnotations(project, repository, commit, StashPlugin.INSIGHTS_REPORT_KEY, annotations);
+        requestCount++;
+      }
 
-      LOGGER.info("All Stash comments for SonarQube issues have been created.");
+      LOGGER.info("SonarQube Code Insights report has been published to Stash on commit {} with {} annotations ({} requests).", commit, annotationCount, requestCount);
 
     } catch (StashClientException e) {
-      LOGGER.error("Unable to link SonarQube issues to Stash: {}", e.getMessage());
+      LOGGER.error("Unable to publish SonarQube Code Insights report to Stash: {}", e.getMessage());
       LOGGER.debug("Exception stack trace", e);
     }
   }
 
+  /**
+   * Wait for the comments still being posted, at most until the deadline: comments still posted after it are interrupted.
+   */
+  private static void awaitPosting(ExecutorService postingExecutor, Deadline deadline) {
+    try {
+      if (!postingExecutor.awaitTermination(deadline.remainingMillis(), TimeUnit.MILLISECONDS)) {
+        LOGGER.warn("Stash time budget of {} ms exhausted: comments still being posted are interrupted", deadline.getBudgetMillis());
+        postingExecutor.shutdownNow();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      LOGGER.error("Interrupted while waiting for Stash comments to be posted");
+      postingExecutor.shutdownNow();
+    }
+  }
+
+  /**
+   * Wait for all the Stash tasks still being created: the post job must not end before them.
+   */
+  private static void waitForTasks(List<Future<Void>> pendingTasks) {
+    List<Future<Void>> tasks;
+    synchronized (pendingTasks) {
+      tasks = new ArrayList<>(pendingTasks);
+    }
+    int failures = 0;
+    for (Future<Void> pendingTask : tasks) {
+      try {
+        pendingTask.get();
+      } catch (ExecutionException e) {
+        failures++;
+        LOGGER.error("Unable to create Stash task: {}", e.getCause().getMessage());
+        LOGGER.debug("Exception stack trace", e.getCause());
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        LOGGER.error("Interrupted while waiting for Stash tasks to be created");
+        return;
+      }
+    }
+    if (!tasks.isEmpty()) {
+      LOGGER.info("{} Stash tasks have been created for SonarQube issues ({} failed).", tasks.size() - failures, failures);
+    }
+  }
+
+  /**
+   * Comment being posted in background.
+   */
+  private static class PendingComment {
+
+    private final PlannedComment comment;
+    private final Future<Boolean> posted;
+
+    PendingComment(PlannedComment comment, Future<Boolean> posted) {
+      this.comment = comment;
+      this.posted = posted;
+    }
+
+    /**
+     * Wait for the comment to be posted, and record the result in the plan.
+     * @return 1 if the comment could not be created, 0 otherwise
+     */
+    int complete(PostingPlan plan, List<PlannedComment> failedComments) {
+      boolean success;
+      try {
+        success = posted.get();
+      } catch (ExecutionException e) {
+        LOGGER.debug("Exception stack trace", e.getCause());
+        success = false;
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        success = false;
+      }
+
+      if (success) {
+        plan.markPosted(comment);
+        return 0;
+      }
+      failedComments.add(comment);
+      return 1;
+    }
+  }
+
+  /**
+   * Post the comments of a plan, concurrently within the posting concurrency: a failure is reported for the comment only.
+   */
+  private static class CommentPosting {
+
+    private final String project;
+    private final String repository;
+    private final String pullRequestId;
+    private final PostingJournal journal;
+    private final ExecutorService taskExecutor;
+    private final List<Future<Void>> pendingTasks;
+    private final StashClient stashClient;
+    private final LoadSheddingPolicy loadShedding;
+    private final Set<PlannedComment> tried = Collections.synchronizedSet(Collections.newSetFromMap(new IdentityHashMap<PlannedComment, Boolean>()));
+
+    CommentPosting(String project, String repository, String pullRequestId, PostingJournal journal, ExecutorService taskExecutor, List<Future<Void>> pendingTasks,
+      StashClient stashClient, LoadSheddingPolicy loadShedding) {
+      this.project = project;
+      this.repository = repository;
+      this.pullRequestId = pullRequestId;
+      this.journal = journal;
+      this.taskExecutor = taskExecutor;
+      this.pendingTasks = pendingTasks;
+      this.stashClient = stashClient;
+      this.loadShedding = loadShedding;
+    }
+
+    Callable<Boolean> postLater(final PlannedComment comment) {
+      return new Callable<Boolean>() {
+        @Override
+        public Boolean call() {
+          return post(comment);
+        }
+      };
+    }
+
+    /**
+     * Create the comment, and record how long it took for load shedding.
+     * @return false if the comment could not be created
+     */
+    boolean post(PlannedComment comment) {
+      long start = System.nanoTime();
+      boolean posted = createWithRetries(comment);
+      loadShedding.record(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), !posted);
+      return posted;
+    }
+
+    /**
+     * Create the comment, retried according to the retry policy of the client.
+     * @return false if the comment could not be created
+     */
+    private boolean createWithRetries(PlannedComment comment) {
+      RetryPolicy retryPolicy = stashClient.getRetryPolicy();
+      Long commentId;
+      for (int retried = 0;; retried++) {
+        try {
+          commentId = create(comment);
+          break;
+        } catch (StashClientException e) {
+          if (!e.isRetryable() || !retryPolicy.canRetry(retried)) {
+            LOGGER.warn("Unable to create Stash comment for SonarQube issue \"{}\": {}", comment.getAnchor().getRule(), e.getMessage());
+            LOGGER.debug("Exception stack trace", e);
+            return false;
+          }
+          LOGGER.debug("Unable to create Stash comment for SonarQube issue \"{}\": {}. Retry #{}", comment.getAnchor().getRule(), e.getMessage(), retried + 1);
+          try {
+            backoff(stashClient, retried);
+          } catch (StashClientException interruptedOrExpired) {
+            return false;
+          }
+        }
+      }
+      LOGGER.debug("Stash comment \"{}\" has been created ({}) on file \"{}\" at line {} with id {}", comment.getAnchor().getRule(), comment.getType(),
+        comment.getPath(), comment.getLine(), commentId);
+      if (journal != null) {
+        journal.commentPosted(comment, commentId);
+      }
+
+      if (commentId != null && comment.getTaskMessage() != null) {
+        pendingTasks.add(taskExecutor.submit(new TaskCreation(stashClient, comment.getTaskMessage(), commentId)));
+      }
+      return true;
+    }
+
+    /**
+     * A failed creation may have been processed by Stash anyway (e.g. on timeout): once a comment has been tried,
+     * it is looked up on the pull-request before being created again, so that it is never created twice.
+     */
+    private Long create(PlannedComment comment) throws StashClientException {
+      if (!tried.add(comment)) {
+        StashComment existing = stashClient.getPullRequestComments(project, repository, pullRequestId, comment.getPath())
+          .find(comment.getMessage(), comment.getPath(), comment.getLine());
+        if (existing != null) {
+          return existing.getId();
+        }
+      }
+      return stashClient.postCommentLineOnPullRequest(
+        project,
+        repository,
+        pullRequestId,
+        comment.getMessage(),
+        comment.getPath(),
+        comment.getLine(),
+        comment.getType()
+        );
+    }
+  }
+
+  private static class TaskCreation implements Callable<Void> {
+
+    private final StashClient stashClient;
+    private final String message;
+    private final Long commentId;
+
+    TaskCreation(StashClient stashClient, String message, Long commentId) {
+      this.stashClient = stashClient;
+      this.message = message;
+      this.commentId = commentId;
+    }
+
+    @Override
+    public Void call() throws StashClientException {
+      stashClient.postTaskOnComment(message, commentId);
+      return null;
+    }
+  }
+
   public StashCredentials getCredentials() {
-    return new StashCredentials(config.getStashLogin(), config.getStashPassword());
+    return new StashCredentials(config.getStashLogin(), config.getStashPassword(), config.getStashToken());
   }
 
   /**
@@ -204,6 +992,22 @@ public class StashRequestFacade implements BatchComponent {
     }
     return result;
   }
+  /**
+   * Pull-requests to report, from the comma-separated list of Ids.
+   */
+  public List<String> getStashPullRequestIds() throws StashConfigurationException {
+    Set<String> result = new LinkedHashSet<>();
+    for (String pullRequestId : StringUtils.split(getStashPullRequestId(), ',')) {
+      if (StringUtils.isNotBlank(pullRequestId)) {
+        result.add(pullRequestId.trim());
+      }
+    }
+    if (result.isEmpty()) {
+      throw new StashConfigurationException("Unable to get " + StashPlugin.STASH_PULL_REQUEST_ID + ": no pull-request Id");
+    }
+    return new ArrayList<>(result);
+  }
+
 
   /**
    * To optimize requests to Stash, group Stash comments by SonarQube file path.
@@ -225,6 +1029,43 @@ public class StashRequestFacade implements BatchComponent {
     return commentsBySonarQubeFilePath;
   }
 
+  /**
+   * Group the issues which can be displayed in the Stash diff view by file, or by diff hunk.
+   * Issues of a group are sorted by line: the first one is the anchor of the group comment.
+   */
+  private static Map<String, List<SonarQubeIssue>> groupIssues(SonarQubeIssuesReport issuesReport, StashDiffReport diffReport, int commentSeverities, String aggregation,
+    PostingPlan plan) {
+    Map<String, List<SonarQubeIssue>> result = new LinkedHashMap<>();
+    for (SonarQubeIssue issue : issuesReport.getIssues()) {
+      if (!issue.hasSeverityIn(commentSeverities)) {
+        plan.skipBelowSeverityThreshold(issue);
+        continue;
+      }
+      String issueStashFilePath = diffReport.getPath(issue.getPath());
+      if (diffReport.getType(issueStashFilePath, issue.getLine()) == null) {
+        LOGGER.debug("SonarQube issue \"{}\" is not grouped because it does not belong to diff view \"{}\", line {})", issue.getRule(), issue.getPath(), issue.getLine());
+        plan.skipOutOfDiff(issue);
+        continue;
+      }
+
+      String key = issueStashFilePath;
+      if (StashPlugin.COMMENT_AGGREGATION_HUNK.equals(aggregation)) {
+        key += "#" + diffReport.getHunk(issueStashFilePath, issue.getLine());
+      }
+      List<SonarQubeIssue> issues = result.get(key);
+      if (issues == null) {
+        issues = new ArrayList<>();
+        result.put(key, issues);
+      }
+      issues.add(issue);
+    }
+
+    for (List<SonarQubeIssue> issues : result.values()) {
+      Collections.sort(issues, ISSUE_LINE_ORDER);
+    }
+    return result;
+  }
+
   public List<String> getPossibleSeverities(String threshold)
   {
     List<String> possibleSeverities = new ArrayList<>();
@@ -239,4 +1080,16 @@ public class StashRequestFacade implements BatchComponent {
     }
     return possibleSeverities;
   }
+
+  /**
+   * Bitmask of the {@link Severity#ALL} indexes with the same or higher severity than the threshold.
+   * An unknown threshold matches no severity, like {@link #getPossibleSeverities(String)}.
+   */
+  public int getSeverityMask(String threshold) {
+    int mask = 0;
+    for (String severity : getPossibleSeverities(threshold)) {
+      mask |= 1 << Severity.ALL.indexOf(severity);
+    }
+    return mask;
+  }
 }
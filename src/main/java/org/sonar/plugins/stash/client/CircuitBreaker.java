@@ -0,0 +1,129 @@
+package org.sonar.plugins.stash.client;
+
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Stop sending requests to Stash once it looks unhealthy, instead of waiting for each request to time out.
+ *
+ * The circuit opens after a run of consecutive failed or slow requests: requests are then rejected right away.
+ * When the open duration has elapsed, a single trial request is let through: the circuit closes if it succeeds,
+ * and opens again otherwise.
+ *
+ * Each request let through carries a {@link Permit}: the outcome of a request sent before the circuit opened
+ * is ignored, and only the trial request closes the circuit.
+ */
+public class CircuitBreaker {
+
+  /**
+   * Request let through by the circuit breaker, whose outcome has to be recorded.
+   */
+  public static final class Permit {
+    private final int generation;
+    private final boolean trial;
+
+    private Permit(int generation, boolean trial) {
+      this.generation = generation;
+      this.trial = trial;
+    }
+  }
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(CircuitBreaker.class);
+
+  private final int failureThreshold;
+  private final long slowCallMillis;
+  private final long openNanos;
+
+  private int consecutiveFailures;
+  private boolean open;
+  private boolean trialInFlight;
+  private boolean degradationLogged;
+  private long openedAt;
+  private int rejected;
+  // incremented each time the circuit opens
+  private int generation;
+
+  /**
+   * @param failureThreshold consecutive failed or slow requests opening the circuit, never opened if 0
+   * @param slowCallMillis duration from which a successful request counts as a failure, no slow request if 0
+   * @param openMillis time during which requests are rejected before a trial request is sent
+   */
+  public CircuitBreaker(int failureThreshold, long slowCallMillis, long openMillis) {
+    this.failureThreshold = Math.max(0, failureThreshold);
+    this.slowCallMillis = Math.max(0, slowCallMillis);
+    this.openNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, openMillis));
+  }
+
+  public static CircuitBreaker disabled() {
+    return new CircuitBreaker(0, 0, 0);
+  }
+
+  /**
+   * @return null if the request must not be sent: the circuit is open, or a trial request is pending
+   */
+  public synchronized Permit allowRequest() {
+    if (!open) {
+      return new Permit(generation, false);
+    }
+    if (!trialInFlight && System.nanoTime() - openedAt >= openNanos) {
+      trialInFlight = true;
+      return new Permit(generation, true);
+    }
+    rejected++;
+    return null;
+  }
+
+  /**
+   * Record the outcome of a request let through by {@link #allowRequest()}.
+   * @param failed true if Stash did not answer or answered with a server error
+   */
+  public synchronized void record(Permit permit, boolean failed, long durationMillis) {
+    if (permit.generation != generation) {
+      // sent before the circuit opened: the circuit is only resolved by its trial request
+      return;
+    }
+    boolean slow = slowCallMillis > 0 && durationMillis >= slowCallMillis;
+    if (failed || slow) {
+      consecutiveFailures++;
+      if (permit.trial || (!open && failureThreshold > 0 && consecutiveFailures >= failureThreshold)) {
+        trip();
+      }
+    } else {
+      consecutiveFailures = 0;
+      if (permit.trial) {
+        LOGGER.info("Stash is responding again: requests are sent again");
+        open = false;
+      }
+    }
+    if (permit.trial) {
+      trialInFlight = false;
+    }
+  }
+
+  private void trip() {
+    if (!degradationLogged) {
+      LOGGER.error("Stash looks unhealthy: {} consecutive requests failed or were too slow. Requests to Stash are rejected for {} ms.", consecutiveFailures,
+        TimeUnit.NANOSECONDS.toMillis(openNanos));
+      degradationLogged = true;
+    } else {
+      LOGGER.debug("Stash trial request failed: requests to Stash are rejected again");
+    }
+    open = true;
+    openedAt = System.nanoTime();
+    generation++;
+  }
+
+  public synchronized boolean isOpen() {
+    return open;
+  }
+
+  /**
+   * Number of requests rejected while the circuit was open.
+   */
+  public synchronized int countRejected() {
+    return rejected;
+  }
+
+}
@@ -0,0 +1,113 @@
+package org.sonar.plugins.stash.client;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Number of comment and task creations in flight, adapted to the health of Stash (additive increase, multiplicative decrease).
+ *
+ * The limit grows by one per round of successful requests while their latency is stable, and is halved when Stash
+ * throttles (429), fails (5xx, timeout) or answers much slower than usual. It always stays within the configured bounds.
+ */
+public class ConcurrencyLimiter {
+
+  static final double DECREASE_RATIO = 0.5;
+  static final double LATENCY_SPIKE_RATIO = 2;
+  static final double BASELINE_WEIGHT = 0.1;
+
+  private final int minConcurrency;
+  private final int maxConcurrency;
+
+  private double limit;
+  private int inFlight;
+  private double baselineLatency;
+  private long lastDecrease;
+
+  /**
+   * @param minConcurrency initial and minimum number of requests in flight
+   * @param maxConcurrency maximum number of requests in flight
+   */
+  public ConcurrencyLimiter(int minConcurrency, int maxConcurrency) {
+    this.minConcurrency = Math.max(1, minConcurrency);
+    this.maxConcurrency = Math.max(this.minConcurrency, maxConcurrency);
+    this.limit = this.minConcurrency;
+    this.lastDecrease = System.nanoTime() - TimeUnit.HOURS.toNanos(1);
+  }
+
+  /**
+   * One request at a time.
+   */
+  public static ConcurrencyLimiter sequential() {
+    return new ConcurrencyLimiter(1, 1);
+  }
+
+  /**
+   * Wait until the request may be sent within the current limit.
+   */
+  public synchronized void acquire() throws InterruptedException {
+    acquire(Long.MAX_VALUE);
+  }
+
+  /**
+   * Wait until the request may be sent within the current limit, at most the given time.
+   * @return false if the request could not be sent in time: it must not be released
+   */
+  public synchronized boolean acquire(long timeoutMillis) throws InterruptedException {
+    long timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+    long start = System.nanoTime();
+    while (inFlight >= (int) limit) {
+      long remaining = TimeUnit.NANOSECONDS.toMillis(timeoutNanos - (System.nanoTime() - start));
+      if (remaining <= 0) {
+        return false;
+      }
+      wait(remaining);
+    }
+    inFlight++;
+    return true;
+  }
+
+  /**
+   * Give back the permit of a request which has not been sent: the limit is left as it is.
+   */
+  public synchronized void cancel() {
+    inFlight--;
+    notifyAll();
+  }
+
+  /**
+   * Record the outcome of a request sent after {@link #acquire()}.
+   * @param congested true if Stash throttled the request, failed to process it or did not answer in time
+   */
+  public synchronized void release(long latencyMillis, boolean congested) {
+    inFlight--;
+    boolean spike = baselineLatency > 0 && latencyMillis > LATENCY_SPIKE_RATIO * baselineLatency;
+    if (!congested) {
+      // a lasting slowdown becomes the new baseline
+      baselineLatency = (baselineLatency == 0) ? latencyMillis : baselineLatency + BASELINE_WEIGHT * (latencyMillis - baselineLatency);
+    }
+
+    if (congested || spike) {
+      // requests sent at the same time fail together: the limit is cut once for all of them
+      long now = System.nanoTime();
+      if (now - lastDecrease > TimeUnit.MILLISECONDS.toNanos((long) baselineLatency)) {
+        limit = Math.max(minConcurrency, limit * DECREASE_RATIO);
+        lastDecrease = now;
+      }
+    } else {
+      limit = Math.min(maxConcurrency, limit + 1 / limit);
+    }
+    notifyAll();
+  }
+
+  public synchronized int getLimit() {
+    return (int) limit;
+  }
+
+  public int getMinConcurrency() {
+    return minConcurrency;
+  }
+
+  public int getMaxConcurrency() {
+    return maxConcurrency;
+  }
+
+}
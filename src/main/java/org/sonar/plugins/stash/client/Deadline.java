@@ -0,0 +1,55 @@
+package org.sonar.plugins.stash.client;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Wall-clock time budget shared by all the requests of a run: requests are not sent anymore once it is exhausted,
+ * and the timeout of each request is shortened to the remaining time.
+ */
+public class Deadline {
+
+  private final long budgetMillis;
+  private final long expiresAt;
+
+  /**
+   * @param budgetMillis time budget, starting now; no deadline if zero or negative
+   */
+  public Deadline(long budgetMillis) {
+    this.budgetMillis = budgetMillis;
+    this.expiresAt = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(Math.max(0, budgetMillis));
+  }
+
+  public static Deadline none() {
+    return new Deadline(0);
+  }
+
+  public boolean isBounded() {
+    return budgetMillis > 0;
+  }
+
+  /**
+   * @return remaining time in ms (0 once expired), Long.MAX_VALUE if there is no deadline
+   */
+  public long remainingMillis() {
+    if (!isBounded()) {
+      return Long.MAX_VALUE;
+    }
+    return Math.max(0, TimeUnit.NANOSECONDS.toMillis(expiresAt - System.nanoTime()));
+  }
+
+  public boolean isExpired() {
+    return remainingMillis() == 0;
+  }
+
+  /**
+   * @return the given timeout, shortened to the remaining time
+   */
+  public long cap(long timeoutMillis) {
+    return Math.min(timeoutMillis, remainingMillis());
+  }
+
+  public long getBudgetMillis() {
+    return budgetMillis;
+  }
+
+}
@@ -0,0 +1,69 @@
+package org.sonar.plugins.stash.client;
+
+/**
+ * When to send a second identical GET request, if the first one is slower than most of the previous ones.
+ *
+ * The hedge delay is a percentile of the latencies observed on the last {@link #WINDOW} GET requests:
+ * no request is hedged until {@link #MIN_SAMPLES} latencies are known. The extra load is limited by the hedge budget,
+ * a percentage of the GET requests sent.
+ */
+public class HedgingPolicy {
+
+  static final int WINDOW = 100;
+  static final int MIN_SAMPLES = 20;
+
+  private final double percentile;
+  private final double budget;
+
+  private final LatencyWindow latencies = new LatencyWindow(WINDOW);
+  private int requests;
+  private int hedges;
+
+  /**
+   * @param percentile latency percentile after which a request is hedged, e.g. 95; never hedged if zero or negative
+   * @param budgetPercent maximum number of hedged requests, in percent of the GET requests
+   */
+  public HedgingPolicy(double percentile, double budgetPercent) {
+    this.percentile = Math.min(100, percentile);
+    this.budget = Math.max(0, budgetPercent) / 100;
+  }
+
+  public static HedgingPolicy disabled() {
+    return new HedgingPolicy(0, 0);
+  }
+
+  /**
+   * Count a GET request about to be sent.
+   * @return delay after which the request may be hedged (in ms), -1 if it must not be hedged
+   */
+  public synchronized long getHedgeDelay() {
+    requests++;
+    if (percentile <= 0 || latencies.size() < MIN_SAMPLES) {
+      return -1;
+    }
+    return latencies.percentile(percentile);
+  }
+
+  /**
+   * @return true if a hedged request may be sent within the hedge budget
+   */
+  public synchronized boolean tryHedge() {
+    if (hedges + 1 > requests * budget) {
+      return false;
+    }
+    hedges++;
+    return true;
+  }
+
+  public synchronized void recordLatency(long latencyMillis) {
+    latencies.record(latencyMillis);
+  }
+
+  /**
+   * Number of hedged requests sent with this policy.
+   */
+  public synchronized int countHedges() {
+    return hedges;
+  }
+
+}
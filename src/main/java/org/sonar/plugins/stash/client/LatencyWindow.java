@@ -0,0 +1,42 @@
+package org.sonar.plugins.stash.client;
+
+import java.util.Arrays;
+
+/**
+ * Latencies of the last requests, oldest ones forgotten first. Not thread-safe: callers synchronize.
+ */
+class LatencyWindow {
+
+  private final long[] latencies;
+  private int samples;
+  private int next;
+
+  LatencyWindow(int size) {
+    this.latencies = new long[size];
+  }
+
+  void record(long latencyMillis) {
+    latencies[next] = latencyMillis;
+    next = (next + 1) % latencies.length;
+    samples = Math.min(samples + 1, latencies.length);
+  }
+
+  int size() {
+    return samples;
+  }
+
+  /**
+   * @param percentile between 0 (excluded) and 100
+   * @return the smallest latency greater than or equal to the given percentage of the latencies, 0 if none
+   */
+  long percentile(double percentile) {
+    if (samples == 0) {
+      return 0;
+    }
+    long[] sorted = Arrays.copyOf(latencies, samples);
+    Arrays.sort(sorted);
+    int index = (int) Math.ceil(percentile / 100 * samples) - 1;
+    return sorted[Math.max(0, Math.min(samples - 1, index))];
+  }
+
+}
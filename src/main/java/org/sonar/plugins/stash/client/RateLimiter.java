@@ -0,0 +1,136 @@
+package org.sonar.plugins.stash.client;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Token bucket shared by all the requests of a {@link StashClient}: requests are sent at a sustained rate,
+ * with bursts up to the bucket size.
+ *
+ * Stash may also ask to slow down (429 or 503 with Retry-After): the whole bucket is then paused,
+ * so that no request of the pipeline is sent before the delay has elapsed.
+ */
+public class RateLimiter {
+
+  private static final long NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+
+  private final double permitsPerNano;
+  private final double burst;
+
+  private double tokens;
+  private long lastRefill;
+  private long pausedUntil;
+
+  /**
+   * @param permitsPerSecond sustained rate, no limit if zero or negative
+   * @param burst maximum number of requests sent at once after an idle period
+   */
+  public RateLimiter(double permitsPerSecond, int burst) {
+    this.permitsPerNano = permitsPerSecond / NANOS_PER_SECOND;
+    this.burst = Math.max(1, burst);
+    this.tokens = this.burst;
+    this.lastRefill = System.nanoTime();
+    this.pausedUntil = lastRefill;
+  }
+
+  public static RateLimiter unlimited() {
+    return new RateLimiter(0, 1);
+  }
+
+  /**
+   * Wait for the next request to be allowed.
+   */
+  public void acquire() throws InterruptedException {
+    acquire(Long.MAX_VALUE);
+  }
+
+  /**
+   * Wait for the next request to be allowed, at most the given time.
+   * @return false, without taking the permit, if the request would have to wait longer
+   */
+  public boolean acquire(long timeoutMillis) throws InterruptedException {
+    long timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+    long start = System.nanoTime();
+    long waitNanos = reserve();
+    while (waitNanos > 0) {
+      if (waitNanos > timeoutNanos - (System.nanoTime() - start)) {
+        cancel();
+        return false;
+      }
+      TimeUnit.NANOSECONDS.sleep(waitNanos);
+      // the bucket may have been paused while waiting
+      waitNanos = remainingPause();
+    }
+    return true;
+  }
+
+  private synchronized long reserve() {
+    long now = System.nanoTime();
+    long pause = Math.max(0, pausedUntil - now);
+    if (permitsPerNano <= 0) {
+      return pause;
+    }
+
+    tokens = Math.min(burst, tokens + (now - lastRefill) * permitsPerNano);
+    lastRefill = now;
+    // the token is reserved right now: tokens may be negative, the debt is paid by waiting
+    tokens--;
+    long debt = (tokens < 0) ? (long) Math.ceil(-tokens / permitsPerNano) : 0;
+    return Math.max(pause, debt);
+  }
+
+  /**
+   * Take a permit only if a request is allowed right now.
+   * @return false if the request would have to wait
+   */
+  public synchronized boolean tryAcquire() {
+    long now = System.nanoTime();
+    if (pausedUntil - now > 0) {
+      return false;
+    }
+    if (permitsPerNano <= 0) {
+      return true;
+    }
+
+    tokens = Math.min(burst, tokens + (now - lastRefill) * permitsPerNano);
+    lastRefill = now;
+    if (tokens < 1) {
+      return false;
+    }
+    tokens--;
+    return true;
+  }
+
+  /**
+   * Give back a reserved permit: the request is not sent.
+   */
+  private synchronized void cancel() {
+    if (permitsPerNano > 0) {
+      tokens = Math.min(burst, tokens + 1);
+    }
+  }
+
+  private synchronized long remainingPause() {
+    return Math.max(0, pausedUntil - System.nanoTime());
+  }
+
+  /**
+   * Hold every request until the delay has elapsed, at most until the deadline: no request is sent after it anyway.
+   * @return false if the delay outlasts the deadline: the request cannot be sent again in time
+   */
+  public boolean pause(long delayMillis, Deadline deadline) {
+    long remaining = deadline.remainingMillis();
+    pause(Math.min(delayMillis, remaining));
+    return delayMillis < remaining;
+  }
+
+  /**
+   * Hold every request until the delay has elapsed. A shorter pause than the current one has no effect.
+   */
+  public synchronized void pause(long delayMillis) {
+    long until = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delayMillis);
+    if (until - pausedUntil > 0) {
+      pausedUntil = until;
+    }
+  }
+
+}
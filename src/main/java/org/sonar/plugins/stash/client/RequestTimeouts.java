@@ -0,0 +1,101 @@
+package org.sonar.plugins.stash.client;
+
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * Timeouts of the requests sent to Stash: connection timeout, and response timeout per endpoint.
+ *
+ * When adaptive, the response timeout of an endpoint is learnt from its last {@link #WINDOW} latencies:
+ * {@link #MARGIN} times their {@link #PERCENTILE}th percentile, bounded by the minimum and maximum timeouts.
+ * Until {@link #MIN_SAMPLES} latencies are known, and after a request of the endpoint timed out, the maximum timeout is used.
+ */
+public class RequestTimeouts {
+
+  static final int WINDOW = 100;
+  static final int MIN_SAMPLES = 10;
+  static final double PERCENTILE = 99;
+  static final int MARGIN = 2;
+
+  static final int DEFAULT_CONNECT_TIMEOUT = 5000;
+
+  /**
+   * Endpoints whose latencies are tracked separately: a diff may be several MB, a task a few bytes.
+   */
+  public enum Endpoint {
+    DIFF,
+    COMMENTS,
+    COMMENT_POST,
+    TASK_POST,
+    OTHER
+  }
+
+  private final int connectTimeout;
+  private final int minTimeout;
+  private final int maxTimeout;
+
+  private final Map<Endpoint, LatencyWindow> latencies = new EnumMap<>(Endpoint.class);
+  private final Map<Endpoint, Boolean> timedOut = new EnumMap<>(Endpoint.class);
+
+  /**
+   * @param connectTimeout time to establish the connection (in ms), the HTTP client default if zero or negative
+   * @param minTimeout lower bound of the response timeout (in ms); the timeout is not adaptive if zero or negative
+   * @param maxTimeout response timeout (in ms) when not adaptive, upper bound otherwise
+   */
+  public RequestTimeouts(int connectTimeout, int minTimeout, int maxTimeout) {
+    this.connectTimeout = (connectTimeout > 0) ? connectTimeout : DEFAULT_CONNECT_TIMEOUT;
+    this.minTimeout = Math.min(minTimeout, maxTimeout);
+    this.maxTimeout = maxTimeout;
+    for (Endpoint endpoint : Endpoint.values()) {
+      latencies.put(endpoint, new LatencyWindow(WINDOW));
+      timedOut.put(endpoint, Boolean.FALSE);
+    }
+  }
+
+  /**
+   * Same response timeout for every request.
+   */
+  public static RequestTimeouts fixed(int timeout) {
+    return new RequestTimeouts(Math.min(DEFAULT_CONNECT_TIMEOUT, timeout), 0, timeout);
+  }
+
+  public boolean isAdaptive() {
+    return minTimeout > 0;
+  }
+
+  public int getConnectTimeout() {
+    return connectTimeout;
+  }
+
+  /**
+   * Maximum response timeout, whatever the endpoint.
+   */
+  public int getMaxTimeout() {
+    return maxTimeout;
+  }
+
+  /**
+   * @return response timeout of the next request to the endpoint (in ms)
+   */
+  public synchronized int getTimeout(Endpoint endpoint) {
+    LatencyWindow window = latencies.get(endpoint);
+    if (!isAdaptive() || window.size() < MIN_SAMPLES || timedOut.get(endpoint)) {
+      return maxTimeout;
+    }
+    long timeout = MARGIN * window.percentile(PERCENTILE);
+    return (int) Math.max(minTimeout, Math.min(maxTimeout, timeout));
+  }
+
+  public synchronized void recordLatency(Endpoint endpoint, long latencyMillis) {
+    latencies.get(endpoint).record(latencyMillis);
+    timedOut.put(endpoint, Boolean.FALSE);
+  }
+
+  /**
+   * The learnt timeout may have been too short: the maximum timeout is used until a request of the endpoint succeeds.
+   */
+  public synchronized void recordTimeout(Endpoint endpoint) {
+    timedOut.put(endpoint, Boolean.TRUE);
+  }
+
+}
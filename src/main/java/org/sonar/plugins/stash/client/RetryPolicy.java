@@ -0,0 +1,74 @@
+package org.sonar.plugins.stash.client;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Number of retries of a failed request, and delay between them: exponential backoff with full jitter,
+ * so that the builds failing at the same time do not retry all at once.
+ *
+ * Only retryable failures are retried, see {@link org.sonar.plugins.stash.exceptions.StashClientException#isRetryable()}.
+ */
+public class RetryPolicy {
+
+  static final long MAX_DELAY_MILLIS = 30000;
+
+  private final int maxRetries;
+  private final long baseDelayMillis;
+  private final Random random = new Random();
+  private final AtomicInteger retries = new AtomicInteger();
+
+  /**
+   * @param maxRetries retries of a same request, no retry if 0
+   * @param baseDelayMillis maximum delay before the first retry, doubled on each retry
+   */
+  public RetryPolicy(int maxRetries, long baseDelayMillis) {
+    this.maxRetries = Math.max(0, maxRetries);
+    this.baseDelayMillis = Math.max(0, baseDelayMillis);
+  }
+
+  public static RetryPolicy none() {
+    return new RetryPolicy(0, 0);
+  }
+
+  /**
+   * @param retried number of times the request has already been retried
+   */
+  public boolean canRetry(int retried) {
+    return retried < maxRetries;
+  }
+
+  /**
+   * Wait before a retry: a random delay up to base delay * 2^retried.
+   */
+  public void backoff(int retried) throws InterruptedException {
+    backoff(retried, Deadline.none());
+  }
+
+  /**
+   * Wait before a retry, at most until the deadline.
+   * @return false if the time budget is exhausted: the request must not be sent again
+   */
+  public boolean backoff(int retried, Deadline deadline) throws InterruptedException {
+    if (deadline.isExpired()) {
+      return false;
+    }
+    retries.incrementAndGet();
+    long ceiling = Math.min(MAX_DELAY_MILLIS, baseDelayMillis << Math.min(retried, 16));
+    long delay;
+    synchronized (random) {
+      delay = (ceiling == 0) ? 0 : (long) (random.nextDouble() * ceiling);
+    }
+    TimeUnit.MILLISECONDS.sleep(deadline.cap(delay));
+    return !deadline.isExpired();
+  }
+
+  /**
+   * Number of retries done with this policy, all requests together.
+   */
+  public int countRetries() {
+    return retries.get();
+  }
+
+}
@@ -0,0 +1,130 @@
+package org.sonar.plugins.stash.client;
+
+import org.sonar.plugins.stash.exceptions.StashClientException;
+
+import java.text.MessageFormat;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Identical calls in flight at the same time, whatever the thread, share the execution of the first one and its result.
+ *
+ * A call is forgotten as soon as it completes: nothing is cached, a later identical call is executed again.
+ * A caller waits for the call of another one only until its own deadline: the other caller may belong to another client,
+ * with another time budget and other timeouts.
+ */
+class SingleFlight {
+
+  private static final String TIME_BUDGET_ERROR_MESSAGE = "Identical request in flight not completed within the time budget of {0} ms.";
+
+  /**
+   * Call whose result may be shared by all the callers with the same key.
+   */
+  abstract static class Call<T> {
+
+    abstract T call() throws StashClientException;
+
+    /**
+     * Result given to a caller which has shared the call of another one. A mutable result must be copied,
+     * so that each caller gets its own: the leader keeps the original.
+     */
+    T share(T result) {
+      return result;
+    }
+  }
+
+  private static class Flight {
+    private final CountDownLatch done = new CountDownLatch(1);
+    private int callers = 1;
+    private Object result;
+    private StashClientException error;
+    private RuntimeException failure;
+  }
+
+  private final Map<Object, Flight> flights = new HashMap<>();
+  private int sharedCalls;
+
+  /**
+   * Execute the call, or wait for the identical call in flight.
+   * @param key identifies identical calls: it must include everything the result depends on
+   */
+  <T> T execute(Object key, Call<T> call) throws StashClientException {
+    return execute(key, Deadline.none(), call);
+  }
+
+  /**
+   * Execute the call, or wait for the identical call in flight until the deadline.
+   * @param key identifies identical calls: it must include everything the result depends on
+   * @throws StashClientException if the deadline expires while waiting for the call in flight
+   */
+  @SuppressWarnings("unchecked")
+  <T> T execute(Object key, Deadline deadline, Call<T> call) throws StashClientException {
+    Flight flight;
+    boolean leader;
+    synchronized (this) {
+      flight = flights.get(key);
+      leader = flight == null;
+      if (leader) {
+        flight = new Flight();
+        flights.put(key, flight);
+      } else {
+        flight.callers++;
+        sharedCalls++;
+      }
+    }
+
+    if (leader) {
+      try {
+        flight.result = call.call();
+      } catch (StashClientException e) {
+        flight.error = e;
+      } catch (RuntimeException e) {
+        flight.failure = e;
+      } finally {
+        // callers coming from now on send their own request
+        synchronized (this) {
+          flights.remove(key);
+        }
+        flight.done.countDown();
+      }
+    } else {
+      try {
+        if (!flight.done.await(deadline.remainingMillis(), TimeUnit.MILLISECONDS)) {
+          synchronized (this) {
+            flight.callers--;
+          }
+          throw new StashClientException(MessageFormat.format(TIME_BUDGET_ERROR_MESSAGE, String.valueOf(deadline.getBudgetMillis())));
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new StashClientException(e);
+      }
+    }
+
+    if (flight.error != null) {
+      throw flight.error;
+    }
+    if (flight.failure != null) {
+      throw flight.failure;
+    }
+    return leader ? (T) flight.result : call.share((T) flight.result);
+  }
+
+  /**
+   * Number of callers of the call in flight with this key, 0 if there is none.
+   */
+  synchronized int countCallers(Object key) {
+    Flight flight = flights.get(key);
+    return (flight == null) ? 0 : flight.callers;
+  }
+
+  /**
+   * Number of calls which have not been executed because an identical one was in flight.
+   */
+  synchronized int countSharedCalls() {
+    return sharedCalls;
+  }
+
+}
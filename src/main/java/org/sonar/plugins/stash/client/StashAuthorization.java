@@ -0,0 +1,129 @@
+package org.sonar.plugins.stash.client;
+
+import com.ning.http.client.AsyncHttpClient.BoundRequestBuilder;
+import com.ning.http.client.FluentCaseInsensitiveStringsMap;
+import com.ning.http.client.Response;
+import com.ning.http.client.cookie.Cookie;
+import com.ning.http.util.Base64;
+import org.apache.commons.lang3.StringUtils;
+
+import java.net.HttpURLConnection;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Authorization of the requests sent to Stash, computed once per client.
+ *
+ * With a personal access token, every request carries it as a bearer token. Otherwise the credentials are sent
+ * with BASIC authentication: each request then costs Stash a lookup in its user directory (e.g. an LDAP bind).
+ * When the session is reused, the session cookie set by Stash on the first response is sent instead of the credentials,
+ * until Stash rejects it.
+ */
+public class StashAuthorization {
+
+  static final String AUTHORIZATION_HEADER = "Authorization";
+  static final String COOKIE_HEADER = "Cookie";
+
+  /**
+   * Session cookies of Bitbucket Server and of the older Stash versions.
+   */
+  static final List<String> SESSION_COOKIES = Arrays.asList("BITBUCKETSESSIONID", "JSESSIONID");
+
+  private final String authorization;
+  private final String identity;
+  private final boolean reuseSession;
+
+  private String session;
+
+  /**
+   * @param reuseSession true to authenticate with the session cookie once Stash has set it, ignored with a token
+   */
+  public StashAuthorization(StashCredentials credentials, boolean reuseSession) {
+    if (StringUtils.isNotEmpty(credentials.getToken())) {
+      this.authorization = "Bearer " + credentials.getToken();
+      this.reuseSession = false;
+    } else {
+      String userPassword = StringUtils.defaultString(credentials.getLogin()) + ":" + StringUtils.defaultString(credentials.getPassword());
+      this.authorization = "Basic " + Base64.encode(userPassword.getBytes(StandardCharsets.UTF_8));
+      this.reuseSession = reuseSession;
+    }
+    this.identity = digest(authorization);
+  }
+
+  private static String digest(String value) {
+    try {
+      StringBuilder sb = new StringBuilder();
+      for (byte b : MessageDigest.getInstance("SHA-256").digest(value.getBytes(StandardCharsets.UTF_8))) {
+        sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+      }
+      return sb.toString();
+    } catch (NoSuchAlgorithmException e) {
+      // SHA-256 is provided by every Java platform
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * Digest of the credentials: identifies the Stash user without exposing the credentials, e.g. in a map key.
+   */
+  public String getIdentity() {
+    return identity;
+  }
+
+  /**
+   * Authorize the request with the session cookie if there is one, with the credentials otherwise.
+   * The request may have been authorized before (e.g. sent again once the session is rejected): the other header is removed.
+   */
+  public synchronized void authorize(BoundRequestBuilder requestBuilder) {
+    if (session != null) {
+      removeHeader(requestBuilder, AUTHORIZATION_HEADER);
+      requestBuilder.setHeader(COOKIE_HEADER, session);
+    } else {
+      removeHeader(requestBuilder, COOKIE_HEADER);
+      requestBuilder.setHeader(AUTHORIZATION_HEADER, authorization);
+    }
+  }
+
+  private static void removeHeader(BoundRequestBuilder requestBuilder, String name) {
+    // the request builder cannot remove a header: headers are set again without it
+    FluentCaseInsensitiveStringsMap headers = requestBuilder.build().getHeaders();
+    if (headers.containsKey(name)) {
+      requestBuilder.setHeaders(new FluentCaseInsensitiveStringsMap(headers).delete(name));
+    }
+  }
+
+  /**
+   * Keep the session cookie set by Stash, if the session is reused.
+   */
+  public synchronized void sessionStarted(Response response) {
+    if (!reuseSession || session != null || response.getCookies() == null) {
+      return;
+    }
+    for (Cookie cookie : response.getCookies()) {
+      if (SESSION_COOKIES.contains(cookie.getName()) && StringUtils.isNotEmpty(cookie.getValue())) {
+        session = cookie.getName() + "=" + cookie.getValue();
+        return;
+      }
+    }
+  }
+
+  /**
+   * Drop the session if Stash did not authorize the request: it has expired or has been invalidated.
+   * @return true if the request may be sent again with the credentials
+   */
+  public synchronized boolean sessionRejected(Response response) {
+    if (session == null || response.getStatusCode() != HttpURLConnection.HTTP_UNAUTHORIZED) {
+      return false;
+    }
+    session = null;
+    return true;
+  }
+
+  public synchronized boolean hasSession() {
+    return session != null;
+  }
+
+}
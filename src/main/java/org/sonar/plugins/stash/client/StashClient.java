@@ -2,48 +2,157 @@ package org.sonar.plugins.stash.client;
 
 import com.ning.http.client.AsyncHttpClient;
 import com.ning.http.client.AsyncHttpClient.BoundRequestBuilder;
-import com.ning.http.client.Realm;
-import com.ning.http.client.Realm.AuthScheme;
+import com.ning.http.client.AsyncHttpClientConfig;
+import com.ning.http.client.ListenableFuture;
 import com.ning.http.client.Response;
 import org.apache.commons.lang3.StringUtils;
+import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
 import org.json.simple.JSONValue;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.sonar.plugins.stash.StashPlugin;
+import org.sonar.plugins.stash.client.RequestTimeouts.Endpoint;
 import org.sonar.plugins.stash.exceptions.StashClientException;
 import org.sonar.plugins.stash.exceptions.StashReportExtractionException;
+import org.sonar.plugins.stash.issue.StashComment;
 import org.sonar.plugins.stash.issue.StashCommentReport;
 import org.sonar.plugins.stash.issue.StashDiffReport;
 import org.sonar.plugins.stash.issue.collector.StashCollector;
 
+import java.io.Closeable;
 import java.io.IOException;
 import java.net.HttpURLConnection;
 import java.text.MessageFormat;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 
-public class StashClient {
+/**
+ * Client of the Stash REST API. Requests share one HTTP client, so that connections to Stash are kept alive and reused:
+ * the client has to be closed once everything has been sent.
+ */
+public class StashClient implements Closeable {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(StashClient.class);
 
   private final String baseUrl;
   private final StashCredentials credentials;
-  private final int stashTimeout;
+  private final StashAuthorization authorization;
+  private final RequestTimeouts timeouts;
+  private final RateLimiter rateLimiter;
+  private final RetryPolicy retryPolicy;
+  private final CircuitBreaker circuitBreaker;
+  private final Deadline deadline;
+  private final HedgingPolicy hedgingPolicy;
+  private final ConcurrencyLimiter postingLimiter;
+
+  private AsyncHttpClient httpClient;
+
+  public static final int INSIGHTS_MAX_ANNOTATIONS_PER_REQUEST = 1000;
 
   private static final String REST_API = "/rest/api/1.0/";
   private static final String REPO_API = "{0}projects/{1}/repos/{2}/";
   private static final String PULL_REQUESTS_API = REPO_API + "pull-requests/";
   private static final String PULL_REQUEST_API = PULL_REQUESTS_API + "{3}";
   private static final String COMMENTS_PULL_REQUEST_API = PULL_REQUEST_API + "/comments";
+  private static final String COMMENT_PULL_REQUEST_API = COMMENTS_PULL_REQUEST_API + "/{4}";
+  private static final String ACTIVITIES_PULL_REQUEST_API = PULL_REQUEST_API + "/activities";
   private static final String DIFF_PULL_REQUEST_API = PULL_REQUEST_API + "/diff";
+  private static final String DIFF_PULL_REQUEST_PAGE = "{0}/projects/{1}/repos/{2}/pull-requests/{3}/diff";
   private static final String TASKS_API = REST_API + "tasks";
 
+  private static final String INSIGHTS_API = "/rest/insights/1.0/";
+  private static final String INSIGHTS_REPORT_API = REPO_API + "commits/{3}/reports/{4}";
+  private static final String INSIGHTS_ANNOTATIONS_API = INSIGHTS_REPORT_API + "/annotations";
+
   private static final String CONNECTION_POST_ERROR_MESSAGE = "Unable to post a comment to {0} #{1}. Received {2} with message {3}.";
   private static final String CONNECTION_POST_TASK_ERROR_MESSAGE = "Unable to post a task to commentId #{0}. Received {1} with message {2}.";
   private static final String CONNECTION_GET_ERROR_MESSAGE = "Unable to get comment linked to {0} #{1}. Received {2} with message {3}.";
+  private static final String CONNECTION_PUT_ERROR_MESSAGE = "Unable to update comment #{0} of {1} #{2}. Received {3} with message {4}.";
+  private static final String CONNECTION_GET_PULL_REQUEST_ERROR_MESSAGE = "Unable to get pull-request {0} #{1}. Received {2} with message {3}.";
+  private static final String CONNECTION_PUT_REPORT_ERROR_MESSAGE = "Unable to put Code Insights report {0} on commit {1}. Received {2} with message {3}.";
+  private static final String CIRCUIT_OPEN_ERROR_MESSAGE = "Request to {0} not sent: Stash looks unhealthy.";
+  private static final String TIME_BUDGET_ERROR_MESSAGE = "Request to {0} not sent: the time budget of {1} ms is exhausted.";
+  private static final String CONNECTION_POST_ANNOTATIONS_ERROR_MESSAGE = "Unable to post Code Insights annotations of report {0} on commit {1}. Received {2} with message {3}.";
+
+  static final int HTTP_TOO_MANY_REQUESTS = 429;
+  static final int MAX_THROTTLED_RETRIES = 5;
+  static final long DEFAULT_RETRY_AFTER_MILLIS = 1000;
+  static final long MAX_RETRY_AFTER_MILLIS = 60000;
+
+  /**
+   * Shared by all the clients, on purpose: the post job of each module of a build runs in the same JVM with its own client,
+   * and they all fetch the same pull-request diff and comments. Results are shared only between clients of the same Stash user
+   * (see {@link #getFlightKey(String)}), and a client waits for the request of another one only until its own deadline.
+   */
+  private static final SingleFlight IN_FLIGHT = new SingleFlight();
+
+  private static final Executor SAME_THREAD = new Executor() {
+    @Override
+    public void execute(Runnable command) {
+      command.run();
+    }
+  };
 
   public StashClient(String url, StashCredentials credentials, int stashTimeout) {
+    this(url, credentials, RequestTimeouts.fixed(stashTimeout), RateLimiter.unlimited(), RetryPolicy.none(), CircuitBreaker.disabled(), Deadline.none(), HedgingPolicy.disabled(),
+      ConcurrencyLimiter.sequential());
+  }
+
+  /**
+   * @param timeouts connection and response timeouts, shared by all the requests sent by the client
+   * @param rateLimiter shared by all the requests sent by the client, whatever the thread
+   * @param retryPolicy applied to idempotent requests (GET and PUT), and available to the callers for the others
+   * @param circuitBreaker rejects the requests while Stash is unhealthy
+   * @param deadline time budget of all the requests sent by the client, the timeout of each request is shortened accordingly
+   * @param hedgingPolicy when to send a second identical GET request, if the first one is slow
+   * @param postingLimiter number of comment and task creations in flight, whatever the thread
+   */
+  public StashClient(String url, StashCredentials credentials, RequestTimeouts timeouts, RateLimiter rateLimiter, RetryPolicy retryPolicy, CircuitBreaker circuitBreaker,
+    Deadline deadline, HedgingPolicy hedgingPolicy, ConcurrencyLimiter postingLimiter) {
+    this(url, credentials, timeouts, rateLimiter, retryPolicy, circuitBreaker, deadline, hedgingPolicy, postingLimiter, false);
+  }
+
+  /**
+   * @param reuseSession true to authenticate with the Stash session cookie instead of the credentials once the session is started
+   */
+  public StashClient(String url, StashCredentials credentials, RequestTimeouts timeouts, RateLimiter rateLimiter, RetryPolicy retryPolicy, CircuitBreaker circuitBreaker,
+    Deadline deadline, HedgingPolicy hedgingPolicy, ConcurrencyLimiter postingLimiter, boolean reuseSession) {
     this.baseUrl = url;
     this.credentials = credentials;
-    this.stashTimeout = stashTimeout;
+    this.authorization = new StashAuthorization(credentials, reuseSession);
+    this.timeouts = timeouts;
+    this.rateLimiter = rateLimiter;
+    this.retryPolicy = retryPolicy;
+    this.circuitBreaker = circuitBreaker;
+    this.deadline = deadline;
+    this.hedgingPolicy = hedgingPolicy;
+    this.postingLimiter = postingLimiter;
+  }
+
+  public RetryPolicy getRetryPolicy() {
+    return retryPolicy;
+  }
+
+  public Deadline getDeadline() {
+    return deadline;
+  }
+
+  public ConcurrencyLimiter getPostingLimiter() {
+    return postingLimiter;
   }
 
   public void postCommentOnPullRequest(String project, String repository, String pullRequestId, String report)
@@ -53,29 +162,131 @@ public class StashClient {
     JSONObject json = new JSONObject();
     json.put("text", report);
 
-    AsyncHttpClient httpClient = createHttpClient();
+    AsyncHttpClient httpClient = getHttpClient();
     BoundRequestBuilder requestBuilder = httpClient.preparePost(request);
     requestBuilder.setBody(json.toString());
 
     try {
-      Response response = executeRequest(requestBuilder);
+      Response response = executeRequest(requestBuilder, Endpoint.COMMENT_POST);
       int responseCode = response.getStatusCode();
       if (responseCode != HttpURLConnection.HTTP_CREATED) {
         String responseMessage = response.getStatusText();
-        throw new StashClientException(MessageFormat.format(CONNECTION_POST_ERROR_MESSAGE, repository, pullRequestId, responseCode, responseMessage));
+        throw new StashClientException(MessageFormat.format(CONNECTION_POST_ERROR_MESSAGE, repository, pullRequestId, responseCode, responseMessage), responseCode);
+      }
+    } catch (ExecutionException | TimeoutException | InterruptedException | IOException e) {
+      throw new StashClientException(e);
+    }
+  }
+
+  /**
+   * Find the most recent general comment of the pull-request which contains the given marker and has been posted by the Stash user.
+   * Activities are browsed from the most recent one, page by page, until the comment is found.
+   * @return null if not found
+   */
+  public StashComment findGeneralCommentOnPullRequest(String project, String repository, String pullRequestId, String marker)
+    throws StashClientException {
+    return findGeneralCommentsOnPullRequest(project, repository, pullRequestId, Collections.singletonList(marker)).get(marker);
+  }
+
+  /**
+   * Find, in a single pass over the activities, the most recent general comment of the pull-request posted by the Stash user
+   * for each of the given markers. Activities are browsed page by page until the comments of all the markers are found.
+   * @return the comments by marker: a marker without comment is absent
+   */
+  public Map<String, StashComment> findGeneralCommentsOnPullRequest(String project, String repository, String pullRequestId, Collection<String> markers)
+    throws StashClientException {
+    Map<String, StashComment> result = new HashMap<>();
+    long start = 0;
+    boolean isLastPage = false;
+
+    AsyncHttpClient httpClient = getHttpClient();
+    try {
+      while (!isLastPage && result.size() < markers.size()) {
+        String request = MessageFormat.format(ACTIVITIES_PULL_REQUEST_API + "?start={4}", baseUrl + REST_API, project, repository, pullRequestId, start);
+        BoundRequestBuilder requestBuilder = httpClient.prepareGet(request);
+
+        Response response = executeGetRequest(requestBuilder, Endpoint.COMMENTS);
+        int responseCode = response.getStatusCode();
+        if (responseCode != HttpURLConnection.HTTP_OK) {
+          String responseMessage = response.getStatusText();
+          throw new StashClientException(MessageFormat.format(CONNECTION_GET_ERROR_MESSAGE, repository, pullRequestId, responseCode, responseMessage), responseCode);
+        }
+
+        String jsonActivities = response.getResponseBody();
+        Map<String, StashComment> comments = StashCollector.extractGeneralComments(jsonActivities, markers, credentials.getLogin());
+        for (Map.Entry<String, StashComment> comment : comments.entrySet()) {
+          // pages come from the most recent activity: the comment found first is kept
+          if (!result.containsKey(comment.getKey())) {
+            result.put(comment.getKey(), comment.getValue());
+          }
+        }
+        isLastPage = StashCollector.isLastPage(jsonActivities);
+        start = StashCollector.getNextPageStart(jsonActivities);
+      }
+    } catch (ExecutionException | TimeoutException | InterruptedException | StashReportExtractionException | IOException e) {
+      throw new StashClientException(e);
+    }
+
+    return result;
+  }
+
+  /**
+   * Link to the diff view of the pull-request, for the comments: a file is linked with "#path", and a line of it with "?t=line".
+   */
+  public String getPullRequestDiffURL(String project, String repository, String pullRequestId) {
+    return MessageFormat.format(DIFF_PULL_REQUEST_PAGE, baseUrl, project, repository, pullRequestId);
+  }
+
+  /**
+   * Replace the text of a comment. The update is not retried: if its response is lost, it may have been applied anyway,
+   * and sending it again with the same version would be rejected.
+   * @param version current version of the comment: Stash rejects the update (409) if the comment has been modified since
+   */
+  public void updateCommentOnPullRequest(String project, String repository, String pullRequestId, long commentId, long version, String text)
+    throws StashClientException {
+
+    String request = MessageFormat.format(COMMENT_PULL_REQUEST_API, baseUrl + REST_API, project, repository, pullRequestId, String.valueOf(commentId));
+    JSONObject json = new JSONObject();
+    json.put("text", text);
+    json.put("version", version);
+
+    AsyncHttpClient httpClient = getHttpClient();
+    try {
+      BoundRequestBuilder requestBuilder = httpClient.preparePut(request);
+      requestBuilder.setBody(json.toString());
+
+      Response response = executeRequest(requestBuilder, Endpoint.COMMENT_POST);
+      int responseCode = response.getStatusCode();
+      if (responseCode != HttpURLConnection.HTTP_OK) {
+        String responseMessage = response.getStatusText();
+        throw new StashClientException(MessageFormat.format(CONNECTION_PUT_ERROR_MESSAGE, commentId, repository, pullRequestId, responseCode, responseMessage), responseCode);
       }
     } catch (ExecutionException | TimeoutException | InterruptedException | IOException e) {
       throw new StashClientException(e);
-    } finally {
-      httpClient.close();
     }
   }
 
-  public StashCommentReport getPullRequestComments(String project, String repository, String pullRequestId, String path)
+  public StashCommentReport getPullRequestComments(final String project, final String repository, final String pullRequestId, final String path)
+    throws StashClientException {
+    String request = MessageFormat.format(COMMENTS_PULL_REQUEST_API + "?path={4}", baseUrl + REST_API, project, repository, pullRequestId, path);
+    return IN_FLIGHT.execute(getFlightKey(request), deadline, new SingleFlight.Call<StashCommentReport>() {
+      @Override
+      public StashCommentReport call() throws StashClientException {
+        return fetchPullRequestComments(project, repository, pullRequestId, path);
+      }
+
+      @Override
+      StashCommentReport share(StashCommentReport result) {
+        return result.copy();
+      }
+    });
+  }
+
+  private StashCommentReport fetchPullRequestComments(String project, String repository, String pullRequestId, String path)
     throws StashClientException {
     StashCommentReport result = new StashCommentReport();
 
-    AsyncHttpClient httpClient = createHttpClient();
+    AsyncHttpClient httpClient = getHttpClient();
 
     long start = 0;
     boolean isLastPage = false;
@@ -85,11 +296,11 @@ public class StashClient {
         String request = MessageFormat.format(COMMENTS_PULL_REQUEST_API + "?path={4}&start={5}", baseUrl + REST_API, project, repository, pullRequestId, path, start);
         BoundRequestBuilder requestBuilder = httpClient.prepareGet(request);
 
-        Response response = executeRequest(requestBuilder);
+        Response response = executeGetRequest(requestBuilder, Endpoint.COMMENTS);
         int responseCode = response.getStatusCode();
         if (responseCode != HttpURLConnection.HTTP_OK) {
           String responseMessage = response.getStatusText();
-          throw new StashClientException(MessageFormat.format(CONNECTION_GET_ERROR_MESSAGE, repository, pullRequestId, responseCode, responseMessage));
+          throw new StashClientException(MessageFormat.format(CONNECTION_GET_ERROR_MESSAGE, repository, pullRequestId, responseCode, responseMessage), responseCode);
         } else {
           String jsonComments = response.getResponseBody();
           result.add(StashCollector.extractComments(jsonComments));
@@ -100,37 +311,49 @@ public class StashClient {
         }
       } catch (ExecutionException | TimeoutException | InterruptedException | StashReportExtractionException | IOException e) {
         throw new StashClientException(e);
-      } finally {
-        httpClient.close();
       }
     }
 
     return result;
   }
 
-  public StashDiffReport getPullRequestDiffs(String project, String repository, String pullRequestId)
+  public StashDiffReport getPullRequestDiffs(final String project, final String repository, final String pullRequestId)
+    throws StashClientException {
+    String request = MessageFormat.format(DIFF_PULL_REQUEST_API, baseUrl + REST_API, project, repository, pullRequestId);
+    return IN_FLIGHT.execute(getFlightKey(request), deadline, new SingleFlight.Call<StashDiffReport>() {
+      @Override
+      public StashDiffReport call() throws StashClientException {
+        return fetchPullRequestDiffs(project, repository, pullRequestId);
+      }
+
+      @Override
+      StashDiffReport share(StashDiffReport result) {
+        return result.copy();
+      }
+    });
+  }
+
+  private StashDiffReport fetchPullRequestDiffs(String project, String repository, String pullRequestId)
     throws StashClientException {
     StashDiffReport result = new StashDiffReport();
 
-    AsyncHttpClient httpClient = createHttpClient();
+    AsyncHttpClient httpClient = getHttpClient();
 
     try {
       String request = MessageFormat.format(DIFF_PULL_REQUEST_API + "?withComments=true", baseUrl + REST_API, project, repository, pullRequestId);
       BoundRequestBuilder requestBuilder = httpClient.prepareGet(request);
 
-      Response response = executeRequest(requestBuilder);
+      Response response = executeGetRequest(requestBuilder, Endpoint.DIFF);
       int responseCode = response.getStatusCode();
       if (responseCode != HttpURLConnection.HTTP_OK) {
         String responseMessage = response.getStatusText();
-        throw new StashClientException(MessageFormat.format(CONNECTION_GET_ERROR_MESSAGE, repository, pullRequestId, responseCode, responseMessage));
+        throw new StashClientException(MessageFormat.format(CONNECTION_GET_ERROR_MESSAGE, repository, pullRequestId, responseCode, responseMessage), responseCode);
       } else {
         String jsonDiffs = response.getResponseBody();
         result = StashCollector.extractDiffs(jsonDiffs);
       }
     } catch (ExecutionException | TimeoutException | InterruptedException | StashReportExtractionException | IOException e) {
       throw new StashClientException(e);
-    } finally {
-      httpClient.close();
     }
 
     return result;
@@ -158,16 +381,16 @@ public class StashClient {
     json.put("text", message);
     json.put("anchor", anchor);
 
-    AsyncHttpClient httpClient = createHttpClient();
+    AsyncHttpClient httpClient = getHttpClient();
     BoundRequestBuilder requestBuilder = httpClient.preparePost(request);
     requestBuilder.setBody(json.toString());
 
     try {
-      Response response = executeRequest(requestBuilder);
+      Response response = executeRequest(requestBuilder, Endpoint.COMMENT_POST);
       int responseCode = response.getStatusCode();
       if (responseCode != HttpURLConnection.HTTP_CREATED) {
         String responseMessage = response.getStatusText();
-        throw new StashClientException(MessageFormat.format(CONNECTION_POST_ERROR_MESSAGE, repository, pullRequestId, responseCode, responseMessage));
+        throw new StashClientException(MessageFormat.format(CONNECTION_POST_ERROR_MESSAGE, repository, pullRequestId, responseCode, responseMessage), responseCode);
       }
       JSONObject object = (JSONObject) JSONValue.parse(response.getResponseBody());
       if (object.containsKey("id")) {
@@ -178,8 +401,6 @@ public class StashClient {
       }
     } catch (ExecutionException | TimeoutException | IOException | InterruptedException e) {
       throw new StashClientException(e);
-    } finally {
-      httpClient.close();
     }
   }
 
@@ -197,36 +418,396 @@ public class StashClient {
 	json.put("text", message);
 
 
-  	try(AsyncHttpClient httpClient = createHttpClient()) {
+  	AsyncHttpClient httpClient = getHttpClient();
+  	try {
 
 		BoundRequestBuilder requestBuilder = httpClient.preparePost(request);
 		requestBuilder.setBody(json.toString());
 
-		Response response = executeRequest(requestBuilder);
+		Response response = executeRequest(requestBuilder, Endpoint.TASK_POST);
   		int responseCode = response.getStatusCode();
   		if (responseCode != HttpURLConnection.HTTP_CREATED) {
   			String responseMessage = response.getStatusText();
-  			throw new StashClientException(MessageFormat.format(CONNECTION_POST_TASK_ERROR_MESSAGE, commentId, responseCode, responseMessage));
+  			throw new StashClientException(MessageFormat.format(CONNECTION_POST_TASK_ERROR_MESSAGE, commentId, responseCode, responseMessage), responseCode);
   		}
   	} catch (ExecutionException | TimeoutException | IOException | InterruptedException e) {
   		throw new StashClientException(e);
   	}
   }
 
-  Response executeRequest(final BoundRequestBuilder requestBuilder) throws InterruptedException, IOException,
-    ExecutionException, TimeoutException {
+  /**
+   * Hash of the latest commit of the pull-request source branch.
+   */
+  public String getPullRequestLatestCommit(final String project, final String repository, final String pullRequestId)
+    throws StashClientException {
+    String request = MessageFormat.format(PULL_REQUEST_API, baseUrl + REST_API, project, repository, pullRequestId);
+    return IN_FLIGHT.execute(getFlightKey(request), deadline, new SingleFlight.Call<String>() {
+      @Override
+      public String call() throws StashClientException {
+        return fetchPullRequestLatestCommit(project, repository, pullRequestId);
+      }
+    });
+  }
+
+  private String fetchPullRequestLatestCommit(String project, String repository, String pullRequestId)
+    throws StashClientException {
+
+    String request = MessageFormat.format(PULL_REQUEST_API, baseUrl + REST_API, project, repository, pullRequestId);
+
+    AsyncHttpClient httpClient = getHttpClient();
+    try {
+      BoundRequestBuilder requestBuilder = httpClient.prepareGet(request);
+
+      Response response = executeGetRequest(requestBuilder, Endpoint.OTHER);
+      int responseCode = response.getStatusCode();
+      if (responseCode != HttpURLConnection.HTTP_OK) {
+        String responseMessage = response.getStatusText();
+        throw new StashClientException(MessageFormat.format(CONNECTION_GET_PULL_REQUEST_ERROR_MESSAGE, repository, pullRequestId, responseCode, responseMessage), responseCode);
+      }
+      return StashCollector.extractLatestCommit(response.getResponseBody());
+    } catch (ExecutionException | TimeoutException | InterruptedException | StashReportExtractionException | IOException e) {
+      throw new StashClientException(e);
+    }
+  }
+
+  /**
+   * Create or replace a Code Insights report: existing annotations of the report are removed by Stash.
+   */
+  public void putInsightsReport(String project, String repository, String commit, String reportKey, JSONObject report)
+    throws StashClientException {
+
+    String request = MessageFormat.format(INSIGHTS_REPORT_API, baseUrl + INSIGHTS_API, project, repository, commit, reportKey);
+
+    AsyncHttpClient httpClient = getHttpClient();
+    try {
+      BoundRequestBuilder requestBuilder = httpClient.preparePut(request);
+      requestBuilder.setBody(report.toString());
+
+      Response response = executeIdempotentRequest(requestBuilder, Endpoint.OTHER);
+      int responseCode = response.getStatusCode();
+      if (responseCode != HttpURLConnection.HTTP_OK) {
+        String responseMessage = response.getStatusText();
+        throw new StashClientException(MessageFormat.format(CONNECTION_PUT_REPORT_ERROR_MESSAGE, reportKey, commit, responseCode, responseMessage), responseCode);
+      }
+    } catch (ExecutionException | TimeoutException | InterruptedException | IOException e) {
+      throw new StashClientException(e);
+    }
+  }
+
+  /**
+   * Add a batch of annotations (at most {@link #INSIGHTS_MAX_ANNOTATIONS_PER_REQUEST}) to a Code Insights report.
+   */
+  public void postInsightsAnnotations(String project, String repository, String commit, String reportKey, JSONArray annotations)
+    throws StashClientException {
+
+    String request = MessageFormat.format(INSIGHTS_ANNOTATIONS_API, baseUrl + INSIGHTS_API, project, repository, commit, reportKey);
+    JSONObject json = new JSONObject();
+    json.put("annotations", annotations);
+
+    AsyncHttpClient httpClient = getHttpClient();
+    try {
+      BoundRequestBuilder requestBuilder = httpClient.preparePost(request);
+      requestBuilder.setBody(json.toString());
+
+      Response response = executeRequest(requestBuilder, Endpoint.OTHER);
+      int responseCode = response.getStatusCode();
+      if (responseCode != HttpURLConnection.HTTP_NO_CONTENT && responseCode != HttpURLConnection.HTTP_OK) {
+        String responseMessage = response.getStatusText();
+        throw new StashClientException(MessageFormat.format(CONNECTION_POST_ANNOTATIONS_ERROR_MESSAGE, reportKey, commit, responseCode, responseMessage), responseCode);
+      }
+    } catch (ExecutionException | TimeoutException | InterruptedException | IOException e) {
+      throw new StashClientException(e);
+    }
+  }
+
+  /**
+   * Send the request within the rate limit. When Stash is throttling requests (429, or 503 with Retry-After),
+   * the whole client is paused for the requested delay, then the request is sent again: a throttled request has not been processed.
+   */
+  Response executeRequest(final BoundRequestBuilder requestBuilder, Endpoint endpoint) throws InterruptedException, IOException,
+    ExecutionException, TimeoutException, StashClientException {
+    prepareRequest(requestBuilder);
+    return sendRequest(requestBuilder, endpoint, false);
+  }
+
+  /**
+   * Send an idempotent request, retried according to the retry policy on retryable failures: sending it twice has no other effect.
+   */
+  Response executeIdempotentRequest(final BoundRequestBuilder requestBuilder, Endpoint endpoint) throws InterruptedException, IOException,
+    ExecutionException, TimeoutException, StashClientException {
+    return executeIdempotentRequest(requestBuilder, endpoint, false);
+  }
+
+  /**
+   * Send a GET request: retried like any idempotent request, and hedged according to the hedging policy.
+   */
+  Response executeGetRequest(final BoundRequestBuilder requestBuilder, Endpoint endpoint) throws InterruptedException, IOException,
+    ExecutionException, TimeoutException, StashClientException {
+    return executeIdempotentRequest(requestBuilder, endpoint, true);
+  }
+
+  private Response executeIdempotentRequest(final BoundRequestBuilder requestBuilder, Endpoint endpoint, boolean hedged) throws InterruptedException, IOException,
+    ExecutionException, TimeoutException, StashClientException {
+    prepareRequest(requestBuilder);
+
+    for (int retried = 0;; retried++) {
+      try {
+        Response response = sendRequest(requestBuilder, endpoint, hedged);
+        if (!StashClientException.isRetryableStatus(response.getStatusCode()) || !retryPolicy.canRetry(retried) || deadline.isExpired()) {
+          return response;
+        }
+        LOGGER.debug("Stash request failed ({} {}): retry #{}", response.getStatusCode(), response.getStatusText(), retried + 1);
+      } catch (ExecutionException | TimeoutException | IOException e) {
+        if (!StashClientException.isRetryableCause(e) || !retryPolicy.canRetry(retried) || deadline.isExpired()) {
+          throw e;
+        }
+        LOGGER.debug("Stash request failed ({}): retry #{}", e.toString(), retried + 1);
+      }
+      if (!retryPolicy.backoff(retried, deadline)) {
+        throw timeBudgetExceeded(requestBuilder);
+      }
+    }
+  }
+
+  private void prepareRequest(final BoundRequestBuilder requestBuilder) {
     addAuthorization(requestBuilder);
     requestBuilder.addHeader("Content-Type", "application/json");
-    return requestBuilder.execute().get(stashTimeout, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * @throws StashClientException if the request is rejected by the circuit breaker or the time budget is exhausted: it is not retryable
+   */
+  private Response sendRequest(final BoundRequestBuilder requestBuilder, Endpoint endpoint, boolean hedged) throws InterruptedException, IOException,
+    ExecutionException, TimeoutException, StashClientException {
+    int throttled = 0;
+    boolean reauthorized = false;
+    while (true) {
+      // waits are bounded by the time budget, and the timeout is computed once they are over
+      if (!rateLimiter.acquire(deadline.remainingMillis())) {
+        throw timeBudgetExceeded(requestBuilder);
+      }
+      boolean posting = endpoint == Endpoint.COMMENT_POST || endpoint == Endpoint.TASK_POST;
+      if (posting && !postingLimiter.acquire(deadline.remainingMillis())) {
+        throw timeBudgetExceeded(requestBuilder);
+      }
+      long timeout = deadline.cap(timeouts.getTimeout(endpoint));
+      CircuitBreaker.Permit permit = (timeout <= 0) ? null : circuitBreaker.allowRequest();
+      if (permit == null) {
+        if (posting) {
+          postingLimiter.cancel();
+        }
+        throw (timeout <= 0) ? timeBudgetExceeded(requestBuilder)
+          : new StashClientException(MessageFormat.format(CIRCUIT_OPEN_ERROR_MESSAGE, requestBuilder.build().getUrl()));
+      }
+
+      requestBuilder.setRequestTimeout((int) timeout);
+
+      Response response = null;
+      long start = System.nanoTime();
+      try {
+        response = hedged ? getHedgedResponse(requestBuilder, timeout) : requestBuilder.execute().get(timeout, TimeUnit.MILLISECONDS);
+      } catch (TimeoutException e) {
+        timeouts.recordTimeout(endpoint);
+        throw e;
+      } catch (ExecutionException e) {
+        // timeout raised by the HTTP client itself
+        if (e.getCause() instanceof TimeoutException) {
+          timeouts.recordTimeout(endpoint);
+        }
+        throw e;
+      } finally {
+        long latency = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        circuitBreaker.record(permit, isFailure(response), latency);
+        if (response != null) {
+          timeouts.recordLatency(endpoint, latency);
+        }
+        if (posting) {
+          postingLimiter.release(latency, isFailure(response) || getThrottlingDelay(response) >= 0);
+        }
+      }
+
+      authorization.sessionStarted(response);
+      if (!reauthorized && authorization.sessionRejected(response)) {
+        // the session has expired: sent again once, with the credentials
+        reauthorized = true;
+        LOGGER.debug("Stash session rejected ({} {}): request sent again with the credentials", response.getStatusCode(), response.getStatusText());
+        addAuthorization(requestBuilder);
+        continue;
+      }
+
+      long retryAfter = getThrottlingDelay(response);
+      if (retryAfter < 0 || throttled >= MAX_THROTTLED_RETRIES) {
+        return response;
+      }
+      throttled++;
+      LOGGER.warn("Stash is throttling requests ({} {}): paused for {} ms", response.getStatusCode(), response.getStatusText(), retryAfter);
+      if (!rateLimiter.pause(retryAfter, deadline)) {
+        throw timeBudgetExceeded(requestBuilder);
+      }
+    }
+  }
+
+  private StashClientException timeBudgetExceeded(BoundRequestBuilder requestBuilder) {
+    return new StashClientException(MessageFormat.format(TIME_BUDGET_ERROR_MESSAGE, requestBuilder.build().getUrl(), String.valueOf(deadline.getBudgetMillis())));
+  }
+
+  /**
+   * Send the request, then an identical one if no response has been received after the hedge delay:
+   * the first response received is used and the other request is cancelled.
+   */
+  private Response getHedgedResponse(final BoundRequestBuilder requestBuilder, long timeout) throws InterruptedException, IOException,
+    ExecutionException, TimeoutException {
+    long start = System.nanoTime();
+    long hedgeDelay = hedgingPolicy.getHedgeDelay();
+    ListenableFuture<Response> request = requestBuilder.execute();
+
+    Response response;
+    if (hedgeDelay < 0 || hedgeDelay >= timeout) {
+      response = request.get(timeout, TimeUnit.MILLISECONDS);
+    } else {
+      try {
+        response = request.get(hedgeDelay, TimeUnit.MILLISECONDS);
+      } catch (TimeoutException e) {
+        long remaining = timeout - TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        // the hedged request is a request like any other for the rate limit, but it never waits for it
+        if (!hedgingPolicy.tryHedge() || !rateLimiter.tryAcquire()) {
+          response = request.get(remaining, TimeUnit.MILLISECONDS);
+        } else {
+          LOGGER.debug("No response from Stash after {} ms: request hedged", hedgeDelay);
+          response = getFirstResponse(Arrays.asList(request, requestBuilder.execute()), remaining);
+        }
+      }
+    }
+    hedgingPolicy.recordLatency(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+    return response;
+  }
+
+  /**
+   * @return the first response received; failed requests are only reported if no request succeeds
+   */
+  private static Response getFirstResponse(final List<ListenableFuture<Response>> requests, long timeout) throws InterruptedException, ExecutionException,
+    TimeoutException {
+    final BlockingQueue<ListenableFuture<Response>> completed = new LinkedBlockingQueue<>();
+    for (final ListenableFuture<Response> request : requests) {
+      request.addListener(new Runnable() {
+        @Override
+        public void run() {
+          completed.add(request);
+        }
+      }, SAME_THREAD);
+    }
+
+    long expiresAt = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+    ExecutionException failure = null;
+    try {
+      for (int i = 0; i < requests.size(); i++) {
+        ListenableFuture<Response> request = completed.poll(expiresAt - System.nanoTime(), TimeUnit.NANOSECONDS);
+        if (request == null) {
+          throw new TimeoutException();
+        }
+        try {
+          return request.get();
+        } catch (ExecutionException e) {
+          failure = e;
+        }
+      }
+      throw failure;
+    } finally {
+      for (ListenableFuture<Response> request : requests) {
+        if (!request.isDone()) {
+          request.cancel(true);
+        }
+      }
+    }
+  }
+
+  /**
+   * Failure from the circuit breaker point of view: no response, or a server error. Throttling is not a failure.
+   */
+  static boolean isFailure(Response response) {
+    if (response == null) {
+      return true;
+    }
+    return StashClientException.isRetryableStatus(response.getStatusCode()) && getThrottlingDelay(response) < 0;
+  }
+
+  /**
+   * @return delay requested by Stash before sending requests again (in ms), -1 if the request has not been throttled
+   */
+  static long getThrottlingDelay(Response response) {
+    int status = response.getStatusCode();
+    if (status != HTTP_TOO_MANY_REQUESTS && status != HttpURLConnection.HTTP_UNAVAILABLE) {
+      return -1;
+    }
+
+    long delay = parseRetryAfter(response.getHeader("Retry-After"));
+    if (delay < 0) {
+      // without Retry-After, 503 is an outage rather than throttling
+      return (status == HTTP_TOO_MANY_REQUESTS) ? DEFAULT_RETRY_AFTER_MILLIS : -1;
+    }
+    return Math.min(delay, MAX_RETRY_AFTER_MILLIS);
+  }
+
+  /**
+   * @param retryAfter delay in seconds, or HTTP date
+   * @return delay in ms, -1 if missing or invalid
+   */
+  static long parseRetryAfter(String retryAfter) {
+    if (StringUtils.isBlank(retryAfter)) {
+      return -1;
+    }
+    String value = retryAfter.trim();
+    if (StringUtils.isNumeric(value)) {
+      return TimeUnit.SECONDS.toMillis(Long.parseLong(value));
+    }
+    try {
+      SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+      return Math.max(0, format.parse(value).getTime() - System.currentTimeMillis());
+    } catch (ParseException e) {
+      return -1;
+    }
+  }
+
+  /**
+   * Identical GET requests: same resource, read with the same credentials. Credentials are only kept as a digest.
+   */
+  List<String> getFlightKey(String request) {
+    return Arrays.asList(request, authorization.getIdentity());
   }
 
   void addAuthorization(final BoundRequestBuilder requestBuilder) {
-    Realm realm = new Realm.RealmBuilder().setPrincipal(credentials.getLogin()).setPassword(credentials.getPassword())
-      .setUsePreemptiveAuth(true).setScheme(AuthScheme.BASIC).build();
-    requestBuilder.setRealm(realm);
+    authorization.authorize(requestBuilder);
+  }
+
+  /**
+   * HTTP client of all the requests, created on the first one. The timeout of each request is set when it is sent.
+   */
+  synchronized AsyncHttpClient getHttpClient() {
+    if (httpClient == null) {
+      httpClient = createHttpClient();
+    }
+    return httpClient;
   }
 
   AsyncHttpClient createHttpClient() {
-    return new AsyncHttpClient();
+    // a dead Stash node is detected on connection, whatever the time needed to send the response
+    AsyncHttpClientConfig config = new AsyncHttpClientConfig.Builder()
+      .setConnectTimeout(timeouts.getConnectTimeout())
+      .setReadTimeout(timeouts.getMaxTimeout())
+      .setRequestTimeout(timeouts.getMaxTimeout())
+      .setAllowPoolingConnections(true)
+      .build();
+    return new AsyncHttpClient(config);
+  }
+
+  /**
+   * Close the connections to Stash. Requests sent afterwards open new ones.
+   */
+  @Override
+  public synchronized void close() {
+    if (httpClient != null) {
+      httpClient.close();
+      httpClient = null;
+    }
   }
 }
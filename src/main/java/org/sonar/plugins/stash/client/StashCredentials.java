@@ -4,10 +4,19 @@ public class StashCredentials {
 
   private final String login;
   private final String password;
+  private final String token;
 
   public StashCredentials(String login, String password) {
+    this(login, password, null);
+  }
+
+  /**
+   * @param token personal access token, used instead of the password if not null
+   */
+  public StashCredentials(String login, String password, String token) {
     this.login = login;
     this.password = password;
+    this.token = token;
   }
 
   public String getLogin() {
@@ -18,4 +27,8 @@ public class StashCredentials {
     return password;
   }
 
+  public String getToken() {
+    return token;
+  }
+
 }
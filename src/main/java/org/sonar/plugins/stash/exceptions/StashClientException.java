@@ -1,17 +1,72 @@
 package org.sonar.plugins.stash.exceptions;
 
+import java.io.IOException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeoutException;
+
 public class StashClientException extends StashException {
 
+  private final int statusCode;
+
   public StashClientException(String message) {
+    this(message, 0);
+  }
+
+  /**
+   * @param statusCode HTTP status received from Stash
+   */
+  public StashClientException(String message, int statusCode) {
     super(message);
+    this.statusCode = statusCode;
   }
 
   public StashClientException(Throwable cause) {
     super(cause);
+    this.statusCode = 0;
   }
 
   public StashClientException(String message, Throwable cause) {
     super(message, cause);
+    this.statusCode = 0;
+  }
+
+  /**
+   * @return HTTP status received from Stash, 0 if no response has been received
+   */
+  public int getStatusCode() {
+    return statusCode;
+  }
+
+  /**
+   * True if the same request may succeed later on: Stash is overloaded or unreachable, or did not answer in time.
+   * Other failures (authentication, unknown pull-request, invalid request...) fail again.
+   */
+  public boolean isRetryable() {
+    return (statusCode > 0) ? isRetryableStatus(statusCode) : isRetryableCause(getCause());
+  }
+
+  public static boolean isRetryableStatus(int statusCode) {
+    switch (statusCode) {
+      case 408: // Request Timeout
+      case 429: // Too Many Requests
+      case 500: // Internal Server Error
+      case 502: // Bad Gateway
+      case 503: // Service Unavailable
+      case 504: // Gateway Timeout
+        return true;
+      default:
+        return false;
+    }
+  }
+
+  /**
+   * Timeouts and I/O errors (connection refused or reset...) are retryable, whatever the layer which raised them.
+   */
+  public static boolean isRetryableCause(Throwable cause) {
+    if (cause instanceof ExecutionException) {
+      return isRetryableCause(cause.getCause());
+    }
+    return cause instanceof TimeoutException || cause instanceof IOException;
   }
 
 }
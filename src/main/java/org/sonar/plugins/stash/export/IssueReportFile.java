@@ -0,0 +1,115 @@
+package org.sonar.plugins.stash.export;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+import org.sonar.plugins.stash.exceptions.StashReportExtractionException;
+import org.sonar.plugins.stash.issue.SonarQubeIssue;
+import org.sonar.plugins.stash.issue.SonarQubeIssuesReport;
+import org.sonar.plugins.stash.issue.SymbolTable;
+
+/**
+ * Issue report exported by the analysis, to be posted to Stash later on by {@link StashReportReplay}.
+ *
+ * The file is gzipped JSON: the plugin properties (pull-request coordinates included) and the issues,
+ * each one as a [severity, rule, path, line, message] array.
+ */
+public class IssueReportFile {
+
+  static final long FORMAT_VERSION = 1;
+
+  private static final int SEVERITY = 0;
+  private static final int RULE = 1;
+  private static final int PATH = 2;
+  private static final int LINE = 3;
+  private static final int MESSAGE = 4;
+
+  private final Map<String, String> properties;
+  private final SonarQubeIssuesReport issueReport;
+
+  public IssueReportFile(Map<String, String> properties, SonarQubeIssuesReport issueReport) {
+    this.properties = properties;
+    this.issueReport = issueReport;
+  }
+
+  public Map<String, String> getProperties() {
+    return Collections.unmodifiableMap(properties);
+  }
+
+  public SonarQubeIssuesReport getIssueReport() {
+    return issueReport;
+  }
+
+  public void write(File file) throws IOException {
+    JSONObject json = new JSONObject();
+    json.put("format", FORMAT_VERSION);
+    json.put("properties", new JSONObject(properties));
+
+    JSONArray issues = new JSONArray();
+    for (SonarQubeIssue issue : issueReport.getIssues()) {
+      JSONArray jsonIssue = new JSONArray();
+      jsonIssue.add(issue.getSeverity());
+      jsonIssue.add(issue.getRule());
+      jsonIssue.add(issue.getPath());
+      jsonIssue.add(issue.getLine());
+      jsonIssue.add(issue.getMessage());
+      issues.add(jsonIssue);
+    }
+    json.put("issues", issues);
+
+    File parent = file.getParentFile();
+    if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+      throw new IOException("Unable to create directory " + parent);
+    }
+    try (Writer writer = new OutputStreamWriter(new GZIPOutputStream(new FileOutputStream(file)), StandardCharsets.UTF_8)) {
+      json.writeJSONString(writer);
+    }
+  }
+
+  public static IssueReportFile read(File file) throws IOException, StashReportExtractionException {
+    JSONObject json;
+    try (Reader reader = new InputStreamReader(new GZIPInputStream(new FileInputStream(file)), StandardCharsets.UTF_8)) {
+      json = (JSONObject) new JSONParser().parse(reader);
+    } catch (ParseException e) {
+      throw new StashReportExtractionException(e);
+    }
+
+    Object format = json.get("format");
+    if (!Long.valueOf(FORMAT_VERSION).equals(format)) {
+      throw new StashReportExtractionException("Unsupported report format " + format + " in " + file);
+    }
+
+    Map<String, String> properties = new LinkedHashMap<>();
+    JSONObject jsonProperties = (JSONObject) json.get("properties");
+    for (Object key : jsonProperties.keySet()) {
+      properties.put((String) key, (String) jsonProperties.get(key));
+    }
+
+    SonarQubeIssuesReport issueReport = new SonarQubeIssuesReport();
+    SymbolTable symbols = new SymbolTable();
+    for (Object obj : (JSONArray) json.get("issues")) {
+      JSONArray jsonIssue = (JSONArray) obj;
+      issueReport.add(new SonarQubeIssue((String) jsonIssue.get(SEVERITY), (String) jsonIssue.get(MESSAGE), symbols.intern((String) jsonIssue.get(RULE)),
+        symbols.intern((String) jsonIssue.get(PATH)), ((Long) jsonIssue.get(LINE)).intValue()));
+    }
+
+    return new IssueReportFile(properties, issueReport);
+  }
+
+}
@@ -0,0 +1,94 @@
+package org.sonar.plugins.stash.export;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.sonar.api.config.PropertyDefinitions;
+import org.sonar.api.config.Settings;
+import org.sonar.plugins.stash.StashIssueReportingPostJob;
+import org.sonar.plugins.stash.StashPlugin;
+import org.sonar.plugins.stash.StashPluginConfiguration;
+import org.sonar.plugins.stash.StashRequestFacade;
+import org.sonar.plugins.stash.exceptions.StashConfigurationException;
+import org.sonar.plugins.stash.exceptions.StashReportExtractionException;
+
+/**
+ * Post to Stash the issue reports exported by analyses (see {@link StashPlugin#STASH_EXPORT_FILE}), out of the SonarQube scanner.
+ *
+ * Usage: java -cp &lt;plugin jar and its dependencies&gt; org.sonar.plugins.stash.export.StashReportReplay report...
+ *
+ * The Stash password is not exported: it is read from the sonar.stash.password system property. Any other system property
+ * overrides the exported one. The posting journal of each report is kept next to the report file.
+ */
+public class StashReportReplay {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(StashReportReplay.class);
+
+  private final Settings systemSettings;
+
+  public StashReportReplay(Settings systemSettings) {
+    this.systemSettings = systemSettings;
+  }
+
+  public static void main(String[] args) {
+    if (args.length == 0) {
+      System.err.println("Usage: StashReportReplay <report file>...");
+      System.exit(2);
+    }
+
+    List<File> reports = new ArrayList<>();
+    for (String arg : args) {
+      reports.add(new File(arg));
+    }
+    int failures = new StashReportReplay(new Settings().addProperties(System.getProperties())).replay(reports);
+    System.exit((failures == 0) ? 0 : 1);
+  }
+
+  /**
+   * @return number of reports which could not be replayed
+   */
+  public int replay(List<File> reports) {
+    int failures = 0;
+    for (File report : reports) {
+      if (!replay(report)) {
+        failures++;
+      }
+    }
+    return failures;
+  }
+
+  /**
+   * @return false if the report cannot be read or its configuration is invalid. Errors reported by Stash are only logged, as by the analysis.
+   */
+  public boolean replay(File report) {
+    try {
+      IssueReportFile reportFile = IssueReportFile.read(report);
+
+      Settings settings = new Settings(new PropertyDefinitions(new StashPlugin().getExtensions().toArray()));
+      settings.addProperties(reportFile.getProperties());
+      settings.addProperties(systemSettings.getProperties());
+      // the report is posted now: exporting it again would be a loop
+      settings.removeProperty(StashPlugin.STASH_EXPORT_FILE);
+
+      StashPluginConfiguration config = new StashPluginConfiguration(settings);
+      StashRequestFacade stashRequestFacade = new StashRequestFacade(config);
+      File reportDir = report.getAbsoluteFile().getParentFile();
+      stashRequestFacade.initialize(reportDir, reportDir);
+
+      LOGGER.info("Replaying SonarQube issue report {} on pull-request #{}", report, config.getPullRequestId());
+      // issues are already extracted: no need for the analysis components
+      new StashIssueReportingPostJob(config, null, null, stashRequestFacade).postIssueReport(reportFile.getIssueReport());
+      return true;
+
+    } catch (IOException | StashReportExtractionException | StashConfigurationException e) {
+      LOGGER.error("Unable to replay SonarQube issue report {}: {}", report, e.getMessage());
+      LOGGER.debug("Exception stack trace", e);
+      return false;
+    }
+  }
+
+}
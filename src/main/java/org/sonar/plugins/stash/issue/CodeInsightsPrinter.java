@@ -0,0 +1,79 @@
+package org.sonar.plugins.stash.issue;
+
+import org.apache.commons.lang3.StringUtils;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.sonar.api.rule.Severity;
+
+/**
+ * Build the JSON payloads of the Stash (Bitbucket Server) Code Insights REST API.
+ */
+public final class CodeInsightsPrinter {
+
+  private static final String REPORTER = "SonarQube";
+  private static final int MAX_MESSAGE_LENGTH = 2000;
+
+  private CodeInsightsPrinter() {
+    // DO NOTHING
+  }
+
+  /**
+   * Code Insights report: one data entry for the total and one per severity.
+   */
+  public static JSONObject printReportJson(SonarQubeIssuesReport report, String sonarQubeURL) {
+    JSONObject json = new JSONObject();
+    json.put("title", "SonarQube Analysis");
+    json.put("reporter", REPORTER);
+    json.put("link", sonarQubeURL);
+    json.put("result", (report.countIssues() == 0) ? "PASS" : "FAIL");
+    json.put("details", (report.countIssues() == 0) ? "No new issues detected!" : (report.countIssues() + " new issues detected"));
+
+    JSONArray data = new JSONArray();
+    data.add(printDataJson("Total New Issues", report.countIssues()));
+    data.add(printDataJson(Severity.BLOCKER, report.countIssues(Severity.BLOCKER)));
+    data.add(printDataJson(Severity.CRITICAL, report.countIssues(Severity.CRITICAL)));
+    data.add(printDataJson(Severity.MAJOR, report.countIssues(Severity.MAJOR)));
+    data.add(printDataJson(Severity.MINOR, report.countIssues(Severity.MINOR)));
+    data.add(printDataJson(Severity.INFO, report.countIssues(Severity.INFO)));
+    json.put("data", data);
+
+    return json;
+  }
+
+  /**
+   * @param path Stash path of the file (relative to the repository root)
+   */
+  public static JSONObject printAnnotationJson(SonarQubeIssue issue, String path, String sonarQubeURL) {
+    JSONObject json = new JSONObject();
+    json.put("path", path);
+    json.put("line", issue.getLine());
+    json.put("message", StringUtils.abbreviate(issue.getMessage() + " [" + issue.getRule() + "]", MAX_MESSAGE_LENGTH));
+    json.put("severity", printAnnotationSeverity(issue.getSeverity()));
+    json.put("type", "CODE_SMELL");
+    json.put("link", sonarQubeURL + "/" + MarkdownPrinter.CODING_RULES_RULE_KEY + issue.getRule());
+
+    return json;
+  }
+
+  /**
+   * Code Insights only knows 3 severities: LOW, MEDIUM and HIGH.
+   */
+  public static String printAnnotationSeverity(String severity) {
+    if (Severity.BLOCKER.equals(severity) || Severity.CRITICAL.equals(severity)) {
+      return "HIGH";
+    } else if (Severity.MAJOR.equals(severity)) {
+      return "MEDIUM";
+    } else {
+      return "LOW";
+    }
+  }
+
+  private static JSONObject printDataJson(String title, int value) {
+    JSONObject json = new JSONObject();
+    json.put("title", title);
+    json.put("type", "NUMBER");
+    json.put("value", value);
+    return json;
+  }
+
+}
@@ -1,5 +1,7 @@
 package org.sonar.plugins.stash.issue;
 
+import java.text.MessageFormat;
+import java.util.List;
 import java.util.Map;
 
 import org.apache.commons.lang.StringUtils;
@@ -8,7 +10,13 @@ import org.sonar.api.rule.Severity;
 public final class MarkdownPrinter {
 
   private static final String NEW_LINE = "\n";
-  private static final String CODING_RULES_RULE_KEY = "coding_rules#rule_key=";
+  static final String CODING_RULES_RULE_KEY = "coding_rules#rule_key=";
+
+  // Markdown link reference definitions are not rendered: they identify the comments posted by the plugin
+  public static final String OVERVIEW_MARKER = "[//]: # (sonar-stash-overview)";
+  public static final String SUMMARY_MARKER = "[//]: # (sonar-stash-summary)";
+  private static final String ISSUE_MARKER = "[//]: # (sonar-stash-issue {0} {1})";
+  private static final String[] SEVERITIES_BY_PRIORITY = {Severity.BLOCKER, Severity.CRITICAL, Severity.MAJOR, Severity.MINOR, Severity.INFO};
 
   private MarkdownPrinter() {
     // DO NOTHING
@@ -22,6 +30,43 @@ public final class MarkdownPrinter {
     return sb.toString();
   }
 
+  /**
+   * Table of the issues posted as a single comment (see comment aggregation option), one row per issue,
+   * followed by the hidden marker of each issue.
+   * @param fileURL link to the file in the pull-request, each line number links to its line; null for bare line numbers
+   */
+  public static String printIssueGroupMarkdown(List<SonarQubeIssue> issues, String sonarQubeURL, String fileURL) {
+    StringBuilder sb = new StringBuilder();
+    sb.append("| Line | SonarQube issues (").append(issues.size()).append(") |").append(NEW_LINE);
+    sb.append("|------|------------|").append(NEW_LINE);
+    for (SonarQubeIssue issue : issues) {
+      sb.append("| ").append(printLineMarkdown(issue.getLine(), fileURL)).append(" | ").append(printIssueMarkdown(issue, sonarQubeURL)).append(" |").append(NEW_LINE);
+    }
+    sb.append(NEW_LINE);
+    for (SonarQubeIssue issue : issues) {
+      sb.append(printIssueMarker(issue)).append(NEW_LINE);
+    }
+
+    return sb.toString();
+  }
+
+  private static String printLineMarkdown(int line, String fileURL) {
+    if (fileURL == null) {
+      return String.valueOf(line);
+    }
+    return "[" + line + "](" + fileURL + "?t=" + line + ")";
+  }
+
+  /**
+   * Hidden marker of an issue in a group comment: it identifies the issue in the group comments of the previous analyses,
+   * whatever its line and the rendering of its row. Identical issues of a file have the same marker.
+   */
+  public static String printIssueMarker(SonarQubeIssue issue) {
+    // the message is hashed: it may contain characters ending the marker
+    String message = StringUtils.defaultString(issue.getMessage());
+    return MessageFormat.format(ISSUE_MARKER, issue.getRule(), Integer.toHexString(message.hashCode()));
+  }
+
   public static String printSeverityMarkdown(String severity) {
     StringBuilder sb = new StringBuilder();
     sb.append("*").append(StringUtils.upperCase(severity)).append("*").append(" - ");
@@ -46,10 +91,37 @@ public final class MarkdownPrinter {
     return sb.toString();
   }
 
+  /**
+   * Append a hidden marker to a comment, after a blank line as expected by Markdown.
+   */
+  public static String printMarkedMarkdown(String markdown, String marker) {
+    return markdown + NEW_LINE + NEW_LINE + marker;
+  }
+
+  /**
+   * Count of the issues cut by the issue threshold, most severe first: "(1 CRITICAL, 3 MAJOR)".
+   */
+  public static String printNotDisplayedBySeverity(PostingPlan postingPlan) {
+    StringBuilder sb = new StringBuilder("(");
+    for (String severity : SEVERITIES_BY_PRIORITY) {
+      int count = postingPlan.countNotDisplayed(severity);
+      if (count > 0) {
+        if (sb.length() > 1) {
+          sb.append(", ");
+        }
+        sb.append(count).append(" ").append(severity);
+      }
+    }
+    sb.append(")");
+
+    return sb.toString();
+  }
+
   /**
    * Get issue report.
+   * @param postingPlan plan applied to post issue comments, null if issues have not been posted as comments
    */
-  public static String printOverviewReportMarkdown(SonarQubeIssuesReport report, String sonarQubeURL, int issueThreshold) {
+  public static String printOverviewReportMarkdown(SonarQubeIssuesReport report, PostingPlan postingPlan, String sonarQubeURL, int issueThreshold) {
     StringBuilder sb = new StringBuilder("## SonarQube Analysis Overview");
     sb.append(NEW_LINE);
 
@@ -57,10 +129,17 @@ public final class MarkdownPrinter {
       sb.append("### No new issues detected!");
     } else {
 
-      if (report.countIssues() >= issueThreshold) {
+      if (postingPlan != null && postingPlan.countNotDisplayed() > 0) {
         sb.append("### Too many issues detected ");
         sb.append("(").append(report.countIssues()).append("/").append(issueThreshold).append(")");
-        sb.append(": Issues cannot be displayed in Diff view.").append(NEW_LINE).append(NEW_LINE);
+        sb.append(": ").append(postingPlan.countNotDisplayed()).append(" issues cannot be displayed in Diff view ");
+        sb.append(printNotDisplayedBySeverity(postingPlan)).append(".").append(NEW_LINE).append(NEW_LINE);
+      }
+
+      if (postingPlan != null && postingPlan.getDegradationReason() != null) {
+        sb.append("### Stash is overloaded: ").append(postingPlan.getDeferredComments().size());
+        sb.append(" issue comments are deferred to the next analysis (").append(postingPlan.getDegradationReason()).append(").");
+        sb.append(NEW_LINE).append(NEW_LINE);
       }
 
       // Number of issue per severity
@@ -87,15 +166,15 @@ public final class MarkdownPrinter {
     return sb.toString();
   }
 
-  public static String printSummaryReportMarkdown(SonarQubeIssuesReport report, int issueThreshold) {
+  public static String printSummaryReportMarkdown(SonarQubeIssuesReport report, PostingPlan postingPlan, int issueThreshold) {
     StringBuilder sb = new StringBuilder("#### SonarQube Analysis Summary");
     sb.append(NEW_LINE);
     if (report.getIssues() == null || report.getIssues().isEmpty()) {
       sb.append("No new issue raised!");
-    } else if (report.countIssues() >= issueThreshold) {
+    } else if (postingPlan != null && postingPlan.countNotDisplayed() > 0) {
       sb.append("Too many new issues raised ");
       sb.append("(").append(report.countIssues()).append(" > ").append(issueThreshold).append(")");
-      sb.append(": New issues are not displayed in Diff view.");
+      sb.append(": ").append(postingPlan.countNotDisplayed()).append(" new issues are not displayed in Diff view.");
     } else {
       sb.append("New issues raised: ").append(report.countIssues());
     }
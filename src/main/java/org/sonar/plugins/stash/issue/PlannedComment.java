@@ -0,0 +1,92 @@
+package org.sonar.plugins.stash.issue;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+
+/**
+ * A Stash comment to be posted on a pull-request line, for one SonarQube issue or a group of issues.
+ */
+public class PlannedComment {
+
+  private final String message;
+  private final String path;
+  private final long line;
+  private final String type;
+  private final String taskMessage;
+  private final List<SonarQubeIssue> issues;
+
+  /**
+   * @param path Stash path of the file
+   * @param line line of the comment, as expected by Stash for its type (see {@link StashDiffReport#getLine(String, long)})
+   * @param taskMessage message of the task to create on the comment, null if no task is needed
+   * @param issues SonarQube issues reported by the comment, the first one being the anchor of the comment
+   */
+  public PlannedComment(String message, String path, long line, String type, String taskMessage, List<SonarQubeIssue> issues) {
+    this.message = message;
+    this.path = path;
+    this.line = line;
+    this.type = type;
+    this.taskMessage = taskMessage;
+    this.issues = issues;
+  }
+
+  public String getMessage() {
+    return message;
+  }
+
+  public String getPath() {
+    return path;
+  }
+
+  public long getLine() {
+    return line;
+  }
+
+  public String getType() {
+    return type;
+  }
+
+  public String getTaskMessage() {
+    return taskMessage;
+  }
+
+  public List<SonarQubeIssue> getIssues() {
+    return issues;
+  }
+
+  public SonarQubeIssue getAnchor() {
+    return issues.get(0);
+  }
+
+  /**
+   * Identity of the comment on a given pull-request commit: digest of its location and message.
+   */
+  public String getFingerprint() {
+    try {
+      MessageDigest digest = MessageDigest.getInstance("SHA-1");
+      String content = path + '\n' + line + '\n' + type + '\n' + message;
+      StringBuilder sb = new StringBuilder();
+      for (byte b : digest.digest(content.getBytes(StandardCharsets.UTF_8))) {
+        sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+      }
+      return sb.toString();
+    } catch (NoSuchAlgorithmException e) {
+      // SHA-1 is provided by every Java platform
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * Highest severity ordinal of the reported issues.
+   */
+  public int getSeverityOrdinal() {
+    int result = 0;
+    for (SonarQubeIssue issue : issues) {
+      result = Math.max(result, issue.getSeverityOrdinal());
+    }
+    return result;
+  }
+
+}
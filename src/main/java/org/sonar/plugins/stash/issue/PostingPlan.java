@@ -0,0 +1,328 @@
+package org.sonar.plugins.stash.issue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.sonar.api.rule.Severity;
+
+/**
+ * Stash comments to post for a SonarQube analysis, and the issues left out with the reason why.
+ *
+ * Comments are ranked by severity and only the most severe ones are kept within the issue threshold:
+ * the others are counted as not displayed.
+ */
+public class PostingPlan {
+
+  public static final String SKIPPED_BELOW_SEVERITY_THRESHOLD = "belowSeverityThreshold";
+  public static final String SKIPPED_OUT_OF_DIFF = "outOfDiff";
+  public static final String SKIPPED_ALREADY_PRESENT = "alreadyPresent";
+  public static final String SKIPPED_ISSUE_THRESHOLD = "issueThreshold";
+
+  private static final Comparator<PlannedComment> SEVERITY_ORDER = new Comparator<PlannedComment>() {
+    @Override
+    public int compare(PlannedComment comment1, PlannedComment comment2) {
+      return Integer.compare(comment2.getSeverityOrdinal(), comment1.getSeverityOrdinal());
+    }
+  };
+
+  private final List<PlannedComment> candidates = new ArrayList<>();
+  private final List<PlannedComment> comments = new ArrayList<>();
+  private final List<PlannedComment> notDisplayedComments = new ArrayList<>();
+  private final List<PlannedComment> postedComments = new ArrayList<>();
+  private final List<PlannedComment> failedComments = new ArrayList<>();
+  private final List<PlannedComment> abandonedComments = new ArrayList<>();
+  private final List<PlannedComment> deferredComments = new ArrayList<>();
+  private final Map<String, List<SonarQubeIssue>> skippedIssues = new LinkedHashMap<>();
+  private final int[] notDisplayedBySeverity = new int[Severity.ALL.size()];
+  private final Map<String, Long> phaseTimings = new LinkedHashMap<>();
+  private int alreadyPresent;
+  private String degradationReason;
+  private int getRequests;
+
+  /**
+   * Copy of the plan as it is now: it can be read from another thread while this plan is updated by the posting.
+   */
+  public PostingPlan snapshot() {
+    PostingPlan result = new PostingPlan();
+    result.candidates.addAll(candidates);
+    result.comments.addAll(comments);
+    result.notDisplayedComments.addAll(notDisplayedComments);
+    result.postedComments.addAll(postedComments);
+    result.failedComments.addAll(failedComments);
+    result.abandonedComments.addAll(abandonedComments);
+    result.deferredComments.addAll(deferredComments);
+    for (Map.Entry<String, List<SonarQubeIssue>> entry : skippedIssues.entrySet()) {
+      result.skippedIssues.put(entry.getKey(), new ArrayList<>(entry.getValue()));
+    }
+    System.arraycopy(notDisplayedBySeverity, 0, result.notDisplayedBySeverity, 0, notDisplayedBySeverity.length);
+    result.phaseTimings.putAll(phaseTimings);
+    result.alreadyPresent = alreadyPresent;
+    result.degradationReason = degradationReason;
+    result.getRequests = getRequests;
+    return result;
+  }
+
+  public void addCandidate(PlannedComment comment) {
+    candidates.add(comment);
+  }
+
+  public void skipBelowSeverityThreshold(SonarQubeIssue issue) {
+    skip(SKIPPED_BELOW_SEVERITY_THRESHOLD, issue);
+  }
+
+  public void skipOutOfDiff(SonarQubeIssue issue) {
+    skip(SKIPPED_OUT_OF_DIFF, issue);
+  }
+
+  /**
+   * Comment already displayed on the pull-request by a previous analysis: it counts in the issue threshold.
+   * @param issues SonarQube issues reported by the comment
+   */
+  public void skipAlreadyPresent(List<SonarQubeIssue> issues) {
+    alreadyPresent++;
+    for (SonarQubeIssue issue : issues) {
+      skip(SKIPPED_ALREADY_PRESENT, issue);
+    }
+  }
+
+  private void skip(String reason, SonarQubeIssue issue) {
+    List<SonarQubeIssue> issues = skippedIssues.get(reason);
+    if (issues == null) {
+      issues = new ArrayList<>();
+      skippedIssues.put(reason, issues);
+    }
+    issues.add(issue);
+  }
+
+  /**
+   * Keep the most severe candidates within the issue threshold. Candidates of a same severity are kept in order,
+   * and kept comments are posted in the order they have been planned.
+   */
+  public void applyThreshold(int issueThreshold) {
+    List<PlannedComment> ranked = new ArrayList<>(candidates);
+    Collections.sort(ranked, SEVERITY_ORDER);
+
+    int budget = Math.max(0, issueThreshold - alreadyPresent);
+    Set<PlannedComment> kept = Collections.newSetFromMap(new IdentityHashMap<PlannedComment, Boolean>());
+    for (PlannedComment comment : ranked) {
+      if (kept.size() < budget) {
+        kept.add(comment);
+      } else {
+        skipIssueThreshold(comment);
+      }
+    }
+
+    for (PlannedComment comment : candidates) {
+      if (kept.contains(comment)) {
+        comments.add(comment);
+      }
+    }
+    candidates.clear();
+  }
+
+  /**
+   * Resume the plan of a previous run on the same pull-request commit, with the same candidates, instead of applying the issue threshold:
+   * candidates are sorted out according to what the previous run planned and posted.
+   * Candidates unknown to the previous plan were already present on the pull-request when it was computed.
+   * @param planned fingerprints of the comments planned by the previous run
+   * @param cut fingerprints of the comments left out by the issue threshold
+   * @param posted fingerprints of the comments already posted by the previous run
+   */
+  public void applyPreviousPlan(Set<String> planned, Set<String> cut, Set<String> posted) {
+    for (PlannedComment comment : candidates) {
+      String fingerprint = comment.getFingerprint();
+      if (posted.contains(fingerprint)) {
+        skipAlreadyPresent(comment.getIssues());
+      } else if (planned.contains(fingerprint)) {
+        comments.add(comment);
+      } else if (cut.contains(fingerprint)) {
+        skipIssueThreshold(comment);
+      } else {
+        skipAlreadyPresent(comment.getIssues());
+      }
+    }
+    candidates.clear();
+  }
+
+  /**
+   * A planned comment turns out to be already present on the pull-request, e.g. posted by an interrupted run:
+   * it is not posted again.
+   */
+  public void skipAlreadyPresent(PlannedComment comment) {
+    if (comments.remove(comment)) {
+      skipAlreadyPresent(comment.getIssues());
+    }
+  }
+
+  private void skipIssueThreshold(PlannedComment comment) {
+    notDisplayedComments.add(comment);
+    for (SonarQubeIssue issue : comment.getIssues()) {
+      if (issue.getSeverityOrdinal() != SonarQubeIssue.UNKNOWN_SEVERITY) {
+        notDisplayedBySeverity[issue.getSeverityOrdinal()]++;
+      }
+      skip(SKIPPED_ISSUE_THRESHOLD, issue);
+    }
+  }
+
+  /**
+   * Post the most severe comments first, e.g. when the time left may not be enough to post them all.
+   * Comments of a same severity are kept in planning order.
+   */
+  public void prioritizeBySeverity() {
+    Collections.sort(comments, SEVERITY_ORDER);
+  }
+
+  /**
+   * Candidate comments, until the issue threshold or a previous plan is applied.
+   */
+  public List<PlannedComment> getCandidates() {
+    return Collections.unmodifiableList(candidates);
+  }
+
+  /**
+   * Comments to post, in planning order unless prioritized by severity.
+   */
+  public List<PlannedComment> getComments() {
+    return comments;
+  }
+
+  /**
+   * Comments left out because the issue threshold is reached.
+   */
+  public List<PlannedComment> getNotDisplayedComments() {
+    return notDisplayedComments;
+  }
+
+  public void markPosted(PlannedComment comment) {
+    postedComments.add(comment);
+  }
+
+  /**
+   * Comment which could not be created, even when retried.
+   */
+  public void markFailed(PlannedComment comment) {
+    failedComments.add(comment);
+  }
+
+  /**
+   * Comment which has not been tried because the error budget was exhausted.
+   */
+  public void markAbandoned(PlannedComment comment) {
+    abandonedComments.add(comment);
+  }
+
+  /**
+   * Comment which has not been tried because Stash was overloaded: it is left to the next analysis.
+   */
+  public void markDeferred(PlannedComment comment) {
+    deferredComments.add(comment);
+  }
+
+  public List<PlannedComment> getDeferredComments() {
+    return deferredComments;
+  }
+
+  /**
+   * Why comments have been deferred, see {@link #getDeferredComments()}.
+   */
+  public void setDegradationReason(String degradationReason) {
+    this.degradationReason = degradationReason;
+  }
+
+  /**
+   * @return null if the posting has not been degraded
+   */
+  public String getDegradationReason() {
+    return degradationReason;
+  }
+
+  public List<PlannedComment> getPostedComments() {
+    return postedComments;
+  }
+
+  public List<PlannedComment> getFailedComments() {
+    return failedComments;
+  }
+
+  public List<PlannedComment> getAbandonedComments() {
+    return abandonedComments;
+  }
+
+  /**
+   * Issues left out for the given reason (see SKIPPED_* constants), in planning order.
+   */
+  public List<SonarQubeIssue> getSkippedIssues(String reason) {
+    List<SonarQubeIssue> issues = skippedIssues.get(reason);
+    return (issues == null) ? Collections.<SonarQubeIssue>emptyList() : Collections.unmodifiableList(issues);
+  }
+
+  public int countBelowSeverityThreshold() {
+    return getSkippedIssues(SKIPPED_BELOW_SEVERITY_THRESHOLD).size();
+  }
+
+  public int countOutOfDiff() {
+    return getSkippedIssues(SKIPPED_OUT_OF_DIFF).size();
+  }
+
+  /**
+   * Number of comments (not issues) already displayed on the pull-request.
+   */
+  public int countAlreadyPresent() {
+    return alreadyPresent;
+  }
+
+  /**
+   * Issues which belong to the diff view but are not posted because the issue threshold is reached.
+   */
+  public int countNotDisplayed() {
+    return getSkippedIssues(SKIPPED_ISSUE_THRESHOLD).size();
+  }
+
+  public int countNotDisplayed(String severity) {
+    int index = Severity.ALL.indexOf(severity);
+    return (index < 0) ? 0 : notDisplayedBySeverity[index];
+  }
+
+  /**
+   * Number of tasks to create on the planned comments.
+   */
+  public int countTasks() {
+    int result = 0;
+    for (PlannedComment comment : comments) {
+      if (comment.getTaskMessage() != null) {
+        result++;
+      }
+    }
+    return result;
+  }
+
+  public void addGetRequests(int count) {
+    getRequests += count;
+  }
+
+  /**
+   * GET requests sent to Stash to compute the plan. Paginated comment lists count for one request.
+   */
+  public int countGetRequests() {
+    return getRequests;
+  }
+
+  public void recordPhase(String phase, long durationMillis) {
+    Long previous = phaseTimings.get(phase);
+    phaseTimings.put(phase, (previous == null) ? durationMillis : previous + durationMillis);
+  }
+
+  /**
+   * Duration in milliseconds of each planning phase, in execution order.
+   */
+  public Map<String, Long> getPhaseTimings() {
+    return Collections.unmodifiableMap(phaseTimings);
+  }
+
+}
@@ -0,0 +1,96 @@
+package org.sonar.plugins.stash.issue;
+
+import java.util.Map;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+
+/**
+ * Build the JSON description of a posting plan, as written by dry runs.
+ */
+public final class PostingPlanPrinter {
+
+  private static final String[] SKIPPED_REASONS = {PostingPlan.SKIPPED_BELOW_SEVERITY_THRESHOLD, PostingPlan.SKIPPED_OUT_OF_DIFF, PostingPlan.SKIPPED_ALREADY_PRESENT,
+    PostingPlan.SKIPPED_ISSUE_THRESHOLD};
+
+  private PostingPlanPrinter() {
+    // DO NOTHING
+  }
+
+  /**
+   * @param reportRequests number of overview and summary comments which would be posted along with the plan
+   */
+  public static JSONObject printPlanJson(PostingPlan plan, int issueThreshold, int reportRequests) {
+    JSONObject json = new JSONObject();
+    json.put("issueThreshold", issueThreshold);
+
+    JSONArray comments = new JSONArray();
+    for (PlannedComment comment : plan.getComments()) {
+      comments.add(printCommentJson(comment));
+    }
+    json.put("comments", comments);
+
+    JSONArray skipped = new JSONArray();
+    JSONObject skippedCounts = new JSONObject();
+    for (String reason : SKIPPED_REASONS) {
+      for (SonarQubeIssue issue : plan.getSkippedIssues(reason)) {
+        JSONObject skippedIssue = printIssueJson(issue);
+        skippedIssue.put("reason", reason);
+        skipped.add(skippedIssue);
+      }
+      skippedCounts.put(reason, plan.getSkippedIssues(reason).size());
+    }
+    json.put("skipped", skipped);
+    json.put("skippedCounts", skippedCounts);
+
+    JSONObject requests = new JSONObject();
+    requests.put("get", plan.countGetRequests());
+    requests.put("post", countPostRequests(plan, reportRequests));
+    requests.put("comments", plan.getComments().size());
+    requests.put("tasks", plan.countTasks());
+    json.put("requests", requests);
+
+    JSONObject timings = new JSONObject();
+    for (Map.Entry<String, Long> phase : plan.getPhaseTimings().entrySet()) {
+      timings.put(phase.getKey(), phase.getValue());
+    }
+    json.put("timingsMillis", timings);
+
+    return json;
+  }
+
+  /**
+   * POST requests needed to apply the plan: one per comment and per task, plus overview and summary.
+   */
+  public static int countPostRequests(PostingPlan plan, int reportRequests) {
+    return plan.getComments().size() + plan.countTasks() + reportRequests;
+  }
+
+  private static JSONObject printCommentJson(PlannedComment comment) {
+    JSONObject json = new JSONObject();
+    json.put("path", comment.getPath());
+    json.put("line", comment.getLine());
+    json.put("type", comment.getType());
+    if (comment.getTaskMessage() != null) {
+      json.put("task", comment.getTaskMessage());
+    }
+
+    JSONArray issues = new JSONArray();
+    for (SonarQubeIssue issue : comment.getIssues()) {
+      issues.add(printIssueJson(issue));
+    }
+    json.put("issues", issues);
+
+    return json;
+  }
+
+  private static JSONObject printIssueJson(SonarQubeIssue issue) {
+    JSONObject json = new JSONObject();
+    json.put("path", issue.getPath());
+    json.put("line", issue.getLine());
+    json.put("severity", issue.getSeverity());
+    json.put("rule", issue.getRule());
+    return json;
+  }
+
+}
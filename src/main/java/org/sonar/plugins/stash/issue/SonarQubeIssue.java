@@ -1,25 +1,56 @@
 package org.sonar.plugins.stash.issue;
 
+import org.sonar.api.rule.Severity;
+
+/**
+ * Compact representation of a SonarQube issue.
+ * 
+ * Severity is kept as its index in {@link Severity#ALL} so that severity filters can be
+ * applied with a bitmask (see {@link #hasSeverityIn(int)}). Rule keys and paths
+ * are expected to be shared through a {@link SymbolTable} by the collector.
+ */
 public class SonarQubeIssue {
 
+  /**
+   * Index of a severity which is not one of {@link Severity#ALL}: it matches no severity filter.
+   */
+  public static final int UNKNOWN_SEVERITY = -1;
+
   private final String message;
-  private final String severity;
   private final String rule;
-  private final long line;
   private final String path;
+  private final int line;
+  private final byte severity;
 
-  public SonarQubeIssue(String severity, String message, String rule, String path, long line) {
+  public SonarQubeIssue(String severity, String message, String rule, String path, int line) {
     this.message = message;
-    this.severity = severity;
+    this.severity = (byte) Severity.ALL.indexOf(severity);
     this.rule = rule;
     this.path = path;
     this.line = line;
   }
 
+  /**
+   * @return one of {@link Severity#ALL}, null if the severity of the issue is not one of them
+   */
   public String getSeverity() {
+    return (severity == UNKNOWN_SEVERITY) ? null : Severity.ALL.get(severity);
+  }
+
+  /**
+   * @return index of the severity in {@link Severity#ALL}, {@link #UNKNOWN_SEVERITY} if it is not one of them
+   */
+  public int getSeverityOrdinal() {
     return severity;
   }
 
+  /**
+   * @param severityMask bitmask of accepted {@link Severity#ALL} indexes
+   */
+  public boolean hasSeverityIn(int severityMask) {
+    return severity != UNKNOWN_SEVERITY && (severityMask & (1 << severity)) != 0;
+  }
+
   public String getMessage() {
     return message;
   }
@@ -28,7 +59,7 @@ public class SonarQubeIssue {
     return rule;
   }
 
-  public long getLine() {
+  public int getLine() {
     return line;
   }
 
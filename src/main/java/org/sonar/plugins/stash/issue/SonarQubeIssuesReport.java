@@ -1,22 +1,49 @@
 package org.sonar.plugins.stash.issue;
 
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
-import org.apache.commons.lang3.StringUtils;
+import org.sonar.api.rule.Severity;
 
 public class SonarQubeIssuesReport {
 
   private final List<SonarQubeIssue> issues;
 
+  // Aggregates are maintained on each add(), indexed by severity ordinal, so that overview
+  // and summary do not need to scan the whole issue list once per severity.
+  private final int[] issueCountBySeverity;
+  private final List<List<SonarQubeIssue>> issuesBySeverity;
+  private final List<Map<String, SonarQubeIssue>> uniqueRulesBySeverity;
+
   public SonarQubeIssuesReport() {
     this.issues = new ArrayList<>();
+    this.issueCountBySeverity = new int[Severity.ALL.size()];
+    this.issuesBySeverity = new ArrayList<>(Severity.ALL.size());
+    this.uniqueRulesBySeverity = new ArrayList<>(Severity.ALL.size());
+    for (int i = 0; i < Severity.ALL.size(); i++) {
+      issuesBySeverity.add(new ArrayList<SonarQubeIssue>());
+      uniqueRulesBySeverity.add(new LinkedHashMap<String, SonarQubeIssue>());
+    }
   }
 
   public void add(SonarQubeIssue issue) {
     issues.add(issue);
+
+    // an issue with an unknown severity is only counted in the total
+    int severity = issue.getSeverityOrdinal();
+    if (severity == SonarQubeIssue.UNKNOWN_SEVERITY) {
+      return;
+    }
+    issueCountBySeverity[severity]++;
+    issuesBySeverity.get(severity).add(issue);
+
+    Map<String, SonarQubeIssue> rules = uniqueRulesBySeverity.get(severity);
+    if (!rules.containsKey(issue.getRule())) {
+      rules.put(issue.getRule(), issue);
+    }
   }
 
   public List<SonarQubeIssue> getIssues() {
@@ -24,14 +51,11 @@ public class SonarQubeIssuesReport {
   }
 
   public List<SonarQubeIssue> getIssuesBySeverity(String severity) {
-    List<SonarQubeIssue> result = new ArrayList<>();
-    for (SonarQubeIssue issue : issues) {
-      if (StringUtils.equals(severity, issue.getSeverity())) {
-        result.add(issue);
-      }
+    int index = Severity.ALL.indexOf(severity);
+    if (index == SonarQubeIssue.UNKNOWN_SEVERITY) {
+      return Collections.emptyList();
     }
-
-    return result;
+    return Collections.unmodifiableList(issuesBySeverity.get(index));
   }
 
   public int countIssues() {
@@ -39,20 +63,19 @@ public class SonarQubeIssuesReport {
   }
 
   public int countIssues(String severity) {
-    return getIssuesBySeverity(severity).size();
+    int index = Severity.ALL.indexOf(severity);
+    return (index == SonarQubeIssue.UNKNOWN_SEVERITY) ? 0 : issueCountBySeverity[index];
   }
 
   /**
-   * Extract rule list according to a severity.
+   * Extract rule list according to a severity: first issue raised for each rule, in raising order.
    */
   public Map<String, SonarQubeIssue> getUniqueRulesBySeverity(String severity) {
-    Map<String, SonarQubeIssue> result = new HashMap<>();
-
-    for (SonarQubeIssue issue : getIssuesBySeverity(severity)) {
-      result.put(issue.getRule(), issue);
+    int index = Severity.ALL.indexOf(severity);
+    if (index == SonarQubeIssue.UNKNOWN_SEVERITY) {
+      return Collections.emptyMap();
     }
-
-    return result;
+    return Collections.unmodifiableMap(uniqueRulesBySeverity.get(index));
   }
 
 }
@@ -3,12 +3,21 @@ package org.sonar.plugins.stash.issue;
 public class StashComment {
 
   private final long id;
+  private final long version;
   private final String message;
   private final String path;
   private long line;
 
   public StashComment(long id, String message, String path, Long line) {
+    this(id, 0, message, path, line);
+  }
+
+  /**
+   * @param version version of the comment, expected by Stash to update it
+   */
+  public StashComment(long id, long version, String message, String path, Long line) {
     this.id = id;
+    this.version = version;
     this.message = message;
     this.path = path;
 
@@ -24,6 +33,10 @@ public class StashComment {
     return id;
   }
 
+  public long getVersion() {
+    return version;
+  }
+
   public void setLine(long line) {
     this.line = line;
   }
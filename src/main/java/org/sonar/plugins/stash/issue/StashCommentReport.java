@@ -33,15 +33,50 @@ public class StashCommentReport {
     }
   }
 
+  /**
+   * Copy of the report and of its comments, which can be modified independently, e.g. by {@link #applyDiffReport(StashDiffReport)}.
+   */
+  public StashCommentReport copy() {
+    StashCommentReport result = new StashCommentReport();
+    for (StashComment comment : comments) {
+      result.add(new StashComment(comment.getId(), comment.getVersion(), comment.getMessage(), comment.getPath(), comment.getLine()));
+    }
+    return result;
+  }
+
   public boolean contains(String message, String path, long line) {
+    return find(message, path, line) != null;
+  }
+
+  /**
+   * @return null if not found
+   */
+  public StashComment find(String message, String path, long line) {
     for (StashComment comment : comments) {
       if (StringUtils.equals(comment.getMessage(), message)
         && StringUtils.equals(comment.getPath(), path)
         && comment.getLine() == line) {
-        return true;
+        return comment;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * @return number of lines equal to the given text in the comments on the file, whatever their other lines and their anchor
+   */
+  public int countLines(String text, String path) {
+    int count = 0;
+    for (StashComment comment : comments) {
+      if (StringUtils.equals(comment.getPath(), path) && comment.getMessage() != null) {
+        for (String line : StringUtils.split(comment.getMessage(), "\r\n")) {
+          if (StringUtils.equals(StringUtils.trim(line), text)) {
+            count++;
+          }
+        }
       }
     }
-    return false;
+    return count;
   }
 
   public StashCommentReport applyDiffReport(StashDiffReport diffReport) {
@@ -12,16 +12,31 @@ public class StashDiff {
   private final String path;
   private final long source;
   private final long destination;
+  private final int hunk;
   private final List<Long> commentIds;
 
   public StashDiff(String type, String path, long source, long destination) {
+    this(type, path, source, destination, 0);
+  }
+
+  /**
+   * @param hunk index of the hunk containing the line, within the file
+   */
+  public StashDiff(String type, String path, long source, long destination, int hunk) {
     this.type = type;
     this.path = path;
     this.source = source;
     this.destination = destination;
+    this.hunk = hunk;
     this.commentIds = new ArrayList<>();
   }
 
+  public StashDiff copy() {
+    StashDiff result = new StashDiff(type, path, source, destination, hunk);
+    result.commentIds.addAll(commentIds);
+    return result;
+  }
+
   public void addComment(long commentId) {
     this.commentIds.add(commentId);
   }
@@ -38,6 +53,10 @@ public class StashDiff {
     return destination;
   }
 
+  public int getHunk() {
+    return hunk;
+  }
+
   public String getType() {
     return type;
   }
@@ -35,6 +35,17 @@ public class StashDiffReport {
     }
   }
 
+  /**
+   * Copy of the report and of its diffs, which can be modified independently.
+   */
+  public StashDiffReport copy() {
+    StashDiffReport result = new StashDiffReport();
+    for (StashDiff diff : diffs) {
+      result.add(diff.copy());
+    }
+    return result;
+  }
+
   public String getType(String path, long destination) {
     for (StashDiff diff : diffs) {
       // Line 0 never belongs to Stash Diff view.
@@ -67,6 +78,18 @@ public class StashDiffReport {
     return 0;
   }
 
+  /**
+   * Index of the diff hunk containing the destination line, or -1 if the line does not belong to the diff view.
+   */
+  public int getHunk(String path, long destination) {
+    for (StashDiff diff : diffs) {
+      if (StringUtils.equals(diff.getPath(), path) && diff.getDestination() == destination) {
+        return diff.getHunk();
+      }
+    }
+    return -1;
+  }
+
   public StashDiff getDiffByComment(long commentId) {
     for (StashDiff diff : diffs) {
       if (diff.containsComment(commentId)) {
@@ -0,0 +1,30 @@
+package org.sonar.plugins.stash.issue;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Share identical strings (rule keys, file paths...) between issues of a same report.
+ * Unlike String.intern(), entries only live as long as the table.
+ */
+public class SymbolTable {
+
+  private final Map<String, String> symbols = new HashMap<>();
+
+  public String intern(String value) {
+    if (value == null) {
+      return null;
+    }
+    String symbol = symbols.get(value);
+    if (symbol == null) {
+      symbols.put(value, value);
+      symbol = value;
+    }
+    return symbol;
+  }
+
+  public int size() {
+    return symbols.size();
+  }
+
+}
@@ -1,6 +1,8 @@
 package org.sonar.plugins.stash.issue.collector;
 
 import java.io.File;
+import java.util.HashSet;
+import java.util.Set;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -11,6 +13,7 @@ import org.sonar.api.scan.filesystem.PathResolver;
 import org.sonar.plugins.stash.InputFileCache;
 import org.sonar.plugins.stash.issue.SonarQubeIssue;
 import org.sonar.plugins.stash.issue.SonarQubeIssuesReport;
+import org.sonar.plugins.stash.issue.SymbolTable;
 
 public final class SonarQubeCollector {
 
@@ -27,13 +30,28 @@ public final class SonarQubeCollector {
    */
   public static SonarQubeIssuesReport extractIssueReport(ProjectIssues projectIssues, InputFileCache inputFileCache, File projectBaseDir) {
     SonarQubeIssuesReport result = new SonarQubeIssuesReport();
+    extractIssueReport(projectIssues, inputFileCache, projectBaseDir, result, new HashSet<String>());
+    return result;
+  }
+
+  /**
+   * Add new issues to an existing report, e.g. the report of the modules already analyzed.
+   * @param reportedIssueKeys keys of the issues already in the report: these issues are not added twice
+   */
+  public static void extractIssueReport(ProjectIssues projectIssues, InputFileCache inputFileCache, File projectBaseDir, SonarQubeIssuesReport result,
+    Set<String> reportedIssueKeys) {
+    // Rule keys and paths are repeated across issues: share a single instance of each
+    SymbolTable symbols = new SymbolTable();
+    PathResolver pathResolver = new PathResolver();
 
     for (Issue issue : projectIssues.issues()) {
       if (!issue.isNew()) {
         LOGGER.debug("Issue {} is not a new issue and so, not added to the report", issue.key());
+      } else if (!reportedIssueKeys.add(issue.key())) {
+        LOGGER.debug("Issue {} is already in the report", issue.key());
       } else {
         String severity = issue.severity();
-        String rule = issue.ruleKey().toString();
+        String rule = symbols.intern(issue.ruleKey().toString());
         String message = issue.message();
 
         int line = 0;
@@ -45,7 +63,7 @@ public final class SonarQubeCollector {
         if (inputFile == null) {
           LOGGER.debug("Issue {} is not linked to a file, not added to the report", issue.key());
         } else {
-          String path = new PathResolver().relativePath(projectBaseDir, inputFile.file());
+          String path = symbols.intern(pathResolver.relativePath(projectBaseDir, inputFile.file()));
 
           // Create the issue and Add to report
           SonarQubeIssue stashIssue = new SonarQubeIssue(severity, message, rule, path, line);
@@ -53,7 +71,5 @@ public final class SonarQubeCollector {
         }
       }
     }
-
-    return result;
   }
 }
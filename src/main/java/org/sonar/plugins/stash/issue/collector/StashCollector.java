@@ -12,6 +12,11 @@ import org.sonar.plugins.stash.issue.StashCommentReport;
 import org.sonar.plugins.stash.issue.StashDiff;
 import org.sonar.plugins.stash.issue.StashDiffReport;
 
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
 public final class StashCollector {
 
   private StashCollector() {
@@ -50,6 +55,62 @@ public final class StashCollector {
     return result;
   }
 
+  /**
+   * Find a general comment (not attached to a file) in a page of pull-request activities.
+   * @param marker text the comment must contain
+   * @param author name of the comment author, null for any author
+   * @return the comment, null if none found in the page
+   */
+  public static StashComment extractGeneralComment(String jsonBody, String marker, String author) throws StashReportExtractionException {
+    return extractGeneralComments(jsonBody, Collections.singletonList(marker), author).get(marker);
+  }
+
+  /**
+   * Find the general comments (not attached to a file) with any of the markers in a page of pull-request activities.
+   * @param markers texts the comments must contain
+   * @param author name of the comment author, null for any author
+   * @return the first comment of the page containing each marker, by marker: a marker without comment is absent
+   */
+  public static Map<String, StashComment> extractGeneralComments(String jsonBody, Collection<String> markers, String author)
+    throws StashReportExtractionException {
+    Map<String, StashComment> result = new HashMap<>();
+
+    try {
+      JSONObject jsonActivities = (JSONObject) new JSONParser().parse(jsonBody);
+
+      JSONArray jsonValues = (JSONArray) jsonActivities.get("values");
+      if (jsonValues != null) {
+
+        for (Object obj : jsonValues.toArray()) {
+          JSONObject jsonActivity = (JSONObject) obj;
+          JSONObject jsonComment = (JSONObject) jsonActivity.get("comment");
+          if (!"COMMENTED".equals(jsonActivity.get("action")) || jsonComment == null || jsonActivity.get("commentAnchor") != null) {
+            continue;
+          }
+
+          String message = (String) jsonComment.get("text");
+          JSONObject jsonAuthor = (JSONObject) jsonComment.get("author");
+          String name = (jsonAuthor == null) ? null : (String) jsonAuthor.get("name");
+          if (author != null && !StringUtils.equals(author, name)) {
+            continue;
+          }
+
+          for (String marker : markers) {
+            if (!result.containsKey(marker) && StringUtils.contains(message, marker)) {
+              long id = (long) jsonComment.get("id");
+              Long version = (Long) jsonComment.get("version");
+              result.put(marker, new StashComment(id, (version == null) ? 0 : version, message, null, null));
+            }
+          }
+        }
+      }
+    } catch (ParseException e) {
+      throw new StashReportExtractionException(e);
+    }
+
+    return result;
+  }
+
   public static StashDiffReport extractDiffs(String jsonBody) throws StashReportExtractionException {
     StashDiffReport result = new StashDiffReport();
 
@@ -69,8 +130,10 @@ public final class StashCollector {
 
             JSONArray jsonHunks = (JSONArray) jsonDiff.get("hunks");
             if (jsonHunks != null) {
+              int hunk = 0;
               for (Object objHunk : jsonHunks.toArray()) {
                 JSONObject jsonHunk = (JSONObject) objHunk;
+                hunk++;
 
                 JSONArray jsonSegments = (JSONArray) jsonHunk.get("segments");
                 if (jsonSegments != null) {
@@ -91,7 +154,7 @@ public final class StashCollector {
                           long source = (long) jsonLine.get("source");
                           long destination = (long) jsonLine.get("destination");
 
-                          StashDiff diff = new StashDiff(type, path, source, destination);
+                          StashDiff diff = new StashDiff(type, path, source, destination, hunk);
 
                           JSONArray jsonCommentIds = (JSONArray) jsonLine.get("commentIds");
                           if (jsonCommentIds != null) {
@@ -118,6 +181,23 @@ public final class StashCollector {
     return result;
   }
 
+  /**
+   * Latest commit of the source branch of a pull-request ("fromRef").
+   */
+  public static String extractLatestCommit(String jsonBody) throws StashReportExtractionException {
+    try {
+      JSONObject jsonPullRequest = (JSONObject) new JSONParser().parse(jsonBody);
+      JSONObject jsonFromRef = (JSONObject) jsonPullRequest.get("fromRef");
+      if (jsonFromRef == null || jsonFromRef.get("latestCommit") == null) {
+        throw new StashReportExtractionException("No latest commit found for the pull-request source branch");
+      }
+      return (String) jsonFromRef.get("latestCommit");
+
+    } catch (ParseException e) {
+      throw new StashReportExtractionException(e);
+    }
+  }
+
   public static boolean isLastPage(String jsonBody) throws StashReportExtractionException {
     boolean result = true;
 
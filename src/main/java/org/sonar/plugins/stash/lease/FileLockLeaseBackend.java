@@ -0,0 +1,96 @@
+package org.sonar.plugins.stash.lease;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.StandardOpenOption;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Leases backed by file locks in a directory shared by the build agents, one lock file per key.
+ * Locks are released by the operating system if the build process dies.
+ * Lock files are never deleted: deleting a lock file would let two owners lock two different files.
+ */
+public class FileLockLeaseBackend implements LeaseBackend {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(FileLockLeaseBackend.class);
+
+  static final long POLL_INTERVAL_MILLIS = 200;
+
+  private final File directory;
+
+  public FileLockLeaseBackend(File directory) {
+    this.directory = directory;
+  }
+
+  @Override
+  public Lease acquire(String key, long timeoutMillis) throws IOException {
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException("Unable to create lease directory " + directory);
+    }
+    File file = getFile(key);
+    FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+
+    long deadline = System.currentTimeMillis() + timeoutMillis;
+    try {
+      while (true) {
+        FileLock lock = tryLock(channel);
+        if (lock != null) {
+          LOGGER.debug("Lease {} acquired", file);
+          return new FileLease(channel);
+        }
+
+        long remaining = deadline - System.currentTimeMillis();
+        if (remaining <= 0) {
+          channel.close();
+          return null;
+        }
+        Thread.sleep(Math.min(POLL_INTERVAL_MILLIS, remaining));
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      channel.close();
+      return null;
+    } catch (IOException | RuntimeException e) {
+      channel.close();
+      throw e;
+    }
+  }
+
+  File getFile(String key) {
+    return new File(directory, key.replaceAll("[^A-Za-z0-9._-]", "_") + ".lock");
+  }
+
+  private static FileLock tryLock(FileChannel channel) throws IOException {
+    try {
+      return channel.tryLock();
+    } catch (OverlappingFileLockException e) {
+      // already held in this JVM
+      return null;
+    }
+  }
+
+  private static class FileLease implements Lease {
+
+    private final FileChannel channel;
+
+    FileLease(FileChannel channel) {
+      this.channel = channel;
+    }
+
+    @Override
+    public void close() {
+      try {
+        // closing the channel releases its lock
+        channel.close();
+      } catch (IOException e) {
+        LOGGER.debug("Unable to release lease", e);
+      }
+    }
+  }
+
+}
@@ -0,0 +1,23 @@
+package org.sonar.plugins.stash.lease;
+
+import java.io.Closeable;
+
+/**
+ * Exclusive right to post on a pull-request, released on close.
+ */
+public interface Lease extends Closeable {
+
+  /**
+   * Lease used when no lease backend is configured: nothing to release.
+   */
+  Lease NONE = new Lease() {
+    @Override
+    public void close() {
+      // DO NOTHING
+    }
+  };
+
+  @Override
+  void close();
+
+}
@@ -0,0 +1,16 @@
+package org.sonar.plugins.stash.lease;
+
+import java.io.IOException;
+
+/**
+ * Storage of the leases shared by the builds which report to the same Stash instance.
+ */
+public interface LeaseBackend {
+
+  /**
+   * Acquire the lease of the given key, waiting at most the given timeout for its current owner to release it.
+   * @return the lease, null if it is still held by another owner after the timeout
+   */
+  Lease acquire(String key, long timeoutMillis) throws IOException;
+
+}
@@ -0,0 +1,72 @@
+package org.sonar.plugins.stash;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class LoadSheddingPolicyTest {
+
+  @Test
+  public void testDisabled() {
+    LoadSheddingPolicy policy = LoadSheddingPolicy.disabled();
+    for (int i = 0; i < 2 * LoadSheddingPolicy.WINDOW; i++) {
+      policy.record(60000, true);
+    }
+    assertFalse(policy.isShedding());
+    assertNull(policy.getReason());
+  }
+
+  @Test
+  public void testSheddingOnLatency() {
+    LoadSheddingPolicy policy = new LoadSheddingPolicy(1000, 0);
+    for (int i = 0; i < LoadSheddingPolicy.WINDOW - 1; i++) {
+      policy.record(3000, false);
+    }
+    // not enough comments to judge
+    assertFalse(policy.isShedding());
+
+    policy.record(3000, false);
+    assertTrue(policy.isShedding());
+    assertEquals("average comment creation time of 3000 ms over the last 20 comments exceeds 1000 ms", policy.getReason());
+  }
+
+  @Test
+  public void testSheddingOnErrorRate() {
+    LoadSheddingPolicy policy = new LoadSheddingPolicy(1000, 50);
+    for (int i = 0; i < LoadSheddingPolicy.WINDOW; i++) {
+      policy.record(100, i % 2 == 1);
+    }
+    // 50% is not above the threshold
+    assertFalse(policy.isShedding());
+
+    policy.record(100, true);
+    assertTrue(policy.isShedding());
+    assertEquals("55% of the last 20 comment creations failed (threshold: 50.0%)", policy.getReason());
+  }
+
+  @Test
+  public void testSheddingIsNotRestored() {
+    LoadSheddingPolicy policy = new LoadSheddingPolicy(1000, 0);
+    for (int i = 0; i < LoadSheddingPolicy.WINDOW; i++) {
+      policy.record(3000, false);
+    }
+    for (int i = 0; i < LoadSheddingPolicy.WINDOW; i++) {
+      policy.record(10, false);
+    }
+    assertTrue(policy.isShedding());
+  }
+
+  @Test
+  public void testSlowCommentsAreAveraged() {
+    LoadSheddingPolicy policy = new LoadSheddingPolicy(1000, 0);
+    policy.record(10000, false);
+    for (int i = 0; i < 2 * LoadSheddingPolicy.WINDOW; i++) {
+      policy.record(100, false);
+    }
+    assertFalse(policy.isShedding());
+  }
+
+}
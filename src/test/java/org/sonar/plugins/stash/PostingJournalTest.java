@@ -0,0 +1,194 @@
+package org.sonar.plugins.stash;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.sonar.api.rule.Severity;
+import org.sonar.plugins.stash.issue.PlannedComment;
+import org.sonar.plugins.stash.issue.PostingPlan;
+import org.sonar.plugins.stash.issue.SonarQubeIssue;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class PostingJournalTest {
+
+  @Rule
+  public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  File file;
+
+  PlannedComment blocker;
+  PlannedComment major;
+  PlannedComment minor;
+  PlannedComment info;
+
+  @Before
+  public void setUp() throws Exception {
+    file = PostingJournal.getFile(temporaryFolder.newFolder("work"), "Project", "Repo/sitory", "1");
+
+    blocker = comment(Severity.BLOCKER, "message1", 1);
+    major = comment(Severity.MAJOR, "message2", 2);
+    minor = comment(Severity.MINOR, "message3", 3);
+    info = comment(Severity.INFO, "message4", 4);
+  }
+
+  private static PlannedComment comment(String severity, String message, int line) {
+    SonarQubeIssue issue = new SonarQubeIssue(severity, message, "rule", "path", line);
+    return new PlannedComment(message, "path", line, "CONTEXT", null, Collections.singletonList(issue));
+  }
+
+  private PostingPlan plan(int issueThreshold) {
+    PostingPlan plan = new PostingPlan();
+    plan.addCandidate(blocker);
+    plan.addCandidate(major);
+    plan.addCandidate(minor);
+    plan.addCandidate(info);
+    plan.applyThreshold(issueThreshold);
+    return plan;
+  }
+
+  @Test
+  public void testGetFile() {
+    assertEquals("stash-posting-journal-Project-Repo_sitory-1.log", file.getName());
+  }
+
+  @Test
+  public void testResumeOnSameCommit() throws Exception {
+    // major and minor are planned, info is cut by the threshold and blocker is posted before the interruption
+    PostingPlan plan = new PostingPlan();
+    plan.skipAlreadyPresent(blocker.getIssues());
+    plan.addCandidate(major);
+    plan.addCandidate(minor);
+    plan.addCandidate(info);
+    plan.applyThreshold(3);
+
+    PostingJournal journal = PostingJournal.open(file, "abc");
+    assertFalse(journal.isResumable("key"));
+    journal.writePlan("key", plan);
+    journal.commentPosted(major, 10L);
+    journal.close();
+
+    journal = PostingJournal.open(file, "abc");
+    assertTrue(journal.isResumable("key"));
+    assertFalse(journal.isResumable("otherKey"));
+
+    PostingPlan resumed = new PostingPlan();
+    resumed.addCandidate(blocker);
+    resumed.addCandidate(major);
+    resumed.addCandidate(minor);
+    resumed.addCandidate(info);
+    assertTrue(journal.resume(resumed));
+    journal.close();
+
+    assertEquals(1, resumed.getComments().size());
+    assertSame(minor, resumed.getComments().get(0));
+    assertEquals(2, resumed.countAlreadyPresent());
+    assertEquals(1, resumed.countNotDisplayed(Severity.INFO));
+  }
+
+  @Test
+  public void testResumeKeepsJournal() throws Exception {
+    PostingJournal journal = PostingJournal.open(file, "abc");
+    journal.writePlan("key", plan(4));
+    journal.commentPosted(blocker, 10L);
+    journal.close();
+
+    journal = PostingJournal.open(file, "abc");
+    PostingPlan resumed = new PostingPlan();
+    resumed.addCandidate(blocker);
+    resumed.addCandidate(major);
+    resumed.addCandidate(minor);
+    resumed.addCandidate(info);
+    assertTrue(journal.resume(resumed));
+    journal.commentPosted(major, 11L);
+    journal.close();
+
+    journal = PostingJournal.open(file, "abc");
+    resumed = new PostingPlan();
+    resumed.addCandidate(blocker);
+    resumed.addCandidate(major);
+    resumed.addCandidate(minor);
+    resumed.addCandidate(info);
+    assertTrue(journal.resume(resumed));
+    journal.close();
+
+    assertEquals(Arrays.asList(minor, info), resumed.getComments());
+  }
+
+  @Test
+  public void testResumeWithMissingCandidate() throws Exception {
+    PostingJournal journal = PostingJournal.open(file, "abc");
+    journal.writePlan("key", plan(4));
+    journal.commentPosted(blocker, 10L);
+    journal.close();
+
+    // minor is left to post but is not a candidate any more: the plan has to be computed again
+    journal = PostingJournal.open(file, "abc");
+    PostingPlan resumed = new PostingPlan();
+    resumed.addCandidate(major);
+    resumed.addCandidate(info);
+    assertFalse(journal.resume(resumed));
+    journal.close();
+
+    assertEquals(2, resumed.getCandidates().size());
+    assertTrue(resumed.getComments().isEmpty());
+  }
+
+  @Test
+  public void testGetPlanKey() {
+    String key = PostingJournal.getPlanKey(Arrays.asList(blocker, major), 100, Severity.MAJOR);
+
+    assertEquals(key, PostingJournal.getPlanKey(Arrays.asList(major, blocker), 100, Severity.MAJOR));
+    assertNotEquals(key, PostingJournal.getPlanKey(Arrays.asList(blocker, major, minor), 100, Severity.MAJOR));
+    assertNotEquals(key, PostingJournal.getPlanKey(Arrays.asList(blocker, major), 10, Severity.MAJOR));
+    assertNotEquals(key, PostingJournal.getPlanKey(Arrays.asList(blocker, major), 100, Severity.BLOCKER));
+  }
+
+  @Test
+  public void testOtherCommitIsDiscarded() throws Exception {
+    PostingJournal journal = PostingJournal.open(file, "abc");
+    journal.writePlan("key", plan(4));
+    journal.close();
+
+    journal = PostingJournal.open(file, "def");
+    assertFalse(journal.isResumable("key"));
+    journal.writePlan("key", plan(1));
+    journal.close();
+    // the journal of the previous commit is overwritten
+    assertEquals(4 + 1, Files.readAllLines(file.toPath(), StandardCharsets.UTF_8).size());
+  }
+
+  @Test
+  public void testIncompletePlanIsDiscarded() throws Exception {
+    Files.write(file.toPath(), "abc\tP\tfingerprint\nabc\tP\tfinger".getBytes(StandardCharsets.UTF_8));
+
+    PostingJournal journal = PostingJournal.open(file, "abc");
+    assertFalse(journal.isResumable(null));
+    assertFalse(journal.isResumable("key"));
+    journal.close();
+  }
+
+  @Test
+  public void testCommentPostedSyncsByBatches() throws Exception {
+    PostingJournal journal = PostingJournal.open(file, "abc");
+    journal.writePlan("key", plan(4));
+    for (int i = 0; i < PostingJournal.SYNC_BATCH + 1; i++) {
+      journal.commentPosted(blocker, (long) i);
+    }
+    journal.close();
+
+    assertEquals(4 + 1 + PostingJournal.SYNC_BATCH + 1, Files.readAllLines(file.toPath(), StandardCharsets.UTF_8).size());
+  }
+
+}
@@ -1,15 +1,22 @@
 package org.sonar.plugins.stash;
 
+import java.util.Arrays;
+import java.util.Collections;
+
 import org.junit.Before;
 import org.junit.Test;
 import org.mockito.Mock;
 import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 import org.sonar.api.batch.SensorContext;
 import org.sonar.api.issue.ProjectIssues;
 import org.sonar.api.resources.Project;
 import org.sonar.plugins.stash.client.StashClient;
 import org.sonar.plugins.stash.client.StashCredentials;
+import org.sonar.plugins.stash.issue.PostingPlan;
 import org.sonar.plugins.stash.issue.SonarQubeIssuesReport;
+import org.sonar.plugins.stash.lease.Lease;
 
 import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.*;
@@ -63,7 +70,9 @@ public class StashIssueReportingPostJobTest {
     when(stashRequestFacade.getStashProject()).thenReturn(STASH_PROJECT);
     when(stashRequestFacade.getStashRepository()).thenReturn(STASH_REPOSITORY);
     when(stashRequestFacade.getStashPullRequestId()).thenReturn(STASH_PULLREQUEST_ID);
+    when(stashRequestFacade.getStashPullRequestIds()).thenReturn(Collections.singletonList(STASH_PULLREQUEST_ID));
     when(stashRequestFacade.getCredentials()).thenReturn(new StashCredentials(STASH_LOGIN, STASH_PASSWORD));
+    when(stashRequestFacade.acquirePostingLease(STASH_PROJECT, STASH_REPOSITORY, STASH_PULLREQUEST_ID)).thenReturn(Lease.NONE);
   }
 
   @Test
@@ -81,10 +90,10 @@ public class StashIssueReportingPostJobTest {
     myJob = new StashIssueReportingPostJob(config, projectIssues, inputFileCache, stashRequestFacade);
     myJob.executeOn(project, context);
 
-    verify(stashRequestFacade, times(1)).postCommentPerIssue(eq(STASH_PROJECT), eq(STASH_REPOSITORY), eq(STASH_PULLREQUEST_ID), eq(SONARQUBE_URL), eq(report),
-      (StashClient) Mockito.anyObject());
+    verify(stashRequestFacade, times(1)).postCommentPerIssue(eq(STASH_PROJECT), eq(STASH_REPOSITORY), eq(STASH_PULLREQUEST_ID), eq(SONARQUBE_URL), eq(issueThreshold), eq(report),
+      (StashClient) Mockito.anyObject(), (PostingPlanListener) Mockito.anyObject());
     verify(stashRequestFacade, times(1)).postAnalysisOverview(eq(STASH_PROJECT), eq(STASH_REPOSITORY), eq(STASH_PULLREQUEST_ID), eq(SONARQUBE_URL), eq(issueThreshold), eq(report),
-      (StashClient) Mockito.anyObject());
+      (PostingPlan) Mockito.anyObject(), (StashClient) Mockito.anyObject());
   }
 
   @Test
@@ -99,13 +108,243 @@ public class StashIssueReportingPostJobTest {
     int issueThreshold = 100;
     when(stashRequestFacade.getIssueThreshold()).thenReturn(issueThreshold);
 
+    PostingPlan plan = spy(new PostingPlan());
+    PostingPlan snapshot = new PostingPlan();
+    doReturn(snapshot).when(plan).snapshot();
+    when(stashRequestFacade.postCommentPerIssue(eq(STASH_PROJECT), eq(STASH_REPOSITORY), eq(STASH_PULLREQUEST_ID), eq(SONARQUBE_URL), eq(issueThreshold), eq(report),
+      (StashClient) Mockito.anyObject(), (PostingPlanListener) Mockito.anyObject())).thenReturn(plan);
+
     myJob = new StashIssueReportingPostJob(config, projectIssues, inputFileCache, stashRequestFacade);
     myJob.executeOn(project, context);
 
-    verify(stashRequestFacade, times(0)).postCommentPerIssue(eq(STASH_PROJECT), eq(STASH_REPOSITORY), eq(STASH_PULLREQUEST_ID), eq(SONARQUBE_URL), eq(report),
-      (StashClient) Mockito.anyObject());
+    // most severe issues are still posted, the plan is forwarded to the overview to report the others
+    verify(stashRequestFacade, times(1)).postCommentPerIssue(eq(STASH_PROJECT), eq(STASH_REPOSITORY), eq(STASH_PULLREQUEST_ID), eq(SONARQUBE_URL), eq(issueThreshold), eq(report),
+      (StashClient) Mockito.anyObject(), (PostingPlanListener) Mockito.anyObject());
     verify(stashRequestFacade, times(1)).postAnalysisOverview(eq(STASH_PROJECT), eq(STASH_REPOSITORY), eq(STASH_PULLREQUEST_ID), eq(SONARQUBE_URL), eq(issueThreshold), eq(report),
+      eq(snapshot), (StashClient) Mockito.anyObject());
+  }
+
+  @Test
+  public void testExecuteOnPostsOverviewFirstWithTimeBudget() throws Exception {
+    when(config.hasToNotifyStash()).thenReturn(true);
+    when(config.hasToDisplayAnalysisOverview()).thenReturn(true);
+    when(config.getTotalTimeBudget()).thenReturn(60000L);
+
+    final SonarQubeIssuesReport report = mock(SonarQubeIssuesReport.class);
+    when(stashRequestFacade.extractIssueReport(projectIssues, inputFileCache)).thenReturn(report);
+
+    final int issueThreshold = 100;
+    when(stashRequestFacade.getIssueThreshold()).thenReturn(issueThreshold);
+
+    final PostingPlan plan = new PostingPlan();
+    when(stashRequestFacade.postCommentPerIssue(eq(STASH_PROJECT), eq(STASH_REPOSITORY), eq(STASH_PULLREQUEST_ID), eq(SONARQUBE_URL), eq(issueThreshold), eq(report),
+      (StashClient) Mockito.anyObject(), (PostingPlanListener) Mockito.anyObject())).thenAnswer(new Answer<PostingPlan>() {
+        @Override
+        public PostingPlan answer(InvocationOnMock invocation) {
+          // the overview is posted before the pull-request diff is read
+          verify(stashRequestFacade, timeout(5000)).postAnalysisOverview(eq(STASH_PROJECT), eq(STASH_REPOSITORY), eq(STASH_PULLREQUEST_ID), eq(SONARQUBE_URL),
+            eq(issueThreshold), eq(report), (PostingPlan) isNull(), (StashClient) Mockito.anyObject());
+          ((PostingPlanListener) invocation.getArguments()[7]).planned(plan);
+          return plan;
+        }
+      });
+
+    myJob = new StashIssueReportingPostJob(config, projectIssues, inputFileCache, stashRequestFacade);
+    myJob.executeOn(project, context);
+
+    // every issue is displayed: the plan does not change the overview
+    verify(stashRequestFacade, times(1)).postAnalysisOverview(anyString(), anyString(), anyString(), anyString(), anyInt(), (SonarQubeIssuesReport) Mockito.anyObject(),
+      (PostingPlan) Mockito.anyObject(), (StashClient) Mockito.anyObject());
+  }
+
+  @Test
+  public void testExecuteOnPostsOverviewWhileCommentsArePosted() throws Exception {
+    when(config.hasToNotifyStash()).thenReturn(true);
+    when(config.hasToDisplayAnalysisOverview()).thenReturn(true);
+    when(config.hasToDisplayAnalysisSummary()).thenReturn(true);
+
+    final SonarQubeIssuesReport report = mock(SonarQubeIssuesReport.class);
+    when(stashRequestFacade.extractIssueReport(projectIssues, inputFileCache)).thenReturn(report);
+
+    final int issueThreshold = 100;
+    when(stashRequestFacade.getIssueThreshold()).thenReturn(issueThreshold);
+
+    final PostingPlan plan = spy(new PostingPlan());
+    // the reports are posted from a copy of the plan, which the posting does not update
+    final PostingPlan snapshot = new PostingPlan();
+    doReturn(snapshot).when(plan).snapshot();
+    when(stashRequestFacade.postCommentPerIssue(eq(STASH_PROJECT), eq(STASH_REPOSITORY), eq(STASH_PULLREQUEST_ID), eq(SONARQUBE_URL), eq(issueThreshold), eq(report),
+      (StashClient) Mockito.anyObject(), (PostingPlanListener) Mockito.anyObject())).thenAnswer(new Answer<PostingPlan>() {
+        @Override
+        public PostingPlan answer(InvocationOnMock invocation) {
+          ((PostingPlanListener) invocation.getArguments()[7]).planned(plan);
+
+          // overview and summary are posted together, before the comments are
+          verify(stashRequestFacade, timeout(5000)).postAnalysisOverviewAndSummary(eq(STASH_PROJECT), eq(STASH_REPOSITORY), eq(STASH_PULLREQUEST_ID),
+            eq(SONARQUBE_URL), eq(issueThreshold), eq(report), eq(snapshot), (StashClient) Mockito.anyObject());
+          return plan;
+        }
+      });
+
+    myJob = new StashIssueReportingPostJob(config, projectIssues, inputFileCache, stashRequestFacade);
+    myJob.executeOn(project, context);
+
+    // the plan returned once the comments are posted does not start the reports again
+    verify(stashRequestFacade, times(1)).postAnalysisOverviewAndSummary(eq(STASH_PROJECT), eq(STASH_REPOSITORY), eq(STASH_PULLREQUEST_ID), eq(SONARQUBE_URL),
+      eq(issueThreshold), eq(report), eq(snapshot), (StashClient) Mockito.anyObject());
+    verify(stashRequestFacade, never()).postAnalysisOverview(anyString(), anyString(), anyString(), anyString(), anyInt(), (SonarQubeIssuesReport) Mockito.anyObject(),
+      (PostingPlan) Mockito.anyObject(), (StashClient) Mockito.anyObject());
+    verify(stashRequestFacade, never()).postAnalysisSummary(anyString(), anyString(), anyString(), anyInt(), (SonarQubeIssuesReport) Mockito.anyObject(),
+      (PostingPlan) Mockito.anyObject(), (StashClient) Mockito.anyObject());
+  }
+
+  @Test
+  public void testExecuteOnWithSeveralPullRequests() throws Exception {
+    when(config.hasToNotifyStash()).thenReturn(true);
+    when(config.hasToDisplayAnalysisOverview()).thenReturn(true);
+    when(stashRequestFacade.getStashPullRequestIds()).thenReturn(Arrays.asList("1", "2"));
+    when(stashRequestFacade.acquirePostingLease(STASH_PROJECT, STASH_REPOSITORY, "2")).thenReturn(Lease.NONE);
+
+    SonarQubeIssuesReport report = mock(SonarQubeIssuesReport.class);
+    when(stashRequestFacade.extractIssueReport(projectIssues, inputFileCache)).thenReturn(report);
+
+    int issueThreshold = 100;
+    when(stashRequestFacade.getIssueThreshold()).thenReturn(issueThreshold);
+
+    myJob = new StashIssueReportingPostJob(config, projectIssues, inputFileCache, stashRequestFacade);
+    myJob.executeOn(project, context);
+
+    // the same issue report is posted to each pull-request
+    for (String pullRequestId : Arrays.asList("1", "2")) {
+      verify(stashRequestFacade, times(1)).postCommentPerIssue(eq(STASH_PROJECT), eq(STASH_REPOSITORY), eq(pullRequestId), eq(SONARQUBE_URL), eq(issueThreshold), eq(report),
+        (StashClient) Mockito.anyObject(), (PostingPlanListener) Mockito.anyObject());
+      verify(stashRequestFacade, times(1)).postAnalysisOverview(eq(STASH_PROJECT), eq(STASH_REPOSITORY), eq(pullRequestId), eq(SONARQUBE_URL), eq(issueThreshold), eq(report),
+        (PostingPlan) Mockito.anyObject(), (StashClient) Mockito.anyObject());
+    }
+  }
+
+  @Test
+  public void testExecuteOnModule() throws Exception {
+    when(config.hasToNotifyStash()).thenReturn(true);
+    when(config.hasToDisplayAnalysisOverview()).thenReturn(true);
+
+    SonarQubeIssuesReport report = mock(SonarQubeIssuesReport.class);
+    when(stashRequestFacade.extractIssueReport(projectIssues, inputFileCache)).thenReturn(report);
+
+    Project module = new Project("module");
+    module.setParent(project);
+
+    myJob = new StashIssueReportingPostJob(config, projectIssues, inputFileCache, stashRequestFacade);
+    myJob.executeOn(module, context);
+
+    // issues of the module are kept for the root project
+    verify(stashRequestFacade, times(1)).extractIssueReport(projectIssues, inputFileCache);
+    verify(stashRequestFacade, times(0)).acquirePostingLease(anyString(), anyString(), anyString());
+    verify(stashRequestFacade, times(0)).postAnalysisOverview(anyString(), anyString(), anyString(), anyString(), anyInt(), (SonarQubeIssuesReport) Mockito.anyObject(),
+      (PostingPlan) Mockito.anyObject(), (StashClient) Mockito.anyObject());
+
+    myJob.executeOn(project, context);
+
+    verify(stashRequestFacade, times(1)).postAnalysisOverview(eq(STASH_PROJECT), eq(STASH_REPOSITORY), eq(STASH_PULLREQUEST_ID), eq(SONARQUBE_URL), anyInt(), eq(report),
+      (PostingPlan) Mockito.anyObject(), (StashClient) Mockito.anyObject());
+  }
+
+  @Test
+  public void testExecuteOnWithExportFile() throws Exception {
+    when(config.hasToNotifyStash()).thenReturn(true);
+    when(config.hasToDisplayAnalysisOverview()).thenReturn(true);
+    when(config.getExportFile()).thenReturn("target/stash-report.json.gz");
+
+    SonarQubeIssuesReport report = mock(SonarQubeIssuesReport.class);
+    when(stashRequestFacade.extractIssueReport(projectIssues, inputFileCache)).thenReturn(report);
+
+    myJob = new StashIssueReportingPostJob(config, projectIssues, inputFileCache, stashRequestFacade);
+    myJob.executeOn(project, context);
+
+    verify(stashRequestFacade, times(1)).exportIssueReport(report);
+    verify(stashRequestFacade, times(0)).acquirePostingLease(anyString(), anyString(), anyString());
+    verify(stashRequestFacade, times(0)).postAnalysisOverview(anyString(), anyString(), anyString(), anyString(), anyInt(), (SonarQubeIssuesReport) Mockito.anyObject(),
+      (PostingPlan) Mockito.anyObject(), (StashClient) Mockito.anyObject());
+  }
+
+  @Test
+  public void testExecuteOnWithInsightsBackend() throws Exception {
+    when(config.hasToNotifyStash()).thenReturn(true);
+    when(config.getReportingBackend()).thenReturn(StashPlugin.REPORTING_BACKEND_INSIGHTS);
+
+    SonarQubeIssuesReport report = mock(SonarQubeIssuesReport.class);
+    when(report.countIssues()).thenReturn(101);
+    when(stashRequestFacade.extractIssueReport(projectIssues, inputFileCache)).thenReturn(report);
+
+    int issueThreshold = 100;
+    when(stashRequestFacade.getIssueThreshold()).thenReturn(issueThreshold);
+
+    myJob = new StashIssueReportingPostJob(config, projectIssues, inputFileCache, stashRequestFacade);
+    myJob.executeOn(project, context);
+
+    verify(stashRequestFacade, times(1)).postInsightsReport(eq(STASH_PROJECT), eq(STASH_REPOSITORY), eq(STASH_PULLREQUEST_ID), eq(SONARQUBE_URL), eq(report),
+      (StashClient) Mockito.anyObject());
+    verify(stashRequestFacade, times(0)).postCommentPerIssue(eq(STASH_PROJECT), eq(STASH_REPOSITORY), eq(STASH_PULLREQUEST_ID), eq(SONARQUBE_URL), eq(issueThreshold), eq(report),
+      (StashClient) Mockito.anyObject(), (PostingPlanListener) Mockito.anyObject());
+  }
+
+  @Test
+  public void testExecuteOnWithDryRun() throws Exception {
+    when(config.hasToNotifyStash()).thenReturn(true);
+    when(config.hasToDisplayAnalysisOverview()).thenReturn(true);
+    when(config.isDryRun()).thenReturn(true);
+
+    SonarQubeIssuesReport report = mock(SonarQubeIssuesReport.class);
+    when(stashRequestFacade.extractIssueReport(projectIssues, inputFileCache)).thenReturn(report);
+
+    int issueThreshold = 100;
+    when(stashRequestFacade.getIssueThreshold()).thenReturn(issueThreshold);
+
+    myJob = new StashIssueReportingPostJob(config, projectIssues, inputFileCache, stashRequestFacade);
+    myJob.executeOn(project, context);
+
+    verify(stashRequestFacade, times(1)).dryRunCommentPerIssue(eq(STASH_PROJECT), eq(STASH_REPOSITORY), eq(STASH_PULLREQUEST_ID), eq(SONARQUBE_URL), eq(issueThreshold), eq(report),
       (StashClient) Mockito.anyObject());
+    verify(stashRequestFacade, times(0)).postCommentPerIssue(eq(STASH_PROJECT), eq(STASH_REPOSITORY), eq(STASH_PULLREQUEST_ID), eq(SONARQUBE_URL), eq(issueThreshold), eq(report),
+      (StashClient) Mockito.anyObject(), (PostingPlanListener) Mockito.anyObject());
+    verify(stashRequestFacade, times(0)).postAnalysisOverview(eq(STASH_PROJECT), eq(STASH_REPOSITORY), eq(STASH_PULLREQUEST_ID), eq(SONARQUBE_URL), eq(issueThreshold), eq(report),
+      (PostingPlan) Mockito.anyObject(), (StashClient) Mockito.anyObject());
+  }
+
+  @Test
+  public void testExecuteOnWithLeaseHeldByAnotherBuild() throws Exception {
+    when(config.hasToNotifyStash()).thenReturn(true);
+    when(config.hasToDisplayAnalysisOverview()).thenReturn(true);
+    when(stashRequestFacade.acquirePostingLease(STASH_PROJECT, STASH_REPOSITORY, STASH_PULLREQUEST_ID)).thenReturn(null);
+
+    SonarQubeIssuesReport report = mock(SonarQubeIssuesReport.class);
+    when(stashRequestFacade.extractIssueReport(projectIssues, inputFileCache)).thenReturn(report);
+
+    int issueThreshold = 100;
+    when(stashRequestFacade.getIssueThreshold()).thenReturn(issueThreshold);
+
+    myJob = new StashIssueReportingPostJob(config, projectIssues, inputFileCache, stashRequestFacade);
+    myJob.executeOn(project, context);
+
+    verify(stashRequestFacade, times(0)).postCommentPerIssue(eq(STASH_PROJECT), eq(STASH_REPOSITORY), eq(STASH_PULLREQUEST_ID), eq(SONARQUBE_URL), eq(issueThreshold), eq(report),
+      (StashClient) Mockito.anyObject(), (PostingPlanListener) Mockito.anyObject());
+    verify(stashRequestFacade, times(0)).postAnalysisOverview(eq(STASH_PROJECT), eq(STASH_REPOSITORY), eq(STASH_PULLREQUEST_ID), eq(SONARQUBE_URL), eq(issueThreshold), eq(report),
+      (PostingPlan) Mockito.anyObject(), (StashClient) Mockito.anyObject());
+  }
+
+  @Test
+  public void testExecuteOnReleasesLease() throws Exception {
+    when(config.hasToNotifyStash()).thenReturn(true);
+    Lease lease = mock(Lease.class);
+    when(stashRequestFacade.acquirePostingLease(STASH_PROJECT, STASH_REPOSITORY, STASH_PULLREQUEST_ID)).thenReturn(lease);
+
+    SonarQubeIssuesReport report = mock(SonarQubeIssuesReport.class);
+    when(stashRequestFacade.extractIssueReport(projectIssues, inputFileCache)).thenReturn(report);
+
+    myJob = new StashIssueReportingPostJob(config, projectIssues, inputFileCache, stashRequestFacade);
+    myJob.executeOn(project, context);
+
+    verify(lease, times(1)).close();
   }
 
   @Test
@@ -122,10 +361,10 @@ public class StashIssueReportingPostJobTest {
     myJob = new StashIssueReportingPostJob(config, projectIssues, inputFileCache, stashRequestFacade);
     myJob.executeOn(project, context);
 
-    verify(stashRequestFacade, times(0)).postCommentPerIssue(eq(STASH_PROJECT), eq(STASH_REPOSITORY), eq(STASH_PULLREQUEST_ID), eq(SONARQUBE_URL), eq(report),
-      (StashClient) Mockito.anyObject());
+    verify(stashRequestFacade, times(0)).postCommentPerIssue(eq(STASH_PROJECT), eq(STASH_REPOSITORY), eq(STASH_PULLREQUEST_ID), eq(SONARQUBE_URL), eq(issueThreshold), eq(report),
+      (StashClient) Mockito.anyObject(), (PostingPlanListener) Mockito.anyObject());
     verify(stashRequestFacade, times(0)).postAnalysisOverview(eq(STASH_PROJECT), eq(STASH_REPOSITORY), eq(STASH_PULLREQUEST_ID), eq(SONARQUBE_URL), eq(issueThreshold), eq(report),
-      (StashClient) Mockito.anyObject());
+      (PostingPlan) Mockito.anyObject(), (StashClient) Mockito.anyObject());
   }
 
   @Test
@@ -144,7 +383,7 @@ public class StashIssueReportingPostJobTest {
     myJob.executeOn(project, context);
 
     verify(stashRequestFacade, times(0)).postAnalysisOverview(eq(STASH_PROJECT), eq(STASH_REPOSITORY), eq(STASH_PULLREQUEST_ID), eq(SONARQUBE_URL), eq(issueThreshold), eq(report),
-      (StashClient) Mockito.anyObject());
+      (PostingPlan) Mockito.anyObject(), (StashClient) Mockito.anyObject());
   }
 
   @Test
@@ -163,7 +402,7 @@ public class StashIssueReportingPostJobTest {
     myJob.executeOn(project, context);
 
     verify(stashRequestFacade, times(1)).postAnalysisSummary(eq(STASH_PROJECT), eq(STASH_REPOSITORY), eq(STASH_PULLREQUEST_ID), eq(issueThreshold), eq(report),
-      (StashClient) Mockito.anyObject());
+      (PostingPlan) Mockito.anyObject(), (StashClient) Mockito.anyObject());
   }
 
   @Test
@@ -182,7 +421,7 @@ public class StashIssueReportingPostJobTest {
     myJob.executeOn(project, context);
 
     verify(stashRequestFacade, times(0)).postAnalysisSummary(eq(STASH_PROJECT), eq(STASH_REPOSITORY), eq(STASH_PULLREQUEST_ID), eq(issueThreshold), eq(report),
-      (StashClient) Mockito.anyObject());
+      (PostingPlan) Mockito.anyObject(), (StashClient) Mockito.anyObject());
   }
 
 }
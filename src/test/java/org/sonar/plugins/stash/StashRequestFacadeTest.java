@@ -1,29 +1,61 @@
 package org.sonar.plugins.stash;
 
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
+import org.json.simple.parser.JSONParser;
 import org.junit.rules.ExpectedException;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InOrder;
 import org.mockito.Mock;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 import org.sonar.api.rule.Severity;
+import org.sonar.plugins.stash.client.ConcurrencyLimiter;
+import org.sonar.plugins.stash.client.Deadline;
+import org.sonar.plugins.stash.client.RetryPolicy;
 import org.sonar.plugins.stash.client.StashClient;
 import org.sonar.plugins.stash.client.StashCredentials;
 import org.sonar.plugins.stash.exceptions.StashClientException;
 import org.sonar.plugins.stash.exceptions.StashConfigurationException;
+import org.sonar.plugins.stash.export.IssueReportFile;
 import org.sonar.plugins.stash.issue.MarkdownPrinter;
+import org.sonar.plugins.stash.issue.PostingPlan;
 import org.sonar.plugins.stash.issue.SonarQubeIssue;
 import org.sonar.plugins.stash.issue.SonarQubeIssuesReport;
+import org.sonar.plugins.stash.issue.StashComment;
 import org.sonar.plugins.stash.issue.StashCommentReport;
 import org.sonar.plugins.stash.issue.StashDiffReport;
+import org.sonar.plugins.stash.lease.Lease;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.AdditionalAnswers.returnsArgAt;
+import static org.mockito.Matchers.anyCollectionOf;
 import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyObject;
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.inOrder;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
@@ -36,6 +68,9 @@ public class StashRequestFacadeTest {
   @Rule
   public ExpectedException thrown = ExpectedException.none();
 
+  @Rule
+  public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
   @Mock
   StashPluginConfiguration config;
 
@@ -63,6 +98,7 @@ public class StashRequestFacadeTest {
   private static final String STASH_DIFF_TYPE = "StashDiffType";
 
   private static final String SONARQUBE_URL = "http://sonar/url";
+  private static final int ISSUE_THRESHOLD = 100;
 
   private static final String FILE_PATH_1 = "path/to/file1";
   private static final String FILE_PATH_2 = "path/to/file2";
@@ -76,6 +112,9 @@ public class StashRequestFacadeTest {
 
   private void initConfigForPostCommentLineOnPullRequest() throws Exception {
     stashClient = mock(StashClient.class);
+    when(stashClient.getRetryPolicy()).thenReturn(RetryPolicy.none());
+    when(stashClient.getDeadline()).thenReturn(Deadline.none());
+    when(stashClient.getPostingLimiter()).thenReturn(ConcurrencyLimiter.sequential());
 
     diffReport = mock(StashDiffReport.class);
     when(diffReport.getType(anyString(), anyLong())).thenReturn(STASH_DIFF_TYPE);
@@ -190,12 +229,61 @@ public class StashRequestFacadeTest {
     assertEquals(myFacade.getStashPullRequestId(), "12345");
   }
 
+  @Test
+  public void testGetStashPullRequestIds() throws StashConfigurationException {
+    when(config.getPullRequestId()).thenReturn("12345, 12346,,12345");
+    assertEquals(Arrays.asList("12345", "12346"), myFacade.getStashPullRequestIds());
+  }
+
+  @Test(expected = StashConfigurationException.class)
+  public void testGetStashPullRequestIdsWithoutId() throws StashConfigurationException {
+    when(config.getPullRequestId()).thenReturn(" , ");
+    myFacade.getStashPullRequestIds();
+  }
+
   @Test(expected = StashConfigurationException.class)
   public void testGetStashPullRequestIdThrowsException() throws StashConfigurationException {
     when(config.getPullRequestId()).thenReturn(null);
     myFacade.getStashPullRequestId();
   }
 
+  @Test
+  public void testGetSeverityMask() {
+    SonarQubeIssue blocker = new SonarQubeIssue(Severity.BLOCKER, "message", "rule", FILE_PATH_1, 1);
+    SonarQubeIssue major = new SonarQubeIssue(Severity.MAJOR, "message", "rule", FILE_PATH_1, 1);
+    SonarQubeIssue info = new SonarQubeIssue(Severity.INFO, "message", "rule", FILE_PATH_1, 1);
+
+    int mask = myFacade.getSeverityMask(Severity.MAJOR);
+    assertTrue(blocker.hasSeverityIn(mask));
+    assertTrue(major.hasSeverityIn(mask));
+    assertFalse(info.hasSeverityIn(mask));
+
+    mask = myFacade.getSeverityMask(Severity.INFO);
+    assertTrue(info.hasSeverityIn(mask));
+
+    assertEquals(0, myFacade.getSeverityMask("UNKNOWN"));
+  }
+
+  @Test
+  public void testAcquirePostingLease() throws Exception {
+    assertSame(Lease.NONE, myFacade.acquirePostingLease(STASH_PROJECT, STASH_REPOSITORY, STASH_PULLREQUEST_ID));
+
+    when(config.getLeaseDirectory()).thenReturn(temporaryFolder.getRoot().getAbsolutePath());
+    when(config.getLeaseTimeout()).thenReturn(0L);
+    Lease lease = myFacade.acquirePostingLease(STASH_PROJECT, STASH_REPOSITORY, STASH_PULLREQUEST_ID);
+    assertNotNull(lease);
+    assertNull(myFacade.acquirePostingLease(STASH_PROJECT, STASH_REPOSITORY, STASH_PULLREQUEST_ID));
+    lease.close();
+  }
+
+  @Test
+  public void testAcquirePostingLeaseWithBackendFailure() throws Exception {
+    File notADirectory = temporaryFolder.newFile("leases");
+    when(config.getLeaseDirectory()).thenReturn(notADirectory.getAbsolutePath());
+
+    assertSame(Lease.NONE, myFacade.acquirePostingLease(STASH_PROJECT, STASH_REPOSITORY, STASH_PULLREQUEST_ID));
+  }
+
   @Test
   public void testPostCommentPerIssue() throws Exception {
     initConfigForPostCommentLineOnPullRequest();
@@ -204,20 +292,349 @@ public class StashRequestFacadeTest {
     when(stashComments1.contains(stashCommentMessage2, FILE_PATH_1, 2)).thenReturn(false);
     when(stashComments2.contains(stashCommentMessage3, FILE_PATH_2, 1)).thenReturn(false);
 
-    myFacade.postCommentPerIssue(STASH_PROJECT, STASH_REPOSITORY, STASH_PULLREQUEST_ID, SONARQUBE_URL, issueReport, stashClient);
+    myFacade.postCommentPerIssue(STASH_PROJECT, STASH_REPOSITORY, STASH_PULLREQUEST_ID, SONARQUBE_URL, ISSUE_THRESHOLD, issueReport, stashClient);
 
     verify(stashClient, times(0)).postCommentLineOnPullRequest(STASH_PROJECT, STASH_REPOSITORY, STASH_PULLREQUEST_ID, stashCommentMessage1, FILE_PATH_1, 1, STASH_DIFF_TYPE);
     verify(stashClient, times(1)).postCommentLineOnPullRequest(STASH_PROJECT, STASH_REPOSITORY, STASH_PULLREQUEST_ID, stashCommentMessage2, FILE_PATH_1, 2, STASH_DIFF_TYPE);
     verify(stashClient, times(1)).postCommentLineOnPullRequest(STASH_PROJECT, STASH_REPOSITORY, STASH_PULLREQUEST_ID, stashCommentMessage3, FILE_PATH_2, 1, STASH_DIFF_TYPE);
   }
 
+  @Test
+  public void testPostAnalysisOverview() throws Exception {
+    initConfigForPostCommentLineOnPullRequest();
+    myFacade.postAnalysisOverview(STASH_PROJECT, STASH_REPOSITORY, STASH_PULLREQUEST_ID, SONARQUBE_URL, ISSUE_THRESHOLD, issueReport, null, stashClient);
+
+    String text = MarkdownPrinter.printOverviewReportMarkdown(issueReport, null, SONARQUBE_URL, ISSUE_THRESHOLD) + "\n\n" + MarkdownPrinter.OVERVIEW_MARKER;
+    verify(stashClient, times(1)).postCommentOnPullRequest(STASH_PROJECT, STASH_REPOSITORY, STASH_PULLREQUEST_ID, text);
+    verify(stashClient, times(0)).updateCommentOnPullRequest(anyString(), anyString(), anyString(), anyLong(), anyLong(), anyString());
+  }
+
+  @Test
+  public void testPostAnalysisOverviewUpdatesPreviousOverview() throws Exception {
+    initConfigForPostCommentLineOnPullRequest();
+    StashComment previous = new StashComment(12, 3, "old overview\n\n" + MarkdownPrinter.OVERVIEW_MARKER, null, null);
+    when(stashClient.findGeneralCommentOnPullRequest(STASH_PROJECT, STASH_REPOSITORY, STASH_PULLREQUEST_ID, MarkdownPrinter.OVERVIEW_MARKER)).thenReturn(previous);
+
+    myFacade.postAnalysisOverview(STASH_PROJECT, STASH_REPOSITORY, STASH_PULLREQUEST_ID, SONARQUBE_URL, ISSUE_THRESHOLD, issueReport, null, stashClient);
+
+    String text = MarkdownPrinter.printOverviewReportMarkdown(issueReport, null, SONARQUBE_URL, ISSUE_THRESHOLD) + "\n\n" + MarkdownPrinter.OVERVIEW_MARKER;
+    verify(stashClient, times(1)).updateCommentOnPullRequest(STASH_PROJECT, STASH_REPOSITORY, STASH_PULLREQUEST_ID, 12, 3, text);
+    verify(stashClient, times(0)).postCommentOnPullRequest(anyString(), anyString(), anyString(), anyString());
+  }
+
+  @Test
+  public void testPostAnalysisOverviewAfterConflictAlreadyApplied() throws Exception {
+    initConfigForPostCommentLineOnPullRequest();
+    String text = MarkdownPrinter.printOverviewReportMarkdown(issueReport, null, SONARQUBE_URL, ISSUE_THRESHOLD) + "\n\n" + MarkdownPrinter.OVERVIEW_MARKER;
+    // the comment has been updated to the same text since it was looked up, e.g. by a concurrent analysis
+    when(stashClient.findGeneralCommentOnPullRequest(STASH_PROJECT, STASH_REPOSITORY, STASH_PULLREQUEST_ID, MarkdownPrinter.OVERVIEW_MARKER))
+      .thenReturn(new StashComment(12, 3, "old overview\n\n" + MarkdownPrinter.OVERVIEW_MARKER, null, null), new StashComment(12, 4, text, null, null));
+    doThrow(new StashClientException("Conflict", 409)).when(stashClient)
+      .updateCommentOnPullRequest(STASH_PROJECT, STASH_REPOSITORY, STASH_PULLREQUEST_ID, 12, 3, text);
+
+    myFacade.postAnalysisOverview(STASH_PROJECT, STASH_REPOSITORY, STASH_PULLREQUEST_ID, SONARQUBE_URL, ISSUE_THRESHOLD, issueReport, null, stashClient);
+
+    verify(stashClient, times(1)).updateCommentOnPullRequest(anyString(), anyString(), anyString(), anyLong(), anyLong(), anyString());
+    verify(stashClient, times(0)).postCommentOnPullRequest(anyString(), anyString(), anyString(), anyString());
+  }
+
+  @Test
+  public void testPostAnalysisOverviewAfterConflictUpdatesCurrentVersion() throws Exception {
+    initConfigForPostCommentLineOnPullRequest();
+    String text = MarkdownPrinter.printOverviewReportMarkdown(issueReport, null, SONARQUBE_URL, ISSUE_THRESHOLD) + "\n\n" + MarkdownPrinter.OVERVIEW_MARKER;
+    when(stashClient.findGeneralCommentOnPullRequest(STASH_PROJECT, STASH_REPOSITORY, STASH_PULLREQUEST_ID, MarkdownPrinter.OVERVIEW_MARKER))
+      .thenReturn(new StashComment(12, 3, "old overview\n\n" + MarkdownPrinter.OVERVIEW_MARKER, null, null),
+        new StashComment(12, 5, "edited overview\n\n" + MarkdownPrinter.OVERVIEW_MARKER, null, null));
+    doThrow(new StashClientException("Conflict", 409)).when(stashClient)
+      .updateCommentOnPullRequest(STASH_PROJECT, STASH_REPOSITORY, STASH_PULLREQUEST_ID, 12, 3, text);
+
+    myFacade.postAnalysisOverview(STASH_PROJECT, STASH_REPOSITORY, STASH_PULLREQUEST_ID, SONARQUBE_URL, ISSUE_THRESHOLD, issueReport, null, stashClient);
+
+    // no retry policy: the conflict is resolved with the current version anyway
+    verify(stashClient, times(1)).updateCommentOnPullRequest(STASH_PROJECT, STASH_REPOSITORY, STASH_PULLREQUEST_ID, 12, 5, text);
+  }
+
+  @Test
+  public void testPostAnalysisSummaryUnchanged() throws Exception {
+    initConfigForPostCommentLineOnPullRequest();
+    String text = MarkdownPrinter.printSummaryReportMarkdown(issueReport, null, ISSUE_THRESHOLD) + "\n\n" + MarkdownPrinter.SUMMARY_MARKER;
+    StashComment previous = new StashComment(12, 3, text.replace("\n", "\r\n"), null, null);
+    when(stashClient.findGeneralCommentOnPullRequest(STASH_PROJECT, STASH_REPOSITORY, STASH_PULLREQUEST_ID, MarkdownPrinter.SUMMARY_MARKER)).thenReturn(previous);
+
+    myFacade.postAnalysisSummary(STASH_PROJECT, STASH_REPOSITORY, STASH_PULLREQUEST_ID, ISSUE_THRESHOLD, issueReport, null, stashClient);
+
+    verify(stashClient, times(0)).postCommentOnPullRequest(anyString(), anyString(), anyString(), anyString());
+    verify(stashClient, times(0)).updateCommentOnPullRequest(anyString(), anyString(), anyString(), anyLong(), anyLong(), anyString());
+  }
+
+  @Test
+  public void testPostAnalysisOverviewAndSummaryLooksUpBothOnce() throws Exception {
+    initConfigForPostCommentLineOnPullRequest();
+    String summary = MarkdownPrinter.printSummaryReportMarkdown(issueReport, null, ISSUE_THRESHOLD) + "\n\n" + MarkdownPrinter.SUMMARY_MARKER;
+    when(stashClient.findGeneralCommentsOnPullRequest(STASH_PROJECT, STASH_REPOSITORY, STASH_PULLREQUEST_ID,
+      Arrays.asList(MarkdownPrinter.OVERVIEW_MARKER, MarkdownPrinter.SUMMARY_MARKER)))
+      .thenReturn(Collections.singletonMap(MarkdownPrinter.SUMMARY_MARKER, new StashComment(12, 3, summary, null, null)));
+
+    myFacade.postAnalysisOverviewAndSummary(STASH_PROJECT, STASH_REPOSITORY, STASH_PULLREQUEST_ID, SONARQUBE_URL, ISSUE_THRESHOLD, issueReport, null, stashClient);
+
+    String overview = MarkdownPrinter.printOverviewReportMarkdown(issueReport, null, SONARQUBE_URL, ISSUE_THRESHOLD) + "\n\n" + MarkdownPrinter.OVERVIEW_MARKER;
+    verify(stashClient, times(1)).postCommentOnPullRequest(STASH_PROJECT, STASH_REPOSITORY, STASH_PULLREQUEST_ID, overview);
+    verify(stashClient, times(0)).updateCommentOnPullRequest(anyString(), anyString(), anyString(), anyLong(), anyLong(), anyString());
+    verify(stashClient, times(1)).findGeneralCommentsOnPullRequest(anyString(), anyString(), anyString(), anyCollectionOf(String.class));
+    verify(stashClient, times(0)).findGeneralCommentOnPullRequest(anyString(), anyString(), anyString(), anyString());
+  }
+
+  @Test
+  public void testPostAnalysisOverviewAndSummaryWithFailedLookup() throws Exception {
+    initConfigForPostCommentLineOnPullRequest();
+    when(stashClient.findGeneralCommentsOnPullRequest(anyString(), anyString(), anyString(), anyCollectionOf(String.class)))
+      .thenThrow(new StashClientException("StashClientException for Test"));
+    StashComment previous = new StashComment(12, 3, "old overview\n\n" + MarkdownPrinter.OVERVIEW_MARKER, null, null);
+    when(stashClient.findGeneralCommentOnPullRequest(STASH_PROJECT, STASH_REPOSITORY, STASH_PULLREQUEST_ID, MarkdownPrinter.OVERVIEW_MARKER)).thenReturn(previous);
+
+    myFacade.postAnalysisOverviewAndSummary(STASH_PROJECT, STASH_REPOSITORY, STASH_PULLREQUEST_ID, SONARQUBE_URL, ISSUE_THRESHOLD, issueReport, null, stashClient);
+
+    // each report looks its comment up again
+    String overview = MarkdownPrinter.printOverviewReportMarkdown(issueReport, null, SONARQUBE_URL, ISSUE_THRESHOLD) + "\n\n" + MarkdownPrinter.OVERVIEW_MARKER;
+    String summary = MarkdownPrinter.printSummaryReportMarkdown(issueReport, null, ISSUE_THRESHOLD) + "\n\n" + MarkdownPrinter.SUMMARY_MARKER;
+    verify(stashClient, times(1)).updateCommentOnPullRequest(STASH_PROJECT, STASH_REPOSITORY, STASH_PULLREQUEST_ID, 12, 3, overview);
+    verify(stashClient, times(1)).postCommentOnPullRequest(STASH_PROJECT, STASH_REPOSITORY, STASH_PULLREQUEST_ID, summary);
+  }
+
+  @Test
+  public void testExportIssueReport() throws Exception {
+    initConfigForPostCommentLineOnPullRequest();
+    when(config.getStashURL()).thenReturn("http://stash");
+    when(config.getStashProject()).thenReturn(STASH_PROJECT);
+    when(config.getStashRepository()).thenReturn(STASH_REPOSITORY);
+    when(config.getPullRequestId()).thenReturn(STASH_PULLREQUEST_ID);
+    when(config.getExportFile()).thenReturn("export/report.json.gz");
+    when(config.getExportableProperties()).thenReturn(Collections.singletonMap(StashPlugin.STASH_PULL_REQUEST_ID, STASH_PULLREQUEST_ID));
+    myFacade.initialize(temporaryFolder.newFolder("base"), temporaryFolder.newFolder("work"));
+
+    File file = myFacade.exportIssueReport(issueReport);
+
+    assertEquals(new File(temporaryFolder.getRoot(), "base/export/report.json.gz"), file);
+    IssueReportFile export = IssueReportFile.read(file);
+    assertEquals(STASH_PULLREQUEST_ID, export.getProperties().get(StashPlugin.STASH_PULL_REQUEST_ID));
+    assertEquals(3, export.getIssueReport().countIssues());
+    verify(stashClient, times(0)).getPullRequestDiffs(anyString(), anyString(), anyString());
+  }
+
+  @Test
+  public void testDryRunCommentPerIssue() throws Exception {
+    initConfigForPostCommentLineOnPullRequest();
+    when(config.hasToDisplayAnalysisOverview()).thenReturn(true);
+    when(stashComments1.contains(stashCommentMessage1, FILE_PATH_1, 1)).thenReturn(true);
+    myFacade.initialize(temporaryFolder.newFolder("base"), temporaryFolder.newFolder("work"));
+
+    File planFile = myFacade.dryRunCommentPerIssue(STASH_PROJECT, STASH_REPOSITORY, STASH_PULLREQUEST_ID, SONARQUBE_URL, ISSUE_THRESHOLD, issueReport, stashClient);
+
+    verify(stashClient, times(0)).postCommentLineOnPullRequest(anyString(), anyString(), anyString(), anyString(), anyString(), anyLong(), anyString());
+    verify(stashClient, times(0)).postTaskOnComment(anyString(), anyLong());
+    verify(stashClient, times(0)).postCommentOnPullRequest(anyString(), anyString(), anyString(), anyString());
+
+    assertEquals(new File(temporaryFolder.getRoot(), "work/" + StashPlugin.DRY_RUN_PLAN_FILE), planFile);
+    JSONObject plan = (JSONObject) new JSONParser().parse(new String(Files.readAllBytes(planFile.toPath()), StandardCharsets.UTF_8));
+    assertEquals(2, ((JSONArray) plan.get("comments")).size());
+    assertEquals(1L, ((JSONObject) plan.get("skippedCounts")).get(PostingPlan.SKIPPED_ALREADY_PRESENT));
+
+    // 1 diff and 2 comment lists, 2 comments with their task and the overview
+    JSONObject requests = (JSONObject) plan.get("requests");
+    assertEquals(3L, requests.get("get"));
+    assertEquals(5L, requests.get("post"));
+
+    JSONObject timings = (JSONObject) plan.get("timingsMillis");
+    assertTrue(timings.containsKey("diff"));
+    assertTrue(timings.containsKey("comments"));
+    assertTrue(timings.containsKey("matching"));
+  }
+
+  @Test
+  public void testDryRunCommentPerIssueWithDiffFile() throws Exception {
+    initConfigForPostCommentLineOnPullRequest();
+    File baseDir = temporaryFolder.newFolder("base");
+    Files.write(new File(baseDir, "diff.json").toPath(), "{ \"diffs\": []}".getBytes(StandardCharsets.UTF_8));
+    when(config.getDryRunDiffFile()).thenReturn("diff.json");
+    when(stashClient.getPullRequestComments(STASH_PROJECT, STASH_REPOSITORY, STASH_PULLREQUEST_ID, null)).thenReturn(stashComments1);
+    myFacade.initialize(baseDir, temporaryFolder.newFolder("work"));
+
+    File planFile = myFacade.dryRunCommentPerIssue(STASH_PROJECT, STASH_REPOSITORY, STASH_PULLREQUEST_ID, SONARQUBE_URL, ISSUE_THRESHOLD, issueReport, stashClient);
+
+    verify(stashClient, times(0)).getPullRequestDiffs(anyString(), anyString(), anyString());
+    JSONObject plan = (JSONObject) new JSONParser().parse(new String(Files.readAllBytes(planFile.toPath()), StandardCharsets.UTF_8));
+    assertTrue(((JSONArray) plan.get("comments")).isEmpty());
+    assertEquals(3, ((JSONArray) plan.get("skipped")).size());
+    assertEquals(3L, ((JSONObject) plan.get("skippedCounts")).get(PostingPlan.SKIPPED_OUT_OF_DIFF));
+  }
+
+  @Test
+  public void testDryRunCommentPerIssueWithMissingDiffFile() throws Exception {
+    initConfigForPostCommentLineOnPullRequest();
+    when(config.getDryRunDiffFile()).thenReturn(new File(temporaryFolder.getRoot(), "unknown.json").getAbsolutePath());
+    myFacade.initialize(temporaryFolder.newFolder("base"), temporaryFolder.newFolder("work"));
+
+    assertNull(myFacade.dryRunCommentPerIssue(STASH_PROJECT, STASH_REPOSITORY, STASH_PULLREQUEST_ID, SONARQUBE_URL, ISSUE_THRESHOLD, issueReport, stashClient));
+  }
+
+  @Test
+  public void testPostCommentPerIssueResumedFromJournal() throws Exception {
+    initConfigForPostCommentLineOnPullRequest();
+    when(config.hasToUsePostingJournal()).thenReturn(true);
+    when(stashClient.getPullRequestLatestCommit(STASH_PROJECT, STASH_REPOSITORY, STASH_PULLREQUEST_ID)).thenReturn("abc");
+    myFacade.initialize(temporaryFolder.newFolder("base"), temporaryFolder.newFolder("work"));
+
+    // first run is interrupted after the first comment
+    doThrow(new StashClientException("Timeout for Test")).when(stashClient)
+      .postCommentLineOnPullRequest(STASH_PROJECT, STASH_REPOSITORY, STASH_PULLREQUEST_ID, stashCommentMessage2, FILE_PATH_1, 2, STASH_DIFF_TYPE);
+    myFacade.postCommentPerIssue(STASH_PROJECT, STASH_REPOSITORY, STASH_PULLREQUEST_ID, SONARQUBE_URL, ISSUE_THRESHOLD, issueReport, stashClient);
+
+    doReturn(COMMENT_ID).when(stashClient)
+      .postCommentLineOnPullRequest(STASH_PROJECT, STASH_REPOSITORY, STASH_PULLREQUEST_ID, stashCommentMessage2, FILE_PATH_1, 2, STASH_DIFF_TYPE);
+    PostingPlan plan = myFacade.postCommentPerIssue(STASH_PROJECT, STASH_REPOSITORY, STASH_PULLREQUEST_ID, SONARQUBE_URL, ISSUE_THRESHOLD, issueReport, stashClient);
+
+    // existing comments are fetched again only for the files of the comments which have not been journaled as posted
+    verify(stashClient, times(2)).getPullRequestComments(STASH_PROJECT, STASH_REPOSITORY, STASH_PULLREQUEST_ID, FILE_PATH_1);
+    verify(stashClient, times(2)).getPullRequestComments(STASH_PROJECT, STASH_REPOSITORY, STASH_PULLREQUEST_ID, FILE_PATH_2);
+    verify(stashClient, times(1)).postCommentLineOnPullRequest(STASH_PROJECT, STASH_REPOSITORY, STASH_PULLREQUEST_ID, stashCommentMessage1, FILE_PATH_1, 1, STASH_DIFF_TYPE);
+    verify(stashClient, times(2)).postCommentLineOnPullRequest(STASH_PROJECT, STASH_REPOSITORY, STASH_PULLREQUEST_ID, stashCommentMessage2, FILE_PATH_1, 2, STASH_DIFF_TYPE);
+    verify(stashClient, times(1)).postCommentLineOnPullRequest(STASH_PROJECT, STASH_REPOSITORY, STASH_PULLREQUEST_ID, stashCommentMessage3, FILE_PATH_2, 1, STASH_DIFF_TYPE);
+    assertEquals(1, plan.countAlreadyPresent());
+  }
+
+  @Test
+  public void testPostCommentPerIssueResumedWithUnconfirmedComment() throws Exception {
+    initConfigForPostCommentLineOnPullRequest();
+    when(config.hasToUsePostingJournal()).thenReturn(true);
+    when(stashClient.getPullRequestLatestCommit(STASH_PROJECT, STASH_REPOSITORY, STASH_PULLREQUEST_ID)).thenReturn("abc");
+    myFacade.initialize(temporaryFolder.newFolder("base"), temporaryFolder.newFolder("work"));
+
+    doThrow(new StashClientException("Timeout for Test")).when(stashClient)
+      .postCommentLineOnPullRequest(STASH_PROJECT, STASH_REPOSITORY, STASH_PULLREQUEST_ID, stashCommentMessage2, FILE_PATH_1, 2, STASH_DIFF_TYPE);
+    myFacade.postCommentPerIssue(STASH_PROJECT, STASH_REPOSITORY, STASH_PULLREQUEST_ID, SONARQUBE_URL, ISSUE_THRESHOLD, issueReport, stashClient);
+
+    // the comment has been created by Stash despite the timeout
+    when(stashComments1.find(stashCommentMessage2, FILE_PATH_1, 2)).thenReturn(new StashComment(COMMENT_ID + 1, stashCommentMessage2, FILE_PATH_1, 2L));
+    PostingPlan plan = myFacade.postCommentPerIssue(STASH_PROJECT, STASH_REPOSITORY, STASH_PULLREQUEST_ID, SONARQUBE_URL, ISSUE_THRESHOLD, issueReport, stashClient);
+
+    verify(stashClient, times(1)).postCommentLineOnPullRequest(STASH_PROJECT, STASH_REPOSITORY, STASH_PULLREQUEST_ID, stashCommentMessage2, FILE_PATH_1, 2, STASH_DIFF_TYPE);
+    verify(stashClient, times(1)).postCommentLineOnPullRequest(STASH_PROJECT, STASH_REPOSITORY, STASH_PULLREQUEST_ID, stashCommentMessage3, FILE_PATH_2, 1, STASH_DIFF_TYPE);
+    assertEquals(2, plan.countAlreadyPresent());
+  }
+
+  @Test
+  public void testPostCommentPerIssueJournalsCommentsStillPostedWhenInterrupted() throws Exception {
+    initConfigForPostCommentLineOnPullRequest();
+    when(config.hasToUsePostingJournal()).thenReturn(true);
+    when(stashClient.getPullRequestLatestCommit(STASH_PROJECT, STASH_REPOSITORY, STASH_PULLREQUEST_ID)).thenReturn("abc");
+    when(stashClient.getPostingLimiter()).thenReturn(new ConcurrencyLimiter(1, 3));
+    myFacade.initialize(temporaryFolder.newFolder("base"), temporaryFolder.newFolder("work"));
+
+    // the first run fails while the first comment is still being posted
+    Deadline deadline = mock(Deadline.class);
+    when(deadline.remainingMillis()).thenReturn(Long.MAX_VALUE);
+    when(deadline.isExpired()).thenReturn(false).thenThrow(new IllegalStateException("Failure for Test"));
+    when(stashClient.getDeadline()).thenReturn(deadline);
+    doAnswer(new Answer<Long>() {
+      @Override
+      public Long answer(InvocationOnMock invocation) throws Throwable {
+        Thread.sleep(200);
+        return COMMENT_ID;
+      }
+    }).when(stashClient).postCommentLineOnPullRequest(STASH_PROJECT, STASH_REPOSITORY, STASH_PULLREQUEST_ID, stashCommentMessage1, FILE_PATH_1, 1, STASH_DIFF_TYPE);
+    try {
+      myFacade.postCommentPerIssue(STASH_PROJECT, STASH_REPOSITORY, STASH_PULLREQUEST_ID, SONARQUBE_URL, ISSUE_THRESHOLD, issueReport, stashClient);
+      assertFalse("Unexpected success: the deadline check fails", true);
+    } catch (IllegalStateException e) {
+      assertEquals("Failure for Test", e.getMessage());
+    }
+
+    // the comment has been journaled before the journal was closed: it is not posted again
+    when(stashClient.getDeadline()).thenReturn(Deadline.none());
+    PostingPlan plan = myFacade.postCommentPerIssue(STASH_PROJECT, STASH_REPOSITORY, STASH_PULLREQUEST_ID, SONARQUBE_URL, ISSUE_THRESHOLD, issueReport, stashClient);
+
+    verify(stashClient, times(1)).postCommentLineOnPullRequest(STASH_PROJECT, STASH_REPOSITORY, STASH_PULLREQUEST_ID, stashCommentMessage1, FILE_PATH_1, 1, STASH_DIFF_TYPE);
+    assertEquals(1, plan.countAlreadyPresent());
+  }
+
+  @Test
+  public void testPostCommentPerIssueWithJournalAndNewIssue() throws Exception {
+    initConfigForPostCommentLineOnPullRequest();
+    when(config.hasToUsePostingJournal()).thenReturn(true);
+    when(stashClient.getPullRequestLatestCommit(STASH_PROJECT, STASH_REPOSITORY, STASH_PULLREQUEST_ID)).thenReturn("abc");
+    myFacade.initialize(temporaryFolder.newFolder("base"), temporaryFolder.newFolder("work"));
+
+    doThrow(new StashClientException("Timeout for Test")).when(stashClient)
+      .postCommentLineOnPullRequest(STASH_PROJECT, STASH_REPOSITORY, STASH_PULLREQUEST_ID, stashCommentMessage2, FILE_PATH_1, 2, STASH_DIFF_TYPE);
+    myFacade.postCommentPerIssue(STASH_PROJECT, STASH_REPOSITORY, STASH_PULLREQUEST_ID, SONARQUBE_URL, ISSUE_THRESHOLD, issueReport, stashClient);
+
+    SonarQubeIssue issue4 = new SonarQubeIssue(Severity.MAJOR, "message4", "rule4", FILE_PATH_2, 1);
+    String stashCommentMessage4 = MarkdownPrinter.printIssueMarkdown(issue4, SONARQUBE_URL);
+    issueReport.add(issue4);
+    doReturn(COMMENT_ID).when(stashClient)
+      .postCommentLineOnPullRequest(STASH_PROJECT, STASH_REPOSITORY, STASH_PULLREQUEST_ID, stashCommentMessage2, FILE_PATH_1, 2, STASH_DIFF_TYPE);
+    doReturn(COMMENT_ID).when(stashClient)
+      .postCommentLineOnPullRequest(STASH_PROJECT, STASH_REPOSITORY, STASH_PULLREQUEST_ID, stashCommentMessage4, FILE_PATH_2, 1, STASH_DIFF_TYPE);
+    myFacade.postCommentPerIssue(STASH_PROJECT, STASH_REPOSITORY, STASH_PULLREQUEST_ID, SONARQUBE_URL, ISSUE_THRESHOLD, issueReport, stashClient);
+
+    // the issues have changed on the same commit: the journal is not trusted, the new issue is commented
+    verify(stashClient, times(2)).getPullRequestComments(STASH_PROJECT, STASH_REPOSITORY, STASH_PULLREQUEST_ID, FILE_PATH_2);
+    verify(stashClient, times(1)).postCommentLineOnPullRequest(STASH_PROJECT, STASH_REPOSITORY, STASH_PULLREQUEST_ID, stashCommentMessage4, FILE_PATH_2, 1, STASH_DIFF_TYPE);
+  }
+
+  @Test
+  public void testPostCommentPerIssueWithJournalOnNewCommit() throws Exception {
+    initConfigForPostCommentLineOnPullRequest();
+    when(config.hasToUsePostingJournal()).thenReturn(true);
+    when(stashClient.getPullRequestLatestCommit(STASH_PROJECT, STASH_REPOSITORY, STASH_PULLREQUEST_ID)).thenReturn("abc", "def");
+    myFacade.initialize(temporaryFolder.newFolder("base"), temporaryFolder.newFolder("work"));
+
+    myFacade.postCommentPerIssue(STASH_PROJECT, STASH_REPOSITORY, STASH_PULLREQUEST_ID, SONARQUBE_URL, ISSUE_THRESHOLD, issueReport, stashClient);
+    myFacade.postCommentPerIssue(STASH_PROJECT, STASH_REPOSITORY, STASH_PULLREQUEST_ID, SONARQUBE_URL, ISSUE_THRESHOLD, issueReport, stashClient);
+
+    // the journal of the previous commit is not trusted: duplicates are detected against Stash comments
+    verify(stashClient, times(2)).getPullRequestComments(STASH_PROJECT, STASH_REPOSITORY, STASH_PULLREQUEST_ID, FILE_PATH_1);
+  }
+
+  @Test
+  public void testPostCommentPerIssueWithReachedThreshold() throws Exception {
+    initConfigForPostCommentLineOnPullRequest();
+
+    PostingPlan plan = myFacade.postCommentPerIssue(STASH_PROJECT, STASH_REPOSITORY, STASH_PULLREQUEST_ID, SONARQUBE_URL, 1, issueReport, stashClient);
+
+    // only the most severe issue is displayed
+    verify(stashClient, times(0)).postCommentLineOnPullRequest(STASH_PROJECT, STASH_REPOSITORY, STASH_PULLREQUEST_ID, stashCommentMessage1, FILE_PATH_1, 1, STASH_DIFF_TYPE);
+    verify(stashClient, times(1)).postCommentLineOnPullRequest(STASH_PROJECT, STASH_REPOSITORY, STASH_PULLREQUEST_ID, stashCommentMessage2, FILE_PATH_1, 2, STASH_DIFF_TYPE);
+    verify(stashClient, times(0)).postCommentLineOnPullRequest(STASH_PROJECT, STASH_REPOSITORY, STASH_PULLREQUEST_ID, stashCommentMessage3, FILE_PATH_2, 1, STASH_DIFF_TYPE);
+
+    assertEquals(2, plan.countNotDisplayed());
+    assertEquals(1, plan.countNotDisplayed(Severity.MAJOR));
+    assertEquals(1, plan.countNotDisplayed(Severity.INFO));
+    assertEquals(0, plan.countNotDisplayed(Severity.CRITICAL));
+  }
+
+  @Test
+  public void testPostCommentPerIssueWithReachedThresholdByPreviousComments() throws Exception {
+    initConfigForPostCommentLineOnPullRequest();
+
+    when(stashComments1.contains(stashCommentMessage1, FILE_PATH_1, 1)).thenReturn(true);
+
+    PostingPlan plan = myFacade.postCommentPerIssue(STASH_PROJECT, STASH_REPOSITORY, STASH_PULLREQUEST_ID, SONARQUBE_URL, 2, issueReport, stashClient);
+
+    verify(stashClient, times(1)).postCommentLineOnPullRequest(STASH_PROJECT, STASH_REPOSITORY, STASH_PULLREQUEST_ID, stashCommentMessage2, FILE_PATH_1, 2, STASH_DIFF_TYPE);
+    verify(stashClient, times(0)).postCommentLineOnPullRequest(STASH_PROJECT, STASH_REPOSITORY, STASH_PULLREQUEST_ID, stashCommentMessage3, FILE_PATH_2, 1, STASH_DIFF_TYPE);
+
+    assertEquals(1, plan.countAlreadyPresent());
+    assertEquals(1, plan.countNotDisplayed());
+  }
+
   @Test
   public void testIssuesBelowSeverityThreshold() throws Exception {
     initConfigForPostCommentLineOnPullRequest();
 
     when(config.getCommentIssueSeverityThreshold()).thenReturn(Severity.MAJOR);
 
-    myFacade.postCommentPerIssue(STASH_PROJECT, STASH_REPOSITORY, STASH_PULLREQUEST_ID, SONARQUBE_URL, issueReport, stashClient);
+    myFacade.postCommentPerIssue(STASH_PROJECT, STASH_REPOSITORY, STASH_PULLREQUEST_ID, SONARQUBE_URL, ISSUE_THRESHOLD, issueReport, stashClient);
 
     verify(stashClient, times(1)).postCommentLineOnPullRequest(STASH_PROJECT, STASH_REPOSITORY, STASH_PULLREQUEST_ID, stashCommentMessage1, FILE_PATH_1, 1, STASH_DIFF_TYPE);
     verify(stashClient, times(1)).postCommentLineOnPullRequest(STASH_PROJECT, STASH_REPOSITORY, STASH_PULLREQUEST_ID, stashCommentMessage2, FILE_PATH_1, 2, STASH_DIFF_TYPE);
@@ -225,6 +642,150 @@ public class StashRequestFacadeTest {
     verify(stashClient, times(2)).postTaskOnComment(anyString(), eq(COMMENT_ID));
   }
 
+  @Test
+  public void testPostCommentPerIssueWithTaskFailure() throws Exception {
+    initConfigForPostCommentLineOnPullRequest();
+
+    doThrow(new StashClientException("StashClientException for Test")).when(stashClient).postTaskOnComment("message1", COMMENT_ID);
+
+    myFacade.postCommentPerIssue(STASH_PROJECT, STASH_REPOSITORY, STASH_PULLREQUEST_ID, SONARQUBE_URL, ISSUE_THRESHOLD, issueReport, stashClient);
+
+    verify(stashClient, times(1)).postCommentLineOnPullRequest(STASH_PROJECT, STASH_REPOSITORY, STASH_PULLREQUEST_ID, stashCommentMessage1, FILE_PATH_1, 1, STASH_DIFF_TYPE);
+    verify(stashClient, times(1)).postCommentLineOnPullRequest(STASH_PROJECT, STASH_REPOSITORY, STASH_PULLREQUEST_ID, stashCommentMessage2, FILE_PATH_1, 2, STASH_DIFF_TYPE);
+    verify(stashClient, times(1)).postCommentLineOnPullRequest(STASH_PROJECT, STASH_REPOSITORY, STASH_PULLREQUEST_ID, stashCommentMessage3, FILE_PATH_2, 1, STASH_DIFF_TYPE);
+    verify(stashClient, times(3)).postTaskOnComment(anyString(), eq(COMMENT_ID));
+  }
+
+  @Test
+  public void testPostCommentPerIssueWithoutCommentId() throws Exception {
+    initConfigForPostCommentLineOnPullRequest();
+
+    doReturn(null).when(stashClient).postCommentLineOnPullRequest(STASH_PROJECT, STASH_REPOSITORY, STASH_PULLREQUEST_ID, stashCommentMessage1, FILE_PATH_1, 1, STASH_DIFF_TYPE);
+
+    myFacade.postCommentPerIssue(STASH_PROJECT, STASH_REPOSITORY, STASH_PULLREQUEST_ID, SONARQUBE_URL, ISSUE_THRESHOLD, issueReport, stashClient);
+
+    verify(stashClient, times(0)).postTaskOnComment(eq("message1"), anyLong());
+    verify(stashClient, times(2)).postTaskOnComment(anyString(), eq(COMMENT_ID));
+  }
+
+  @Test
+  public void testPostCommentPerFile() throws Exception {
+    initConfigForPostCommentLineOnPullRequest();
+    when(config.getCommentAggregation()).thenReturn(StashPlugin.COMMENT_AGGREGATION_FILE);
+    when(stashClient.getPullRequestDiffURL(STASH_PROJECT, STASH_REPOSITORY, STASH_PULLREQUEST_ID)).thenReturn("http://stash/diff");
+
+    String groupMessage1 = MarkdownPrinter.printIssueGroupMarkdown(Arrays.asList(issueReport.getIssues().get(0), issueReport.getIssues().get(1)), SONARQUBE_URL,
+      "http://stash/diff#" + FILE_PATH_1);
+    String groupMessage2 = MarkdownPrinter.printIssueGroupMarkdown(Arrays.asList(issueReport.getIssues().get(2)), SONARQUBE_URL, "http://stash/diff#" + FILE_PATH_2);
+    doReturn(COMMENT_ID).when(stashClient).postCommentLineOnPullRequest(STASH_PROJECT, STASH_REPOSITORY, STASH_PULLREQUEST_ID, groupMessage1, FILE_PATH_1, 1, STASH_DIFF_TYPE);
+
+    myFacade.postCommentPerIssue(STASH_PROJECT, STASH_REPOSITORY, STASH_PULLREQUEST_ID, SONARQUBE_URL, ISSUE_THRESHOLD, issueReport, stashClient);
+
+    verify(stashClient, times(1)).postCommentLineOnPullRequest(STASH_PROJECT, STASH_REPOSITORY, STASH_PULLREQUEST_ID, groupMessage1, FILE_PATH_1, 1, STASH_DIFF_TYPE);
+    verify(stashClient, times(1)).postCommentLineOnPullRequest(STASH_PROJECT, STASH_REPOSITORY, STASH_PULLREQUEST_ID, groupMessage2, FILE_PATH_2, 1, STASH_DIFF_TYPE);
+    verify(stashClient, times(0)).postCommentLineOnPullRequest(STASH_PROJECT, STASH_REPOSITORY, STASH_PULLREQUEST_ID, stashCommentMessage1, FILE_PATH_1, 1, STASH_DIFF_TYPE);
+    verify(stashClient, times(1)).postTaskOnComment("Fix 2 SonarQube issues", COMMENT_ID);
+  }
+
+  @Test
+  public void testPostCommentPerFileAlreadyPushed() throws Exception {
+    initConfigForPostCommentLineOnPullRequest();
+    when(config.getCommentAggregation()).thenReturn(StashPlugin.COMMENT_AGGREGATION_FILE);
+
+    for (SonarQubeIssue issue : Arrays.asList(issueReport.getIssues().get(0), issueReport.getIssues().get(1))) {
+      when(stashComments1.countLines(MarkdownPrinter.printIssueMarker(issue), FILE_PATH_1)).thenReturn(1);
+    }
+
+    myFacade.postCommentPerIssue(STASH_PROJECT, STASH_REPOSITORY, STASH_PULLREQUEST_ID, SONARQUBE_URL, ISSUE_THRESHOLD, issueReport, stashClient);
+
+    verify(stashClient, times(0)).postCommentLineOnPullRequest(eq(STASH_PROJECT), eq(STASH_REPOSITORY), eq(STASH_PULLREQUEST_ID), anyString(), eq(FILE_PATH_1), anyLong(), anyString());
+    verify(stashClient, times(1)).postCommentLineOnPullRequest(eq(STASH_PROJECT), eq(STASH_REPOSITORY), eq(STASH_PULLREQUEST_ID), anyString(), eq(FILE_PATH_2), anyLong(), anyString());
+  }
+
+  @Test
+  public void testPostCommentPerFileOnlyPostsNewIssuesOfTheGroup() throws Exception {
+    initConfigForPostCommentLineOnPullRequest();
+    when(config.getCommentAggregation()).thenReturn(StashPlugin.COMMENT_AGGREGATION_FILE);
+
+    // the first issue is listed by the group comment of a previous analysis, the second one is new
+    SonarQubeIssue listed = issueReport.getIssues().get(0);
+    when(stashComments1.countLines(MarkdownPrinter.printIssueMarker(listed), FILE_PATH_1)).thenReturn(1);
+    String groupMessage = MarkdownPrinter.printIssueGroupMarkdown(Arrays.asList(issueReport.getIssues().get(1)), SONARQUBE_URL, null);
+
+    PostingPlan plan = myFacade.postCommentPerIssue(STASH_PROJECT, STASH_REPOSITORY, STASH_PULLREQUEST_ID, SONARQUBE_URL, ISSUE_THRESHOLD, issueReport, stashClient);
+
+    verify(stashClient, times(1)).postCommentLineOnPullRequest(eq(STASH_PROJECT), eq(STASH_REPOSITORY), eq(STASH_PULLREQUEST_ID), anyString(), eq(FILE_PATH_1), anyLong(), anyString());
+    verify(stashClient, times(1)).postCommentLineOnPullRequest(STASH_PROJECT, STASH_REPOSITORY, STASH_PULLREQUEST_ID, groupMessage, FILE_PATH_1, 2, STASH_DIFF_TYPE);
+    assertEquals(1, plan.countAlreadyPresent());
+  }
+
+  @Test
+  public void testPostCommentPerFileWithIdenticalIssues() throws Exception {
+    initConfigForPostCommentLineOnPullRequest();
+    when(config.getCommentAggregation()).thenReturn(StashPlugin.COMMENT_AGGREGATION_FILE);
+
+    // the same issue raised twice on the file, listed once by a previous analysis, at another line
+    SonarQubeIssue copy = new SonarQubeIssue(Severity.MAJOR, "message1", "rule1", FILE_PATH_1, 2);
+    issueReport.add(copy);
+    when(stashComments1.countLines(MarkdownPrinter.printIssueMarker(copy), FILE_PATH_1)).thenReturn(1);
+    String groupMessage = MarkdownPrinter.printIssueGroupMarkdown(Arrays.asList(issueReport.getIssues().get(1), copy), SONARQUBE_URL, null);
+
+    PostingPlan plan = myFacade.postCommentPerIssue(STASH_PROJECT, STASH_REPOSITORY, STASH_PULLREQUEST_ID, SONARQUBE_URL, ISSUE_THRESHOLD, issueReport, stashClient);
+
+    verify(stashClient, times(1)).postCommentLineOnPullRequest(STASH_PROJECT, STASH_REPOSITORY, STASH_PULLREQUEST_ID, groupMessage, FILE_PATH_1, 2, STASH_DIFF_TYPE);
+    assertEquals(1, plan.countAlreadyPresent());
+  }
+
+  @Test
+  public void testPostCommentPerHunk() throws Exception {
+    initConfigForPostCommentLineOnPullRequest();
+    when(config.getCommentAggregation()).thenReturn(StashPlugin.COMMENT_AGGREGATION_HUNK);
+    when(diffReport.getHunk(FILE_PATH_1, 1)).thenReturn(1);
+    when(diffReport.getHunk(FILE_PATH_1, 2)).thenReturn(2);
+
+    String groupMessage1 = MarkdownPrinter.printIssueGroupMarkdown(Arrays.asList(issueReport.getIssues().get(0)), SONARQUBE_URL, null);
+    String groupMessage2 = MarkdownPrinter.printIssueGroupMarkdown(Arrays.asList(issueReport.getIssues().get(1)), SONARQUBE_URL, null);
+
+    myFacade.postCommentPerIssue(STASH_PROJECT, STASH_REPOSITORY, STASH_PULLREQUEST_ID, SONARQUBE_URL, ISSUE_THRESHOLD, issueReport, stashClient);
+
+    verify(stashClient, times(1)).postCommentLineOnPullRequest(STASH_PROJECT, STASH_REPOSITORY, STASH_PULLREQUEST_ID, groupMessage1, FILE_PATH_1, 1, STASH_DIFF_TYPE);
+    verify(stashClient, times(1)).postCommentLineOnPullRequest(STASH_PROJECT, STASH_REPOSITORY, STASH_PULLREQUEST_ID, groupMessage2, FILE_PATH_1, 2, STASH_DIFF_TYPE);
+  }
+
+  @Test
+  public void testPostInsightsReport() throws Exception {
+    initConfigForPostCommentLineOnPullRequest();
+    when(stashClient.getPullRequestLatestCommit(STASH_PROJECT, STASH_REPOSITORY, STASH_PULLREQUEST_ID)).thenReturn("abcdef");
+
+    SonarQubeIssuesReport report = new SonarQubeIssuesReport();
+    for (int i = 0; i < 2500; i++) {
+      report.add(new SonarQubeIssue(Severity.MAJOR, "message" + i, "rule", FILE_PATH_1, i + 1));
+    }
+    report.add(new SonarQubeIssue(Severity.MAJOR, "message", "rule", "path/not/in/diff", 1));
+
+    myFacade.postInsightsReport(STASH_PROJECT, STASH_REPOSITORY, STASH_PULLREQUEST_ID, SONARQUBE_URL, report, stashClient);
+
+    verify(stashClient, times(1)).putInsightsReport(eq(STASH_PROJECT), eq(STASH_REPOSITORY), eq("abcdef"), eq(StashPlugin.INSIGHTS_REPORT_KEY), (JSONObject) anyObject());
+    ArgumentCaptor<JSONArray> annotations = ArgumentCaptor.forClass(JSONArray.class);
+    verify(stashClient, times(3)).postInsightsAnnotations(eq(STASH_PROJECT), eq(STASH_REPOSITORY), eq("abcdef"), eq(StashPlugin.INSIGHTS_REPORT_KEY), annotations.capture());
+    assertEquals(1000, annotations.getAllValues().get(0).size());
+    assertEquals(1000, annotations.getAllValues().get(1).size());
+    assertEquals(500, annotations.getAllValues().get(2).size());
+    verify(stashClient, times(0)).postCommentLineOnPullRequest(anyString(), anyString(), anyString(), anyString(), anyString(), anyLong(), anyString());
+  }
+
+  @Test
+  public void testPostInsightsReportWithException() throws Exception {
+    initConfigForPostCommentLineOnPullRequest();
+    when(stashClient.getPullRequestLatestCommit(STASH_PROJECT, STASH_REPOSITORY, STASH_PULLREQUEST_ID)).thenReturn("abcdef");
+    doThrow(new StashClientException("StashClientException for Test")).when(stashClient)
+      .putInsightsReport(eq(STASH_PROJECT), eq(STASH_REPOSITORY), eq("abcdef"), anyString(), (JSONObject) anyObject());
+
+    myFacade.postInsightsReport(STASH_PROJECT, STASH_REPOSITORY, STASH_PULLREQUEST_ID, SONARQUBE_URL, issueReport, stashClient);
+
+    verify(stashClient, times(0)).postInsightsAnnotations(anyString(), anyString(), anyString(), anyString(), (JSONArray) anyObject());
+  }
+
   @Test
   public void testPostCommentPerIssueWithNoStashCommentAlreadyPushed() throws Exception {
     initConfigForPostCommentLineOnPullRequest();
@@ -233,7 +794,7 @@ public class StashRequestFacadeTest {
     when(stashComments1.contains(stashCommentMessage2, FILE_PATH_1, 2)).thenReturn(true);
     when(stashComments2.contains(stashCommentMessage3, FILE_PATH_2, 1)).thenReturn(true);
 
-    myFacade.postCommentPerIssue(STASH_PROJECT, STASH_REPOSITORY, STASH_PULLREQUEST_ID, SONARQUBE_URL, issueReport, stashClient);
+    myFacade.postCommentPerIssue(STASH_PROJECT, STASH_REPOSITORY, STASH_PULLREQUEST_ID, SONARQUBE_URL, ISSUE_THRESHOLD, issueReport, stashClient);
 
     verify(stashClient, times(0)).postCommentLineOnPullRequest(STASH_PROJECT, STASH_REPOSITORY, STASH_PULLREQUEST_ID, stashCommentMessage1, FILE_PATH_1, 1, STASH_DIFF_TYPE);
     verify(stashClient, times(0)).postCommentLineOnPullRequest(STASH_PROJECT, STASH_REPOSITORY, STASH_PULLREQUEST_ID, stashCommentMessage2, FILE_PATH_1, 2, STASH_DIFF_TYPE);
@@ -252,7 +813,7 @@ public class StashRequestFacadeTest {
     when(diffReport.getType(FILE_PATH_1, 2)).thenReturn(STASH_DIFF_TYPE);
     when(diffReport.getType(FILE_PATH_2, 1)).thenReturn(null);
 
-    myFacade.postCommentPerIssue(STASH_PROJECT, STASH_REPOSITORY, STASH_PULLREQUEST_ID, SONARQUBE_URL, issueReport, stashClient);
+    myFacade.postCommentPerIssue(STASH_PROJECT, STASH_REPOSITORY, STASH_PULLREQUEST_ID, SONARQUBE_URL, ISSUE_THRESHOLD, issueReport, stashClient);
 
     verify(stashClient, times(0)).postCommentLineOnPullRequest(STASH_PROJECT, STASH_REPOSITORY, STASH_PULLREQUEST_ID, stashCommentMessage1, FILE_PATH_1, 1, STASH_DIFF_TYPE);
     verify(stashClient, times(1)).postCommentLineOnPullRequest(STASH_PROJECT, STASH_REPOSITORY, STASH_PULLREQUEST_ID, stashCommentMessage2, FILE_PATH_1, 2, STASH_DIFF_TYPE);
@@ -263,13 +824,215 @@ public class StashRequestFacadeTest {
   public void testPostCommentPerIssueWithNoSonarQubeIssues() throws Exception {
     initConfigForPostCommentLineOnPullRequest();
 
-    myFacade.postCommentPerIssue(STASH_PROJECT, STASH_REPOSITORY, STASH_PULLREQUEST_ID, SONARQUBE_URL, new SonarQubeIssuesReport(), stashClient);
+    myFacade.postCommentPerIssue(STASH_PROJECT, STASH_REPOSITORY, STASH_PULLREQUEST_ID, SONARQUBE_URL, ISSUE_THRESHOLD, new SonarQubeIssuesReport(), stashClient);
 
     verify(stashClient, times(0)).postCommentLineOnPullRequest(STASH_PROJECT, STASH_REPOSITORY, STASH_PULLREQUEST_ID, stashCommentMessage1, FILE_PATH_1, 1, STASH_DIFF_TYPE);
     verify(stashClient, times(0)).postCommentLineOnPullRequest(STASH_PROJECT, STASH_REPOSITORY, STASH_PULLREQUEST_ID, stashCommentMessage2, FILE_PATH_1, 2, STASH_DIFF_TYPE);
     verify(stashClient, times(0)).postCommentLineOnPullRequest(STASH_PROJECT, STASH_REPOSITORY, STASH_PULLREQUEST_ID, stashCommentMessage3, FILE_PATH_2, 1, STASH_DIFF_TYPE);
   }
 
+  @Test
+  public void testPostCommentPerIssueRetriesFailedComments() throws Exception {
+    initConfigForPostCommentLineOnPullRequest();
+    when(config.getErrorBudget()).thenReturn(10);
+
+    doThrow(new StashClientException("StashClientException for Test")).doReturn(COMMENT_ID).when(stashClient)
+      .postCommentLineOnPullRequest(STASH_PROJECT, STASH_REPOSITORY, STASH_PULLREQUEST_ID, stashCommentMessage2, FILE_PATH_1, 2, STASH_DIFF_TYPE);
+
+    PostingPlan plan = myFacade.postCommentPerIssue(STASH_PROJECT, STASH_REPOSITORY, STASH_PULLREQUEST_ID, SONARQUBE_URL, ISSUE_THRESHOLD, issueReport, stashClient);
+
+    verify(stashClient, times(1)).postCommentLineOnPullRequest(STASH_PROJECT, STASH_REPOSITORY, STASH_PULLREQUEST_ID, stashCommentMessage1, FILE_PATH_1, 1, STASH_DIFF_TYPE);
+    verify(stashClient, times(2)).postCommentLineOnPullRequest(STASH_PROJECT, STASH_REPOSITORY, STASH_PULLREQUEST_ID, stashCommentMessage2, FILE_PATH_1, 2, STASH_DIFF_TYPE);
+    verify(stashClient, times(1)).postCommentLineOnPullRequest(STASH_PROJECT, STASH_REPOSITORY, STASH_PULLREQUEST_ID, stashCommentMessage3, FILE_PATH_2, 1, STASH_DIFF_TYPE);
+    verify(stashClient, times(3)).postTaskOnComment(anyString(), eq(COMMENT_ID));
+    assertEquals(3, plan.getPostedComments().size());
+    assertTrue(plan.getFailedComments().isEmpty());
+  }
+
+  @Test
+  public void testPostCommentPerIssueWithTimeBudget() throws Exception {
+    initConfigForPostCommentLineOnPullRequest();
+    when(stashClient.getDeadline()).thenReturn(new Deadline(60000));
+
+    PostingPlan plan = myFacade.postCommentPerIssue(STASH_PROJECT, STASH_REPOSITORY, STASH_PULLREQUEST_ID, SONARQUBE_URL, ISSUE_THRESHOLD, issueReport, stashClient);
+
+    // most severe issues first
+    InOrder inOrder = inOrder(stashClient);
+    inOrder.verify(stashClient).postCommentLineOnPullRequest(STASH_PROJECT, STASH_REPOSITORY, STASH_PULLREQUEST_ID, stashCommentMessage2, FILE_PATH_1, 2, STASH_DIFF_TYPE);
+    inOrder.verify(stashClient).postCommentLineOnPullRequest(STASH_PROJECT, STASH_REPOSITORY, STASH_PULLREQUEST_ID, stashCommentMessage1, FILE_PATH_1, 1, STASH_DIFF_TYPE);
+    inOrder.verify(stashClient).postCommentLineOnPullRequest(STASH_PROJECT, STASH_REPOSITORY, STASH_PULLREQUEST_ID, stashCommentMessage3, FILE_PATH_2, 1, STASH_DIFF_TYPE);
+    assertEquals(3, plan.getPostedComments().size());
+  }
+
+  @Test
+  public void testPostCommentPerIssueWithExhaustedTimeBudget() throws Exception {
+    initConfigForPostCommentLineOnPullRequest();
+    Deadline deadline = new Deadline(1);
+    Thread.sleep(5);
+    when(stashClient.getDeadline()).thenReturn(deadline);
+
+    PostingPlan plan = myFacade.postCommentPerIssue(STASH_PROJECT, STASH_REPOSITORY, STASH_PULLREQUEST_ID, SONARQUBE_URL, ISSUE_THRESHOLD, issueReport, stashClient);
+
+    verify(stashClient, times(0)).postCommentLineOnPullRequest(anyString(), anyString(), anyString(), anyString(), anyString(), anyLong(), anyString());
+    assertEquals(3, plan.getAbandonedComments().size());
+    assertTrue(plan.getFailedComments().isEmpty());
+  }
+
+  @Test
+  public void testPostCommentPerIssueConcurrently() throws Exception {
+    initConfigForPostCommentLineOnPullRequest();
+    when(stashClient.getPostingLimiter()).thenReturn(new ConcurrencyLimiter(1, 3));
+
+    // each creation waits for the others: comments are only created if they are posted at the same time
+    final CountDownLatch posting = new CountDownLatch(3);
+    Answer<Long> concurrentCreation = new Answer<Long>() {
+      @Override
+      public Long answer(InvocationOnMock invocation) throws Throwable {
+        posting.countDown();
+        if (!posting.await(5, TimeUnit.SECONDS)) {
+          throw new StashClientException("Not posted concurrently");
+        }
+        return COMMENT_ID;
+      }
+    };
+    doAnswer(concurrentCreation).when(stashClient)
+      .postCommentLineOnPullRequest(anyString(), anyString(), anyString(), anyString(), anyString(), anyLong(), anyString());
+
+    PostingPlan plan = myFacade.postCommentPerIssue(STASH_PROJECT, STASH_REPOSITORY, STASH_PULLREQUEST_ID, SONARQUBE_URL, ISSUE_THRESHOLD, issueReport, stashClient);
+
+    assertEquals(3, plan.getPostedComments().size());
+    assertTrue(plan.getFailedComments().isEmpty());
+  }
+
+  @Test
+  public void testPostCommentPerIssueDefersCommentsWhenStashIsOverloaded() throws Exception {
+    initConfigForPostCommentLineOnPullRequest();
+    when(config.getErrorBudget()).thenReturn(100);
+    when(config.getSheddingErrorRate()).thenReturn(50.0);
+    when(diffReport.getLine(eq(FILE_PATH_1), anyLong())).then(returnsArgAt(1));
+
+    SonarQubeIssuesReport report = new SonarQubeIssuesReport();
+    for (int i = 0; i < LoadSheddingPolicy.WINDOW + 10; i++) {
+      report.add(new SonarQubeIssue(Severity.MAJOR, "message" + i, "rule", FILE_PATH_1, i + 1));
+    }
+    doThrow(new StashClientException("Service Unavailable")).when(stashClient)
+      .postCommentLineOnPullRequest(anyString(), anyString(), anyString(), anyString(), anyString(), anyLong(), anyString());
+
+    PostingPlan plan = myFacade.postCommentPerIssue(STASH_PROJECT, STASH_REPOSITORY, STASH_PULLREQUEST_ID, SONARQUBE_URL, ISSUE_THRESHOLD, report, stashClient);
+
+    // failed comments are not retried either
+    verify(stashClient, times(LoadSheddingPolicy.WINDOW))
+      .postCommentLineOnPullRequest(anyString(), anyString(), anyString(), anyString(), anyString(), anyLong(), anyString());
+    assertEquals(LoadSheddingPolicy.WINDOW, plan.getFailedComments().size());
+    assertEquals(10, plan.getDeferredComments().size());
+    assertTrue(plan.getAbandonedComments().isEmpty());
+    assertEquals("100% of the last 20 comment creations failed (threshold: 50.0%)", plan.getDegradationReason());
+  }
+
+  @Test
+  public void testPostCommentPerIssueRetriesTimeoutWithoutDuplicate() throws Exception {
+    initConfigForPostCommentLineOnPullRequest();
+    when(stashClient.getRetryPolicy()).thenReturn(new RetryPolicy(2, 0));
+
+    // the comment has been created by Stash although the request timed out
+    doThrow(new StashClientException(new TimeoutException())).when(stashClient)
+      .postCommentLineOnPullRequest(STASH_PROJECT, STASH_REPOSITORY, STASH_PULLREQUEST_ID, stashCommentMessage2, FILE_PATH_1, 2, STASH_DIFF_TYPE);
+    when(stashComments1.find(stashCommentMessage2, FILE_PATH_1, 2)).thenReturn(new StashComment(COMMENT_ID + 1, stashCommentMessage2, FILE_PATH_1, 2L));
+
+    PostingPlan plan = myFacade.postCommentPerIssue(STASH_PROJECT, STASH_REPOSITORY, STASH_PULLREQUEST_ID, SONARQUBE_URL, ISSUE_THRESHOLD, issueReport, stashClient);
+
+    verify(stashClient, times(1)).postCommentLineOnPullRequest(STASH_PROJECT, STASH_REPOSITORY, STASH_PULLREQUEST_ID, stashCommentMessage2, FILE_PATH_1, 2, STASH_DIFF_TYPE);
+    verify(stashClient, times(2)).getPullRequestComments(STASH_PROJECT, STASH_REPOSITORY, STASH_PULLREQUEST_ID, FILE_PATH_1);
+    verify(stashClient, times(1)).postTaskOnComment(anyString(), eq(COMMENT_ID + 1));
+    assertEquals(3, plan.getPostedComments().size());
+  }
+
+  @Test
+  public void testPostCommentPerIssueRetriesServerError() throws Exception {
+    initConfigForPostCommentLineOnPullRequest();
+    when(stashClient.getRetryPolicy()).thenReturn(new RetryPolicy(2, 0));
+
+    doThrow(new StashClientException("Server error", 502)).doReturn(COMMENT_ID).when(stashClient)
+      .postCommentLineOnPullRequest(STASH_PROJECT, STASH_REPOSITORY, STASH_PULLREQUEST_ID, stashCommentMessage2, FILE_PATH_1, 2, STASH_DIFF_TYPE);
+
+    PostingPlan plan = myFacade.postCommentPerIssue(STASH_PROJECT, STASH_REPOSITORY, STASH_PULLREQUEST_ID, SONARQUBE_URL, ISSUE_THRESHOLD, issueReport, stashClient);
+
+    // retried right away, not at the end of the posting
+    verify(stashClient, times(2)).postCommentLineOnPullRequest(STASH_PROJECT, STASH_REPOSITORY, STASH_PULLREQUEST_ID, stashCommentMessage2, FILE_PATH_1, 2, STASH_DIFF_TYPE);
+    assertEquals(3, plan.getPostedComments().size());
+    assertEquals(1, stashClient.getRetryPolicy().countRetries());
+  }
+
+  @Test
+  public void testPostAnalysisOverviewRetriesWithoutDuplicate() throws Exception {
+    initConfigForPostCommentLineOnPullRequest();
+    when(stashClient.getRetryPolicy()).thenReturn(new RetryPolicy(2, 0));
+
+    String text = MarkdownPrinter.printOverviewReportMarkdown(issueReport, null, SONARQUBE_URL, ISSUE_THRESHOLD) + "\n\n" + MarkdownPrinter.OVERVIEW_MARKER;
+    when(stashClient.findGeneralCommentOnPullRequest(STASH_PROJECT, STASH_REPOSITORY, STASH_PULLREQUEST_ID, MarkdownPrinter.OVERVIEW_MARKER))
+      .thenReturn(null, new StashComment(12, 0, text, null, null));
+    doThrow(new StashClientException(new TimeoutException())).when(stashClient).postCommentOnPullRequest(STASH_PROJECT, STASH_REPOSITORY, STASH_PULLREQUEST_ID, text);
+
+    myFacade.postAnalysisOverview(STASH_PROJECT, STASH_REPOSITORY, STASH_PULLREQUEST_ID, SONARQUBE_URL, ISSUE_THRESHOLD, issueReport, null, stashClient);
+
+    verify(stashClient, times(1)).postCommentOnPullRequest(anyString(), anyString(), anyString(), anyString());
+    verify(stashClient, times(0)).updateCommentOnPullRequest(anyString(), anyString(), anyString(), anyLong(), anyLong(), anyString());
+  }
+
+  @Test
+  public void testPostAnalysisOverviewIsNotRetriedOnceTheDeadlineExpired() throws Exception {
+    initConfigForPostCommentLineOnPullRequest();
+    when(stashClient.getRetryPolicy()).thenReturn(new RetryPolicy(2, 0));
+    Deadline deadline = new Deadline(1);
+    Thread.sleep(5);
+    when(stashClient.getDeadline()).thenReturn(deadline);
+    doThrow(new StashClientException(new TimeoutException())).when(stashClient).postCommentOnPullRequest(anyString(), anyString(), anyString(), anyString());
+
+    myFacade.postAnalysisOverview(STASH_PROJECT, STASH_REPOSITORY, STASH_PULLREQUEST_ID, SONARQUBE_URL, ISSUE_THRESHOLD, issueReport, null, stashClient);
+
+    verify(stashClient, times(1)).postCommentOnPullRequest(anyString(), anyString(), anyString(), anyString());
+    assertEquals(0, stashClient.getRetryPolicy().countRetries());
+  }
+
+  @Test
+  public void testPostCommentPerIssueWithPersistentFailure() throws Exception {
+    initConfigForPostCommentLineOnPullRequest();
+    when(config.getErrorBudget()).thenReturn(10);
+
+    doThrow(new StashClientException("StashClientException for Test")).when(stashClient)
+      .postCommentLineOnPullRequest(STASH_PROJECT, STASH_REPOSITORY, STASH_PULLREQUEST_ID, stashCommentMessage2, FILE_PATH_1, 2, STASH_DIFF_TYPE);
+
+    PostingPlan plan = myFacade.postCommentPerIssue(STASH_PROJECT, STASH_REPOSITORY, STASH_PULLREQUEST_ID, SONARQUBE_URL, ISSUE_THRESHOLD, issueReport, stashClient);
+
+    verify(stashClient, times(2)).postCommentLineOnPullRequest(STASH_PROJECT, STASH_REPOSITORY, STASH_PULLREQUEST_ID, stashCommentMessage2, FILE_PATH_1, 2, STASH_DIFF_TYPE);
+    verify(stashClient, times(1)).postCommentLineOnPullRequest(STASH_PROJECT, STASH_REPOSITORY, STASH_PULLREQUEST_ID, stashCommentMessage3, FILE_PATH_2, 1, STASH_DIFF_TYPE);
+    assertEquals(2, plan.getPostedComments().size());
+    assertEquals(1, plan.getFailedComments().size());
+    assertEquals("rule2", plan.getFailedComments().get(0).getAnchor().getRule());
+    assertTrue(plan.getAbandonedComments().isEmpty());
+  }
+
+  @Test
+  public void testPostCommentPerIssueWithExhaustedErrorBudget() throws Exception {
+    initConfigForPostCommentLineOnPullRequest();
+    when(config.getErrorBudget()).thenReturn(1);
+
+    doThrow(new StashClientException("StashClientException for Test")).when(stashClient)
+      .postCommentLineOnPullRequest(STASH_PROJECT, STASH_REPOSITORY, STASH_PULLREQUEST_ID, stashCommentMessage1, FILE_PATH_1, 1, STASH_DIFF_TYPE);
+    doThrow(new StashClientException("StashClientException for Test")).when(stashClient)
+      .postCommentLineOnPullRequest(STASH_PROJECT, STASH_REPOSITORY, STASH_PULLREQUEST_ID, stashCommentMessage2, FILE_PATH_1, 2, STASH_DIFF_TYPE);
+
+    PostingPlan plan = myFacade.postCommentPerIssue(STASH_PROJECT, STASH_REPOSITORY, STASH_PULLREQUEST_ID, SONARQUBE_URL, ISSUE_THRESHOLD, issueReport, stashClient);
+
+    // no retry once the budget is exhausted
+    verify(stashClient, times(1)).postCommentLineOnPullRequest(STASH_PROJECT, STASH_REPOSITORY, STASH_PULLREQUEST_ID, stashCommentMessage1, FILE_PATH_1, 1, STASH_DIFF_TYPE);
+    verify(stashClient, times(1)).postCommentLineOnPullRequest(STASH_PROJECT, STASH_REPOSITORY, STASH_PULLREQUEST_ID, stashCommentMessage2, FILE_PATH_1, 2, STASH_DIFF_TYPE);
+    verify(stashClient, times(0)).postCommentLineOnPullRequest(STASH_PROJECT, STASH_REPOSITORY, STASH_PULLREQUEST_ID, stashCommentMessage3, FILE_PATH_2, 1, STASH_DIFF_TYPE);
+    assertTrue(plan.getPostedComments().isEmpty());
+    assertEquals(2, plan.getFailedComments().size());
+    assertEquals(1, plan.getAbandonedComments().size());
+  }
+
   @Test
   public void testPostCommentPerIssueWithExceptions() throws Exception {
     initConfigForPostCommentLineOnPullRequest();
@@ -282,7 +1045,7 @@ public class StashRequestFacadeTest {
       .postCommentLineOnPullRequest(STASH_PROJECT, STASH_REPOSITORY, STASH_PULLREQUEST_ID, stashCommentMessage2, FILE_PATH_1, 2, STASH_DIFF_TYPE);
 
     try {
-      myFacade.postCommentPerIssue(STASH_PROJECT, STASH_REPOSITORY, STASH_PULLREQUEST_ID, SONARQUBE_URL, issueReport, stashClient);
+      myFacade.postCommentPerIssue(STASH_PROJECT, STASH_REPOSITORY, STASH_PULLREQUEST_ID, SONARQUBE_URL, ISSUE_THRESHOLD, issueReport, stashClient);
 
       verify(stashClient, times(1)).postCommentLineOnPullRequest(STASH_PROJECT, STASH_REPOSITORY, STASH_PULLREQUEST_ID, stashCommentMessage1, FILE_PATH_1, 1, STASH_DIFF_TYPE);
       verify(stashClient, times(1)).postCommentLineOnPullRequest(STASH_PROJECT, STASH_REPOSITORY, STASH_PULLREQUEST_ID, stashCommentMessage2, FILE_PATH_1, 2, STASH_DIFF_TYPE);
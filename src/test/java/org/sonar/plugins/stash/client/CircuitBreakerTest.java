@@ -0,0 +1,107 @@
+package org.sonar.plugins.stash.client;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class CircuitBreakerTest {
+
+  private static void send(CircuitBreaker circuitBreaker, boolean failed, long durationMillis) {
+    circuitBreaker.record(circuitBreaker.allowRequest(), failed, durationMillis);
+  }
+
+  @Test
+  public void testOpensAfterConsecutiveFailures() {
+    CircuitBreaker circuitBreaker = new CircuitBreaker(3, 0, 60000);
+
+    send(circuitBreaker, true, 10);
+    send(circuitBreaker, true, 10);
+    // a success resets the run of failures
+    send(circuitBreaker, false, 10);
+    send(circuitBreaker, true, 10);
+    send(circuitBreaker, true, 10);
+    assertFalse(circuitBreaker.isOpen());
+    assertNotNull(circuitBreaker.allowRequest());
+
+    send(circuitBreaker, true, 10);
+    assertTrue(circuitBreaker.isOpen());
+    assertNull(circuitBreaker.allowRequest());
+    assertNull(circuitBreaker.allowRequest());
+    assertEquals(2, circuitBreaker.countRejected());
+  }
+
+  @Test
+  public void testSlowRequestsCountAsFailures() {
+    CircuitBreaker circuitBreaker = new CircuitBreaker(2, 1000, 60000);
+
+    send(circuitBreaker, false, 999);
+    send(circuitBreaker, false, 1000);
+    assertFalse(circuitBreaker.isOpen());
+
+    send(circuitBreaker, false, 5000);
+    assertTrue(circuitBreaker.isOpen());
+  }
+
+  @Test
+  public void testTrialRequestAfterOpenDuration() {
+    CircuitBreaker circuitBreaker = new CircuitBreaker(1, 0, 0);
+
+    send(circuitBreaker, true, 10);
+    assertTrue(circuitBreaker.isOpen());
+
+    // a single trial request at a time
+    CircuitBreaker.Permit trial = circuitBreaker.allowRequest();
+    assertNotNull(trial);
+    assertNull(circuitBreaker.allowRequest());
+
+    circuitBreaker.record(trial, true, 10);
+    assertTrue(circuitBreaker.isOpen());
+
+    trial = circuitBreaker.allowRequest();
+    assertNotNull(trial);
+    circuitBreaker.record(trial, false, 10);
+    assertFalse(circuitBreaker.isOpen());
+    assertNotNull(circuitBreaker.allowRequest());
+    assertNotNull(circuitBreaker.allowRequest());
+  }
+
+  @Test
+  public void testOutcomeOfRequestSentBeforeOpeningIsIgnored() {
+    CircuitBreaker circuitBreaker = new CircuitBreaker(1, 0, 0);
+    CircuitBreaker.Permit failing = circuitBreaker.allowRequest();
+    CircuitBreaker.Permit late = circuitBreaker.allowRequest();
+    CircuitBreaker.Permit lateFailing = circuitBreaker.allowRequest();
+
+    circuitBreaker.record(failing, true, 10);
+    assertTrue(circuitBreaker.isOpen());
+    CircuitBreaker.Permit trial = circuitBreaker.allowRequest();
+    assertNotNull(trial);
+
+    // neither closes the circuit nor lets a second trial through
+    circuitBreaker.record(late, false, 10);
+    assertTrue(circuitBreaker.isOpen());
+    assertNull(circuitBreaker.allowRequest());
+
+    circuitBreaker.record(trial, false, 10);
+    assertFalse(circuitBreaker.isOpen());
+
+    // nor opens it again
+    circuitBreaker.record(lateFailing, true, 10);
+    assertFalse(circuitBreaker.isOpen());
+  }
+
+  @Test
+  public void testDisabled() {
+    CircuitBreaker circuitBreaker = CircuitBreaker.disabled();
+    for (int i = 0; i < 100; i++) {
+      send(circuitBreaker, true, 100000);
+    }
+    assertFalse(circuitBreaker.isOpen());
+    assertNotNull(circuitBreaker.allowRequest());
+  }
+
+}
@@ -0,0 +1,103 @@
+package org.sonar.plugins.stash.client;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ConcurrencyLimiterTest {
+
+  private static void succeed(ConcurrencyLimiter limiter, int requests, long latencyMillis) throws Exception {
+    for (int i = 0; i < requests; i++) {
+      limiter.acquire();
+      limiter.release(latencyMillis, false);
+    }
+  }
+
+  @Test
+  public void testAdditiveIncreaseUpToMaximum() throws Exception {
+    ConcurrencyLimiter limiter = new ConcurrencyLimiter(1, 4);
+    assertEquals(1, limiter.getLimit());
+
+    succeed(limiter, 1, 100);
+    assertEquals(2, limiter.getLimit());
+    // about one more per round of requests at the current limit
+    succeed(limiter, 3, 100);
+    assertEquals(3, limiter.getLimit());
+
+    succeed(limiter, 100, 100);
+    assertEquals(4, limiter.getLimit());
+  }
+
+  @Test
+  public void testMultiplicativeDecreaseOnCongestion() throws Exception {
+    ConcurrencyLimiter limiter = new ConcurrencyLimiter(2, 16);
+    succeed(limiter, 1000, 0);
+    assertEquals(16, limiter.getLimit());
+
+    limiter.acquire();
+    limiter.release(0, true);
+    assertEquals(8, limiter.getLimit());
+
+    // never below the minimum
+    for (int i = 0; i < 10; i++) {
+      Thread.sleep(1);
+      limiter.acquire();
+      limiter.release(0, true);
+    }
+    assertEquals(2, limiter.getLimit());
+  }
+
+  @Test
+  public void testDecreaseOnLatencySpike() throws Exception {
+    ConcurrencyLimiter limiter = new ConcurrencyLimiter(1, 8);
+    succeed(limiter, 100, 10);
+    assertEquals(8, limiter.getLimit());
+
+    limiter.acquire();
+    limiter.release(100, false);
+    assertEquals(4, limiter.getLimit());
+  }
+
+  @Test
+  public void testAcquireWithTimeout() throws Exception {
+    ConcurrencyLimiter limiter = ConcurrencyLimiter.sequential();
+    assertTrue(limiter.acquire(100));
+    assertFalse(limiter.acquire(50));
+
+    // a cancelled request leaves the limit as it is
+    limiter.cancel();
+    assertTrue(limiter.acquire(50));
+    assertEquals(1, limiter.getLimit());
+  }
+
+  @Test
+  public void testAcquireWaitsForLimit() throws Exception {
+    final ConcurrencyLimiter limiter = ConcurrencyLimiter.sequential();
+    limiter.acquire();
+
+    final CountDownLatch acquired = new CountDownLatch(1);
+    Thread thread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          limiter.acquire();
+          acquired.countDown();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+    });
+    thread.start();
+
+    assertFalse(acquired.await(100, TimeUnit.MILLISECONDS));
+    limiter.release(10, false);
+    assertTrue(acquired.await(5, TimeUnit.SECONDS));
+    thread.join();
+  }
+
+}
@@ -0,0 +1,32 @@
+package org.sonar.plugins.stash.client;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class DeadlineTest {
+
+  @Test
+  public void testNone() {
+    Deadline deadline = Deadline.none();
+    assertFalse(deadline.isBounded());
+    assertFalse(deadline.isExpired());
+    assertEquals(10000, deadline.cap(10000));
+  }
+
+  @Test
+  public void testCap() throws Exception {
+    Deadline deadline = new Deadline(1000);
+    assertTrue(deadline.isBounded());
+    assertEquals(100, deadline.cap(100));
+    assertTrue(deadline.cap(10000) <= 1000);
+
+    deadline = new Deadline(1);
+    Thread.sleep(5);
+    assertTrue(deadline.isExpired());
+    assertEquals(0, deadline.cap(10000));
+  }
+
+}
@@ -0,0 +1,56 @@
+package org.sonar.plugins.stash.client;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class HedgingPolicyTest {
+
+  @Test
+  public void testHedgeDelayIsLatencyPercentile() {
+    HedgingPolicy policy = new HedgingPolicy(95, 10);
+    for (int i = 1; i < HedgingPolicy.MIN_SAMPLES; i++) {
+      policy.recordLatency(i * 10);
+    }
+    // not enough latencies yet
+    assertEquals(-1, policy.getHedgeDelay());
+
+    for (int i = HedgingPolicy.MIN_SAMPLES; i <= HedgingPolicy.WINDOW; i++) {
+      policy.recordLatency(i * 10);
+    }
+    assertEquals(950, policy.getHedgeDelay());
+
+    // oldest latencies are forgotten
+    for (int i = 0; i < HedgingPolicy.WINDOW; i++) {
+      policy.recordLatency(5);
+    }
+    assertEquals(5, policy.getHedgeDelay());
+  }
+
+  @Test
+  public void testHedgeBudget() {
+    HedgingPolicy policy = new HedgingPolicy(95, 10);
+    for (int i = 0; i < 9; i++) {
+      policy.getHedgeDelay();
+    }
+    assertFalse(policy.tryHedge());
+
+    policy.getHedgeDelay();
+    assertTrue(policy.tryHedge());
+    assertFalse(policy.tryHedge());
+    assertEquals(1, policy.countHedges());
+  }
+
+  @Test
+  public void testDisabled() {
+    HedgingPolicy policy = HedgingPolicy.disabled();
+    for (int i = 0; i < HedgingPolicy.WINDOW; i++) {
+      policy.recordLatency(10);
+    }
+    assertEquals(-1, policy.getHedgeDelay());
+    assertFalse(policy.tryHedge());
+  }
+
+}
@@ -0,0 +1,96 @@
+package org.sonar.plugins.stash.client;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class RateLimiterTest {
+
+  private static long elapsedMillis(long startNanos) {
+    return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+  }
+
+  @Test
+  public void testBurstThenSustainedRate() throws Exception {
+    RateLimiter limiter = new RateLimiter(20, 2);
+
+    long start = System.nanoTime();
+    limiter.acquire();
+    limiter.acquire();
+    assertTrue(elapsedMillis(start) < 40);
+
+    // 3 more requests at 20 per second: at least 150 ms
+    limiter.acquire();
+    limiter.acquire();
+    limiter.acquire();
+    assertTrue(elapsedMillis(start) >= 140);
+  }
+
+  @Test
+  public void testUnlimited() throws Exception {
+    RateLimiter limiter = RateLimiter.unlimited();
+
+    long start = System.nanoTime();
+    for (int i = 0; i < 1000; i++) {
+      limiter.acquire();
+    }
+    assertTrue(elapsedMillis(start) < 500);
+  }
+
+  @Test
+  public void testPause() throws Exception {
+    RateLimiter limiter = RateLimiter.unlimited();
+    limiter.pause(200);
+    // a shorter pause does not shorten the current one
+    limiter.pause(10);
+
+    long start = System.nanoTime();
+    limiter.acquire();
+    assertTrue(elapsedMillis(start) >= 180);
+  }
+
+  @Test
+  public void testPauseIsBoundedByTheDeadline() throws Exception {
+    RateLimiter limiter = RateLimiter.unlimited();
+    assertFalse(limiter.pause(10000, new Deadline(100)));
+
+    long start = System.nanoTime();
+    limiter.acquire();
+    assertTrue(elapsedMillis(start) < 1000);
+
+    assertTrue(RateLimiter.unlimited().pause(10, Deadline.none()));
+  }
+
+  @Test
+  public void testAcquireWithTimeout() throws Exception {
+    RateLimiter limiter = new RateLimiter(1, 1);
+    assertTrue(limiter.acquire(0));
+
+    // the next permit is a second away: not taken
+    long start = System.nanoTime();
+    assertFalse(limiter.acquire(100));
+    assertTrue(elapsedMillis(start) < 100);
+
+    limiter = RateLimiter.unlimited();
+    limiter.pause(1000);
+    assertFalse(limiter.acquire(100));
+    assertTrue(limiter.acquire(2000));
+  }
+
+  @Test
+  public void testTryAcquire() throws Exception {
+    RateLimiter limiter = new RateLimiter(1, 2);
+    assertTrue(limiter.tryAcquire());
+    assertTrue(limiter.tryAcquire());
+    assertFalse(limiter.tryAcquire());
+
+    limiter = RateLimiter.unlimited();
+    assertTrue(limiter.tryAcquire());
+    limiter.pause(1000);
+    assertFalse(limiter.tryAcquire());
+  }
+
+}
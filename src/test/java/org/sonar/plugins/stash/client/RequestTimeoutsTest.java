@@ -0,0 +1,59 @@
+package org.sonar.plugins.stash.client;
+
+import org.junit.Test;
+import org.sonar.plugins.stash.client.RequestTimeouts.Endpoint;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+public class RequestTimeoutsTest {
+
+  @Test
+  public void testFixed() {
+    RequestTimeouts timeouts = RequestTimeouts.fixed(10000);
+    assertFalse(timeouts.isAdaptive());
+    assertEquals(RequestTimeouts.DEFAULT_CONNECT_TIMEOUT, timeouts.getConnectTimeout());
+
+    for (int i = 0; i < RequestTimeouts.WINDOW; i++) {
+      timeouts.recordLatency(Endpoint.TASK_POST, 10);
+    }
+    assertEquals(10000, timeouts.getTimeout(Endpoint.TASK_POST));
+  }
+
+  @Test
+  public void testAdaptivePerEndpoint() {
+    RequestTimeouts timeouts = new RequestTimeouts(1000, 500, 60000);
+    for (int i = 1; i < RequestTimeouts.MIN_SAMPLES; i++) {
+      timeouts.recordLatency(Endpoint.COMMENT_POST, 400);
+      timeouts.recordLatency(Endpoint.DIFF, 20000);
+      timeouts.recordLatency(Endpoint.TASK_POST, 50);
+    }
+    // not enough latencies yet
+    assertEquals(60000, timeouts.getTimeout(Endpoint.COMMENT_POST));
+
+    timeouts.recordLatency(Endpoint.COMMENT_POST, 400);
+    timeouts.recordLatency(Endpoint.DIFF, 40000);
+    timeouts.recordLatency(Endpoint.TASK_POST, 50);
+    assertEquals(800, timeouts.getTimeout(Endpoint.COMMENT_POST));
+    // bounded by the maximum and minimum timeouts
+    assertEquals(60000, timeouts.getTimeout(Endpoint.DIFF));
+    assertEquals(500, timeouts.getTimeout(Endpoint.TASK_POST));
+    assertEquals(60000, timeouts.getTimeout(Endpoint.COMMENTS));
+  }
+
+  @Test
+  public void testMaximumTimeoutAfterTimeout() {
+    RequestTimeouts timeouts = new RequestTimeouts(1000, 100, 10000);
+    for (int i = 0; i < RequestTimeouts.MIN_SAMPLES; i++) {
+      timeouts.recordLatency(Endpoint.COMMENTS, 100);
+    }
+    assertEquals(200, timeouts.getTimeout(Endpoint.COMMENTS));
+
+    timeouts.recordTimeout(Endpoint.COMMENTS);
+    assertEquals(10000, timeouts.getTimeout(Endpoint.COMMENTS));
+
+    timeouts.recordLatency(Endpoint.COMMENTS, 100);
+    assertEquals(200, timeouts.getTimeout(Endpoint.COMMENTS));
+  }
+
+}
@@ -0,0 +1,50 @@
+package org.sonar.plugins.stash.client;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class RetryPolicyTest {
+
+  @Test
+  public void testCanRetry() {
+    RetryPolicy policy = new RetryPolicy(2, 0);
+    assertTrue(policy.canRetry(0));
+    assertTrue(policy.canRetry(1));
+    assertFalse(policy.canRetry(2));
+    assertFalse(RetryPolicy.none().canRetry(0));
+  }
+
+  @Test
+  public void testBackoff() throws Exception {
+    RetryPolicy policy = new RetryPolicy(3, 20);
+
+    long start = System.currentTimeMillis();
+    policy.backoff(0);
+    policy.backoff(1);
+    policy.backoff(2);
+    // at most 20 + 40 + 80 ms
+    assertTrue(System.currentTimeMillis() - start < 140 + 100);
+    assertEquals(3, policy.countRetries());
+  }
+
+  @Test
+  public void testBackoffIsBoundedByTheDeadline() throws Exception {
+    RetryPolicy policy = new RetryPolicy(3, RetryPolicy.MAX_DELAY_MILLIS);
+
+    long start = System.currentTimeMillis();
+    assertFalse(policy.backoff(16, new Deadline(100)));
+    assertTrue(System.currentTimeMillis() - start < 1000);
+
+    // no wait once the time budget is exhausted
+    Deadline expired = new Deadline(1);
+    Thread.sleep(5);
+    assertFalse(policy.backoff(0, expired));
+    assertEquals(1, policy.countRetries());
+
+    assertTrue(new RetryPolicy(1, 0).backoff(0, new Deadline(1000)));
+  }
+
+}
@@ -0,0 +1,191 @@
+package org.sonar.plugins.stash.client;
+
+import org.junit.After;
+import org.junit.Test;
+import org.sonar.plugins.stash.exceptions.StashClientException;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class SingleFlightTest {
+
+  private final SingleFlight singleFlight = new SingleFlight();
+  private final ExecutorService executor = Executors.newCachedThreadPool();
+  private final AtomicInteger executions = new AtomicInteger();
+
+  @After
+  public void tearDown() {
+    executor.shutdownNow();
+  }
+
+  @Test
+  public void testIdenticalCallsShareTheResult() throws Exception {
+    CountDownLatch release = new CountDownLatch(1);
+    Future<Object> first = submit("key", release, null);
+    waitForCallers("key", 1);
+    Future<Object> second = submit("key", release, null);
+    waitForCallers("key", 2);
+
+    release.countDown();
+
+    assertSame(first.get(), second.get());
+    assertEquals(1, executions.get());
+    assertEquals(1, singleFlight.countSharedCalls());
+    assertEquals(0, singleFlight.countCallers("key"));
+  }
+
+  @Test
+  public void testFollowersGetTheirOwnCopy() throws Exception {
+    final CountDownLatch release = new CountDownLatch(1);
+    Callable<StringBuilder> caller = new Callable<StringBuilder>() {
+      @Override
+      public StringBuilder call() throws Exception {
+        return singleFlight.execute("key", new SingleFlight.Call<StringBuilder>() {
+          @Override
+          public StringBuilder call() throws StashClientException {
+            executions.incrementAndGet();
+            try {
+              release.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+              throw new StashClientException(e);
+            }
+            return new StringBuilder("result");
+          }
+
+          @Override
+          StringBuilder share(StringBuilder result) {
+            return new StringBuilder(result);
+          }
+        });
+      }
+    };
+    Future<StringBuilder> first = executor.submit(caller);
+    waitForCallers("key", 1);
+    Future<StringBuilder> second = executor.submit(caller);
+    waitForCallers("key", 2);
+
+    release.countDown();
+
+    assertTrue(first.get() != second.get());
+    assertEquals("result", second.get().toString());
+    assertEquals(1, executions.get());
+  }
+
+  @Test
+  public void testOtherCallsAreNotShared() throws Exception {
+    CountDownLatch release = new CountDownLatch(1);
+    Future<Object> first = submit("key", release, null);
+    Future<Object> second = submit("other", release, null);
+
+    release.countDown();
+
+    assertTrue(first.get() != second.get());
+    assertEquals(2, executions.get());
+    assertEquals(0, singleFlight.countSharedCalls());
+  }
+
+  @Test
+  public void testCompletedCallIsNotCached() throws Exception {
+    CountDownLatch released = new CountDownLatch(0);
+    Object first = submit("key", released, null).get();
+    Object second = submit("key", released, null).get();
+
+    assertTrue(first != second);
+    assertEquals(2, executions.get());
+  }
+
+  @Test
+  public void testFailureIsShared() throws Exception {
+    CountDownLatch release = new CountDownLatch(1);
+    StashClientException error = new StashClientException("Service Unavailable", 503);
+    Future<Object> first = submit("key", release, error);
+    waitForCallers("key", 1);
+    Future<Object> second = submit("key", release, null);
+    waitForCallers("key", 2);
+
+    release.countDown();
+
+    assertSame(error, getError(first));
+    assertSame(error, getError(second));
+    assertEquals(1, executions.get());
+  }
+
+  @Test
+  public void testFollowerWaitIsBoundedByItsDeadline() throws Exception {
+    CountDownLatch release = new CountDownLatch(1);
+    Future<Object> first = submit("key", release, null);
+    waitForCallers("key", 1);
+
+    long start = System.currentTimeMillis();
+    try {
+      singleFlight.execute("key", new Deadline(100), new SingleFlight.Call<Object>() {
+        @Override
+        Object call() {
+          throw new IllegalStateException("the call in flight is shared");
+        }
+      });
+
+      assertFalse("A wait beyond the deadline should raise StashClientException", true);
+
+    } catch (StashClientException e) {
+      assertTrue(System.currentTimeMillis() - start < 1000);
+      assertEquals(1, singleFlight.countCallers("key"));
+    }
+
+    release.countDown();
+    assertNotNull(first.get());
+    assertEquals(1, executions.get());
+  }
+
+  private Future<Object> submit(final String key, final CountDownLatch release, final StashClientException error) {
+    return executor.submit(new Callable<Object>() {
+      @Override
+      public Object call() throws Exception {
+        return singleFlight.execute(key, new SingleFlight.Call<Object>() {
+          @Override
+          public Object call() throws StashClientException {
+            executions.incrementAndGet();
+            try {
+              release.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+              throw new StashClientException(e);
+            }
+            if (error != null) {
+              throw error;
+            }
+            return new Object();
+          }
+        });
+      }
+    });
+  }
+
+  private void waitForCallers(String key, int callers) throws InterruptedException {
+    for (int i = 0; i < 500 && singleFlight.countCallers(key) < callers; i++) {
+      Thread.sleep(10);
+    }
+    assertEquals(callers, singleFlight.countCallers(key));
+  }
+
+  private static Throwable getError(Future<Object> future) throws InterruptedException {
+    try {
+      future.get();
+      return null;
+    } catch (ExecutionException e) {
+      return e.getCause();
+    }
+  }
+
+}
@@ -0,0 +1,122 @@
+package org.sonar.plugins.stash.client;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class StashClientAuthorizationTest {
+
+  private static final String PULL_REQUEST_PATH = "/rest/api/1.0/projects/Project/repos/Repository/pull-requests/1";
+  private static final String DIFF = "{\"diffs\": []}";
+
+  private static final int REQUESTS = 10;
+
+  StashServerStub stash;
+
+  @Before
+  public void setUp() throws Exception {
+    stash = new StashServerStub();
+  }
+
+  @After
+  public void tearDown() {
+    stash.stop();
+  }
+
+  @Test
+  public void testSessionIsReusedAcrossRequests() throws Exception {
+    stash.respond("GET", PULL_REQUEST_PATH + "/diff", 200, DIFF, Collections.singletonMap("Set-Cookie", "BITBUCKETSESSIONID=session; Path=/; HttpOnly"));
+    stash.respond("GET", PULL_REQUEST_PATH + "/diff", 200, DIFF);
+    try (StashClient client = createClient(new StashCredentials("login", "password"), true)) {
+      client.getPullRequestDiffs("Project", "Repository", "1");
+      client.getPullRequestDiffs("Project", "Repository", "1");
+    }
+
+    List<StashServerStub.RecordedRequest> requests = stash.getRequests();
+    assertNotNull(requests.get(0).getHeader("Authorization"));
+    assertNull(requests.get(1).getHeader("Authorization"));
+    assertEquals("BITBUCKETSESSIONID=session", requests.get(1).getHeader("Cookie"));
+  }
+
+  @Test
+  public void testExpiredSessionIsReplacedWithCredentials() throws Exception {
+    stash.respond("GET", PULL_REQUEST_PATH + "/diff", 200, DIFF, Collections.singletonMap("Set-Cookie", "JSESSIONID=session"));
+    stash.respond("GET", PULL_REQUEST_PATH + "/diff", 401, "");
+    stash.respond("GET", PULL_REQUEST_PATH + "/diff", 200, DIFF);
+    try (StashClient client = createClient(new StashCredentials("login", "password"), true)) {
+      client.getPullRequestDiffs("Project", "Repository", "1");
+      assertNotNull(client.getPullRequestDiffs("Project", "Repository", "1"));
+    }
+
+    List<StashServerStub.RecordedRequest> requests = stash.getRequests();
+    assertEquals(3, requests.size());
+    assertNull(requests.get(1).getHeader("Authorization"));
+    assertEquals("JSESSIONID=session", requests.get(1).getHeader("Cookie"));
+  }
+
+  @Test
+  public void testRequestSentAgainWithoutRejectedSession() throws Exception {
+    stash.respond("GET", PULL_REQUEST_PATH + "/diff", 200, DIFF, Collections.singletonMap("Set-Cookie", "JSESSIONID=session"));
+    stash.respond("GET", PULL_REQUEST_PATH + "/diff", 401, "");
+    stash.respond("GET", PULL_REQUEST_PATH + "/diff", 200, DIFF);
+    try (StashClient client = createClient(new StashCredentials("login", "password"), true)) {
+      client.getPullRequestDiffs("Project", "Repository", "1");
+      client.getPullRequestDiffs("Project", "Repository", "1");
+    }
+
+    StashServerStub.RecordedRequest retried = stash.getRequests().get(2);
+    assertTrue(retried.getHeader("Authorization").startsWith("Basic "));
+    assertNull(retried.getHeader("Cookie"));
+  }
+
+  @Test
+  public void testBearerToken() throws Exception {
+    stash.respond("GET", PULL_REQUEST_PATH + "/diff", 200, DIFF);
+    try (StashClient client = createClient(new StashCredentials("login", null, "token"), false)) {
+      client.getPullRequestDiffs("Project", "Repository", "1");
+    }
+
+    assertEquals("Bearer token", stash.getRequests().get(0).getHeader("Authorization"));
+  }
+
+  @Test
+  public void testCredentialsAreCheckedOncePerSession() throws Exception {
+    stash.respond("GET", PULL_REQUEST_PATH + "/diff", 200, DIFF, Collections.singletonMap("Set-Cookie", "BITBUCKETSESSIONID=session"));
+
+    try (StashClient client = createClient(new StashCredentials("login", "password"), false)) {
+      sendRequests(client);
+    }
+    assertEquals(REQUESTS, stash.countCredentialChecks());
+
+    try (StashClient client = createClient(new StashCredentials("login", "password"), true)) {
+      sendRequests(client);
+    }
+    assertEquals(REQUESTS + 1, stash.countCredentialChecks());
+
+    try (StashClient client = createClient(new StashCredentials("login", null, "token"), false)) {
+      sendRequests(client);
+    }
+    assertEquals(REQUESTS + 1, stash.countCredentialChecks());
+    assertEquals(3 * REQUESTS, stash.getRequests().size());
+  }
+
+  private static void sendRequests(StashClient client) throws Exception {
+    for (int i = 0; i < REQUESTS; i++) {
+      client.getPullRequestDiffs("Project", "Repository", "1");
+    }
+  }
+
+  private StashClient createClient(StashCredentials credentials, boolean reuseSession) {
+    return new StashClient(stash.getUrl(), credentials, RequestTimeouts.fixed(5000), RateLimiter.unlimited(), RetryPolicy.none(), CircuitBreaker.disabled(),
+      Deadline.none(), HedgingPolicy.disabled(), ConcurrencyLimiter.sequential(), reuseSession);
+  }
+
+}
@@ -0,0 +1,173 @@
+package org.sonar.plugins.stash.client;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.JSONValue;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.sonar.plugins.stash.exceptions.StashClientException;
+import org.sonar.plugins.stash.issue.StashComment;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+public class StashClientInsightsTest {
+
+  private static final String PULL_REQUEST_PATH = "/rest/api/1.0/projects/Project/repos/Repository/pull-requests/1";
+  private static final String REPORT_PATH = "/rest/insights/1.0/projects/Project/repos/Repository/commits/abcdef/reports/report.key";
+  private static final String ACTIVITIES_PATH = PULL_REQUEST_PATH + "/activities";
+  private static final String ANNOTATIONS_PATH = REPORT_PATH + "/annotations";
+
+  StashServerStub stash;
+  StashClient client;
+
+  @Before
+  public void setUp() throws Exception {
+    stash = new StashServerStub();
+    client = new StashClient(stash.getUrl(), new StashCredentials("login", "password"), 5000);
+  }
+
+  @After
+  public void tearDown() {
+    client.close();
+    stash.stop();
+  }
+
+  @Test
+  public void testGetPullRequestLatestCommit() throws Exception {
+    stash.respond("GET", PULL_REQUEST_PATH, 200, "{\"id\": 1, \"fromRef\": {\"id\": \"refs/heads/feature\", \"latestCommit\": \"abcdef\"}}");
+
+    assertEquals("abcdef", client.getPullRequestLatestCommit("Project", "Repository", "1"));
+    assertNotNull(stash.getRequests().get(0).getHeader("Authorization"));
+  }
+
+  @Test(expected = StashClientException.class)
+  public void testGetPullRequestLatestCommitWithoutFromRef() throws Exception {
+    stash.respond("GET", PULL_REQUEST_PATH, 200, "{\"id\": 1}");
+
+    client.getPullRequestLatestCommit("Project", "Repository", "1");
+  }
+
+  @Test
+  public void testFindGeneralCommentOnPullRequest() throws Exception {
+    stash.respond("GET", ACTIVITIES_PATH, 200, "{\"isLastPage\": false, \"nextPageStart\": 25, \"values\": ["
+      + "{\"action\": \"COMMENTED\", \"comment\": {\"id\": 1, \"version\": 0, \"text\": \"summary\", \"author\": {\"name\": \"login\"}}}]}");
+    stash.respond("GET", ACTIVITIES_PATH, 200, "{\"isLastPage\": true, \"values\": ["
+      + "{\"action\": \"COMMENTED\", \"comment\": {\"id\": 2, \"version\": 3, \"text\": \"overview\", \"author\": {\"name\": \"login\"}}}]}");
+
+    StashComment comment = client.findGeneralCommentOnPullRequest("Project", "Repository", "1", "overview");
+    assertEquals(2, comment.getId());
+    assertEquals(3, comment.getVersion());
+
+    List<StashServerStub.RecordedRequest> requests = stash.getRequests();
+    assertEquals(2, requests.size());
+    assertEquals("start=0", requests.get(0).getQuery());
+    assertEquals("start=25", requests.get(1).getQuery());
+  }
+
+  @Test
+  public void testFindGeneralCommentOnPullRequestNotFound() throws Exception {
+    stash.respond("GET", ACTIVITIES_PATH, 200, "{\"isLastPage\": true, \"values\": []}");
+
+    assertNull(client.findGeneralCommentOnPullRequest("Project", "Repository", "1", "overview"));
+  }
+
+  @Test
+  public void testFindGeneralCommentsOnPullRequest() throws Exception {
+    stash.respond("GET", ACTIVITIES_PATH, 200, "{\"isLastPage\": false, \"nextPageStart\": 25, \"values\": ["
+      + "{\"action\": \"COMMENTED\", \"comment\": {\"id\": 1, \"version\": 0, \"text\": \"summary\", \"author\": {\"name\": \"login\"}}}]}");
+    stash.respond("GET", ACTIVITIES_PATH, 200, "{\"isLastPage\": false, \"nextPageStart\": 50, \"values\": ["
+      + "{\"action\": \"COMMENTED\", \"comment\": {\"id\": 2, \"version\": 3, \"text\": \"overview\", \"author\": {\"name\": \"login\"}}},"
+      + "{\"action\": \"COMMENTED\", \"comment\": {\"id\": 3, \"version\": 0, \"text\": \"old summary\", \"author\": {\"name\": \"login\"}}}]}");
+
+    Map<String, StashComment> comments = client.findGeneralCommentsOnPullRequest("Project", "Repository", "1", Arrays.asList("overview", "summary"));
+    assertEquals(2, comments.size());
+    assertEquals(2, comments.get("overview").getId());
+    assertEquals(1, comments.get("summary").getId());
+
+    // both comments found: the next pages are not fetched
+    assertEquals(2, stash.getRequests().size());
+  }
+
+  @Test
+  public void testGetPullRequestDiffURL() {
+    assertEquals(stash.getUrl() + "/projects/Project/repos/Repository/pull-requests/1/diff", client.getPullRequestDiffURL("Project", "Repository", "1"));
+  }
+
+  @Test
+  public void testUpdateCommentOnPullRequest() throws Exception {
+    stash.respond("PUT", PULL_REQUEST_PATH + "/comments/12", 200, "{}");
+
+    client.updateCommentOnPullRequest("Project", "Repository", "1", 12, 3, "new overview");
+
+    JSONObject body = (JSONObject) JSONValue.parse(stash.getRequests().get(0).getBody());
+    assertEquals("new overview", body.get("text"));
+    assertEquals(3L, body.get("version"));
+  }
+
+  @Test(expected = StashClientException.class)
+  public void testUpdateCommentOnPullRequestWithConflict() throws Exception {
+    stash.respond("PUT", PULL_REQUEST_PATH + "/comments/12", 409, "{}");
+
+    client.updateCommentOnPullRequest("Project", "Repository", "1", 12, 3, "new overview");
+  }
+
+  @Test
+  public void testPutInsightsReport() throws Exception {
+    stash.respond("PUT", REPORT_PATH, 200, "{}");
+
+    JSONObject report = new JSONObject();
+    report.put("title", "SonarQube Analysis");
+    client.putInsightsReport("Project", "Repository", "abcdef", "report.key", report);
+
+    List<StashServerStub.RecordedRequest> requests = stash.getRequests();
+    assertEquals(1, requests.size());
+    assertEquals("PUT", requests.get(0).getMethod());
+    assertEquals("SonarQube Analysis", ((JSONObject) JSONValue.parse(requests.get(0).getBody())).get("title"));
+  }
+
+  @Test
+  public void testPutInsightsReportWithWrongHTTPResult() throws Exception {
+    stash.respond("PUT", REPORT_PATH, 400, "{}");
+
+    try {
+      client.putInsightsReport("Project", "Repository", "abcdef", "report.key", new JSONObject());
+
+      assertFalse("Wrong HTTP result should raised StashClientException", true);
+
+    } catch (StashClientException e) {
+      assertEquals(1, stash.countRequests("PUT", REPORT_PATH));
+    }
+  }
+
+  @Test
+  public void testPostInsightsAnnotations() throws Exception {
+    stash.respond("POST", ANNOTATIONS_PATH, 204, "");
+
+    JSONArray annotations = new JSONArray();
+    JSONObject annotation = new JSONObject();
+    annotation.put("path", "src/File.java");
+    annotation.put("line", 12L);
+    annotations.add(annotation);
+    annotations.add(annotation);
+    client.postInsightsAnnotations("Project", "Repository", "abcdef", "report.key", annotations);
+
+    JSONObject body = (JSONObject) JSONValue.parse(stash.getRequests().get(0).getBody());
+    assertEquals(2, ((JSONArray) body.get("annotations")).size());
+  }
+
+  @Test(expected = StashClientException.class)
+  public void testPostInsightsAnnotationsWithWrongHTTPResult() throws Exception {
+    stash.respond("POST", ANNOTATIONS_PATH, 422, "");
+
+    client.postInsightsAnnotations("Project", "Repository", "abcdef", "report.key", new JSONArray());
+  }
+
+}
@@ -0,0 +1,250 @@
+package org.sonar.plugins.stash.client;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.sonar.plugins.stash.exceptions.StashClientException;
+import org.sonar.plugins.stash.issue.StashDiffReport;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+
+public class StashClientRetryTest {
+
+  private static final String PULL_REQUEST_PATH = "/rest/api/1.0/projects/Project/repos/Repository/pull-requests/1";
+
+  StashServerStub stash;
+  StashClient client;
+
+  @Before
+  public void setUp() throws Exception {
+    stash = new StashServerStub();
+    client = new StashClient(stash.getUrl(), new StashCredentials("login", "password"), RequestTimeouts.fixed(5000), RateLimiter.unlimited(), new RetryPolicy(2, 10),
+      CircuitBreaker.disabled(), Deadline.none(), HedgingPolicy.disabled(), ConcurrencyLimiter.sequential());
+  }
+
+  @After
+  public void tearDown() {
+    client.close();
+    stash.stop();
+  }
+
+  @Test
+  public void testGetPullRequestDiffsRetriesServerError() throws Exception {
+    stash.respond("GET", PULL_REQUEST_PATH + "/diff", 502, "");
+    stash.respond("GET", PULL_REQUEST_PATH + "/diff", 200, "{\"diffs\": []}");
+
+    assertNotNull(client.getPullRequestDiffs("Project", "Repository", "1"));
+    assertEquals(2, stash.countRequests("GET", PULL_REQUEST_PATH + "/diff"));
+    assertEquals(1, client.getRetryPolicy().countRetries());
+  }
+
+  @Test
+  public void testRetryBackoffIsBoundedByTheDeadline() throws Exception {
+    client.close();
+    client = new StashClient(stash.getUrl(), new StashCredentials("login", "password"), RequestTimeouts.fixed(5000), RateLimiter.unlimited(),
+      new RetryPolicy(2, RetryPolicy.MAX_DELAY_MILLIS), CircuitBreaker.disabled(), new Deadline(500), HedgingPolicy.disabled(), ConcurrencyLimiter.sequential());
+    stash.respond("GET", PULL_REQUEST_PATH + "/diff", 502, "");
+
+    long start = System.currentTimeMillis();
+    try {
+      client.getPullRequestDiffs("Project", "Repository", "1");
+
+      assertFalse("A retry beyond the deadline should raise StashClientException", true);
+
+    } catch (StashClientException e) {
+      // each backoff may be up to 30 s, but is cut at the deadline
+      assertTrue(System.currentTimeMillis() - start < 5000);
+    }
+  }
+
+  @Test
+  public void testUpdateCommentIsNotRetried() throws Exception {
+    stash.respond("PUT", PULL_REQUEST_PATH + "/comments/12", 502, "");
+    stash.respond("PUT", PULL_REQUEST_PATH + "/comments/12", 200, "{}");
+
+    try {
+      client.updateCommentOnPullRequest("Project", "Repository", "1", 12, 3, "new overview");
+
+      assertFalse("A failed update should raise StashClientException", true);
+
+    } catch (StashClientException e) {
+      // the update may have been applied: sent again with the same version, it would be rejected
+      assertEquals(502, e.getStatusCode());
+      assertEquals(1, stash.countRequests("PUT", PULL_REQUEST_PATH + "/comments/12"));
+    }
+  }
+
+  @Test
+  public void testGetPullRequestDiffsDoesNotRetryClientError() throws Exception {
+    stash.respond("GET", PULL_REQUEST_PATH + "/diff", 401, "");
+
+    try {
+      client.getPullRequestDiffs("Project", "Repository", "1");
+
+      assertFalse("Wrong HTTP result should raised StashClientException", true);
+
+    } catch (StashClientException e) {
+      assertEquals(401, e.getStatusCode());
+      assertEquals(1, stash.countRequests("GET", PULL_REQUEST_PATH + "/diff"));
+    }
+  }
+
+  @Test
+  public void testIdenticalGetRequestsInFlightAreCoalesced() throws Exception {
+    stash.respondSlowly("GET", PULL_REQUEST_PATH + "/diff", 200, "{\"diffs\": []}", 500);
+    final StashClient otherModule = new StashClient(stash.getUrl(), new StashCredentials("login", "password"), 5000);
+    final StashClient otherUser = new StashClient(stash.getUrl(), new StashCredentials("other", "password"), 5000);
+
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      List<Future<StashDiffReport>> diffs = new ArrayList<>();
+      for (final StashClient stashClient : Arrays.asList(client, client, otherModule, otherUser)) {
+        diffs.add(executor.submit(new Callable<StashDiffReport>() {
+          @Override
+          public StashDiffReport call() throws Exception {
+            return stashClient.getPullRequestDiffs("Project", "Repository", "1");
+          }
+        }));
+      }
+
+      // one request per user, but each caller gets its own report
+      assertNotSame(diffs.get(0).get(), diffs.get(1).get());
+      assertNotSame(diffs.get(0).get(), diffs.get(2).get());
+      assertEquals(2, stash.countRequests("GET", PULL_REQUEST_PATH + "/diff"));
+    } finally {
+      executor.shutdown();
+    }
+
+    // nothing is cached once the request has completed
+    assertNotSame(client.getPullRequestDiffs("Project", "Repository", "1"), otherModule.getPullRequestDiffs("Project", "Repository", "1"));
+    assertEquals(4, stash.countRequests("GET", PULL_REQUEST_PATH + "/diff"));
+  }
+
+  @Test
+  public void testUnhealthyStashIsNotRequestedAnymore() throws Exception {
+    client = new StashClient(stash.getUrl(), new StashCredentials("login", "password"), RequestTimeouts.fixed(5000), RateLimiter.unlimited(), new RetryPolicy(2, 0),
+      new CircuitBreaker(2, 0, 60000), Deadline.none(), HedgingPolicy.disabled(), ConcurrencyLimiter.sequential());
+    stash.respond("GET", PULL_REQUEST_PATH + "/diff", 502, "");
+
+    try {
+      client.getPullRequestDiffs("Project", "Repository", "1");
+
+      assertFalse("Unhealthy Stash should raised StashClientException", true);
+
+    } catch (StashClientException e) {
+      // the second failure opened the circuit: the last retry is not sent, nor retried
+      assertEquals(2, stash.countRequests("GET", PULL_REQUEST_PATH + "/diff"));
+      assertFalse(e.isRetryable());
+    }
+
+    try {
+      client.postCommentOnPullRequest("Project", "Repository", "1", "Report");
+
+      assertFalse("Unhealthy Stash should raised StashClientException", true);
+
+    } catch (StashClientException e) {
+      assertEquals(0, stash.countRequests("POST", PULL_REQUEST_PATH + "/comments"));
+    }
+  }
+
+  @Test
+  public void testRequestTimeoutIsShortenedToTimeBudget() throws Exception {
+    client = new StashClient(stash.getUrl(), new StashCredentials("login", "password"), RequestTimeouts.fixed(5000), RateLimiter.unlimited(), new RetryPolicy(2, 0),
+      CircuitBreaker.disabled(), new Deadline(300), HedgingPolicy.disabled(), ConcurrencyLimiter.sequential());
+    stash.respondSlowly("GET", PULL_REQUEST_PATH + "/diff", 200, "{\"diffs\": []}", 2000);
+
+    long start = System.currentTimeMillis();
+    try {
+      client.getPullRequestDiffs("Project", "Repository", "1");
+
+      assertFalse("Exhausted time budget should raised StashClientException", true);
+
+    } catch (StashClientException e) {
+      // no retry once the budget is exhausted
+      assertTrue(System.currentTimeMillis() - start < 2000);
+      assertEquals(1, stash.countRequests("GET", PULL_REQUEST_PATH + "/diff"));
+    }
+
+    try {
+      client.postCommentOnPullRequest("Project", "Repository", "1", "Report");
+
+      assertFalse("Exhausted time budget should raised StashClientException", true);
+
+    } catch (StashClientException e) {
+      assertFalse(e.isRetryable());
+      assertEquals(0, stash.countRequests("POST", PULL_REQUEST_PATH + "/comments"));
+    }
+  }
+
+  @Test
+  public void testSlowGetRequestIsHedged() throws Exception {
+    HedgingPolicy hedgingPolicy = new HedgingPolicy(90, 10);
+    client = new StashClient(stash.getUrl(), new StashCredentials("login", "password"), RequestTimeouts.fixed(5000), RateLimiter.unlimited(), RetryPolicy.none(),
+      CircuitBreaker.disabled(), Deadline.none(), hedgingPolicy, ConcurrencyLimiter.sequential());
+    for (int i = 0; i < HedgingPolicy.MIN_SAMPLES; i++) {
+      stash.respond("GET", PULL_REQUEST_PATH + "/diff", 200, "{\"diffs\": []}");
+    }
+    stash.respondSlowly("GET", PULL_REQUEST_PATH + "/diff", 200, "{\"diffs\": []}", 3000);
+    stash.respond("GET", PULL_REQUEST_PATH + "/diff", 200, "{\"diffs\": []}");
+
+    for (int i = 0; i < HedgingPolicy.MIN_SAMPLES; i++) {
+      client.getPullRequestDiffs("Project", "Repository", "1");
+    }
+    assertEquals(0, hedgingPolicy.countHedges());
+
+    long start = System.currentTimeMillis();
+    assertNotNull(client.getPullRequestDiffs("Project", "Repository", "1"));
+
+    // the hedged request answered first
+    assertTrue(System.currentTimeMillis() - start < 3000);
+    assertEquals(1, hedgingPolicy.countHedges());
+    assertEquals(HedgingPolicy.MIN_SAMPLES + 2, stash.countRequests("GET", PULL_REQUEST_PATH + "/diff"));
+  }
+
+  @Test
+  public void testAdaptiveTimeoutIsRelaxedAfterTimeout() throws Exception {
+    client = new StashClient(stash.getUrl(), new StashCredentials("login", "password"), new RequestTimeouts(1000, 100, 5000), RateLimiter.unlimited(),
+      new RetryPolicy(1, 0), CircuitBreaker.disabled(), Deadline.none(), HedgingPolicy.disabled(), ConcurrencyLimiter.sequential());
+    for (int i = 0; i < RequestTimeouts.MIN_SAMPLES; i++) {
+      stash.respond("GET", PULL_REQUEST_PATH + "/diff", 200, "{\"diffs\": []}");
+    }
+    stash.respondSlowly("GET", PULL_REQUEST_PATH + "/diff", 200, "{\"diffs\": []}", 1000);
+
+    for (int i = 0; i < RequestTimeouts.MIN_SAMPLES; i++) {
+      client.getPullRequestDiffs("Project", "Repository", "1");
+    }
+
+    // the learnt timeout is too short for the slow diff: the retry waits up to the maximum timeout
+    assertNotNull(client.getPullRequestDiffs("Project", "Repository", "1"));
+    assertEquals(RequestTimeouts.MIN_SAMPLES + 2, stash.countRequests("GET", PULL_REQUEST_PATH + "/diff"));
+  }
+
+  @Test
+  public void testPostCommentIsNotRetriedByTheClient() throws Exception {
+    stash.respond("POST", PULL_REQUEST_PATH + "/comments", 500, "");
+
+    try {
+      client.postCommentOnPullRequest("Project", "Repository", "1", "Report");
+
+      assertFalse("Wrong HTTP result should raised StashClientException", true);
+
+    } catch (StashClientException e) {
+      // the comment may have been created: the caller decides whether to post it again
+      assertEquals(1, stash.countRequests("POST", PULL_REQUEST_PATH + "/comments"));
+      assertEquals(true, e.isRetryable());
+    }
+  }
+
+}
@@ -28,6 +28,7 @@ import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.doNothing;
 import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.spy;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
@@ -81,6 +82,19 @@ public class StashClientTest {
 
     spyClient.postCommentOnPullRequest("Project", "Repository", "1", "Report");
     verify(requestBuilder, times(1)).execute();
+    verify(httpClient, never()).close();
+  }
+
+  @Test
+  public void testHttpClientIsClosedWithTheClient() throws Exception {
+    when(response.getStatusCode()).thenReturn(HttpURLConnection.HTTP_CREATED);
+
+    spyClient.postCommentOnPullRequest("Project", "Repository", "1", "Report");
+    spyClient.postCommentOnPullRequest("Project", "Repository", "1", "Report");
+    spyClient.close();
+
+    // connections are kept alive from one request to the next
+    verify(spyClient, times(1)).createHttpClient();
     verify(httpClient, times(1)).close();
   }
 
@@ -95,7 +109,7 @@ public class StashClientTest {
 
     } catch (StashClientException e) {
       verify(response, times(1)).getStatusText();
-      verify(httpClient, times(1)).close();
+      verify(httpClient, never()).close();
     }
   }
 
@@ -111,7 +125,7 @@ public class StashClientTest {
 
     } catch (StashClientException e) {
       verify(response, times(0)).getStatusText();
-      verify(httpClient, times(1)).close();
+      verify(httpClient, never()).close();
     }
   }
 
@@ -131,7 +145,7 @@ public class StashClientTest {
 
     assertTrue(report.contains(message, path, line));
     assertEquals(report.size(), 1);
-    verify(httpClient, times(1)).close();
+    verify(httpClient, never()).close();
   }
 
   @Test
@@ -159,7 +173,7 @@ public class StashClientTest {
     assertTrue(report.contains(message1, path, line1));
     assertTrue(report.contains(message2, path, line2));
     assertEquals(report.size(), 2);
-    verify(httpClient, times(2)).close();
+    verify(httpClient, never()).close();
   }
 
   @Test
@@ -187,7 +201,7 @@ public class StashClientTest {
     assertTrue(report.contains(message1, path, line1));
     assertFalse(report.contains(message2, path, line2));
     assertEquals(report.size(), 1);
-    verify(httpClient, times(1)).close();
+    verify(httpClient, never()).close();
   }
 
   @Test
@@ -201,7 +215,7 @@ public class StashClientTest {
 
     } catch (StashClientException e) {
       verify(response, times(1)).getStatusText();
-      verify(httpClient, times(1)).close();
+      verify(httpClient, never()).close();
     }
   }
 
@@ -217,7 +231,7 @@ public class StashClientTest {
 
     } catch (StashClientException e) {
       verify(response, times(0)).getStatusText();
-      verify(httpClient, times(1)).close();
+      verify(httpClient, never()).close();
     }
   }
 
@@ -228,7 +242,7 @@ public class StashClientTest {
 
     StashDiffReport report = spyClient.getPullRequestDiffs("Project", "Repository", "1");
     assertEquals(report.getDiffs().size(), 4);
-    verify(httpClient, times(1)).close();
+    verify(httpClient, never()).close();
   }
 
   @Test
@@ -243,7 +257,7 @@ public class StashClientTest {
 
     } catch (StashClientException e) {
       verify(response, times(1)).getStatusText();
-      verify(httpClient, times(1)).close();
+      verify(httpClient, never()).close();
     }
   }
 
@@ -259,7 +273,7 @@ public class StashClientTest {
 
     } catch (StashClientException e) {
       verify(response, times(0)).getStatusText();
-      verify(httpClient, times(1)).close();
+      verify(httpClient, never()).close();
     }
   }
 
@@ -273,7 +287,7 @@ public class StashClientTest {
     Long commentId = spyClient.postCommentLineOnPullRequest("Project", "Repository", "1", "message", "path", 5, "type");
     assertEquals(Long.valueOf(100L), commentId);
     verify(requestBuilder, times(1)).execute();
-    verify(httpClient, times(1)).close();
+    verify(httpClient, never()).close();
   }
 
   @Test
@@ -282,7 +296,7 @@ public class StashClientTest {
 
     spyClient.postTaskOnComment("Task Message",100L);
     verify(requestBuilder, times(1)).execute();
-    verify(httpClient, times(1)).close();
+    verify(httpClient, never()).close();
   }
 
   @Test
@@ -296,7 +310,7 @@ public class StashClientTest {
 
     } catch (StashClientException e) {
       verify(response, times(1)).getStatusText();
-      verify(httpClient, times(1)).close();
+      verify(httpClient, never()).close();
     }
   }
 
@@ -312,7 +326,7 @@ public class StashClientTest {
 
     } catch (StashClientException e) {
       verify(response, times(0)).getStatusText();
-      verify(httpClient, times(1)).close();
+      verify(httpClient, never()).close();
     }
 
   }
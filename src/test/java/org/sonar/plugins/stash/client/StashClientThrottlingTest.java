@@ -0,0 +1,113 @@
+package org.sonar.plugins.stash.client;
+
+import java.text.SimpleDateFormat;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.sonar.plugins.stash.exceptions.StashClientException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class StashClientThrottlingTest {
+
+  private static final String COMMENTS_PATH = "/rest/api/1.0/projects/Project/repos/Repository/pull-requests/1/comments";
+
+  StashServerStub stash;
+  StashClient client;
+
+  @Before
+  public void setUp() throws Exception {
+    stash = new StashServerStub();
+    client = new StashClient(stash.getUrl(), new StashCredentials("login", "password"), RequestTimeouts.fixed(5000), new RateLimiter(100, 10), RetryPolicy.none(),
+      CircuitBreaker.disabled(), Deadline.none(), HedgingPolicy.disabled(), ConcurrencyLimiter.sequential());
+  }
+
+  @After
+  public void tearDown() {
+    client.close();
+    stash.stop();
+  }
+
+  @Test
+  public void testPostCommentWhenThrottled() throws Exception {
+    stash.respond("POST", COMMENTS_PATH, 429, "{}", Collections.singletonMap("Retry-After", "1"));
+    stash.respond("POST", COMMENTS_PATH, 201, "{}");
+
+    long start = System.currentTimeMillis();
+    client.postCommentOnPullRequest("Project", "Repository", "1", "Report");
+
+    // the comment is sent again once the requested delay has elapsed
+    assertEquals(2, stash.countRequests("POST", COMMENTS_PATH));
+    assertTrue(System.currentTimeMillis() - start >= 900);
+  }
+
+  @Test
+  public void testThrottlingPauseIsBoundedByTheDeadline() throws Exception {
+    client.close();
+    client = new StashClient(stash.getUrl(), new StashCredentials("login", "password"), RequestTimeouts.fixed(5000), new RateLimiter(100, 10), RetryPolicy.none(),
+      CircuitBreaker.disabled(), new Deadline(1000), HedgingPolicy.disabled(), ConcurrencyLimiter.sequential());
+    stash.respond("POST", COMMENTS_PATH, 429, "{}", Collections.singletonMap("Retry-After", "10"));
+
+    long start = System.currentTimeMillis();
+    try {
+      client.postCommentOnPullRequest("Project", "Repository", "1", "Report");
+
+      assertFalse("A pause beyond the deadline should raise StashClientException", true);
+
+    } catch (StashClientException e) {
+      // the request is not sent again: the pause would end after the deadline
+      assertEquals(1, stash.countRequests("POST", COMMENTS_PATH));
+      assertTrue(System.currentTimeMillis() - start < 1000);
+    }
+  }
+
+  @Test
+  public void testPostCommentWhenUnavailable() throws Exception {
+    stash.respond("POST", COMMENTS_PATH, 503, "{}", Collections.singletonMap("Retry-After", "0"));
+    stash.respond("POST", COMMENTS_PATH, 503, "{}");
+
+    try {
+      client.postCommentOnPullRequest("Project", "Repository", "1", "Report");
+
+      assertFalse("503 without Retry-After should raised StashClientException", true);
+
+    } catch (StashClientException e) {
+      assertEquals(2, stash.countRequests("POST", COMMENTS_PATH));
+    }
+  }
+
+  @Test
+  public void testPostCommentWhenThrottledTooManyTimes() throws Exception {
+    stash.respond("POST", COMMENTS_PATH, 429, "{}", Collections.singletonMap("Retry-After", "0"));
+
+    try {
+      client.postCommentOnPullRequest("Project", "Repository", "1", "Report");
+
+      assertFalse("Persistent throttling should raised StashClientException", true);
+
+    } catch (StashClientException e) {
+      assertEquals(StashClient.MAX_THROTTLED_RETRIES + 1, stash.countRequests("POST", COMMENTS_PATH));
+    }
+  }
+
+  @Test
+  public void testParseRetryAfter() {
+    assertEquals(2000, StashClient.parseRetryAfter("2"));
+    assertEquals(-1, StashClient.parseRetryAfter(null));
+    assertEquals(-1, StashClient.parseRetryAfter("soon"));
+
+    SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+    format.setTimeZone(TimeZone.getTimeZone("GMT"));
+    long delay = StashClient.parseRetryAfter(format.format(new Date(System.currentTimeMillis() + 10000)));
+    assertTrue(delay > 8000 && delay <= 10000);
+    assertEquals(0, StashClient.parseRetryAfter(format.format(new Date(System.currentTimeMillis() - 10000))));
+  }
+
+}
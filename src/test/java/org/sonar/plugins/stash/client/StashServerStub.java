@@ -0,0 +1,202 @@
+package org.sonar.plugins.stash.client;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.commons.io.IOUtils;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Local stand-in for a Stash server: records the received requests and answers with canned responses.
+ */
+public class StashServerStub implements HttpHandler {
+
+  private final HttpServer server;
+  private final ExecutorService executor;
+  private final List<RecordedRequest> requests = Collections.synchronizedList(new ArrayList<RecordedRequest>());
+  private final Map<String, LinkedList<CannedResponse>> responses = new ConcurrentHashMap<>();
+
+  public StashServerStub() throws IOException {
+    server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+    server.createContext("/", this);
+    executor = Executors.newCachedThreadPool();
+    server.setExecutor(executor);
+    server.start();
+  }
+
+  public String getUrl() {
+    return "http://localhost:" + server.getAddress().getPort();
+  }
+
+  public void stop() {
+    server.stop(0);
+    executor.shutdownNow();
+  }
+
+  /**
+   * Answer to requests whose method and path match. Successive calls for a same request are answered in order,
+   * the last response being repeated.
+   */
+  public StashServerStub respond(String method, String path, int status, String body) {
+    return respond(method, path, status, body, Collections.<String, String>emptyMap());
+  }
+
+  public StashServerStub respond(String method, String path, int status, String body, Map<String, String> headers) {
+    String key = method + " " + path;
+    LinkedList<CannedResponse> list = responses.get(key);
+    if (list == null) {
+      list = new LinkedList<>();
+      responses.put(key, list);
+    }
+    synchronized (list) {
+      list.add(new CannedResponse(status, body, headers, 0));
+    }
+    return this;
+  }
+
+  /**
+   * Delay the answers to the requests whose method and path match.
+   */
+  public StashServerStub respondSlowly(String method, String path, int status, String body, long delayMillis) {
+    respond(method, path, status, body);
+    LinkedList<CannedResponse> list = responses.get(method + " " + path);
+    synchronized (list) {
+      CannedResponse last = list.removeLast();
+      list.add(new CannedResponse(last.status, last.body, last.headers, delayMillis));
+    }
+    return this;
+  }
+
+  /**
+   * Number of requests received with BASIC credentials: Stash checks each of them against its user directory.
+   */
+  public int countCredentialChecks() {
+    int result = 0;
+    for (RecordedRequest request : getRequests()) {
+      String authorization = request.getHeader("Authorization");
+      if (authorization != null && authorization.startsWith("Basic ")) {
+        result++;
+      }
+    }
+    return result;
+  }
+
+  public List<RecordedRequest> getRequests() {
+    synchronized (requests) {
+      return new ArrayList<>(requests);
+    }
+  }
+
+  public int countRequests(String method, String path) {
+    int result = 0;
+    for (RecordedRequest request : getRequests()) {
+      if (request.getMethod().equals(method) && request.getPath().equals(path)) {
+        result++;
+      }
+    }
+    return result;
+  }
+
+  @Override
+  public void handle(HttpExchange exchange) throws IOException {
+    String body = IOUtils.toString(exchange.getRequestBody(), StandardCharsets.UTF_8.name());
+    RecordedRequest request = new RecordedRequest(exchange.getRequestMethod(), exchange.getRequestURI().getPath(), exchange.getRequestURI().getQuery(),
+      exchange.getRequestHeaders(), body);
+    requests.add(request);
+
+    CannedResponse response = nextResponse(request);
+    try {
+      if (response.delayMillis > 0) {
+        Thread.sleep(response.delayMillis);
+      }
+      for (Map.Entry<String, String> header : response.headers.entrySet()) {
+        exchange.getResponseHeaders().add(header.getKey(), header.getValue());
+      }
+      byte[] bytes = response.body.getBytes(StandardCharsets.UTF_8);
+      exchange.sendResponseHeaders(response.status, bytes.length == 0 ? -1 : bytes.length);
+      if (bytes.length > 0) {
+        try (OutputStream out = exchange.getResponseBody()) {
+          out.write(bytes);
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } finally {
+      exchange.close();
+    }
+  }
+
+  private CannedResponse nextResponse(RecordedRequest request) {
+    LinkedList<CannedResponse> list = responses.get(request.getMethod() + " " + request.getPath());
+    if (list == null) {
+      return new CannedResponse(404, "", Collections.<String, String>emptyMap(), 0);
+    }
+    synchronized (list) {
+      return (list.size() > 1) ? list.removeFirst() : list.getFirst();
+    }
+  }
+
+  private static class CannedResponse {
+    final int status;
+    final String body;
+    final Map<String, String> headers;
+    final long delayMillis;
+
+    CannedResponse(int status, String body, Map<String, String> headers, long delayMillis) {
+      this.status = status;
+      this.body = body;
+      this.headers = headers;
+      this.delayMillis = delayMillis;
+    }
+  }
+
+  public static class RecordedRequest {
+    private final String method;
+    private final String path;
+    private final String query;
+    private final Headers headers;
+    private final String body;
+
+    RecordedRequest(String method, String path, String query, Headers headers, String body) {
+      this.method = method;
+      this.path = path;
+      this.query = query;
+      this.headers = headers;
+      this.body = body;
+    }
+
+    public String getMethod() {
+      return method;
+    }
+
+    public String getPath() {
+      return path;
+    }
+
+    public String getQuery() {
+      return query;
+    }
+
+    public String getHeader(String name) {
+      return headers.getFirst(name);
+    }
+
+    public String getBody() {
+      return body;
+    }
+  }
+
+}
@@ -0,0 +1,28 @@
+package org.sonar.plugins.stash.exceptions;
+
+import java.net.ConnectException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeoutException;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class StashClientExceptionTest {
+
+  @Test
+  public void testIsRetryable() {
+    assertTrue(new StashClientException("Unavailable", 503).isRetryable());
+    assertTrue(new StashClientException("Too many requests", 429).isRetryable());
+    assertTrue(new StashClientException(new TimeoutException()).isRetryable());
+    assertTrue(new StashClientException(new ExecutionException(new ConnectException("Connection refused"))).isRetryable());
+
+    assertFalse(new StashClientException("Unauthorized", 401).isRetryable());
+    assertFalse(new StashClientException("Not found", 404).isRetryable());
+    assertFalse(new StashClientException("Not implemented", 501).isRetryable());
+    assertFalse(new StashClientException("Invalid response").isRetryable());
+    assertFalse(new StashClientException(new ExecutionException(new IllegalStateException())).isRetryable());
+  }
+
+}
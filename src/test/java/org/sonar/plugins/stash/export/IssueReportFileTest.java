@@ -0,0 +1,62 @@
+package org.sonar.plugins.stash.export;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.sonar.api.rule.Severity;
+import org.sonar.plugins.stash.StashPlugin;
+import org.sonar.plugins.stash.exceptions.StashReportExtractionException;
+import org.sonar.plugins.stash.issue.SonarQubeIssue;
+import org.sonar.plugins.stash.issue.SonarQubeIssuesReport;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+public class IssueReportFileTest {
+
+  @Rule
+  public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  @Test
+  public void testWriteAndRead() throws Exception {
+    SonarQubeIssuesReport report = new SonarQubeIssuesReport();
+    report.add(new SonarQubeIssue(Severity.MAJOR, "message1", "rule1", "path/to/file1", 1));
+    report.add(new SonarQubeIssue(Severity.BLOCKER, "message2", "rule1", "path/to/file1", 12));
+
+    File file = new File(temporaryFolder.getRoot(), "export/report.json.gz");
+    new IssueReportFile(Collections.singletonMap(StashPlugin.STASH_PULL_REQUEST_ID, "42"), report).write(file);
+
+    IssueReportFile read = IssueReportFile.read(file);
+    assertEquals("42", read.getProperties().get(StashPlugin.STASH_PULL_REQUEST_ID));
+
+    SonarQubeIssuesReport readReport = read.getIssueReport();
+    assertEquals(2, readReport.countIssues());
+    assertEquals(1, readReport.countIssues(Severity.BLOCKER));
+    SonarQubeIssue issue = readReport.getIssues().get(1);
+    assertEquals("message2", issue.getMessage());
+    assertEquals("rule1", issue.getRule());
+    assertEquals("path/to/file1", issue.getPath());
+    assertEquals(12, issue.getLine());
+
+    // rule keys and paths are shared between issues
+    assertSame(issue.getPath(), readReport.getIssues().get(0).getPath());
+  }
+
+  @Test(expected = StashReportExtractionException.class)
+  public void testReadUnsupportedFormat() throws Exception {
+    File file = temporaryFolder.newFile("report.json.gz");
+    try (OutputStream output = new GZIPOutputStream(new FileOutputStream(file))) {
+      output.write("{\"format\": 2, \"properties\": {}, \"issues\": []}".getBytes(StandardCharsets.UTF_8));
+    }
+
+    IssueReportFile.read(file);
+  }
+
+}
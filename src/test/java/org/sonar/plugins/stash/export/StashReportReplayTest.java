@@ -0,0 +1,93 @@
+package org.sonar.plugins.stash.export;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.sonar.api.config.Settings;
+import org.sonar.api.rule.Severity;
+import org.sonar.plugins.stash.StashPlugin;
+import org.sonar.plugins.stash.client.StashServerStub;
+import org.sonar.plugins.stash.issue.SonarQubeIssue;
+import org.sonar.plugins.stash.issue.SonarQubeIssuesReport;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class StashReportReplayTest {
+
+  private static final String PULL_REQUEST_PATH = "/rest/api/1.0/projects/Project/repos/Repository/pull-requests/1";
+
+  @Rule
+  public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  StashServerStub stash;
+
+  @Before
+  public void setUp() throws Exception {
+    stash = new StashServerStub();
+  }
+
+  @After
+  public void tearDown() {
+    stash.stop();
+  }
+
+  private File exportReport(String name, Map<String, String> properties) throws Exception {
+    SonarQubeIssuesReport report = new SonarQubeIssuesReport();
+    report.add(new SonarQubeIssue(Severity.MAJOR, "message1", "rule1", "path/to/file1", 1));
+
+    File file = new File(temporaryFolder.getRoot(), name);
+    new IssueReportFile(properties, report).write(file);
+    return file;
+  }
+
+  private Map<String, String> pullRequestProperties() {
+    Map<String, String> properties = new HashMap<>();
+    properties.put(StashPlugin.STASH_URL, stash.getUrl());
+    properties.put(StashPlugin.STASH_PROJECT, "Project");
+    properties.put(StashPlugin.STASH_REPOSITORY, "Repository");
+    properties.put(StashPlugin.STASH_PULL_REQUEST_ID, "1");
+    properties.put(StashPlugin.STASH_LOGIN, "login");
+    // nothing is posted, the plan is written next to the report
+    properties.put(StashPlugin.STASH_DRY_RUN, "true");
+    return properties;
+  }
+
+  @Test
+  public void testReplay() throws Exception {
+    stash.respond("GET", PULL_REQUEST_PATH + "/diff", 200, "{\"diffs\": []}");
+    stash.respond("GET", PULL_REQUEST_PATH + "/comments", 200, "{\"isLastPage\": true, \"values\": []}");
+    File report = exportReport("report.json.gz", pullRequestProperties());
+
+    Settings systemSettings = new Settings();
+    systemSettings.setProperty(StashPlugin.STASH_PASSWORD, "password");
+    StashReportReplay replay = new StashReportReplay(systemSettings);
+
+    assertEquals(0, replay.replay(Arrays.asList(report)));
+    assertNotNull(stash.getRequests().get(0).getHeader("Authorization"));
+    assertTrue(new File(temporaryFolder.getRoot(), StashPlugin.DRY_RUN_PLAN_FILE).exists());
+  }
+
+  @Test
+  public void testReplayWithMissingPullRequest() throws Exception {
+    Map<String, String> properties = pullRequestProperties();
+    properties.remove(StashPlugin.STASH_PULL_REQUEST_ID);
+    File invalidReport = exportReport("invalid.json.gz", properties);
+    File missingReport = new File(temporaryFolder.getRoot(), "missing.json.gz");
+
+    StashReportReplay replay = new StashReportReplay(new Settings());
+    assertFalse(replay.replay(invalidReport));
+    assertEquals(2, replay.replay(Arrays.asList(invalidReport, missingReport)));
+    assertTrue(stash.getRequests().isEmpty());
+  }
+
+}
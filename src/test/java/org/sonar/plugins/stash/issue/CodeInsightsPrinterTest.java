@@ -0,0 +1,55 @@
+package org.sonar.plugins.stash.issue;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.junit.Test;
+import org.sonar.api.rule.Severity;
+
+import static org.junit.Assert.assertEquals;
+
+public class CodeInsightsPrinterTest {
+
+  @Test
+  public void testPrintReportJson() {
+    SonarQubeIssuesReport report = new SonarQubeIssuesReport();
+    report.add(new SonarQubeIssue(Severity.BLOCKER, "messageBlocker", "RuleBlocker", "pathBlocker", 1));
+    report.add(new SonarQubeIssue(Severity.MAJOR, "messageMajor", "RuleMajor", "pathMajor", 1));
+
+    JSONObject json = CodeInsightsPrinter.printReportJson(report, "sonarqube/URL");
+    assertEquals("FAIL", json.get("result"));
+    assertEquals("sonarqube/URL", json.get("link"));
+
+    JSONArray data = (JSONArray) json.get("data");
+    assertEquals(6, data.size());
+    assertEquals(2, ((JSONObject) data.get(0)).get("value"));
+    assertEquals(1, ((JSONObject) data.get(1)).get("value"));
+    assertEquals(0, ((JSONObject) data.get(2)).get("value"));
+  }
+
+  @Test
+  public void testPrintEmptyReportJson() {
+    JSONObject json = CodeInsightsPrinter.printReportJson(new SonarQubeIssuesReport(), "sonarqube/URL");
+    assertEquals("PASS", json.get("result"));
+  }
+
+  @Test
+  public void testPrintAnnotationJson() {
+    SonarQubeIssue issue = new SonarQubeIssue(Severity.CRITICAL, "messageCritical", "RuleCritical", "pathCritical", 12);
+
+    JSONObject json = CodeInsightsPrinter.printAnnotationJson(issue, "stash/pathCritical", "sonarqube/URL");
+    assertEquals("stash/pathCritical", json.get("path"));
+    assertEquals(12, json.get("line"));
+    assertEquals("messageCritical [RuleCritical]", json.get("message"));
+    assertEquals("HIGH", json.get("severity"));
+    assertEquals("sonarqube/URL/coding_rules#rule_key=RuleCritical", json.get("link"));
+  }
+
+  @Test
+  public void testPrintAnnotationSeverity() {
+    assertEquals("HIGH", CodeInsightsPrinter.printAnnotationSeverity(Severity.BLOCKER));
+    assertEquals("MEDIUM", CodeInsightsPrinter.printAnnotationSeverity(Severity.MAJOR));
+    assertEquals("LOW", CodeInsightsPrinter.printAnnotationSeverity(Severity.MINOR));
+    assertEquals("LOW", CodeInsightsPrinter.printAnnotationSeverity(Severity.INFO));
+  }
+
+}
@@ -1,9 +1,13 @@
 package org.sonar.plugins.stash.issue;
 
+import java.util.Collections;
+
 import org.apache.commons.lang3.StringUtils;
 import org.junit.Before;
 import org.junit.Test;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
 public class MarkdownPrinterTest {
@@ -30,6 +34,35 @@ public class MarkdownPrinterTest {
     assertTrue(StringUtils.equals(issueMarkdown, "*BLOCKER* - messageBlocker [[RuleBlocker](sonarqube/URL/coding_rules#rule_key=RuleBlocker)]"));
   }
 
+  @Test
+  public void testPrintIssueGroupMarkdown() {
+    String sonarQubeURL = "sonarqube/URL";
+
+    String issueMarkdown = MarkdownPrinter.printIssueGroupMarkdown(issueReport.getIssues().subList(0, 2), sonarQubeURL, "stash/diff#pathBlocker");
+    String reportString = "| Line | SonarQube issues (2) |\n"
+      + "|------|------------|\n"
+      + "| [1](stash/diff#pathBlocker?t=1) | *BLOCKER* - messageBlocker [[RuleBlocker](sonarqube/URL/coding_rules#rule_key=RuleBlocker)] |\n"
+      + "| [1](stash/diff#pathBlocker?t=1) | *CRITICAL* - messageCritical [[RuleCritical](sonarqube/URL/coding_rules#rule_key=RuleCritical)] |\n"
+      + "\n"
+      + MarkdownPrinter.printIssueMarker(issueReport.getIssues().get(0)) + "\n"
+      + MarkdownPrinter.printIssueMarker(issueReport.getIssues().get(1)) + "\n";
+
+    assertTrue(StringUtils.equals(issueMarkdown, reportString));
+    assertTrue(MarkdownPrinter.printIssueGroupMarkdown(issueReport.getIssues().subList(0, 1), sonarQubeURL, null).contains("| 1 | *BLOCKER*"));
+  }
+
+  @Test
+  public void testPrintIssueMarker() {
+    SonarQubeIssue issue = new SonarQubeIssue("MAJOR", "message (with parenthesis)", "squid:S1234", "path", 1);
+
+    String marker = MarkdownPrinter.printIssueMarker(issue);
+    assertTrue(marker.startsWith("[//]: # (sonar-stash-issue squid:S1234 "));
+    assertTrue(marker.endsWith(")"));
+    assertFalse(marker.contains("with parenthesis"));
+    // the line and the severity are not part of the marker
+    assertEquals(marker, MarkdownPrinter.printIssueMarker(new SonarQubeIssue("MINOR", "message (with parenthesis)", "squid:S1234", "path", 42)));
+  }
+
   @Test
   public void testPrintIssueNumberBySeverityMarkdown() {
     String issueReportMarkdown = MarkdownPrinter.printIssueNumberBySeverityMarkdown(issueReport, "BLOCKER");
@@ -58,7 +91,7 @@ public class MarkdownPrinterTest {
     String sonarQubeURL = "sonarqube/URL";
     int issueThreshold = 100;
 
-    String issueReportMarkdown = MarkdownPrinter.printOverviewReportMarkdown(issueReport, sonarQubeURL, issueThreshold);
+    String issueReportMarkdown = MarkdownPrinter.printOverviewReportMarkdown(issueReport, null, sonarQubeURL, issueThreshold);
     String reportString = "## SonarQube Analysis Overview\n"
       + "| Total New Issues | 3 |\n"
       + "|-----------------|------|\n"
@@ -81,9 +114,9 @@ public class MarkdownPrinterTest {
     String sonarQubeURL = "sonarqube/URL";
     int issueThreshold = 2;
 
-    String issueReportMarkdown = MarkdownPrinter.printOverviewReportMarkdown(issueReport, sonarQubeURL, issueThreshold);
+    String issueReportMarkdown = MarkdownPrinter.printOverviewReportMarkdown(issueReport, planWithinThreshold(2), sonarQubeURL, issueThreshold);
     String reportString = "## SonarQube Analysis Overview\n"
-      + "### Too many issues detected (3/2): Issues cannot be displayed in Diff view.\n\n"
+      + "### Too many issues detected (3/2): 1 issues cannot be displayed in Diff view (1 MAJOR).\n\n"
       + "| Total New Issues | 3 |\n"
       + "|-----------------|------|\n"
       + "| BLOCKER | 1 |\n"
@@ -100,13 +133,29 @@ public class MarkdownPrinterTest {
     assertTrue(StringUtils.equals(issueReportMarkdown, reportString));
   }
 
+  @Test
+  public void testPrintReportMarkdownWithDeferredComments() {
+    String sonarQubeURL = "sonarqube/URL";
+    int issueThreshold = 100;
+
+    PostingPlan plan = planWithinThreshold(issueThreshold);
+    plan.markDeferred(plan.getComments().get(0));
+    plan.markDeferred(plan.getComments().get(1));
+    plan.setDegradationReason("reason");
+
+    String issueReportMarkdown = MarkdownPrinter.printOverviewReportMarkdown(issueReport, plan, sonarQubeURL, issueThreshold);
+    assertTrue(issueReportMarkdown.startsWith("## SonarQube Analysis Overview\n"
+      + "### Stash is overloaded: 2 issue comments are deferred to the next analysis (reason).\n\n"
+      + "| Total New Issues | 3 |\n"));
+  }
+
   @Test
   public void testPrintEmptyReportMarkdown() {
     String sonarQubeURL = "sonarqube/URL";
     int issueThreshold = 100;
     SonarQubeIssuesReport issueReport = new SonarQubeIssuesReport();
 
-    String issueReportMarkdown = MarkdownPrinter.printOverviewReportMarkdown(issueReport, sonarQubeURL, issueThreshold);
+    String issueReportMarkdown = MarkdownPrinter.printOverviewReportMarkdown(issueReport, null, sonarQubeURL, issueThreshold);
     String reportString = "## SonarQube Analysis Overview\n"
       + "### No new issues detected!";
 
@@ -115,14 +164,14 @@ public class MarkdownPrinterTest {
 
   @Test
   public void should_display_summary_report_with_no_new_issue_raised() {
-    String summaryReportMarkdown = MarkdownPrinter.printSummaryReportMarkdown(new SonarQubeIssuesReport(), 100);
+    String summaryReportMarkdown = MarkdownPrinter.printSummaryReportMarkdown(new SonarQubeIssuesReport(), null, 100);
     String reportString = "#### SonarQube Analysis Summary\nNo new issue raised!\n";
     assertTrue(StringUtils.equals(summaryReportMarkdown, reportString));
   }
 
   @Test
   public void should_display_summary_report_with_three_new_issues_raised() {
-    String summaryReportMarkdown = MarkdownPrinter.printSummaryReportMarkdown(issueReport, 100);
+    String summaryReportMarkdown = MarkdownPrinter.printSummaryReportMarkdown(issueReport, planWithinThreshold(100), 100);
     String reportString = "#### SonarQube Analysis Summary\nNew issues raised: 3\n";
     assertTrue(StringUtils.equals(summaryReportMarkdown, reportString));
   }
@@ -130,9 +179,23 @@ public class MarkdownPrinterTest {
 
   @Test
   public void should_display_summary_report_with_too_many_issues_raised() {
-    String summaryReportMarkdown = MarkdownPrinter.printSummaryReportMarkdown(issueReport, 2);
-    String reportString = "#### SonarQube Analysis Summary\nToo many new issues raised (3 > 2): New issues are not displayed in Diff view.\n";
+    String summaryReportMarkdown = MarkdownPrinter.printSummaryReportMarkdown(issueReport, planWithinThreshold(2), 2);
+    String reportString = "#### SonarQube Analysis Summary\nToo many new issues raised (3 > 2): 1 new issues are not displayed in Diff view.\n";
     assertTrue(StringUtils.equals(summaryReportMarkdown, reportString));
   }
 
+  @Test
+  public void testPrintNotDisplayedBySeverity() {
+    assertEquals("(1 CRITICAL, 1 MAJOR)", MarkdownPrinter.printNotDisplayedBySeverity(planWithinThreshold(1)));
+  }
+
+  private PostingPlan planWithinThreshold(int issueThreshold) {
+    PostingPlan plan = new PostingPlan();
+    for (SonarQubeIssue issue : issueReport.getIssues()) {
+      plan.addCandidate(new PlannedComment(issue.getMessage(), issue.getPath(), issue.getLine(), "CONTEXT", null, Collections.singletonList(issue)));
+    }
+    plan.applyThreshold(issueThreshold);
+    return plan;
+  }
+
 }
@@ -0,0 +1,156 @@
+package org.sonar.plugins.stash.issue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+import org.sonar.api.rule.Severity;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class PostingPlanTest {
+
+  private static PlannedComment comment(SonarQubeIssue... issues) {
+    List<SonarQubeIssue> list = Arrays.asList(issues);
+    return new PlannedComment(issues[0].getMessage(), issues[0].getPath(), issues[0].getLine(), "CONTEXT", null, list);
+  }
+
+  @Test
+  public void testApplyThresholdKeepsMostSevereComments() {
+    PlannedComment minor = comment(new SonarQubeIssue(Severity.MINOR, "message1", "rule1", "path1", 1));
+    PlannedComment blocker = comment(new SonarQubeIssue(Severity.BLOCKER, "message2", "rule2", "path1", 2));
+    PlannedComment firstMajor = comment(new SonarQubeIssue(Severity.MAJOR, "message3", "rule3", "path2", 1));
+    PlannedComment secondMajor = comment(new SonarQubeIssue(Severity.MAJOR, "message4", "rule4", "path2", 2));
+
+    PostingPlan plan = new PostingPlan();
+    plan.addCandidate(minor);
+    plan.addCandidate(blocker);
+    plan.addCandidate(firstMajor);
+    plan.addCandidate(secondMajor);
+    plan.applyThreshold(2);
+
+    List<PlannedComment> comments = plan.getComments();
+    assertEquals(2, comments.size());
+    assertSame(blocker, comments.get(0));
+    assertSame(firstMajor, comments.get(1));
+
+    assertEquals(2, plan.countNotDisplayed());
+    assertEquals(1, plan.countNotDisplayed(Severity.MAJOR));
+    assertEquals(1, plan.countNotDisplayed(Severity.MINOR));
+    assertEquals(0, plan.countNotDisplayed("UNKNOWN"));
+
+    // posting order is left unchanged
+    plan = new PostingPlan();
+    plan.addCandidate(minor);
+    plan.addCandidate(secondMajor);
+    plan.addCandidate(blocker);
+    plan.applyThreshold(2);
+    assertSame(secondMajor, plan.getComments().get(0));
+    assertSame(blocker, plan.getComments().get(1));
+
+  }
+
+  @Test
+  public void testApplyThresholdWithAlreadyPresentComments() {
+    PostingPlan plan = new PostingPlan();
+    plan.skipAlreadyPresent(Collections.singletonList(new SonarQubeIssue(Severity.MAJOR, "message2", "rule2", "path1", 2)));
+    plan.skipAlreadyPresent(Collections.singletonList(new SonarQubeIssue(Severity.MAJOR, "message3", "rule3", "path1", 3)));
+    plan.addCandidate(comment(new SonarQubeIssue(Severity.MAJOR, "message1", "rule1", "path1", 1)));
+    plan.applyThreshold(2);
+
+    assertTrue(plan.getComments().isEmpty());
+    assertEquals(2, plan.countAlreadyPresent());
+    assertEquals(1, plan.countNotDisplayed());
+  }
+
+  @Test
+  public void testApplyThresholdCountsEveryIssueOfAggregatedComment() {
+    SonarQubeIssue critical = new SonarQubeIssue(Severity.CRITICAL, "message1", "rule1", "path1", 1);
+    SonarQubeIssue info = new SonarQubeIssue(Severity.INFO, "message2", "rule2", "path1", 2);
+    PlannedComment aggregated = comment(critical, info);
+    assertEquals(critical.getSeverityOrdinal(), aggregated.getSeverityOrdinal());
+
+    PostingPlan plan = new PostingPlan();
+    SonarQubeIssue outOfDiff = new SonarQubeIssue(Severity.MAJOR, "message3", "rule3", "path2", 3);
+    plan.skipOutOfDiff(outOfDiff);
+    plan.skipBelowSeverityThreshold(new SonarQubeIssue(Severity.INFO, "message4", "rule4", "path2", 4));
+    plan.addCandidate(aggregated);
+    plan.applyThreshold(0);
+
+    assertEquals(Collections.<PlannedComment>emptyList(), plan.getComments());
+    assertEquals(2, plan.countNotDisplayed());
+    assertEquals(1, plan.countNotDisplayed(Severity.CRITICAL));
+    assertEquals(1, plan.countNotDisplayed(Severity.INFO));
+    assertEquals(1, plan.countOutOfDiff());
+    assertEquals(1, plan.countBelowSeverityThreshold());
+    assertSame(outOfDiff, plan.getSkippedIssues(PostingPlan.SKIPPED_OUT_OF_DIFF).get(0));
+    assertEquals(Arrays.asList(critical, info), plan.getSkippedIssues(PostingPlan.SKIPPED_ISSUE_THRESHOLD));
+    assertTrue(plan.getSkippedIssues(PostingPlan.SKIPPED_ALREADY_PRESENT).isEmpty());
+  }
+
+  @Test
+  public void testPrioritizeBySeverity() {
+    PlannedComment firstMinor = comment(new SonarQubeIssue(Severity.MINOR, "message1", "rule1", "path1", 1));
+    PlannedComment critical = comment(new SonarQubeIssue(Severity.CRITICAL, "message2", "rule2", "path1", 2));
+    PlannedComment secondMinor = comment(new SonarQubeIssue(Severity.MINOR, "message3", "rule3", "path2", 1));
+
+    PostingPlan plan = new PostingPlan();
+    plan.addCandidate(firstMinor);
+    plan.addCandidate(critical);
+    plan.addCandidate(secondMinor);
+    plan.applyThreshold(3);
+    plan.prioritizeBySeverity();
+
+    assertEquals(Arrays.asList(critical, firstMinor, secondMinor), plan.getComments());
+  }
+
+  @Test
+  public void testSnapshotIsNotUpdatedByThePosting() {
+    PlannedComment minor = comment(new SonarQubeIssue(Severity.MINOR, "message1", "rule1", "path1", 1));
+    PlannedComment critical = comment(new SonarQubeIssue(Severity.CRITICAL, "message2", "rule2", "path1", 2));
+    PlannedComment major = comment(new SonarQubeIssue(Severity.MAJOR, "message3", "rule3", "path2", 1));
+
+    PostingPlan plan = new PostingPlan();
+    plan.skipOutOfDiff(new SonarQubeIssue(Severity.MAJOR, "message4", "rule4", "path2", 4));
+    plan.addCandidate(minor);
+    plan.addCandidate(critical);
+    plan.addCandidate(major);
+    plan.applyThreshold(2);
+    plan.addGetRequests(3);
+    plan.recordPhase("diff", 10);
+
+    PostingPlan snapshot = plan.snapshot();
+    plan.prioritizeBySeverity();
+    plan.markPosted(critical);
+    plan.markDeferred(major);
+    plan.setDegradationReason("overloaded");
+    plan.recordPhase("diff", 5);
+
+    assertEquals(Arrays.asList(critical, major), snapshot.getComments());
+    assertTrue(snapshot.getPostedComments().isEmpty());
+    assertTrue(snapshot.getDeferredComments().isEmpty());
+    assertNull(snapshot.getDegradationReason());
+    assertEquals(1, snapshot.countNotDisplayed());
+    assertEquals(1, snapshot.countNotDisplayed(Severity.MINOR));
+    assertEquals(1, snapshot.countOutOfDiff());
+    assertEquals(3, snapshot.countGetRequests());
+    assertEquals(Long.valueOf(10), snapshot.getPhaseTimings().get("diff"));
+  }
+
+  @Test
+  public void testRecordPhase() {
+    PostingPlan plan = new PostingPlan();
+    plan.recordPhase("diff", 10);
+    plan.recordPhase("comments", 5);
+    plan.recordPhase("diff", 2);
+
+    assertEquals(Arrays.asList("diff", "comments"), new ArrayList<>(plan.getPhaseTimings().keySet()));
+    assertEquals(Long.valueOf(12), plan.getPhaseTimings().get("diff"));
+  }
+
+}
@@ -0,0 +1,60 @@
+package org.sonar.plugins.stash.issue;
+
+import org.junit.Test;
+import org.sonar.api.rule.Severity;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class SonarQubeIssueTest {
+
+  @Test
+  public void testSeverityIsStoredAsOrdinal() {
+    SonarQubeIssue issue = new SonarQubeIssue(Severity.CRITICAL, "message", "rule", "path", 12);
+
+    assertEquals(Severity.CRITICAL, issue.getSeverity());
+    assertEquals(Severity.ALL.indexOf(Severity.CRITICAL), issue.getSeverityOrdinal());
+    assertEquals(12, issue.getLine());
+  }
+
+  @Test
+  public void testHasSeverityIn() {
+    SonarQubeIssue issue = new SonarQubeIssue(Severity.MINOR, "message", "rule", "path", 1);
+
+    assertTrue(issue.hasSeverityIn(1 << Severity.ALL.indexOf(Severity.MINOR)));
+    assertFalse(issue.hasSeverityIn(1 << Severity.ALL.indexOf(Severity.MAJOR)));
+    assertFalse(issue.hasSeverityIn(0));
+  }
+
+  @Test
+  public void testUnknownSeverity() {
+    SonarQubeIssue issue = new SonarQubeIssue("UNKNOWN", "message", "rule", "path", 1);
+
+    assertEquals(null, issue.getSeverity());
+    assertEquals(SonarQubeIssue.UNKNOWN_SEVERITY, issue.getSeverityOrdinal());
+    assertFalse(issue.hasSeverityIn(-1));
+
+    issue = new SonarQubeIssue(null, "message", "rule", "path", 1);
+    assertEquals(null, issue.getSeverity());
+    assertEquals(SonarQubeIssue.UNKNOWN_SEVERITY, issue.getSeverityOrdinal());
+    assertFalse(issue.hasSeverityIn(-1));
+  }
+
+  @Test
+  public void testSeverityIsSharedWithSeverityConstants() {
+    assertSame(Severity.BLOCKER, new SonarQubeIssue(new String(Severity.BLOCKER), "message", "rule", "path", 1).getSeverity());
+  }
+
+  @Test
+  public void testSymbolTable() {
+    SymbolTable symbols = new SymbolTable();
+    String rule = symbols.intern("squid:S1234");
+
+    assertSame(rule, symbols.intern(new String("squid:S1234")));
+    assertEquals(1, symbols.size());
+    assertEquals(null, symbols.intern(null));
+  }
+
+}
@@ -0,0 +1,92 @@
+package org.sonar.plugins.stash.issue;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.sonar.api.rule.Severity;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class SonarQubeIssuesReportTest {
+
+  SonarQubeIssuesReport report;
+
+  SonarQubeIssue firstMajor;
+  SonarQubeIssue secondMajor;
+  SonarQubeIssue otherMajor;
+  SonarQubeIssue blocker;
+
+  @Before
+  public void setUp() {
+    firstMajor = new SonarQubeIssue(Severity.MAJOR, "message1", "rule1", "path1", 1);
+    secondMajor = new SonarQubeIssue(Severity.MAJOR, "message2", "rule1", "path2", 2);
+    otherMajor = new SonarQubeIssue(Severity.MAJOR, "message3", "rule2", "path1", 3);
+    blocker = new SonarQubeIssue(Severity.BLOCKER, "message4", "rule3", "path1", 4);
+
+    report = new SonarQubeIssuesReport();
+    report.add(firstMajor);
+    report.add(secondMajor);
+    report.add(otherMajor);
+    report.add(blocker);
+  }
+
+  @Test
+  public void testCountIssuesBySeverity() {
+    assertEquals(4, report.countIssues());
+    assertEquals(3, report.countIssues(Severity.MAJOR));
+    assertEquals(1, report.countIssues(Severity.BLOCKER));
+    assertEquals(0, report.countIssues(Severity.INFO));
+    assertEquals(0, report.countIssues("UNKNOWN"));
+    assertEquals(0, report.countIssues(null));
+  }
+
+  @Test
+  public void testIssueWithUnknownSeverity() {
+    report.add(new SonarQubeIssue("UNKNOWN", "message5", "rule4", "path1", 5));
+
+    // counted in the total only: it has no severity of its own
+    assertEquals(5, report.countIssues());
+    assertEquals(0, report.countIssues("UNKNOWN"));
+    assertTrue(report.getUniqueRulesBySeverity("UNKNOWN").isEmpty());
+  }
+
+  @Test
+  public void testGetUniqueRulesBySeverityKeepsFirstIssueInRaisingOrder() {
+    Map<String, SonarQubeIssue> rules = report.getUniqueRulesBySeverity(Severity.MAJOR);
+    assertEquals(2, rules.size());
+
+    Iterator<Map.Entry<String, SonarQubeIssue>> it = rules.entrySet().iterator();
+    Map.Entry<String, SonarQubeIssue> entry = it.next();
+    assertEquals("rule1", entry.getKey());
+    assertSame(firstMajor, entry.getValue());
+
+    entry = it.next();
+    assertEquals("rule2", entry.getKey());
+    assertSame(otherMajor, entry.getValue());
+  }
+
+  @Test
+  public void testGetUniqueRulesBySeverityWithoutIssues() {
+    assertTrue(report.getUniqueRulesBySeverity(Severity.MINOR).isEmpty());
+    assertTrue(report.getUniqueRulesBySeverity("UNKNOWN").isEmpty());
+  }
+
+  @Test
+  public void testGetIssuesBySeverity() {
+    List<SonarQubeIssue> majors = report.getIssuesBySeverity(Severity.MAJOR);
+    assertEquals(Arrays.asList(firstMajor, secondMajor, otherMajor), majors);
+    assertEquals(0, report.getIssuesBySeverity(Severity.CRITICAL).size());
+    assertEquals(0, report.getIssuesBySeverity("UNKNOWN").size());
+
+    // bucketed on add(): the returned list is a view of the bucket
+    report.add(new SonarQubeIssue(Severity.MAJOR, "message5", "rule1", "path3", 5));
+    assertEquals(4, majors.size());
+  }
+
+}
@@ -31,6 +31,20 @@ public class StashCommentReportTest {
     assertFalse(report.contains("message3", path, line));
   }
 
+  @Test
+  public void testCopy() {
+    StashCommentReport report = new StashCommentReport();
+    report.add(new StashComment(1, 2, "message", "path", 1L));
+
+    StashCommentReport copy = report.copy();
+    copy.getComments().get(0).setLine(5);
+
+    assertEquals(1, copy.size());
+    assertEquals(2, copy.getComments().get(0).getVersion());
+    assertEquals(1, report.getComments().get(0).getLine());
+    assertTrue(copy.contains("message", "path", 5));
+  }
+
   @Test
   public void testNotContains() {
     long id = 1;
@@ -47,6 +61,18 @@ public class StashCommentReportTest {
     assertFalse(report.contains(message, path, (long) 2));
   }
 
+  @Test
+  public void testCountLines() {
+    StashCommentReport report = new StashCommentReport();
+    report.add(new StashComment(1, "| Line | SonarQube issues (2) |\r\n| 1 | issue1 |\r\n| 12 | issue1 |\r\n\r\nmarker1\r\nmarker1\r\n", "path", 1L));
+    report.add(new StashComment(2, "| Line | SonarQube issues (1) |\r\n| 20 | issue2 |\r\n\r\nmarker2\r\n", "path", 20L));
+
+    assertEquals(2, report.countLines("marker1", "path"));
+    assertEquals(1, report.countLines("marker2", "path"));
+    assertEquals(0, report.countLines("marker3", "path"));
+    assertEquals(0, report.countLines("marker1", "other"));
+  }
+
   @Test
   public void testSize() {
     StashCommentReport report = new StashCommentReport();
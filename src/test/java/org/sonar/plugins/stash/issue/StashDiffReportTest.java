@@ -100,4 +100,16 @@ public class StashDiffReportTest {
     StashDiff diff2 = report1.getDiffByComment(123456);
     assertEquals(diff2, null);
   }
+  @Test
+  public void testGetHunk() {
+    StashDiffReport report = new StashDiffReport();
+    report.add(new StashDiff(StashPlugin.ADDED_ISSUE_TYPE, "path/to/diff", 10, 20, 1));
+    report.add(new StashDiff(StashPlugin.ADDED_ISSUE_TYPE, "path/to/diff", 50, 60, 2));
+
+    assertEquals(1, report.getHunk("path/to/diff", 20));
+    assertEquals(2, report.getHunk("path/to/diff", 60));
+    assertEquals(-1, report.getHunk("path/to/diff", 30));
+    assertEquals(-1, report.getHunk("path/to/other", 20));
+  }
+
 }
@@ -2,6 +2,9 @@ package org.sonar.plugins.stash.issue.collector;
 
 import java.io.File;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
 
 import org.apache.commons.lang3.StringUtils;
 import org.junit.Before;
@@ -11,10 +14,13 @@ import org.sonar.api.batch.fs.InputFile;
 import org.sonar.api.issue.Issue;
 import org.sonar.api.issue.ProjectIssues;
 import org.sonar.api.rule.RuleKey;
+import org.sonar.api.rule.Severity;
 import org.sonar.plugins.stash.InputFileCache;
 import org.sonar.plugins.stash.issue.SonarQubeIssue;
 import org.sonar.plugins.stash.issue.SonarQubeIssuesReport;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
@@ -52,7 +58,7 @@ public class SonarQubeCollectorTest {
     when(issue1.line()).thenReturn(1);
     when(issue1.message()).thenReturn("message1");
     when(issue1.key()).thenReturn("key1");
-    when(issue1.severity()).thenReturn("severity1");
+    when(issue1.severity()).thenReturn(Severity.MAJOR);
     when(issue1.componentKey()).thenReturn("component1");
     when(issue1.isNew()).thenReturn(true);
 
@@ -64,7 +70,7 @@ public class SonarQubeCollectorTest {
     when(issue2.line()).thenReturn(2);
     when(issue2.message()).thenReturn("message2");
     when(issue2.key()).thenReturn("key2");
-    when(issue2.severity()).thenReturn("severity2");
+    when(issue2.severity()).thenReturn(Severity.BLOCKER);
     when(issue2.componentKey()).thenReturn("component2");
     when(issue2.isNew()).thenReturn(true);
 
@@ -91,8 +97,8 @@ public class SonarQubeCollectorTest {
 
     SonarQubeIssuesReport report = SonarQubeCollector.extractIssueReport(projectIssues, inputFileCache, projectBaseDir);
     assertTrue(report.countIssues() == 2);
-    assertTrue(report.countIssues("severity1") == 1);
-    assertTrue(report.countIssues("severity2") == 1);
+    assertTrue(report.countIssues(Severity.MAJOR) == 1);
+    assertTrue(report.countIssues(Severity.BLOCKER) == 1);
 
     SonarQubeIssue sqIssue1 = report.getIssues().get(0);
     assertTrue(StringUtils.equals(sqIssue1.getMessage(), "message1"));
@@ -106,6 +112,23 @@ public class SonarQubeCollectorTest {
 
   }
 
+  @Test
+  public void testExtractIssueReportOfSeveralModules() {
+    SonarQubeIssuesReport report = new SonarQubeIssuesReport();
+    Set<String> reportedIssueKeys = new HashSet<>();
+
+    when(projectIssues.issues()).thenReturn(Arrays.asList(issue1));
+    SonarQubeCollector.extractIssueReport(projectIssues, inputFileCache, projectBaseDir, report, reportedIssueKeys);
+
+    // issues already reported by a previous module are not added twice
+    when(projectIssues.issues()).thenReturn(Arrays.asList(issue1, issue2));
+    SonarQubeCollector.extractIssueReport(projectIssues, inputFileCache, projectBaseDir, report, reportedIssueKeys);
+
+    assertEquals(2, report.countIssues());
+    assertEquals("message1", report.getIssues().get(0).getMessage());
+    assertEquals("message2", report.getIssues().get(1).getMessage());
+  }
+
   @Test
   public void testExtractIssueReportWithNoLine() {
     when(issue1.line()).thenReturn(null);
@@ -116,8 +139,8 @@ public class SonarQubeCollectorTest {
 
     SonarQubeIssuesReport report = SonarQubeCollector.extractIssueReport(projectIssues, inputFileCache, projectBaseDir);
     assertTrue(report.countIssues() == 1);
-    assertTrue(report.countIssues("severity1") == 1);
-    assertTrue(report.countIssues("severity2") == 0);
+    assertTrue(report.countIssues(Severity.MAJOR) == 1);
+    assertTrue(report.countIssues(Severity.BLOCKER) == 0);
 
     SonarQubeIssue sqIssue = report.getIssues().get(0);
     assertTrue(StringUtils.equals(sqIssue.getMessage(), "message1"));
@@ -138,8 +161,8 @@ public class SonarQubeCollectorTest {
 
     SonarQubeIssuesReport report = SonarQubeCollector.extractIssueReport(projectIssues, inputFileCache, projectBaseDir);
     assertTrue(report.countIssues() == 1);
-    assertTrue(report.countIssues("severity1") == 0);
-    assertTrue(report.countIssues("severity2") == 1);
+    assertTrue(report.countIssues(Severity.MAJOR) == 0);
+    assertTrue(report.countIssues(Severity.BLOCKER) == 1);
   }
 
   @Test
@@ -153,12 +176,37 @@ public class SonarQubeCollectorTest {
 
     SonarQubeIssuesReport report = SonarQubeCollector.extractIssueReport(projectIssues, inputFileCache, projectBaseDir);
     assertTrue(report.countIssues() == 1);
-    assertTrue(report.countIssues("severity1") == 0);
-    assertTrue(report.countIssues("severity2") == 1);
+    assertTrue(report.countIssues(Severity.MAJOR) == 0);
+    assertTrue(report.countIssues(Severity.BLOCKER) == 1);
 
     SonarQubeIssue sqIssue = report.getIssues().get(0);
     assertTrue(StringUtils.equals(sqIssue.getMessage(), "message2"));
     assertTrue(StringUtils.equals(sqIssue.getPath(), "project/path2"));
     assertTrue(sqIssue.getLine() == 2);
   }
+
+  @Test
+  public void testExtractIssueReportSharesRulesAndPaths() {
+    Issue issue3 = mock(Issue.class);
+    when(issue3.line()).thenReturn(3);
+    when(issue3.message()).thenReturn("message3");
+    when(issue3.key()).thenReturn("key3");
+    when(issue3.severity()).thenReturn(Severity.MAJOR);
+    when(issue3.componentKey()).thenReturn("component1");
+    when(issue3.isNew()).thenReturn(true);
+
+    RuleKey rule3 = mock(RuleKey.class);
+    when(rule3.toString()).thenReturn(new String("rule1"));
+    when(issue3.ruleKey()).thenReturn(rule3);
+
+    ArrayList<Issue> issues = new ArrayList<Issue>();
+    issues.add(issue1);
+    issues.add(issue3);
+    when(projectIssues.issues()).thenReturn(issues);
+
+    SonarQubeIssuesReport report = SonarQubeCollector.extractIssueReport(projectIssues, inputFileCache, projectBaseDir);
+    assertTrue(report.countIssues() == 2);
+    assertSame(report.getIssues().get(0).getRule(), report.getIssues().get(1).getRule());
+    assertSame(report.getIssues().get(0).getPath(), report.getIssues().get(1).getPath());
+  }
 }
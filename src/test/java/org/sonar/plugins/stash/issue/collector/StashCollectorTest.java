@@ -1,10 +1,14 @@
 package org.sonar.plugins.stash.issue.collector;
 
 import org.junit.Test;
+import org.sonar.plugins.stash.issue.StashComment;
 import org.sonar.plugins.stash.issue.StashCommentReport;
 import org.sonar.plugins.stash.issue.StashDiff;
 import org.sonar.plugins.stash.issue.StashDiffReport;
 
+import java.util.Arrays;
+import java.util.Map;
+
 import static org.junit.Assert.*;
 
 public class StashCollectorTest {
@@ -53,6 +57,40 @@ public class StashCollectorTest {
     assertEquals(commentReport.size(), 0);
   }
 
+  @Test
+  public void testExtractGeneralComment() throws Exception {
+    String activities = "{\"values\": ["
+      + "{\"action\": \"COMMENTED\", \"comment\": {\"id\": 1, \"version\": 0, \"text\": \"line marker\", \"author\": {\"name\": \"login\"}},"
+      + " \"commentAnchor\": {\"path\": \"path\", \"line\": 1}},"
+      + "{\"action\": \"COMMENTED\", \"comment\": {\"id\": 2, \"version\": 0, \"text\": \"other marker\", \"author\": {\"name\": \"other\"}}},"
+      + "{\"action\": \"APPROVED\"},"
+      + "{\"action\": \"COMMENTED\", \"comment\": {\"id\": 3, \"version\": 4, \"text\": \"overview marker\", \"author\": {\"name\": \"login\"}}}"
+      + "]}";
+
+    StashComment comment = StashCollector.extractGeneralComment(activities, "marker", "login");
+    assertEquals(3, comment.getId());
+    assertEquals(4, comment.getVersion());
+    assertEquals("overview marker", comment.getMessage());
+
+    assertEquals(2, StashCollector.extractGeneralComment(activities, "marker", null).getId());
+    assertNull(StashCollector.extractGeneralComment(activities, "unknown", "login"));
+    assertNull(StashCollector.extractGeneralComment("{\"values\": []}", "marker", "login"));
+  }
+
+  @Test
+  public void testExtractGeneralComments() throws Exception {
+    String activities = "{\"values\": ["
+      + "{\"action\": \"COMMENTED\", \"comment\": {\"id\": 1, \"version\": 0, \"text\": \"summary\", \"author\": {\"name\": \"other\"}}},"
+      + "{\"action\": \"COMMENTED\", \"comment\": {\"id\": 2, \"version\": 0, \"text\": \"summary\", \"author\": {\"name\": \"login\"}}},"
+      + "{\"action\": \"COMMENTED\", \"comment\": {\"id\": 3, \"version\": 0, \"text\": \"old summary\", \"author\": {\"name\": \"login\"}}}"
+      + "]}";
+
+    Map<String, StashComment> comments = StashCollector.extractGeneralComments(activities, Arrays.asList("overview", "summary"), "login");
+    assertEquals(1, comments.size());
+    assertEquals(2, comments.get("summary").getId());
+    assertFalse(comments.containsKey("overview"));
+  }
+
   @Test
   public void testIsLastPage() throws Exception {
     String jsonBody = "{\"isLastPage\": true}";
@@ -86,6 +124,7 @@ public class StashCollectorTest {
     assertEquals(diff1.getType(), "CONTEXT");
     assertTrue(diff1.containsComment(12345));
     assertFalse(diff1.containsComment(54321));
+    assertEquals(diff1.getHunk(), 1);
 
     StashDiff diff2 = report.getDiffs().get(1);
     assertEquals(diff2.getSource(), (long) 30);
@@ -110,6 +149,7 @@ public class StashCollectorTest {
     assertEquals(diff4.getType(), "ADDED");
     assertFalse(diff4.containsComment(12345));
     assertFalse(diff4.containsComment(54321));
+    assertEquals(diff4.getHunk(), 1);
   }
 
   @Test
@@ -0,0 +1,84 @@
+package org.sonar.plugins.stash.lease;
+
+import java.io.File;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class FileLockLeaseBackendTest {
+
+  @Rule
+  public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  FileLockLeaseBackend backend;
+
+  @Before
+  public void setUp() {
+    backend = new FileLockLeaseBackend(new File(temporaryFolder.getRoot(), "leases"));
+  }
+
+  @Test
+  public void testAcquireAndRelease() throws Exception {
+    Lease lease = backend.acquire("Project-Repo-1", 0);
+    assertNotNull(lease);
+    assertTrue(backend.getFile("Project-Repo-1").exists());
+
+    assertNull(backend.acquire("Project-Repo-1", 0));
+
+    // leases of other pull-requests are independent
+    Lease other = backend.acquire("Project-Repo-2", 0);
+    assertNotNull(other);
+    other.close();
+
+    lease.close();
+    lease = backend.acquire("Project-Repo-1", 0);
+    assertNotNull(lease);
+    lease.close();
+  }
+
+  @Test
+  public void testAcquireWaitsForTimeout() throws Exception {
+    Lease lease = backend.acquire("Project-Repo-1", 0);
+
+    long start = System.currentTimeMillis();
+    assertNull(backend.acquire("Project-Repo-1", 300));
+    assertTrue(System.currentTimeMillis() - start >= 300);
+
+    lease.close();
+  }
+
+  @Test
+  public void testAcquireWhenReleasedByOtherOwner() throws Exception {
+    final Lease lease = backend.acquire("Project-Repo-1", 0);
+    Thread owner = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          Thread.sleep(2 * FileLockLeaseBackend.POLL_INTERVAL_MILLIS);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+        lease.close();
+      }
+    });
+    owner.start();
+
+    Lease next = backend.acquire("Project-Repo-1", 10000);
+    assertNotNull(next);
+    next.close();
+    owner.join();
+  }
+
+  @Test
+  public void testGetFile() {
+    assertEquals("Project-Repo_1-1.lock", backend.getFile("Project-Repo/1-1").getName());
+  }
+
+}